@@ -0,0 +1,111 @@
+package simpledb;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import simpledb.common.DbException;
+import simpledb.db.Parser;
+import simpledb.db.ParsingException;
+import simpledb.execution.Cursor;
+import simpledb.execution.Query;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Runs SQL statements over HTTP. POST /query with the statement as a plain
+ * text body runs it in a transaction of its own and streams the results
+ * back as tab-separated values, a line of field names first, as they are
+ * fetched from a {@link Cursor} of fetchSize tuples (a request parameter,
+ * {@link Cursor#getDefaultFetchSize()} by default). Every fetch is flushed to
+ * the connection before the next one runs, so a client that reads slowly
+ * holds up the query instead of making the server buffer its results.
+ * <p>
+ * A statement that cannot be parsed or planned is answered with 400; an
+ * error while the results are streamed aborts the transaction and breaks
+ * off the response.
+ */
+@RestController
+public class QueryController {
+
+    private static final MediaType TAB_SEPARATED = new MediaType("text", "tab-separated-values",
+            StandardCharsets.UTF_8);
+
+    @PostMapping(value = "/query", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<StreamingResponseBody> query(@RequestBody String sql,
+                                                       @RequestParam(required = false) Integer fetchSize) {
+        if (fetchSize != null && fetchSize <= 0) {
+            return badRequest("fetchSize must be positive");
+        }
+        Transaction transaction = new Transaction();
+        transaction.start();
+        Query query;
+        try {
+            // Parser记录正在处理的语句的LIMIT子句，每个请求使用自己的Parser
+            query = new Parser().prepare(transaction.getId(), sql);
+        } catch (ParsingException | DbException | IOException | RuntimeException e) {
+            abort(transaction);
+            return badRequest(e.getMessage());
+        }
+        int size = fetchSize != null ? fetchSize : Cursor.getDefaultFetchSize();
+        return ResponseEntity.ok().contentType(TAB_SEPARATED)
+                .body(out -> stream(transaction, query, size, out));
+    }
+
+    private static ResponseEntity<StreamingResponseBody> badRequest(String message) {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN).body(out -> out.write(body));
+    }
+
+    private static void stream(Transaction transaction, Query query, int fetchSize, OutputStream out)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        boolean committed = false;
+        try {
+            try (Cursor cursor = query.cursor(fetchSize)) {
+                TupleDesc td = cursor.getTupleDesc();
+                if (td != null) {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        writer.write(i == 0 ? "" : "\t");
+                        writer.write(String.valueOf(td.getFieldName(i)));
+                    }
+                    writer.write("\n");
+                }
+                for (List<Tuple> tuples = cursor.fetch(); !tuples.isEmpty(); tuples = cursor.fetch()) {
+                    for (Tuple t : tuples) {
+                        // Tuple.toString以换行结尾
+                        writer.write(t.toString());
+                    }
+                    // 写满连接的发送缓冲区时在这里阻塞，查询随之暂停
+                    writer.flush();
+                }
+            }
+            writer.flush();
+            transaction.commit();
+            committed = true;
+        } catch (DbException | TransactionAbortedException e) {
+            throw new IOException(e);
+        } finally {
+            if (!committed) {
+                abort(transaction);
+            }
+        }
+    }
+
+    private static void abort(Transaction transaction) {
+        try {
+            transaction.abort();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -2,11 +2,19 @@ package simpledb;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import simpledb.common.Database;
+import simpledb.optimizer.TableStats;
 
 @SpringBootApplication
 public class SimpledbApplication {
 
     public static void main(String[] args) {
+        // 用-Dsimpledb.catalog=catalog.txt指定要加载的表，查询通过QueryController执行
+        String catalog = System.getProperty("simpledb.catalog");
+        if (catalog != null) {
+            Database.getCatalog().loadSchema(catalog);
+            TableStats.computeStatistics();
+        }
         SpringApplication.run(SimpledbApplication.class, args);
     }
 
@@ -8,12 +8,14 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.optimizer.LogicalLimitNode;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
 
@@ -21,10 +23,48 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * ZQL不认识LIMIT子句：语句末尾的LIMIT n [OFFSET m]在交给ZqlParser之前去掉，
+     * 再加到逻辑计划上
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d{1,18})(?:\\s+OFFSET\\s+(\\d{1,18}))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * EXPLAIN ANALYZE开头的SELECT语句运行后只打印各个算子的实际情况
+     */
+    private static final Pattern EXPLAIN_ANALYZE = Pattern.compile(
+            "^\\s*EXPLAIN\\s+ANALYZE\\s+", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The LIMIT clause of the statement being processed, or null
+     */
+    private LogicalLimitNode limit = null;
+
+    /**
+     * Removes a trailing LIMIT n [OFFSET m] clause from a statement, which
+     * ZQL cannot parse, and remembers it in {@link #limit}.
+     *
+     * @return the statement without the clause
+     */
+    private String stripLimit(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find()) {
+            limit = null;
+            return s;
+        }
+        limit = new LogicalLimitNode(Long.parseLong(m.group(1)),
+                m.group(2) == null ? 0 : Long.parseLong(m.group(2)));
+        return s.substring(0, m.start()) + m.group(3);
+    }
+
     public static Predicate.Op getOp(String s) throws ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -187,23 +227,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +248,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +258,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                        + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                        + si.getColumn()) || groupByFields.contains(si
                         .getColumn()))) {
                     throw new ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,12 +279,12 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
         }
         // sort the data
 
@@ -278,16 +311,30 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
-    public Query handleQueryStatement(ZQuery s, TransactionId tId)
+    /**
+     * Plans a SELECT statement without printing anything.
+     */
+    private Query planQuery(ZQuery s, TransactionId tId)
             throws IOException,
             ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit != null) {
+            lp.addLimit(limit.limit, limit.offset);
+        }
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        return query;
+    }
+
+    public Query handleQueryStatement(ZQuery s, TransactionId tId)
+            throws IOException,
+            ParsingException, Zql.ParseException {
+        Query query = planQuery(s, tId);
+        OpIterator physicalPlan = query.getPhysicalPlan();
 
         if (physicalPlan != null) {
             Class<?> c;
@@ -302,7 +349,7 @@ public class Parser {
 
                 System.out.println("The query plan is:");
                 m.invoke(null, physicalPlan,
-                        lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+                        query.getLogicalPlan().getTableAliasToIdMapping(), TableStats.getStatsMap());
                 c = Class.forName("simpledb.optimizer.QueryPlanVisualizer");
                 m = c.getMethod(
                         "printQueryPlanTree", OpIterator.class, System.out.getClass());
@@ -376,9 +423,7 @@ public class Parser {
 
                 i++;
             }
-            List<Tuple> tups = new ArrayList<>();
-            tups.add(t);
-            newTups = new TupleArrayIterator(tups);
+            newTups = new TupleIterator(td, Collections.singletonList(t));
 
         } else {
             ZQuery zq = s.getQuery();
@@ -465,22 +510,58 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit != null) {
+                    lp.addLimit(limit.limit, limit.offset);
+                }
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new ParsingException(
                     "Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = null;
         }
 
         throw new ParsingException(
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Parses and plans a SELECT, INSERT or DELETE statement as a part of
+     * transaction tid, without running it or printing anything; the results
+     * are read through a cursor ({@link Query#cursor}).
+     *
+     * @throws ParsingException if the statement is not valid SQL, or not one of these statements
+     */
+    public Query prepare(TransactionId tid, String statement)
+            throws ParsingException, DbException, IOException {
+        try {
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(statement).getBytes(StandardCharsets.UTF_8)));
+            ZStatement s = p.readStatement();
+            if (limit != null && !(s instanceof ZQuery))
+                throw new ParsingException("LIMIT is only supported in SELECT statements");
+            if (s instanceof ZInsert)
+                return handleInsertStatement((ZInsert) s, tid);
+            if (s instanceof ZDelete)
+                return handleDeleteStatement((ZDelete) s, tid);
+            if (s instanceof ZQuery)
+                return planQuery((ZQuery) s, tid);
+            throw new ParsingException("Can't prepare " + s
+                    + ": only insert, delete, and select statements can be prepared");
+        } catch (Zql.ParseException | Zql.TokenMgrError e) {
+            throw new ParsingException("Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = null;
+        }
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -495,7 +576,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String statement = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            Matcher analyze = EXPLAIN_ANALYZE.matcher(statement);
+            boolean analyzed = analyze.find();
+            if (analyzed)
+                statement = statement.substring(analyze.end());
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(statement).getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -509,6 +596,10 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
+                    if (limit != null && !(s instanceof ZQuery))
+                        throw new ParsingException("LIMIT is only supported in SELECT statements");
+                    if (analyzed && !(s instanceof ZQuery))
+                        throw new ParsingException("EXPLAIN ANALYZE is only supported in SELECT statements");
                     if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
@@ -524,7 +615,11 @@ public class Parser {
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null)
+                    if (query != null && analyzed) {
+                        ExplainAnalyze profile = new ExplainAnalyze(query.getPhysicalPlan());
+                        profile.run();
+                        System.out.println(profile.getReport());
+                    } else if (query != null)
                         query.execute();
 
                     if (!inUserTrans && curtrans != null) {
@@ -561,13 +656,15 @@ public class Parser {
                     .println("Invalid SQL expression: \n \t" + e.getMessage());
         } catch (ParseException | TokenMgrError e) {
             System.out.println("Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = null;
         }
     }
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = {"select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into"};
+            "insert", "delete", "values", "into", "limit", "offset", "explain analyze"};
 
     public static void main(String[] argv) throws IOException {
 
@@ -687,60 +784,3 @@ public class Parser {
         }
     }
 }
-
-class TupleArrayIterator implements OpIterator {
-    /**
-     *
-     */
-    private static final long serialVersionUID = 1L;
-    final List<Tuple> tups;
-    Iterator<Tuple> it = null;
-
-    public TupleArrayIterator(List<Tuple> tups) {
-        this.tups = tups;
-    }
-
-    public void open() {
-        it = tups.iterator();
-    }
-
-    /**
-     * @return true if the iterator has more items.
-     */
-    public boolean hasNext() {
-        return it.hasNext();
-    }
-
-    /**
-     * Gets the next tuple from the operator (typically implementing by reading
-     * from a child operator or an access method).
-     *
-     * @return The next tuple in the iterator, or null if there are no more
-     * tuples.
-     */
-    public Tuple next() throws
-            NoSuchElementException {
-        return it.next();
-    }
-
-    /**
-     * Resets the iterator to the start.
-     */
-    public void rewind() {
-        it = tups.iterator();
-    }
-
-    /**
-     * Returns the TupleDesc associated with this OpIterator.
-     */
-    public TupleDesc getTupleDesc() {
-        return tups.get(0).getTupleDesc();
-    }
-
-    /**
-     * Closes the iterator.
-     */
-    public void close() {
-    }
-
-}
@@ -9,6 +9,7 @@ import simpledb.transaction.TransactionId;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class SimpleDb {
     public static void main(String[] args)
@@ -17,6 +18,11 @@ public class SimpleDb {
         switch (args[0]) {
             case "convert":
                 try {
+                    // a trailing "dict" stores the string columns dictionary encoded
+                    boolean dictionaryEncoded = args[args.length - 1].equalsIgnoreCase("dict");
+                    if (dictionaryEncoded) {
+                        args = Arrays.copyOf(args, args.length - 1);
+                    }
                     if (args.length < 3 || args.length > 5) {
                         System.err.println("Unexpected number of arguments to convert ");
                         return;
@@ -52,8 +58,9 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    HeapFileLoader.Result result = HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator, dictionaryEncoded);
+                    System.out.println("Loaded " + result);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -77,6 +84,24 @@ public class SimpleDb {
                     it.close();
                 }
                 break;
+            case "vacuum":
+                try {
+                    if (args.length != 3) {
+                        System.err.println("Usage: vacuum <table file> <number of columns>");
+                        return;
+                    }
+                    HeapFile heapFile = Utility.openHeapFile(Integer.parseInt(args[2]), new File(args[1]));
+                    HeapFileCompactor.Report report = new HeapFileCompactor(heapFile).compact();
+                    System.out.println("pages before: " + report.getPagesBefore());
+                    System.out.println("pages after: " + report.getPagesAfter());
+                    System.out.println("tuples moved: " + report.getTuplesMoved());
+                    System.out.println("bytes reclaimed: " + report.getBytesReclaimed());
+                    System.out.printf("full scan time: %.3f ms -> %.3f ms%n",
+                            report.getScanNanosBefore() / 1e6, report.getScanNanosAfter() / 1e6);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
             case "parser":
                 // Strip the first argument and call the parser
                 String[] newargs = new String[args.length - 1];
@@ -1,22 +1,74 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
-import simpledb.storage.Tuple;
-import simpledb.storage.TupleDesc;
+import simpledb.common.Type;
+import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by any number of columns. All the aggregates of an Aggregate
+ * are computed in a single pass over its child: a single aggregate with at
+ * most one group-by column by an {@link IntegerAggregator} or a
+ * {@link StringAggregator}, and anything else by a {@link HashAggregator}.
+ * <p>
+ * The groups are kept in an {@link AggregateHashTable}; the groups that do not
+ * fit in the aggregate memory budget ({@link #getMemoryBudget()}) are written
+ * to temporary files and aggregated after the groups in memory.
+ * <p>
+ * An Aggregate over several inputs, such as the pipelines of a parallel plan,
+ * is computed in two phases on the {@link WorkerPool}. Every input is
+ * aggregated by a worker into an aggregator of its own; then every worker
+ * merges, from all the partial aggregators, the groups of one part of the
+ * group keys ({@link Aggregator#merge}), so that the final merge is
+ * partitioned as well. The results are the groups of every part, one part
+ * after the other. An Aggregate over a sequential scan of a heap file is
+ * computed the same way by {@link #getThreads()} workers, each reading
+ * morsels of the table ({@link MorselScan}).
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    private static volatile long memoryBudget =
+            Long.getLong("simpledb.aggregate.memory", 16L * 1024 * 1024);
+
+    private static volatile int threads =
+            Integer.getInteger("simpledb.aggregate.threads", 1);
+
+    private OpIterator child;
+
+    /**
+     * 并行聚合的各个输入，每个由一个线程读取；只有一个输入时为null
+     */
+    private OpIterator[] inputs;
+
+    private final int[] afields;
+
+    private final int[] gfields;
+
+    private final Aggregator.Op[] aops;
+
+    /**
+     * 保存聚合结果的聚合器以及遍历结果的迭代器，在open时创建；并行聚合时每部分键一个，
+     * current是正在读的那个
+     */
+    private transient Aggregator[] aggregators;
+
+    private transient OpIterator[] results;
+
+    private transient int current;
+
+    private transient TupleDesc outTd;
+
     /**
      * Constructor.
      * <p>
@@ -32,6 +84,80 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child, new int[]{afield}, new Aggregator.Op[]{aop},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield});
+    }
+
+    /**
+     * Creates an Aggregate that computes several aggregates grouped by
+     * several columns. The output tuples are the group-by columns followed by
+     * the aggregates, in the order given.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The column of every aggregate.
+     * @param aops    The aggregation operator of every aggregate.
+     * @param gfields The columns over which we are grouping the result, none
+     *                if there is no grouping
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        if (afields.length != aops.length || afields.length == 0) {
+            throw new IllegalArgumentException("every aggregate needs a field and an operator");
+        }
+        this.child = child;
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.gfields = gfields.clone();
+    }
+
+    /**
+     * Creates an Aggregate over the union of several inputs of the same
+     * schema, each aggregated by a worker of its own.
+     *
+     * @param inputs  The OpIterators that are feeding us tuples.
+     * @param afields The column of every aggregate.
+     * @param aops    The aggregation operator of every aggregate.
+     * @param gfields The columns over which we are grouping the result, none
+     *                if there is no grouping
+     */
+    public Aggregate(OpIterator[] inputs, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+        this(inputs[0], afields, aops, gfields);
+        this.inputs = inputs.clone();
+    }
+
+    /**
+     * @return the bytes of groups an aggregate holds in memory. Set with
+     * -Dsimpledb.aggregate.memory; the default is 16MB.
+     */
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget of the aggregators created from now on.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of threads that aggregate a sequential scan of a
+     * heap file. Set with -Dsimpledb.aggregate.threads; the default is 1, so
+     * that a serial plan aggregates serially and returns its groups in the
+     * order they first appear.
+     */
+    public static int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads of the aggregates opened from now on; 1
+     * aggregates in the calling thread.
+     */
+    public static void setThreads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        threads = n;
     }
 
     /**
@@ -41,7 +167,15 @@ public class Aggregate extends Operator {
      */
     public int groupField() {
         // some code goes here
-        return -1;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples, none if
+     * there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -51,7 +185,14 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        return null;
+        return gfields.length == 0 ? null : groupFieldName(0);
+    }
+
+    /**
+     * @return the name of group-by field i in the <b>OUTPUT</b> tuples
+     */
+    public String groupFieldName(int i) {
+        return child.getTupleDesc().getFieldName(gfields[i]);
     }
 
     /**
@@ -59,7 +200,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return -1;
+        return afields[0];
+    }
+
+    /**
+     * @return the field of every aggregate
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -68,7 +216,16 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return null;
+        return aggregateFieldName(0);
+    }
+
+    /**
+     * @return the name of aggregate j in the <b>OUTPUT</b> tuples
+     */
+    public String aggregateFieldName(int j) {
+        String name = child.getTupleDesc().getFieldName(afields[j]);
+        // 输入列没有名字时输出列也不命名
+        return name == null ? null : nameOfAggregatorOp(aops[j]) + "(" + name + ")";
     }
 
     /**
@@ -76,16 +233,148 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return null;
+        return aops[0];
+    }
+
+    /**
+     * @return the operator of every aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    /**
+     * @return a new aggregator of the aggregates of this operator
+     */
+    private Aggregator newAggregator(long budget) {
+        TupleDesc childTd = child.getTupleDesc();
+        if (afields.length == 1 && gfields.length <= 1) {
+            int gfield = groupField();
+            Type gtype = gfield == Aggregator.NO_GROUPING ? null : childTd.getFieldType(gfield);
+            return childTd.getFieldType(afields[0]) == Type.INT_TYPE
+                    ? new IntegerAggregator(gfield, gtype, afields[0], aops[0], budget)
+                    : new StringAggregator(gfield, gtype, afields[0], aops[0], budget);
+        }
+        return new HashAggregator(childTd, gfields, afields, aops, budget);
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
+        OpIterator[] parallel = inputs;
+        int n = threads;
+        OpIterator scan = ProfiledIterator.unwrap(child);
+        if (parallel == null && n > 1 && MorselScan.canSplit(scan)) {
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(((SeqScan) scan).getTableId());
+            if (file.numPages() > MorselScan.MORSEL_PAGES) {
+                parallel = MorselScan.split((SeqScan) scan, n);
+            }
+        }
+        if (parallel != null) {
+            aggregators = aggregateInParallel(parallel);
+        } else {
+            Aggregator aggregator = newAggregator(memoryBudget);
+            aggregators = new Aggregator[]{aggregator};
+            child.open();
+            drain(child, aggregator);
+        }
+        results = new OpIterator[aggregators.length];
+        for (int i = 0; i < aggregators.length; i++) {
+            results[i] = aggregators[i].iterator();
+            results[i].open();
+        }
+        current = 0;
+        outTd = getTupleDesc();
+        super.open();
+    }
+
+    private static void drain(OpIterator input, Aggregator aggregator)
+            throws DbException, TransactionAbortedException {
+        if (input instanceof PushPlan) {
+            // 连接流水线的结果直接推给聚合器
+            ((PushPlan) input).pushAll(aggregator::mergeTupleIntoGroup);
+        } else if (ProfiledIterator.unwrap(input) instanceof PushPlan) {
+            ((ProfiledIterator) input).pushAll(aggregator::mergeTupleIntoGroup);
+        } else if (TupleBatch.isEnabled()) {
+            // 按批读取子节点，聚合器直接处理列向量
+            TupleBatch batch;
+            while ((batch = input.nextBatch()) != null) {
+                aggregator.mergeBatch(batch);
+            }
+        } else {
+            while (input.hasNext()) {
+                aggregator.mergeTupleIntoGroup(input.next());
+            }
+        }
+    }
+
+    /**
+     * Aggregates every input on a worker of its own into a partial
+     * aggregator, then merges one of n parts of the groups of all the
+     * partial aggregators on each of n workers, n being the number of
+     * inputs. The partial and the final aggregators are all in memory during
+     * the merge, so each gets 1/2n of the memory budget.
+     *
+     * @return the final aggregator of every part
+     */
+    private Aggregator[] aggregateInParallel(OpIterator[] inputs)
+            throws DbException, TransactionAbortedException {
+        int n = inputs.length;
+        long budget = Math.max(1, memoryBudget / (2L * n));
+        MorselScan.reset(inputs);
+        List<Future<Aggregator>> partials = new ArrayList<>();
+        List<Future<Aggregator>> finals = new ArrayList<>();
+        try {
+            for (OpIterator input : inputs) {
+                partials.add(WorkerPool.submit(() -> {
+                    Aggregator partial = newAggregator(budget);
+                    input.open();
+                    try {
+                        drain(input, partial);
+                    } finally {
+                        input.close();
+                    }
+                    return partial;
+                }));
+            }
+            List<Aggregator> partial = new ArrayList<>();
+            for (Future<Aggregator> f : partials) {
+                partial.add(WorkerPool.await(f, "aggregating tuples"));
+            }
+            for (int part = 0; part < n; part++) {
+                int p = part;
+                finals.add(WorkerPool.submit(() -> {
+                    Aggregator merged = newAggregator(budget);
+                    for (Aggregator a : partial) {
+                        merged.merge(a, p, n);
+                    }
+                    return merged;
+                }));
+            }
+            Aggregator[] merged = new Aggregator[n];
+            for (int part = 0; part < n; part++) {
+                merged[part] = WorkerPool.await(finals.get(part), "merging groups");
+            }
+            finals.clear();
+            return merged;
+        } finally {
+            // 部分聚合器合并后就不再需要；失败时也删除已完成的最终聚合器的临时文件
+            clearAll(partials);
+            clearAll(finals);
+        }
+    }
+
+    private static void clearAll(List<Future<Aggregator>> aggregators) {
+        for (Future<Aggregator> f : aggregators) {
+            try {
+                f.get().clear();
+            } catch (InterruptedException | ExecutionException ignored) {
+            }
+        }
     }
 
     /**
@@ -97,18 +386,31 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return null;
+        while (!results[current].hasNext()) {
+            if (current == results.length - 1) {
+                return null;
+            }
+            current++;
+        }
+        Tuple t = results[current].next();
+        t.resetTupleDesc(outTd);
+        return t;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        for (OpIterator r : results) {
+            r.rewind();
+        }
+        current = 0;
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
      * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * the aggregate value column. With several group by fields or aggregates,
+     * the group by fields come first, followed by the aggregate columns.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -117,22 +419,50 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = child.getTupleDesc().getFieldType(gfields[i]);
+            names[i] = groupFieldName(i);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            types[gfields.length + j] = Type.INT_TYPE;
+            names[gfields.length + j] = aggregateFieldName(j);
+        }
+        return new TupleDesc(types, names);
     }
 
     public void close() {
         // some code goes here
+        super.close();
+        child.close();
+        if (results != null) {
+            for (OpIterator r : results) {
+                r.close();
+            }
+        }
+        if (aggregators != null) {
+            for (Aggregator a : aggregators) {
+                a.clear();
+            }
+        }
+        results = null;
+        aggregators = null;
     }
 
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return null;
+        return inputs != null ? inputs.clone() : new OpIterator[]{child};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
+        this.child = children[0];
+        if (inputs != null) {
+            this.inputs = children.clone();
+        }
     }
 
 }
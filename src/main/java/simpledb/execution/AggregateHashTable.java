@@ -0,0 +1,1093 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+/**
+ * AggregateHashTable holds the groups of a hash aggregation and, for each of
+ * its value columns, the running SUM, COUNT, MIN and MAX of every group, in
+ * parallel long arrays indexed by the group number; groups are numbered in
+ * the order they first appear. A group key is made of zero or more fields.
+ * The groups are found by open addressing with linear probing, as in
+ * {@link JoinHashTable}: a single int key and its group share one long slot,
+ * so grouping on one int field creates no Field and no boxed value per tuple.
+ * <p>
+ * The table holds at most as many groups as fit in its memory budget. Once
+ * it is full, a tuple of a new group is written, as its key and values, to
+ * one of {@link #PARTITIONS} temporary files chosen by the hash of its key,
+ * while the groups in memory keep aggregating. The results are the groups in
+ * memory followed by the groups of every partition, which is aggregated in a
+ * table of its own when it is read, and partitioned again with other bits of
+ * the hash if it does not fit either.
+ * <p>
+ * The memory of the groups is reserved from the {@link QueryMemory} of the
+ * query as the table grows; a table that the query refuses more is full,
+ * like one that reached its budget, and stays full even if memory is freed
+ * later, so that a key never has both a group in memory and rows on disk. A partition of the last level that the
+ * query has no room for fails the query.
+ * <p>
+ * Tables that aggregated different parts of the same input can be merged
+ * ({@link #merge}): the running values of a group are merged like those of
+ * the tuples they were computed from, and the groups of the merged table
+ * that do not fit are written, as their running values, to partitions of
+ * their own.
+ */
+public final class AggregateHashTable {
+
+    public final static int PARTITIONS = 16;
+
+    /**
+     * A partition of this level is aggregated in memory whatever its size
+     */
+    public final static int MAX_LEVEL = 4;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    private final Type[] keyTypes;
+
+    private final Type[] valueTypes;
+
+    private final int keys;
+
+    private final int values;
+
+    private final boolean intKeys;
+
+    private final long memoryBudget;
+
+    private final int level;
+
+    private final int maxGroups;
+
+    private final long groupBytes;
+
+    /**
+     * 组占用的内存从查询预留，第一次扩容时创建
+     */
+    private MemoryReservation reservation;
+
+    /**
+     * 已经有行或状态写到分区后，表不再加入新组：否则同一个键会既在内存中又在分区中，
+     * 结果中出现两次。预留被拒绝之后，即使查询后来有了空闲内存也是如此
+     */
+    private boolean full;
+
+    /**
+     * 单个整数键（或无分组）的槽：高32位是键，低32位是组号加1，0表示空槽
+     */
+    private long[] intSlots;
+
+    /**
+     * 其他键的槽：组号（-1表示空槽）和键的64位哈希
+     */
+    private int[] slotGroups;
+
+    private long[] hashes;
+
+    /**
+     * 每个组的键和运行中的聚合值，按组号索引；keyOf每组keys个字段，聚合值每组values个
+     */
+    private int[] intKeyOf;
+
+    private Field[] keyOf;
+
+    private long[] sums;
+
+    private long[] counts;
+
+    private long[] mins;
+
+    private long[] maxs;
+
+    private int size;
+
+    /**
+     * 溢出的行（键和值）及其分区，以及合并时放不下的组的聚合状态及其分区；
+     * 状态行是键之后每个值列的sum、count（各占两个整数）、min和max
+     */
+    private final TupleDesc rowTd;
+
+    private final TupleDesc stateTd;
+
+    private final int[] keyColumns;
+
+    private Spill rows;
+
+    private Spill states;
+
+    /**
+     * 按部分排列的组号及每部分的起点，由merge的各个调用者共用，按需建立
+     */
+    private int[] partGroups;
+
+    private int[] partStarts;
+
+    /**
+     * Creates a table with a single int value column.
+     *
+     * @param keyType      the type of the group keys, or null if the
+     *                     aggregate is not grouped
+     * @param memoryBudget the bytes of groups the table holds in memory
+     */
+    public AggregateHashTable(Type keyType, long memoryBudget) {
+        this(keyType == null ? new Type[0] : new Type[]{keyType}, new Type[]{Type.INT_TYPE}, memoryBudget, 0);
+    }
+
+    /**
+     * @param keyTypes     the types of the fields of a group key, none if
+     *                     the aggregate is not grouped
+     * @param valueTypes   the types of the value columns; a string column
+     *                     can only be counted
+     * @param memoryBudget the bytes of groups the table holds in memory
+     */
+    public AggregateHashTable(Type[] keyTypes, Type[] valueTypes, long memoryBudget) {
+        this(keyTypes, valueTypes, memoryBudget, 0);
+    }
+
+    private AggregateHashTable(Type[] keyTypes, Type[] valueTypes, long memoryBudget, int level) {
+        this.keyTypes = keyTypes;
+        this.valueTypes = valueTypes;
+        this.keys = keyTypes.length;
+        this.values = valueTypes.length;
+        this.intKeys = keys == 0 || keys == 1 && keyTypes[0] == Type.INT_TYPE;
+        this.memoryBudget = memoryBudget;
+        this.level = level;
+        int limit = Integer.MAX_VALUE / Math.max(1, Math.max(keys, values)) - 8;
+        this.groupBytes = groupBytes(keyTypes, values);
+        this.maxGroups = level >= MAX_LEVEL
+                ? limit
+                : (int) Math.max(1, Math.min(limit, memoryBudget / groupBytes));
+        allocate(INITIAL_GROUPS);
+        this.rowTd = spillTd(keyTypes, values);
+        this.stateTd = spillTd(keyTypes, 6 * values);
+        this.keyColumns = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            keyColumns[i] = i;
+        }
+    }
+
+    private static TupleDesc spillTd(Type[] keyTypes, int ints) {
+        Type[] types = new Type[keyTypes.length + ints];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(keyTypes, 0, types, 0, keyTypes.length);
+        return new TupleDesc(types);
+    }
+
+    /**
+     * @return the bytes of memory a group takes: its key, four running
+     * values per value column and two slots (the load factor is at most 1/2)
+     */
+    static long groupBytes(Type[] keyTypes, int values) {
+        long bytes = 4 * 8 * values;
+        if (keyTypes.length == 0 || keyTypes.length == 1 && keyTypes[0] == Type.INT_TYPE) {
+            return bytes + 4 + 2 * 8;
+        }
+        for (Type type : keyTypes) {
+            // 键的引用和Field对象，字符串还有字符串本身
+            bytes += type == Type.INT_TYPE ? 8 + 16 : 8 + 64 + type.getLen();
+        }
+        return bytes + 2 * (4 + 8);
+    }
+
+    private void allocate(int groups) {
+        int slots = Integer.highestOneBit(groups) * 2;
+        if (slots < 2 * groups) {
+            slots *= 2;
+        }
+        if (intKeys) {
+            intSlots = new long[slots];
+            intKeyOf = intKeyOf == null ? new int[groups] : Arrays.copyOf(intKeyOf, groups);
+        } else {
+            slotGroups = new int[slots];
+            Arrays.fill(slotGroups, -1);
+            hashes = new long[slots];
+            keyOf = keyOf == null ? new Field[groups * keys] : Arrays.copyOf(keyOf, groups * keys);
+        }
+        int n = groups * values;
+        sums = sums == null ? new long[n] : Arrays.copyOf(sums, n);
+        counts = counts == null ? new long[n] : Arrays.copyOf(counts, n);
+        mins = mins == null ? new long[n] : Arrays.copyOf(mins, n);
+        maxs = maxs == null ? new long[n] : Arrays.copyOf(maxs, n);
+    }
+
+    private int capacity() {
+        return sums.length / values;
+    }
+
+    /**
+     * Doubles the arrays of groups, up to maxGroups, and inserts the groups
+     * into the new slots.
+     */
+    private void grow() {
+        allocate((int) Math.min(maxGroups, 2L * capacity()));
+        if (intKeys) {
+            for (int g = 0; g < size; g++) {
+                intSlots[freeSlot(intKeyOf[g])] = (long) intKeyOf[g] << 32 | g + 1;
+            }
+        } else {
+            for (int g = 0; g < size; g++) {
+                long h = hashOfGroup(g);
+                int slot = freeSlot(h);
+                slotGroups[slot] = g;
+                hashes[slot] = h;
+            }
+        }
+    }
+
+    private int freeSlot(int key) {
+        int mask = intSlots.length - 1;
+        int slot = (int) JoinHashTable.hash(key) & mask;
+        while (intSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int freeSlot(long h) {
+        int mask = slotGroups.length - 1;
+        int slot = (int) h & mask;
+        while (slotGroups[slot] != -1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return whether a new group can be added, growing the arrays if needed
+     */
+    private boolean hasRoom() {
+        if (size < capacity()) {
+            return true;
+        }
+        if (full || size >= maxGroups) {
+            return false;
+        }
+        if (reservation == null) {
+            reservation = QueryMemory.reserve("AggregateHashTable");
+        }
+        // 最后一层的分区不能再划分，预留被拒绝也要扩容，由checkMemory让查询失败
+        if (!reservation.tryReserve(Math.min(maxGroups, 2L * capacity()) * groupBytes) && level < MAX_LEVEL) {
+            full = true;
+            return false;
+        }
+        grow();
+        return true;
+    }
+
+    /**
+     * Fails the query if the table is a partition of the last level that
+     * grew beyond the memory the query granted it.
+     */
+    private void checkMemory() throws DbException {
+        if (level >= MAX_LEVEL && reservation != null) {
+            reservation.reserve(capacity() * groupBytes);
+        }
+    }
+
+    private int newGroup() {
+        int g = size++;
+        for (int i = g * values; i < (g + 1) * values; i++) {
+            sums[i] = 0;
+            counts[i] = 0;
+            mins[i] = Integer.MAX_VALUE;
+            maxs[i] = Integer.MIN_VALUE;
+        }
+        return g;
+    }
+
+    private long hashOfGroup(int g) {
+        if (intKeys) {
+            return JoinHashTable.hash(intKeyOf[g]);
+        }
+        if (keys == 1) {
+            return JoinHashTable.hash(keyOf[g].hashCode());
+        }
+        int h = 1;
+        for (int i = g * keys; i < (g + 1) * keys; i++) {
+            h = 31 * h + keyOf[i].hashCode();
+        }
+        return JoinHashTable.hash(h);
+    }
+
+    private boolean keyEquals(int g, Tuple t, int[] keyFields) {
+        for (int i = 0; i < keys; i++) {
+            if (!keyOf[g * keys + i].equals(t.getField(keyFields[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the group of a single int key, added if it is new, or -1 if it
+     * is new and the table is full
+     */
+    public int group(int key) {
+        int mask = intSlots.length - 1;
+        int slot = (int) JoinHashTable.hash(key) & mask;
+        long s;
+        while ((s = intSlots[slot]) != 0) {
+            if ((int) (s >>> 32) == key) {
+                return (int) s - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        long[] slots = intSlots;
+        if (!hasRoom()) {
+            return -1;
+        }
+        if (intSlots != slots) {
+            // 扩容后槽的位置变了
+            slot = freeSlot(key);
+        }
+        int g = newGroup();
+        intKeyOf[g] = key;
+        intSlots[slot] = (long) key << 32 | g + 1;
+        return g;
+    }
+
+    /**
+     * @return the group of a single key, added if it is new, or -1 if it is
+     * new and the table is full
+     */
+    public int group(Field key) {
+        if (intKeys) {
+            return group(((IntField) key).getValue());
+        }
+        long h = JoinHashTable.hash(key.hashCode());
+        int mask = slotGroups.length - 1;
+        int slot = (int) h & mask;
+        int g;
+        while ((g = slotGroups[slot]) != -1) {
+            if (hashes[slot] == h && keyOf[g].equals(key)) {
+                return g;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int[] slots = slotGroups;
+        if (!hasRoom()) {
+            return -1;
+        }
+        if (slotGroups != slots) {
+            slot = freeSlot(h);
+        }
+        g = newGroup();
+        keyOf[g] = key;
+        slotGroups[slot] = g;
+        hashes[slot] = h;
+        return g;
+    }
+
+    /**
+     * @return the group of the key made of the given fields of t, added if
+     * it is new, or -1 if it is new and the table is full
+     */
+    public int group(Tuple t, int[] keyFields) {
+        if (keys == 0) {
+            return group(0);
+        }
+        if (keys == 1) {
+            return intKeys ? group(t.getInt(keyFields[0])) : group(t.getField(keyFields[0]));
+        }
+        long h = hash(t, keyFields);
+        int mask = slotGroups.length - 1;
+        int slot = (int) h & mask;
+        int g;
+        while ((g = slotGroups[slot]) != -1) {
+            if (hashes[slot] == h && keyEquals(g, t, keyFields)) {
+                return g;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int[] slots = slotGroups;
+        if (!hasRoom()) {
+            return -1;
+        }
+        if (slotGroups != slots) {
+            slot = freeSlot(h);
+        }
+        g = newGroup();
+        for (int i = 0; i < keys; i++) {
+            keyOf[g * keys + i] = t.getField(keyFields[i]);
+        }
+        slotGroups[slot] = g;
+        hashes[slot] = h;
+        return g;
+    }
+
+    /**
+     * Adds a value to the first value column of a group.
+     */
+    public void add(int group, int value) {
+        add(group, 0, value);
+    }
+
+    /**
+     * Adds a value to a value column of a group.
+     */
+    public void add(int group, int column, int value) {
+        int i = group * values + column;
+        sums[i] += value;
+        counts[i]++;
+        if (value < mins[i]) {
+            mins[i] = value;
+        }
+        if (value > maxs[i]) {
+            maxs[i] = value;
+        }
+    }
+
+    /**
+     * Adds count values, whose sum, min and max are given, to the first value
+     * column of a group.
+     */
+    public void add(int group, long sum, long count, long min, long max) {
+        add(group, 0, sum, count, min, max);
+    }
+
+    /**
+     * Adds count values, whose sum, min and max are given, to a value column
+     * of a group.
+     */
+    public void add(int group, int column, long sum, long count, long min, long max) {
+        int i = group * values + column;
+        sums[i] += sum;
+        counts[i] += count;
+        mins[i] = Math.min(mins[i], min);
+        maxs[i] = Math.max(maxs[i], max);
+    }
+
+    /**
+     * Adds a value to the group of a single int key, or writes them to a
+     * partition if the group is new and the table is full.
+     */
+    public void aggregate(int key, int value) {
+        int g = group(key);
+        if (g >= 0) {
+            add(g, value);
+        } else {
+            spill(new IntField(key), value);
+        }
+    }
+
+    /**
+     * Adds a value to the group of a single key, or writes them to a
+     * partition if the group is new and the table is full.
+     */
+    public void aggregate(Field key, int value) {
+        int g = group(key);
+        if (g >= 0) {
+            add(g, value);
+        } else {
+            spill(key, value);
+        }
+    }
+
+    /**
+     * Adds the value fields of t to the value columns of the group of its key
+     * fields, or writes them to a partition if the group is new and the table
+     * is full. String value fields are only counted.
+     */
+    public void aggregate(Tuple t, int[] keyFields, int[] valueFields) {
+        int g = group(t, keyFields);
+        if (g < 0) {
+            spill(t, keyFields, valueFields);
+            return;
+        }
+        for (int j = 0; j < values; j++) {
+            add(g, j, valueTypes[j] == Type.INT_TYPE ? t.getInt(valueFields[j]) : 0);
+        }
+    }
+
+    private int partition(long h) {
+        // 每一层用哈希的不同的高4位，与槽位使用的低位不重叠
+        return (int) (h >>> (60 - 4 * level)) & (PARTITIONS - 1);
+    }
+
+    /**
+     * Writes a value of a group of a single key that is not in memory to the
+     * partition of its key.
+     */
+    public void spill(Field key, int value) {
+        Tuple t = new Tuple(rowTd);
+        t.setField(0, key);
+        t.setField(1, new IntField(value));
+        rows().write(partition(JoinHashTable.hash(key.hashCode())), t);
+    }
+
+    /**
+     * Writes the key and value fields of t, whose group is not in memory, to
+     * the partition of its key.
+     */
+    public void spill(Tuple t, int[] keyFields, int[] valueFields) {
+        Tuple row = new Tuple(rowTd);
+        for (int i = 0; i < keys; i++) {
+            row.setField(i, t.getField(keyFields[i]));
+        }
+        for (int j = 0; j < values; j++) {
+            row.setField(keys + j, new IntField(valueTypes[j] == Type.INT_TYPE ? t.getInt(valueFields[j]) : 0));
+        }
+        rows().write(partition(hash(t, keyFields)), row);
+    }
+
+    /**
+     * @return the hash of the key made of the given fields of t, the one
+     * the slots and the partitions are chosen by
+     */
+    private long hash(Tuple t, int[] keyFields) {
+        if (keys == 0) {
+            return JoinHashTable.hash(0);
+        }
+        if (keys == 1) {
+            return JoinHashTable.hash(t.getField(keyFields[0]).hashCode());
+        }
+        int h = 1;
+        for (int f : keyFields) {
+            h = 31 * h + t.getField(f).hashCode();
+        }
+        return JoinHashTable.hash(h);
+    }
+
+    private Spill rows() {
+        full = true;
+        if (rows == null) {
+            rows = new Spill(rowTd);
+        }
+        return rows;
+    }
+
+    private Spill states() {
+        full = true;
+        if (states == null) {
+            states = new Spill(stateTd);
+        }
+        return states;
+    }
+
+    /**
+     * The partitions of the rows or of the states written to disk, each a
+     * temporary file with a writer that is closed before it is read.
+     */
+    private static final class Spill {
+
+        final TupleDesc td;
+
+        final TupleFile[] files = new TupleFile[PARTITIONS];
+
+        final TupleFile.Writer[] writers = new TupleFile.Writer[PARTITIONS];
+
+        Spill(TupleDesc td) {
+            this.td = td;
+        }
+
+        void write(int p, Tuple t) {
+            try {
+                if (writers[p] == null) {
+                    if (files[p] == null) {
+                        files[p] = new TupleFile(td);
+                        writers[p] = files[p].writer();
+                    } else {
+                        writers[p] = files[p].appender();
+                    }
+                }
+                writers[p].write(t);
+            } catch (IOException e) {
+                throw new RuntimeException("could not write groups to disk", e);
+            }
+        }
+
+        void flush() throws IOException {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (writers[p] != null) {
+                    writers[p].close();
+                    writers[p] = null;
+                }
+            }
+        }
+
+        void delete() {
+            try {
+                flush();
+            } catch (IOException ignored) {
+            }
+            for (TupleFile file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of groups in memory
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return whether values were written to partitions on disk
+     */
+    public boolean isSpilled() {
+        return rows != null || states != null;
+    }
+
+    /**
+     * @return the single key of a group
+     */
+    public Field key(int group) {
+        return key(group, 0);
+    }
+
+    /**
+     * @return field i of the key of a group
+     */
+    public Field key(int group, int i) {
+        return intKeys ? new IntField(intKeyOf[group]) : keyOf[group * keys + i];
+    }
+
+    public long sum(int group, int column) {
+        return sums[group * values + column];
+    }
+
+    public long count(int group, int column) {
+        return counts[group * values + column];
+    }
+
+    public long min(int group, int column) {
+        return mins[group * values + column];
+    }
+
+    public long max(int group, int column) {
+        return maxs[group * values + column];
+    }
+
+    /**
+     * @return the value of an aggregate over the first value column of a
+     * group
+     */
+    public int result(int group, Aggregator.Op what) {
+        return result(group, 0, what);
+    }
+
+    /**
+     * @return the value of an aggregate over a value column of a group
+     */
+    public int result(int group, int column, Aggregator.Op what) {
+        int i = group * values + column;
+        switch (what) {
+            case MIN:
+                return (int) mins[i];
+            case MAX:
+                return (int) maxs[i];
+            case SUM:
+                return (int) sums[i];
+            case AVG:
+                return (int) (sums[i] / counts[i]);
+            case COUNT:
+                return (int) counts[i];
+            default:
+                throw new IllegalStateException("unsupported aggregate " + what);
+        }
+    }
+
+    /**
+     * Adds a spilled row, its key followed by its int values, to its group,
+     * or writes it to a partition of this table if the group is not in
+     * memory.
+     */
+    private void aggregateRow(Tuple t) {
+        int g = group(t, keyColumns);
+        if (g < 0) {
+            rows().write(partition(hash(t, keyColumns)), t);
+            return;
+        }
+        for (int j = 0; j < values; j++) {
+            add(g, j, t.getInt(keys + j));
+        }
+    }
+
+    /**
+     * Merges a spilled state, its key followed by the running values of
+     * every value column, into its group, or writes it to a partition of
+     * this table if the group is not in memory.
+     */
+    private void mergeState(Tuple t) {
+        int g = group(t, keyColumns);
+        if (g < 0) {
+            states().write(partition(hash(t, keyColumns)), t);
+            return;
+        }
+        for (int j = 0; j < values; j++) {
+            int f = keys + 6 * j;
+            add(g, j, (long) t.getInt(f) << 32 | t.getInt(f + 1) & 0xFFFFFFFFL,
+                    (long) t.getInt(f + 2) << 32 | t.getInt(f + 3) & 0xFFFFFFFFL,
+                    t.getInt(f + 4), t.getInt(f + 5));
+        }
+    }
+
+    /**
+     * Writes the state of group g of table, which is not in memory in this
+     * table, to a partition of this table.
+     */
+    private void spillState(AggregateHashTable table, int g, long h) {
+        Tuple t = new Tuple(stateTd);
+        for (int i = 0; i < keys; i++) {
+            t.setField(i, table.key(g, i));
+        }
+        for (int j = 0; j < values; j++) {
+            int i = g * values + j;
+            int f = keys + 6 * j;
+            t.setField(f, new IntField((int) (table.sums[i] >>> 32)));
+            t.setField(f + 1, new IntField((int) table.sums[i]));
+            t.setField(f + 2, new IntField((int) (table.counts[i] >>> 32)));
+            t.setField(f + 3, new IntField((int) table.counts[i]));
+            t.setField(f + 4, new IntField((int) table.mins[i]));
+            t.setField(f + 5, new IntField((int) table.maxs[i]));
+        }
+        states().write(partition(h), t);
+    }
+
+    /**
+     * @return which of parts parts a key of hash h belongs to. The parts are
+     * ranges of the high bits of the hash, the bits the partitions of the
+     * first level are chosen by, so that a part only spans the partitions
+     * its range overlaps.
+     */
+    private static int part(long h, int parts) {
+        return (int) ((h >>> 32) * parts >>> 32);
+    }
+
+    /**
+     * Sorts the groups in memory by part, once for all the tables that merge
+     * this one, so that each of them only visits the groups of its part.
+     *
+     * @return where the groups of every part start in partGroups, followed
+     * by the number of groups
+     */
+    private synchronized int[] partStarts(int parts) {
+        if (partStarts == null || partStarts.length != parts + 1 || partStarts[parts] != size) {
+            int[] partOf = new int[size];
+            int[] starts = new int[parts + 1];
+            for (int g = 0; g < size; g++) {
+                partOf[g] = part(hashOfGroup(g), parts);
+                starts[partOf[g] + 1]++;
+            }
+            for (int p = 0; p < parts; p++) {
+                starts[p + 1] += starts[p];
+            }
+            int[] next = Arrays.copyOf(starts, parts);
+            partGroups = new int[size];
+            for (int g = 0; g < size; g++) {
+                partGroups[next[partOf[g]]++] = g;
+            }
+            partStarts = starts;
+        }
+        return partStarts;
+    }
+
+    /**
+     * Merges into this table the groups of another table of the same key and
+     * value types, typically partial aggregates of a part of the same input,
+     * as if their tuples had been aggregated here. Only the groups whose key
+     * falls in part part of parts are merged, so that parts tables can merge
+     * the same partial tables at once, each into a disjoint set of groups.
+     * The groups of other that were written to disk are read and merged as
+     * well; other is left unchanged.
+     *
+     * @param other a table with the same key and value types
+     * @param part  the part of the keys to merge, from 0 to parts - 1
+     * @param parts the number of parts the keys are split into
+     */
+    public void merge(AggregateHashTable other, int part, int parts) throws IOException {
+        Tuple key = keys > 1 ? new Tuple(stateTd) : null;
+        int[] starts = other.partStarts(parts);
+        for (int k = starts[part]; k < starts[part + 1]; k++) {
+            int g = other.partGroups[k];
+            int target;
+            if (intKeys) {
+                target = group(other.intKeyOf[g]);
+            } else if (keys == 1) {
+                target = group(other.keyOf[g]);
+            } else {
+                for (int i = 0; i < keys; i++) {
+                    key.setField(i, other.keyOf[g * keys + i]);
+                }
+                target = group(key, keyColumns);
+            }
+            if (target < 0) {
+                spillState(other, g, other.hashOfGroup(g));
+                continue;
+            }
+            for (int j = 0; j < values; j++) {
+                int i = g * values + j;
+                add(target, j, other.sums[i], other.counts[i], other.mins[i], other.maxs[i]);
+            }
+        }
+        other.flush();
+        for (int p = 0; p < PARTITIONS; p++) {
+            // 这个分区的哈希范围与本部分不重叠时不用读
+            long first = (long) p << 60;
+            if (part(first, parts) > part || part(first | -1L >>> 4, parts) < part) {
+                continue;
+            }
+            if (other.rows != null && other.rows.files[p] != null) {
+                TupleFile.Reader reader = other.rows.files[p].reader();
+                try {
+                    Tuple t;
+                    while ((t = reader.next()) != null) {
+                        if (part(hash(t, keyColumns), parts) == part) {
+                            aggregateRow(t);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            if (other.states != null && other.states.files[p] != null) {
+                TupleFile.Reader reader = other.states.files[p].reader();
+                try {
+                    Tuple t;
+                    while ((t = reader.next()) != null) {
+                        if (part(hash(t, keyColumns), parts) == part) {
+                            mergeState(t);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the writers of the partitions, so that they can be read; tables
+     * merging the same table in parallel may all call it.
+     */
+    private synchronized void flush() throws IOException {
+        if (rows != null) {
+            rows.flush();
+        }
+        if (states != null) {
+            states.flush();
+        }
+    }
+
+    /**
+     * @return a table of the groups of partition p, or null if nothing was
+     * written to it
+     */
+    private AggregateHashTable load(int p) throws IOException {
+        TupleFile rowFile = rows == null ? null : rows.files[p];
+        TupleFile stateFile = states == null ? null : states.files[p];
+        if (rowFile == null && stateFile == null) {
+            return null;
+        }
+        AggregateHashTable table = new AggregateHashTable(keyTypes, valueTypes, memoryBudget, level + 1);
+        if (rowFile != null) {
+            TupleFile.Reader reader = rowFile.reader();
+            try {
+                Tuple t;
+                while ((t = reader.next()) != null) {
+                    // 溢出的值都是整数，字符串列写的是0
+                    table.aggregateRow(t);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (stateFile != null) {
+            TupleFile.Reader reader = stateFile.reader();
+            try {
+                Tuple t;
+                while ((t = reader.next()) != null) {
+                    table.mergeState(t);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        table.flush();
+        return table;
+    }
+
+    /**
+     * Removes all groups and deletes the partitions.
+     */
+    public void clear() {
+        if (rows != null) {
+            rows.delete();
+            rows = null;
+        }
+        if (states != null) {
+            states.delete();
+            states = null;
+        }
+        size = 0;
+        full = false;
+        partGroups = null;
+        partStarts = null;
+        if (reservation != null) {
+            reservation.release();
+            reservation = null;
+        }
+        if (intKeys) {
+            Arrays.fill(intSlots, 0);
+        } else {
+            Arrays.fill(slotGroups, -1);
+            Arrays.fill(keyOf, null);
+        }
+    }
+
+    /**
+     * Returns the results of an aggregate over the first value column: one
+     * tuple per group, with the key and the value of the aggregate if grouped
+     * is true, and only the value otherwise.
+     *
+     * @param td      the schema of the results
+     * @param what    the aggregate
+     * @param grouped whether to return the keys of the groups
+     */
+    public OpIterator iterator(TupleDesc td, Aggregator.Op what, boolean grouped) {
+        return new Results(td, new int[]{0}, new Aggregator.Op[]{what}, grouped);
+    }
+
+    /**
+     * Returns the results of several aggregates: one tuple per group, with
+     * the fields of its key followed by the value of every aggregate. The
+     * groups in memory are read when the iterator reaches them, and the
+     * partitions are aggregated one at a time, so that at most one table per
+     * level of partitioning is in memory at once.
+     *
+     * @param td      the schema of the results
+     * @param columns the value column of every aggregate
+     * @param what    the aggregates
+     */
+    public OpIterator iterator(TupleDesc td, int[] columns, Aggregator.Op[] what) {
+        return new Results(td, columns, what, keys > 0);
+    }
+
+    private final class Results extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+
+        private final int[] columns;
+
+        private final Aggregator.Op[] what;
+
+        private final boolean grouped;
+
+        /**
+         * 正在读的表：栈底是this，其上是正在读的分区的表；位置{下一个组, 下一个分区}与之对应
+         */
+        private transient Deque<AggregateHashTable> tables;
+
+        private transient Deque<int[]> positions;
+
+        Results(TupleDesc td, int[] columns, Aggregator.Op[] what, boolean grouped) {
+            this.td = td;
+            this.columns = columns;
+            this.what = what;
+            this.grouped = grouped;
+        }
+
+        public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new DbException("could not write groups to disk: " + e.getMessage());
+            }
+            tables = new ArrayDeque<>();
+            positions = new ArrayDeque<>();
+            tables.push(AggregateHashTable.this);
+            positions.push(new int[2]);
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (tables != null) {
+                popAll();
+            }
+        }
+
+        private void popAll() {
+            while (tables.size() > 1) {
+                tables.pop().clear();
+            }
+            positions.clear();
+            positions.push(new int[2]);
+        }
+
+        public void rewind() {
+            popAll();
+        }
+
+        private Tuple result(AggregateHashTable table, int g) {
+            Tuple t = new Tuple(td);
+            int f = 0;
+            if (grouped) {
+                for (int i = 0; i < keys; i++) {
+                    t.setField(f++, table.key(g, i));
+                }
+            }
+            for (int j = 0; j < what.length; j++) {
+                t.setField(f++, new IntField(table.result(g, columns[j], what[j])));
+            }
+            return t;
+        }
+
+        protected Tuple fetchNext() throws DbException {
+            while (!tables.isEmpty()) {
+                AggregateHashTable table = tables.peek();
+                int[] pos = positions.peek();
+                if (pos[0] < table.size) {
+                    return result(table, pos[0]++);
+                }
+                if (table.isSpilled() && pos[1] < PARTITIONS) {
+                    AggregateHashTable partition;
+                    try {
+                        partition = table.load(pos[1]++);
+                    } catch (IOException e) {
+                        throw new DbException("could not read groups from disk: " + e.getMessage());
+                    }
+                    if (partition != null) {
+                        tables.push(partition);
+                        positions.push(new int[2]);
+                        partition.checkMemory();
+                    }
+                    continue;
+                }
+                if (tables.size() == 1) {
+                    return null;
+                }
+                tables.pop().clear();
+                positions.pop();
+            }
+            return null;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleIterator;
 
 import java.io.Serializable;
@@ -78,6 +79,19 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate. The default
+     * implementation merges them one tuple at a time.
+     *
+     * @param batch a batch with the layout of the tuples passed to {@link #mergeTupleIntoGroup}
+     */
+    default void mergeBatch(TupleBatch batch) {
+        int[] sel = batch.selection();
+        for (int i = 0; i < batch.selectedCount(); i++) {
+            mergeTupleIntoGroup(batch.getTuple(sel[i]));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -85,4 +99,29 @@ public interface Aggregator extends Serializable {
      */
     OpIterator iterator();
 
+    /**
+     * Merges the groups of a partial aggregate of the same kind, computed
+     * over another part of the input, into this aggregate, as if its tuples
+     * had been merged here. Only the groups whose key falls in part part of
+     * parts are merged, so that parts aggregators can merge the same
+     * partial aggregates at once into disjoint sets of groups. The partial
+     * aggregate is left unchanged. The default implementation does not
+     * support merging.
+     *
+     * @param partial an aggregator created with the same arguments
+     * @param part    the part of the group keys to merge, from 0 to parts - 1
+     * @param parts   the number of parts the group keys are split into
+     * @throws UnsupportedOperationException if the aggregator cannot be merged
+     */
+    default void merge(Aggregator partial, int part, int parts) {
+        throw new UnsupportedOperationException("cannot merge " + getClass().getSimpleName());
+    }
+
+    /**
+     * Releases the groups of the aggregate and any temporary files they were
+     * written to. The default implementation does nothing.
+     */
+    default void clear() {
+    }
+
 }
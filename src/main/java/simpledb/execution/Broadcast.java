@@ -0,0 +1,35 @@
+package simpledb.execution;
+
+/**
+ * An exchange that sends every tuple of several pipelines to all of its
+ * outputs, such as the small build side of a join whose probe side is not
+ * repartitioned.
+ */
+public class Broadcast extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(Channel channel, int output) {
+        super(channel, output);
+    }
+
+    /**
+     * @param producers the pipelines to run in parallel, all with the same
+     *                  schema
+     * @param outputs   the number of outputs
+     * @return the outputs of the exchange
+     */
+    public static Broadcast[] of(OpIterator[] producers, int outputs) {
+        Channel channel = new Channel(producers, outputs, -1, true);
+        Broadcast[] exchanges = new Broadcast[outputs];
+        for (int o = 0; o < outputs; o++) {
+            exchanges[o] = new Broadcast(channel, o);
+        }
+        return exchanges;
+    }
+
+    @Override
+    public String getName() {
+        return "broadcast(" + getProducers() + ")";
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Cursor hands the results of a {@link Query} to a client a fetch at a
+ * time: every call to {@link #fetch()} runs the plan just far enough to
+ * produce the next fetchSize tuples, on the thread of the caller. Nothing
+ * runs between two fetches, so a client that reads slowly pauses the query
+ * instead of letting results pile up, and no more than one fetch of the
+ * results is ever held by the cursor.
+ * <p>
+ * The cursor opens the plan of the query when it is created and closes it
+ * when the last tuple has been fetched, or when it is closed, whichever
+ * comes first; a client that stops early just closes it. The transaction of
+ * the query is the caller's to commit or abort.
+ * <pre>
+ * try (Cursor cursor = query.cursor(500)) {
+ *     for (List&lt;Tuple&gt; rows = cursor.fetch(); !rows.isEmpty(); rows = cursor.fetch()) {
+ *         send(rows);
+ *     }
+ * }
+ * </pre>
+ */
+public class Cursor implements AutoCloseable {
+
+    private static volatile int defaultFetchSize =
+            Integer.getInteger("simpledb.fetchsize", 1000);
+
+    private final Query query;
+
+    private final int fetchSize;
+
+    private boolean open;
+
+    private long rows;
+
+    /**
+     * Opens the plan of query.
+     *
+     * @param fetchSize the largest number of tuples a fetch returns
+     */
+    public Cursor(Query query, int fetchSize) throws DbException, TransactionAbortedException {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("the fetch size must be positive: " + fetchSize);
+        }
+        this.query = query;
+        this.fetchSize = fetchSize;
+        query.start();
+        open = true;
+    }
+
+    /**
+     * @return the fetch size of the cursors created without one. Set with
+     * -Dsimpledb.fetchsize=n; 1000 by default.
+     */
+    public static int getDefaultFetchSize() {
+        return defaultFetchSize;
+    }
+
+    public static void setDefaultFetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("the fetch size must be positive: " + fetchSize);
+        }
+        defaultFetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @return the schema of the tuples the cursor returns
+     */
+    public TupleDesc getTupleDesc() {
+        return query.getOutputTupleDesc();
+    }
+
+    /**
+     * Runs the query until it produces the next fetchSize tuples, or until it
+     * ends.
+     *
+     * @return the next tuples, fewer than fetchSize only at the end of the
+     * results; an empty list once every tuple has been fetched
+     */
+    public List<Tuple> fetch() throws DbException, TransactionAbortedException {
+        List<Tuple> batch = new ArrayList<>(Math.min(fetchSize, 1024));
+        fetch(batch::add);
+        return batch;
+    }
+
+    /**
+     * Pushes the next fetchSize tuples into sink as the query produces them,
+     * without collecting them; a sink that blocks (such as one writing to a
+     * slow network connection) holds up the query.
+     *
+     * @return the number of tuples pushed, 0 once every tuple has been fetched
+     */
+    public int fetch(TupleSink sink) throws DbException, TransactionAbortedException {
+        int n = 0;
+        try {
+            while (open && n < fetchSize && query.hasNext()) {
+                sink.push(query.next());
+                n++;
+            }
+            if (open && n < fetchSize) {
+                close();
+            }
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        rows += n;
+        return n;
+    }
+
+    /**
+     * @return whether every tuple has been fetched, or the cursor was closed
+     */
+    public boolean isDone() {
+        return !open;
+    }
+
+    /**
+     * @return the number of tuples fetched so far
+     */
+    public long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Closes the plan of the query; further fetches return nothing.
+     */
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            query.close();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An Exchange moves tuples between the pipelines of a parallel plan. Its
+ * producers are pipelines that run on the {@link WorkerPool}, one thread
+ * each, and route every tuple they produce to one or more outputs; each
+ * output is an Exchange operator that reads the tuples routed to it, in
+ * the pipeline of another thread or in the calling thread. The kinds of
+ * exchange differ by how they route tuples: {@link Gather} sends every
+ * tuple to its single output, {@link Repartition} to the output of the
+ * hash of a field, and {@link Broadcast} to all outputs.
+ * <p>
+ * The producers start when the first output is opened, and stop when the
+ * last one is closed, even if they have not finished. The tuples travel in
+ * chunks, through a bounded queue per output, so a producer waits when its
+ * consumers do not keep up. The failure of a producer is thrown by the
+ * outputs that read from it.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of tuples a producer sends at once
+     */
+    public static final int CHUNK_SIZE = 256;
+
+    /**
+     * The number of chunks waiting in the queue of an output
+     */
+    private static final int QUEUE_CHUNKS = 8;
+
+    /**
+     * 生产者结束时向每个输出发送的标记
+     */
+    private static final List<Tuple> END = Collections.emptyList();
+
+    /**
+     * The producers and the queues shared by the outputs of one exchange.
+     */
+    static final class Channel implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private OpIterator[] producers;
+
+        private final int outputs;
+
+        /**
+         * 按哈希分区时的字段，-1表示不按字段分区
+         */
+        private final int field;
+
+        private final boolean broadcast;
+
+        private transient List<BlockingQueue<List<Tuple>>> queues;
+
+        /**
+         * 每个输出已经收到的结束标记数
+         */
+        private transient int[] ends;
+
+        private transient List<Future<Object>> running;
+
+        private transient volatile boolean stopped;
+
+        private transient volatile Throwable failure;
+
+        private transient int opened;
+
+        Channel(OpIterator[] producers, int outputs, int field, boolean broadcast) {
+            if (producers.length == 0 || outputs < 1) {
+                throw new IllegalArgumentException("an exchange needs producers and outputs");
+            }
+            this.producers = producers.clone();
+            this.outputs = outputs;
+            this.field = field;
+            this.broadcast = broadcast;
+        }
+
+        synchronized void open() {
+            if (opened++ == 0) {
+                start();
+            }
+        }
+
+        synchronized void close() {
+            if (opened > 0 && --opened == 0) {
+                stop();
+            }
+        }
+
+        synchronized void restart() throws DbException {
+            if (outputs > 1) {
+                throw new DbException("an exchange with several outputs cannot be rewound");
+            }
+            stop();
+            start();
+        }
+
+        private void start() {
+            queues = new ArrayList<>(outputs);
+            for (int o = 0; o < outputs; o++) {
+                queues.add(new ArrayBlockingQueue<>(QUEUE_CHUNKS));
+            }
+            ends = new int[outputs];
+            stopped = false;
+            failure = null;
+            MorselScan.reset(producers);
+            running = new ArrayList<>();
+            for (OpIterator producer : producers) {
+                running.add(WorkerPool.submit(() -> {
+                    produce(producer);
+                    return null;
+                }));
+            }
+        }
+
+        private void stop() {
+            if (running == null) {
+                return;
+            }
+            stopped = true;
+            for (Future<Object> f : running) {
+                try {
+                    f.get();
+                } catch (Exception ignored) {
+                    // 生产者自己记录失败
+                }
+            }
+            running = null;
+            queues = null;
+        }
+
+        /**
+         * Runs a producer to the end, or until the exchange is stopped, and
+         * sends its tuples to the outputs.
+         */
+        private void produce(OpIterator producer) {
+            List<List<Tuple>> chunks = newChunks();
+            try {
+                producer.open();
+                if (TupleBatch.isEnabled()) {
+                    TupleBatch batch;
+                    while (!stopped && (batch = producer.nextBatch()) != null) {
+                        int[] sel = batch.selection();
+                        for (int i = 0; i < batch.selectedCount(); i++) {
+                            route(batch.getTuple(sel[i]), chunks);
+                        }
+                    }
+                } else {
+                    while (!stopped && producer.hasNext()) {
+                        route(producer.next(), chunks);
+                    }
+                }
+                for (int o = 0; o < outputs; o++) {
+                    List<Tuple> chunk = chunks.get(broadcast ? 0 : o);
+                    if (!chunk.isEmpty()) {
+                        send(o, chunk);
+                    }
+                }
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                producer.close();
+                for (int o = 0; o < outputs; o++) {
+                    send(o, END);
+                }
+            }
+        }
+
+        private List<List<Tuple>> newChunks() {
+            // 广播时所有输出共用一个块
+            int n = broadcast ? 1 : outputs;
+            List<List<Tuple>> chunks = new ArrayList<>(n);
+            for (int o = 0; o < n; o++) {
+                chunks.add(new ArrayList<>(CHUNK_SIZE));
+            }
+            return chunks;
+        }
+
+        private void route(Tuple t, List<List<Tuple>> chunks) {
+            int o = outputs == 1 || broadcast ? 0 : output(t);
+            List<Tuple> chunk = chunks.get(o);
+            chunk.add(t);
+            if (chunk.size() == CHUNK_SIZE) {
+                if (broadcast) {
+                    for (int i = 0; i < outputs; i++) {
+                        send(i, chunk);
+                    }
+                } else {
+                    send(o, chunk);
+                }
+                chunks.set(o, new ArrayList<>(CHUNK_SIZE));
+            }
+        }
+
+        /**
+         * @return the output of the hash of the partitioning field of t;
+         * both sides of a join are partitioned alike, since an IntField and
+         * an int hash alike
+         */
+        private int output(Tuple t) {
+            long h = JoinHashTable.hash(t.getField(field).hashCode());
+            return (int) ((h >>> 32) * outputs >>> 32);
+        }
+
+        private void send(int output, List<Tuple> chunk) {
+            BlockingQueue<List<Tuple>> queue = queues.get(output);
+            try {
+                while (!stopped) {
+                    if (queue.offer(chunk, 10, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return the next chunk of an output, or null if every producer has
+         * finished
+         */
+        List<Tuple> take(int output) throws DbException, TransactionAbortedException {
+            BlockingQueue<List<Tuple>> queue = queues.get(output);
+            while (true) {
+                if (failure != null) {
+                    throw WorkerPool.rethrow(failure, "producing tuples for an exchange");
+                }
+                if (ends[output] == producers.length) {
+                    return null;
+                }
+                List<Tuple> chunk;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while reading an exchange");
+                }
+                if (chunk == END) {
+                    ends[output]++;
+                } else {
+                    return chunk;
+                }
+            }
+        }
+    }
+
+    private final Channel channel;
+
+    private final int output;
+
+    /**
+     * 当前正在读的块及其中下一个元组的位置
+     */
+    private transient List<Tuple> chunk;
+
+    private transient int pos;
+
+    Exchange(Channel channel, int output) {
+        this.channel = channel;
+        this.output = output;
+    }
+
+    /**
+     * @return the name of the exchange in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * @return the number of producers of the exchange, its degree of
+     * parallelism
+     */
+    public int getProducers() {
+        return channel.producers.length;
+    }
+
+    /**
+     * @return which output of the exchange this operator reads
+     */
+    public int getOutput() {
+        return output;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        chunk = null;
+        channel.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        chunk = null;
+        channel.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        chunk = null;
+        channel.restart();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (chunk == null || pos == chunk.size()) {
+            chunk = channel.take(output);
+            pos = 0;
+            if (chunk == null) {
+                return null;
+            }
+        }
+        return chunk.get(pos++);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return channel.producers[0].getTupleDesc();
+    }
+
+    /**
+     * @return the producers of the exchange, the pipelines every worker runs
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return channel.producers.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        channel.producers = children.clone();
+    }
+}
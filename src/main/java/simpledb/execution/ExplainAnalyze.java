@@ -0,0 +1,274 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+
+/**
+ * EXPLAIN ANALYZE: runs a plan to the end, discarding its results, with every
+ * operator wrapped so that it records what it actually did in an
+ * {@link OperatorProfile}: the tuples it returned, the wall and CPU time of
+ * its open and of producing its tuples, the pages it requested from the
+ * buffer pool, hits and misses, the memory it allocated, and the most memory
+ * its data structures reserved from the {@link QueryMemory} the plan runs
+ * in. The report
+ * ({@link #getReport()}) draws the plan with the estimated and the actual
+ * cardinality of every operator, so that the operators the optimizer
+ * misjudged stand out, followed by the profiles.
+ * <p>
+ * The operators inside a {@link PushPlan} that run as stages of its pipelines
+ * have no calls of their own to wrap; only the pipeline as a whole and its
+ * sources are profiled. The pipelines under an {@link Exchange} run on
+ * worker threads, so their time is not part of the time of the operators
+ * above the exchange. The plan is restored when the run ends, and can be
+ * run again.
+ */
+public class ExplainAnalyze {
+
+    private final OpIterator plan;
+
+    private final Map<OpIterator, OperatorProfile> profiles = new IdentityHashMap<>();
+
+    /**
+     * 被替换了孩子的算子和它原来的孩子，运行结束后按相反顺序恢复
+     */
+    private final List<Operator> wrapped = new ArrayList<>();
+
+    private final List<OpIterator[]> originals = new ArrayList<>();
+
+    private long rows;
+
+    private long elapsedNanos;
+
+    private long peakHeapBytes;
+
+    private QueryMemory memory;
+
+    public ExplainAnalyze(OpIterator plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * Runs the plan to the end, profiling its operators, and discards its
+     * results.
+     *
+     * @return the number of tuples the plan returned
+     */
+    public long run() throws DbException, TransactionAbortedException {
+        profiles.clear();
+        OpIterator root = wrap(plan);
+        instrument(plan, false);
+        List<MemoryPoolMXBean> heap = heapPools();
+        for (MemoryPoolMXBean pool : heap) {
+            pool.resetPeakUsage();
+        }
+        // 与Query相同，计划在它自己的查询内存中运行
+        memory = new QueryMemory();
+        QueryMemory previous = QueryMemory.bind(memory);
+        long start = System.nanoTime();
+        rows = 0;
+        try {
+            root.open();
+            try {
+                while (root.hasNext()) {
+                    root.next();
+                    rows++;
+                }
+            } finally {
+                root.close();
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+            peakHeapBytes = 0;
+            for (MemoryPoolMXBean pool : heap) {
+                peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+            QueryMemory.bind(previous);
+            memory.close();
+            restore();
+        }
+        return rows;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private OpIterator wrap(OpIterator op) {
+        OperatorProfile profile = new OperatorProfile();
+        profiles.put(op, profile);
+        return new ProfiledIterator(op, profile);
+    }
+
+    /**
+     * Wraps the children of op, and the operators under them.
+     *
+     * @param pushed whether op is a stage of the pipelines of a PushPlan
+     */
+    private void instrument(OpIterator op, boolean pushed) {
+        if (!(op instanceof Operator)) {
+            return;
+        }
+        Operator operator = (Operator) op;
+        OpIterator[] children = operator.getChildren();
+        // 孩子数组的元素类型可能更具体，比如MorselScan[]
+        OpIterator[] replaced = Arrays.copyOf(children, children.length, OpIterator[].class);
+        boolean changed = false;
+        for (int i = 0; i < children.length; i++) {
+            OpIterator child = children[i];
+            if (child == null || child instanceof ProfiledIterator) {
+                // 同一个交换的各个输出共享生产者，只包装一次
+                continue;
+            }
+            // 流水线中的阶段没有可以包装的调用，它们的孩子是流水线的源
+            boolean stage = (pushed || op instanceof PushPlan) && PushPlan.isPushable(child);
+            if (!stage) {
+                replaced[i] = wrap(child);
+                changed = true;
+            }
+            instrument(child, stage);
+        }
+        if (changed) {
+            wrapped.add(operator);
+            originals.add(children);
+            operator.setChildren(replaced);
+        }
+    }
+
+    private void restore() {
+        for (int i = wrapped.size() - 1; i >= 0; i--) {
+            wrapped.get(i).setChildren(originals.get(i));
+        }
+        wrapped.clear();
+        originals.clear();
+    }
+
+    /**
+     * @return what op did in the last run, or null if it was not profiled
+     */
+    public OperatorProfile getProfile(OpIterator op) {
+        return profiles.get(op);
+    }
+
+    /**
+     * @return the profiles of the operators of the plan, by operator
+     */
+    public Map<OpIterator, OperatorProfile> getProfiles() {
+        return Collections.unmodifiableMap(profiles);
+    }
+
+    /**
+     * @return the number of tuples the plan returned in the last run
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the most heap memory in use at once during the last run, by
+     * the whole JVM
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /**
+     * @return the memory the last run reserved from, whose peak
+     * ({@link QueryMemory#getPeak()}) is the most its operators held at once
+     */
+    public QueryMemory getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return the wall time of op without the time of the profiled operators
+     * under it that ran inside its calls, on the same thread
+     */
+    public long getSelfNanos(OpIterator op) {
+        OperatorProfile profile = profiles.get(op);
+        if (profile == null) {
+            return 0;
+        }
+        return profile.getTotalNanos() - childNanos(op, profile.thread);
+    }
+
+    private long childNanos(OpIterator op, long thread) {
+        if (!(op instanceof Operator) || op instanceof Exchange) {
+            return 0;
+        }
+        long nanos = 0;
+        for (OpIterator child : ((Operator) op).getChildren()) {
+            OperatorProfile profile = profiles.get(child);
+            if (profile == null) {
+                nanos += childNanos(child, thread);
+            } else if (profile.thread == thread) {
+                nanos += profile.getTotalNanos();
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * @return the plan, with the estimated and the actual cardinality of its
+     * operators, and a table of their profiles
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(new QueryPlanVisualizer().getQueryPlanTree(plan, profiles));
+        sb.append(String.format("%n%-32s %10s %10s %10s %10s %10s %10s %8s %8s %10s %10s%n",
+                "operator", "est", "rows", "open ms", "next ms", "self ms", "cpu ms", "hits", "misses", "alloc KB",
+                "mem KB"));
+        report(plan, 0, sb, Collections.newSetFromMap(new IdentityHashMap<>()));
+        sb.append(String.format("%n%d rows in %.3f ms, peak heap %d KB, peak reserved %d KB%n",
+                rows, elapsedNanos / 1e6, peakHeapBytes >> 10, memory == null ? 0 : memory.getPeak() >> 10));
+        return sb.toString();
+    }
+
+    private void report(OpIterator op, int depth, StringBuilder sb, Set<OpIterator> seen) {
+        if (op == null || !seen.add(op)) {
+            return;
+        }
+        String name = String.join("", Collections.nCopies(depth, "  ")) + label(op);
+        String est = op instanceof Operator ? String.valueOf(((Operator) op).getEstimatedCardinality()) : "-";
+        OperatorProfile p = profiles.get(op);
+        if (p == null || p.opens == 0) {
+            // 流水线中的阶段，或者父算子用别的方式读取了它的输入
+            sb.append(String.format("%-32s %10s %10s%n", name, est, p == null ? "(pushed)" : "-"));
+        } else {
+            sb.append(String.format("%-32s %10s %10d %10.3f %10.3f %10.3f %10.3f %8d %8d %10d %10d%n",
+                    name, est, p.rows, p.openNanos / 1e6, p.nextNanos / 1e6, getSelfNanos(op) / 1e6,
+                    p.getCpuNanos() / 1e6, p.pageHits, p.pageMisses, p.allocatedBytes >> 10,
+                    p.getPeakReservedBytes() >> 10));
+        }
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                report(child, depth + 1, sb, seen);
+            }
+        }
+    }
+
+    private static String label(OpIterator op) {
+        if (op instanceof SeqScan) {
+            return "scan(" + ((SeqScan) op).getAlias() + ")";
+        }
+        if (op instanceof Exchange) {
+            return ((Exchange) op).getName();
+        }
+        return op.getClass().getSimpleName();
+    }
+}
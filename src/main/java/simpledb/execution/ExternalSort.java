@@ -0,0 +1,510 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ExternalSort sorts tuples that need not fit in memory. Tuples are added one
+ * at a time; as long as their size stays within the memory budget they are
+ * simply sorted in memory by {@link #finish()}. Once the budget is exceeded,
+ * the tuples are cut into runs of about budget / (threads + 1) bytes, and
+ * every run is sorted and written to a {@link TupleFile} by a pool of worker
+ * threads while the caller keeps adding tuples, so at most threads runs are
+ * being sorted while the next one is filled.
+ * <p>
+ * The runs are merged with a loser tree, which finds the next tuple with one
+ * comparison per level of a tree over the runs. Each run being merged holds a
+ * read buffer of {@link TupleFile#BUFFER_SIZE} bytes, so if there are more
+ * runs than the budget has room for, groups of runs are first merged into
+ * longer runs by the workers in parallel. The last merge produces the output
+ * while it is read, and reading the output again merges the same runs again
+ * without sorting anything.
+ * <p>
+ * A tuple held in memory is charged {@link TupleDesc#getSize()} plus
+ * {@link #TUPLE_OVERHEAD} bytes for the object itself, its slot in the list
+ * and its entry in the sort, which for narrow tuples is most of their heap
+ * footprint. The sort is stable.
+ * <p>
+ * The memory is reserved from the {@link QueryMemory} of the query the sort
+ * runs in. When the query refuses more before the budget is reached, the
+ * sort starts writing runs early, with runs and a fan-in sized to the memory
+ * it got; it fails only if it cannot get the read buffers of one two-way
+ * merge.
+ */
+public class ExternalSort {
+
+    /**
+     * 内存中每个元组除字段之外的大致开销：Tuple对象、列表中的引用以及排序时的键
+     */
+    public static final int TUPLE_OVERHEAD = 64;
+
+    private final TupleDesc td;
+
+    private final int[] fields;
+
+    private final boolean[] ascending;
+
+    private final long memoryBudget;
+
+    private final int threads;
+
+    /**
+     * 排序键是否只有一个int字段，此时比较时直接读int
+     */
+    private final boolean intKey;
+
+    private final long tupleBytes;
+
+    /**
+     * 还没有写成有序段的元组及其字节数
+     */
+    private List<Tuple> buffer = new ArrayList<>();
+
+    private long bufferBytes;
+
+    /**
+     * 开始外排后每个有序段的字节数上限；pool为null表示还没有外排
+     */
+    private long runBytes;
+
+    /**
+     * 开始外排后使用的内存：预算与已经预留到的内存中较小的一个
+     */
+    private long memory;
+
+    /**
+     * 从查询预留的内存，第一次加入元组时创建
+     */
+    private MemoryReservation reservation;
+
+    private ExecutorService pool;
+
+    /**
+     * 按输入顺序提交的有序段，以及已经等待完成的个数
+     */
+    private final List<Future<TupleFile>> pending = new ArrayList<>();
+
+    private int awaited;
+
+    /**
+     * finish之后的有序段；null表示所有元组都在buffer中
+     */
+    private List<TupleFile> runs;
+
+    private boolean finished;
+
+    /**
+     * @param td           the schema of the tuples
+     * @param fields       the fields of the sort key, most significant first
+     * @param ascending    the direction of every field of the key
+     * @param memoryBudget the bytes of tuples held in memory
+     * @param threads      the number of threads that sort and merge runs, at least 1
+     */
+    public ExternalSort(TupleDesc td, int[] fields, boolean[] ascending, long memoryBudget, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.td = td;
+        this.fields = fields.clone();
+        this.ascending = ascending.clone();
+        this.memoryBudget = memoryBudget;
+        this.threads = threads;
+        this.intKey = fields.length == 1 && td.getFieldType(fields[0]) == Type.INT_TYPE;
+        this.tupleBytes = td.getSize() + TUPLE_OVERHEAD;
+    }
+
+    /**
+     * Adds t to the tuples to sort. The sort keeps t, or a compact copy of
+     * it ({@link Tuple#compact()}), until it is written to a run.
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished) {
+            throw new IllegalStateException("tuples added after finish");
+        }
+        buffer.add(t.compact());
+        bufferBytes += tupleBytes;
+        if (reservation == null) {
+            reservation = QueryMemory.reserve("ExternalSort");
+        }
+        if (pool == null) {
+            if (bufferBytes > memoryBudget || !reservation.tryReserve(bufferBytes)) {
+                startRuns();
+            }
+        } else if (bufferBytes >= runBytes) {
+            submitRun(buffer);
+            buffer = new ArrayList<>();
+            bufferBytes = 0;
+        }
+    }
+
+    /**
+     * Cuts the tuples that no longer fit in the budget, or in the memory the
+     * query has granted, into runs, and starts the workers that sort them.
+     */
+    private void startRuns() throws DbException {
+        // 至少需要一次两路归并的读缓冲
+        memory = Math.min(memoryBudget, Math.max(reservation.getBytes(), 2L * TupleFile.BUFFER_SIZE));
+        reservation.shrink(memory);
+        reservation.reserve(memory);
+        runBytes = Math.max(tupleBytes, memory / (threads + 1));
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "external-sort");
+            t.setDaemon(true);
+            return t;
+        });
+        int runTuples = (int) (runBytes / tupleBytes);
+        for (int from = 0; from < buffer.size(); from += runTuples) {
+            submitRun(new ArrayList<>(buffer.subList(from, Math.min(buffer.size(), from + runTuples))));
+        }
+        buffer = new ArrayList<>();
+        bufferBytes = 0;
+    }
+
+    private void submitRun(List<Tuple> run) throws DbException {
+        // 同时排序的段不超过线程数，已填满的段不会无限堆积在内存中
+        while (pending.size() - awaited > threads) {
+            await(pending.get(awaited++));
+        }
+        pending.add(pool.submit(() -> writeRun(run)));
+    }
+
+    private TupleFile writeRun(List<Tuple> run) throws IOException {
+        sortInMemory(run);
+        TupleFile file = new TupleFile(td);
+        try (TupleFile.Writer writer = file.writer()) {
+            for (Tuple t : run) {
+                writer.write(t);
+            }
+        }
+        return file;
+    }
+
+    private void sortInMemory(List<Tuple> tuples) {
+        // 与OrderBy原来的内存排序相同：每个元组只编码一次排序键
+        if (intKey) {
+            NormalizedKey.sortByInt(tuples, fields[0], ascending[0]);
+        } else {
+            NormalizedKey.sort(tuples, t -> NormalizedKey.of(t, fields, ascending));
+        }
+    }
+
+    private static TupleFile await(Future<TupleFile> future) throws DbException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while sorting");
+        } catch (ExecutionException e) {
+            throw new DbException("could not sort tuples: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Sorts the tuples added so far. No tuple can be added after that.
+     */
+    public void finish() throws DbException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (pool == null) {
+            sortInMemory(buffer);
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            submitRun(buffer);
+            buffer = new ArrayList<>();
+            bufferBytes = 0;
+        }
+        runs = new ArrayList<>();
+        for (Future<TupleFile> f : pending) {
+            runs.add(await(f));
+        }
+        pending.clear();
+        awaited = 0;
+
+        // 最后一趟归并的段数不超过fanIn；之前的各趟由多个线程同时归并，共用内存预算
+        int fanIn = (int) Math.max(2, Math.min(Integer.MAX_VALUE, memory / TupleFile.BUFFER_SIZE));
+        int groupSize = Math.max(2, fanIn / threads);
+        while (runs.size() > fanIn) {
+            List<Future<TupleFile>> merged = new ArrayList<>();
+            for (int from = 0; from < runs.size(); from += groupSize) {
+                List<TupleFile> group = new ArrayList<>(runs.subList(from, Math.min(runs.size(), from + groupSize)));
+                merged.add(pool.submit(() -> mergeRuns(group)));
+            }
+            runs.clear();
+            for (Future<TupleFile> f : merged) {
+                runs.add(await(f));
+            }
+        }
+        pool.shutdown();
+        pool = null;
+    }
+
+    private TupleFile mergeRuns(List<TupleFile> group) throws IOException {
+        if (group.size() == 1) {
+            return group.get(0);
+        }
+        TupleFile file = new TupleFile(td);
+        try (Merger merger = new Merger(group); TupleFile.Writer writer = file.writer()) {
+            Tuple t;
+            while ((t = merger.next()) != null) {
+                writer.write(t);
+            }
+        }
+        for (TupleFile run : group) {
+            run.delete();
+        }
+        return file;
+    }
+
+    /**
+     * @return whether the tuples did not fit in the budget and were written to runs
+     */
+    public boolean isSpilled() {
+        return runs != null || pool != null;
+    }
+
+    /**
+     * @return the number of runs merged to produce the output, 0 if the
+     * tuples were sorted in memory. Valid after {@link #finish()}.
+     */
+    public int numRuns() {
+        return runs == null ? 0 : runs.size();
+    }
+
+    /**
+     * @return an iterator over the sorted tuples, which must be opened before
+     * use. Calls {@link #finish()} if it was not called yet.
+     */
+    public DbFileIterator iterator() throws DbException {
+        finish();
+        return runs == null ? new MemoryIterator() : new MergeIterator();
+    }
+
+    /**
+     * Removes all tuples and deletes the runs.
+     */
+    public void clear() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        for (Future<TupleFile> f : pending) {
+            try {
+                if (f.isDone() && !f.isCancelled()) {
+                    f.get().delete();
+                }
+            } catch (InterruptedException | ExecutionException ignored) {
+            }
+        }
+        pending.clear();
+        if (runs != null) {
+            for (TupleFile run : runs) {
+                run.delete();
+            }
+            runs = null;
+        }
+        buffer = new ArrayList<>();
+        bufferBytes = 0;
+        if (reservation != null) {
+            reservation.release();
+            reservation = null;
+        }
+        finished = false;
+    }
+
+    /**
+     * Compares the keys of two tuples in the order of the sort.
+     */
+    private int compare(Tuple a, Tuple b) {
+        if (intKey) {
+            int c = Integer.compare(a.getInt(fields[0]), b.getInt(fields[0]));
+            return ascending[0] ? c : -c;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            int f = fields[i];
+            int c = td.getFieldType(f) == Type.INT_TYPE
+                    ? Integer.compare(a.getInt(f), b.getInt(f))
+                    : a.getString(f).compareTo(b.getString(f));
+            if (c != 0) {
+                return ascending[i] ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A loser tree over k runs. The leaves are the current tuples of the
+     * runs; every inner node keeps the run that lost the comparison there, and
+     * tree[0] the overall winner. Replacing the winner by the next tuple of
+     * its run only replays the comparisons on the path to the root. Equal
+     * keys are taken from the earlier run first, which keeps the merge stable.
+     */
+    private class Merger implements AutoCloseable {
+
+        private final int k;
+
+        private final TupleFile.Reader[] readers;
+
+        private final Tuple[] heads;
+
+        private final int[] tree;
+
+        Merger(List<TupleFile> runs) throws IOException {
+            k = runs.size();
+            readers = new TupleFile.Reader[k];
+            heads = new Tuple[k];
+            tree = new int[k];
+            try {
+                for (int i = 0; i < k; i++) {
+                    readers[i] = runs.get(i).reader();
+                    heads[i] = readers[i].next();
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            // 下标k表示比所有元组都小的哨兵，依次调整每个叶子后哨兵全部被替换掉
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--) {
+                adjust(i);
+            }
+        }
+
+        /**
+         * @return whether the current tuple of run a comes before that of run b;
+         * an exhausted run comes after every other run
+         */
+        private boolean beats(int a, int b) {
+            if (a == k || b == k) {
+                return a == k;
+            }
+            Tuple x = heads[a], y = heads[b];
+            if (x == null || y == null) {
+                return y == null && (x != null || a < b);
+            }
+            int c = compare(x, y);
+            return c < 0 || c == 0 && a < b;
+        }
+
+        private void adjust(int s) {
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (beats(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
+
+        /**
+         * @return the next tuple in sorted order, or null when all runs are exhausted
+         */
+        Tuple next() throws IOException {
+            int winner = tree[0];
+            Tuple t = heads[winner];
+            if (t == null) {
+                return null;
+            }
+            heads[winner] = readers[winner].next();
+            adjust(winner);
+            return t;
+        }
+
+        public void close() throws IOException {
+            IOException first = null;
+            for (TupleFile.Reader reader : readers) {
+                if (reader == null) {
+                    continue;
+                }
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    first = first == null ? e : first;
+                }
+            }
+            if (first != null) {
+                throw first;
+            }
+        }
+    }
+
+    private class MemoryIterator extends AbstractDbFileIterator {
+
+        private int pos = -1;
+
+        public void open() {
+            pos = 0;
+        }
+
+        protected Tuple readNext() {
+            if (pos < 0 || pos >= buffer.size()) {
+                return null;
+            }
+            return buffer.get(pos++);
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            pos = -1;
+        }
+    }
+
+    private class MergeIterator extends AbstractDbFileIterator {
+
+        private Merger merger;
+
+        public void open() throws DbException {
+            try {
+                merger = new Merger(runs);
+            } catch (IOException e) {
+                throw new DbException("could not read sorted runs: " + e.getMessage());
+            }
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (merger == null) {
+                return null;
+            }
+            try {
+                return merger.next();
+            } catch (IOException e) {
+                throw new DbException("could not read sorted runs: " + e.getMessage());
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (merger != null) {
+                try {
+                    merger.close();
+                } catch (IOException ignored) {
+                }
+                merger = null;
+            }
+        }
+    }
+}
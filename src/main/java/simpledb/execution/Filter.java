@@ -2,9 +2,14 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -14,6 +19,15 @@ public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    private final List<Predicate> predicates;
+
+    private OpIterator child;
+
+    /**
+     * 编译后的谓词合取，类型为(Tuple)boolean；MethodHandle不可序列化，反序列化后按需重新编译
+     */
+    private transient MethodHandle compiled;
+
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -23,29 +37,62 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
+        this(Collections.singletonList(p), child);
     }
 
+    /**
+     * Creates a filter that passes the tuples satisfying all of predicates.
+     * The conjunction is compiled against the schema of child here, when the
+     * plan is built.
+     *
+     * @param predicates the predicates, evaluated in this order
+     * @param child      The child operator
+     */
+    public Filter(List<Predicate> predicates, OpIterator child) {
+        if (predicates.isEmpty()) {
+            throw new IllegalArgumentException("a filter needs at least one predicate");
+        }
+        this.predicates = new ArrayList<>(predicates);
+        this.child = child;
+        this.compiled = PredicateCompiler.compile(child.getTupleDesc(), this.predicates);
+    }
+
+    /**
+     * @return the first predicate of the filter
+     */
     public Predicate getPredicate() {
         // some code goes here
-        return null;
+        return predicates.get(0);
+    }
+
+    /**
+     * @return all predicates of the filter; a tuple passes if it satisfies every one
+     */
+    public List<Predicate> getPredicates() {
+        return Collections.unmodifiableList(predicates);
     }
 
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        return child.getTupleDesc();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        child.open();
+        super.open();
     }
 
     public void close() {
         // some code goes here
+        super.close();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        child.rewind();
     }
 
     /**
@@ -60,18 +107,45 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (compiled == null) {
+            compiled = PredicateCompiler.compile(child.getTupleDesc(), predicates);
+        }
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (PredicateCompiler.test(compiled, t)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Filters the child's batches in place by narrowing their selection vector.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            for (int i = 0; i < predicates.size() && batch.selectedCount() > 0; i++) {
+                predicates.get(i).filter(batch);
+            }
+            if (batch.selectedCount() > 0) {
+                return batch;
+            }
+        }
         return null;
     }
 
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return null;
+        return new OpIterator[]{child};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
+        this.child = children[0];
     }
 
 }
@@ -0,0 +1,23 @@
+package simpledb.execution;
+
+/**
+ * An exchange that merges the tuples of several pipelines into one stream,
+ * in the order they are produced.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param producers the pipelines to run in parallel, all with the same
+     *                  schema
+     */
+    public Gather(OpIterator[] producers) {
+        super(new Channel(producers, 1, -1, false), 0);
+    }
+
+    @Override
+    public String getName() {
+        return "gather(" + getProducers() + ")";
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Knows how to compute several aggregates at once, grouped by any number of
+ * fields, in a single pass over the tuples. The groups are kept in one
+ * {@link AggregateHashTable} with a value column per distinct aggregated
+ * field, so SUM(x), COUNT(x) and MAX(x) share the running values of x.
+ * Aggregates over a string field can only be COUNT.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbfields;
+
+    private final Type[] gbfieldtypes;
+
+    private final Op[] what;
+
+    /**
+     * 聚合的不同字段，以及每个聚合使用的列
+     */
+    private final int[] valueFields;
+
+    private final int[] columns;
+
+    private final AggregateHashTable groups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param td       the schema of the tuples to aggregate
+     * @param gbfields the 0-based indexes of the group-by fields, none if
+     *                 there is no grouping
+     * @param afields  the 0-based index of the field of every aggregate
+     * @param what     the aggregation operator of every aggregate
+     * @throws IllegalArgumentException if an aggregate over a string field is
+     *                                  not COUNT
+     */
+    public HashAggregator(TupleDesc td, int[] gbfields, int[] afields, Op[] what) {
+        this(td, gbfields, afields, what, Aggregate.getMemoryBudget());
+    }
+
+    /**
+     * Creates an aggregator that holds the groups that fit in the given
+     * number of bytes in memory.
+     */
+    public HashAggregator(TupleDesc td, int[] gbfields, int[] afields, Op[] what, long memoryBudget) {
+        if (afields.length != what.length || what.length == 0) {
+            throw new IllegalArgumentException("every aggregate needs a field and an operator");
+        }
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = new Type[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            gbfieldtypes[i] = td.getFieldType(gbfields[i]);
+        }
+        this.what = what.clone();
+        List<Integer> distinct = new ArrayList<>();
+        this.columns = new int[afields.length];
+        for (int j = 0; j < afields.length; j++) {
+            Type type = td.getFieldType(afields[j]);
+            if (what[j] == Op.SUM_COUNT || what[j] == Op.SC_AVG
+                    || type != Type.INT_TYPE && what[j] != Op.COUNT) {
+                throw new IllegalArgumentException("unsupported aggregate " + what[j] + " over " + type);
+            }
+            int column = distinct.indexOf(afields[j]);
+            if (column < 0) {
+                column = distinct.size();
+                distinct.add(afields[j]);
+            }
+            columns[j] = column;
+        }
+        this.valueFields = new int[distinct.size()];
+        Type[] valueTypes = new Type[distinct.size()];
+        for (int c = 0; c < valueFields.length; c++) {
+            valueFields[c] = distinct.get(c);
+            valueTypes[c] = td.getFieldType(valueFields[c]);
+        }
+        this.groups = new AggregateHashTable(gbfieldtypes, valueTypes, memoryBudget);
+    }
+
+    /**
+     * @return whether groups that did not fit in memory were written to disk
+     */
+    public boolean isSpilled() {
+        return groups.isSpilled();
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        groups.aggregate(tup, gbfields, valueFields);
+    }
+
+    /**
+     * @return a OpIterator whose tuples are the group-by fields followed by
+     * the value of every aggregate, in the order given to the constructor
+     */
+    public OpIterator iterator() {
+        Type[] types = new Type[gbfields.length + what.length];
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfields.length);
+        for (int j = 0; j < what.length; j++) {
+            types[gbfields.length + j] = Type.INT_TYPE;
+        }
+        return groups.iterator(new TupleDesc(types), columns, what);
+    }
+
+    @Override
+    public void merge(Aggregator partial, int part, int parts) {
+        try {
+            groups.merge(((HashAggregator) partial).groups, part, parts);
+        } catch (IOException e) {
+            throw new RuntimeException("could not read groups from disk", e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        groups.clear();
+    }
+}
@@ -1,7 +1,11 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleBuffer;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -9,6 +13,19 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. It builds a hash table on child1 and
+ * probes it with child2. If child1 does not fit in the join memory budget
+ * ({@link Join#getMemoryBudget()}), both inputs are partitioned by the hash of
+ * the join key: one partition of child1 stays in the hash table and joins
+ * directly, the others are written to disk with the matching tuples of
+ * child2, and the partitions are then joined pair by pair. Each child is read
+ * once, and each spilled tuple is written and read once per level of
+ * partitioning.
+ * <p>
+ * When child2 is a scan, possibly under filters, the build publishes a
+ * {@link RuntimeFilter} of its keys to the scan, which then drops the rows
+ * that cannot match before they reach the join.
  */
 public class HashEquiJoin extends Operator {
 
@@ -50,28 +67,304 @@ public class HashEquiJoin extends Operator {
         return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
 
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    /**
+     * 构建侧的哈希表；两边的连接字段都是整数时使用整数键
+     */
+    transient JoinHashTable table;
+
+    /**
+     * the number of partitions the inputs are split into at every level of partitioning
+     */
+    public final static int PARTITIONS = 16;
+
+    /**
+     * the deepest level of partitioning: a partition that does not fit in
+     * memory is split again until it reaches this level, and joined chunk by
+     * chunk if it still does not fit (because most of its tuples share a key)
+     */
+    public final static int MAX_LEVEL = 3;
+
+    /**
+     * 一对溢出到磁盘的分区：连接结果只来自同一分区号的构建元组与探测元组。
+     * level是再次划分它时使用的哈希层级
+     */
+    private static final class Partition {
+        final TupleBuffer build;
+        final TupleBuffer probe;
+        final int level;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+        Partition(TupleDesc td1, TupleDesc td2, int level) {
+            this.build = new TupleBuffer(td1, 0);
+            this.probe = new TupleBuffer(td2, 0);
+            this.level = level;
+        }
+
+        void clear() {
+            build.clear();
+            probe.clear();
+        }
+    }
+
+    /**
+     * 构建侧超出内存预算后的第一层分区；memoryPartition是留在哈希表中的分区号，
+     * 它也溢出后为-1。没有分区时为null，整个构建侧都在哈希表中
+     */
+    private transient Partition[] partitions;
+    private transient int memoryPartition;
+    private transient long memoryBytes;
+
+    /**
+     * 哈希表中的元组从查询预留的内存
+     */
+    private transient MemoryReservation memory;
+
+    /**
+     * 等待逐对连接的分区，当前正在连接的分区及其构建、探测迭代器
+     */
+    private transient Deque<Partition> pending;
+    private transient Partition current;
+    private transient DbFileIterator buildIt;
+    private transient DbFileIterator probeIt;
+
+    /**
+     * 探测侧的扫描和发布给它的运行时过滤器；探测侧不是扫描时为null
+     */
+    private transient SeqScan probeScan;
+    private transient RuntimeFilter runtimeFilter;
+
+    /**
+     * Hashes a key to a partition. Every level salts the hash differently,
+     * so that a partition that is split again spreads over new partitions.
+     */
+    private static int partition(int keyHash, int level) {
+        // murmur3的fmix32
+        int h = keyHash ^ level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % PARTITIONS;
+    }
+
+    /**
+     * Reads child1 into the hash table. If it does not fit in the memory
+     * budget, child1 is partitioned: one partition stays in the hash table
+     * and the others are written to disk.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        boolean intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        if (table == null || table.hasIntKeys() != intKeys) {
+            table = new JoinHashTable(pred.getField1(), intKeys);
+        }
+        table.clear();
+        memoryBytes = 0;
+        if (memory != null) {
+            memory.release();
+        }
+        memory = QueryMemory.reserve("HashEquiJoin");
+        partitions = null;
+        memoryPartition = 0;
+        pending = new ArrayDeque<>();
+        removeRuntimeFilter();
+        if (RuntimeFilter.isEnabled() && child1.getTupleDesc().getFieldType(pred.getField1())
+                == child2.getTupleDesc().getFieldType(pred.getField2())) {
+            probeScan = RuntimeFilter.probeScan(child2);
+            if (probeScan != null) {
+                runtimeFilter = new RuntimeFilter(pred.getField2(), intKeys);
+            }
+        }
+        int tupleSize = child1.getTupleDesc().getSize();
         while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            Tuple t = child1.next();
+            if (runtimeFilter != null) {
+                runtimeFilter.add(keyHash(t, pred.getField1()));
+            }
+            if (partitions != null) {
+                int p = partition(keyHash(t, pred.getField1()), 0);
+                if (p != memoryPartition) {
+                    partitions[p].build.add(t);
+                    continue;
+                }
+            }
+            table.add(t);
+            memoryBytes += tupleSize;
+            if (memoryBytes > Join.getMemoryBudget() || !memory.tryReserve(memoryBytes)) {
+                spillMemory();
+            }
+        }
+        if (partitions != null) {
+            for (int p = 0; p < PARTITIONS; p++) {
+                if (p != memoryPartition) {
+                    pending.add(partitions[p]);
+                }
+            }
+        }
+        if (runtimeFilter != null) {
+            runtimeFilter.seal();
+            probeScan.addRuntimeFilter(runtimeFilter);
+        }
+    }
+
+    private void removeRuntimeFilter() {
+        if (runtimeFilter != null) {
+            probeScan.removeRuntimeFilter(runtimeFilter);
+            runtimeFilter.release();
+        }
+        probeScan = null;
+        runtimeFilter = null;
+    }
+
+    /**
+     * Moves the tuples of the hash table that belong to spilled partitions to disk.
+     */
+    private void spillMemory() throws DbException {
+        if (partitions == null) {
+            partitions = new Partition[PARTITIONS];
+            for (int p = 0; p < PARTITIONS; p++) {
+                partitions[p] = new Partition(child1.getTupleDesc(), child2.getTupleDesc(), 1);
+            }
+        } else {
+            // 留在内存的分区本身也超出预算，同样写到磁盘
+            memoryPartition = -1;
+        }
+        List<Tuple> kept = new ArrayList<>();
+        for (int row = 0; row < table.size(); row++) {
+            Tuple t = table.row(row);
+            int p = partition(keyHash(t, pred.getField1()), 0);
+            if (p == memoryPartition) {
+                kept.add(t);
+            } else {
+                partitions[p].build.add(t);
+            }
+        }
+        table.clear();
+        for (Tuple t : kept) {
+            table.add(t);
+        }
+        memoryBytes = (long) child1.getTupleDesc().getSize() * kept.size();
+        if (memoryBytes > Join.getMemoryBudget() || !memory.tryReserve(memoryBytes)) {
+            spillMemory();
+        } else {
+            memory.shrink(memoryBytes);
+        }
+    }
+
+    /**
+     * Moves on to the next pair of spilled partitions that can produce
+     * results, and loads the first chunk of its build side.
+     *
+     * @return false if there are no partitions left
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        closePartition();
+        table.clear();
+        memory.shrink(0);
+        int tupleSize = child1.getTupleDesc().getSize();
+        while (!pending.isEmpty()) {
+            Partition part = pending.poll();
+            if (part.build.size() == 0 || part.probe.size() == 0) {
+                part.clear();
+                continue;
+            }
+            long bytes = (long) part.build.size() * tupleSize;
+            if ((bytes > Join.getMemoryBudget() || !memory.tryReserve(bytes)) && part.level < MAX_LEVEL) {
+                split(part);
+                continue;
+            }
+            current = part;
+            buildIt = part.build.iterator();
+            buildIt.open();
+            probeIt = part.probe.iterator();
+            probeIt.open();
+            loadChunk();
+            return true;
         }
-        return cnt > 0;
+        return false;
+    }
 
+    /**
+     * Splits both sides of a partition that does not fit in memory into
+     * partitions of the next level.
+     */
+    private void split(Partition part) throws DbException, TransactionAbortedException {
+        Partition[] parts = new Partition[PARTITIONS];
+        for (int p = 0; p < PARTITIONS; p++) {
+            parts[p] = new Partition(child1.getTupleDesc(), child2.getTupleDesc(), part.level + 1);
+        }
+        DbFileIterator it = part.build.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            parts[partition(keyHash(t, pred.getField1()), part.level)].build.add(t);
+        }
+        it.close();
+        it = part.probe.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            parts[partition(keyHash(t, pred.getField2()), part.level)].probe.add(t);
+        }
+        it.close();
+        part.clear();
+        for (int p = PARTITIONS - 1; p >= 0; p--) {
+            pending.addFirst(parts[p]);
+        }
+    }
+
+    /**
+     * Loads as many build tuples of the current partition as fit in memory.
+     *
+     * @return whether any tuple was loaded
+     */
+    private boolean loadChunk() throws DbException, TransactionAbortedException {
+        table.clear();
+        memory.shrink(0);
+        long bytes = 0;
+        int tupleSize = child1.getTupleDesc().getSize();
+        // 预留被拒绝时块变小；至少装入一个元组，保证向前推进
+        while (buildIt.hasNext() && (bytes + tupleSize <= Join.getMemoryBudget()
+                && memory.tryReserve(bytes + tupleSize) || table.isEmpty())) {
+            table.add(buildIt.next());
+            bytes += tupleSize;
+        }
+        return !table.isEmpty();
+    }
+
+    private void closePartition() {
+        if (current != null) {
+            buildIt.close();
+            probeIt.close();
+            current.clear();
+            current = null;
+            buildIt = null;
+            probeIt = null;
+        }
+    }
+
+    private void clearPartitions() {
+        closePartition();
+        if (partitions != null) {
+            for (Partition part : partitions) {
+                part.clear();
+            }
+            partitions = null;
+        }
+        if (pending != null) {
+            for (Partition part : pending) {
+                part.clear();
+            }
+            pending.clear();
+        }
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        resetProbe();
+        build();
         super.open();
     }
 
@@ -81,16 +374,59 @@ public class HashEquiJoin extends Operator {
         child1.close();
         this.t1 = null;
         this.t2 = null;
-        this.listIt = null;
-        this.map.clear();
+        resetProbe();
+        clearPartitions();
+        removeRuntimeFilter();
+        this.table = null;
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
         child2.rewind();
+        resetProbe();
+        if (partitions != null) {
+            // 分区在探测过程中已被消耗，重新划分两侧
+            clearPartitions();
+            child1.rewind();
+            build();
+        }
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /**
+     * 与当前探测元组匹配的下一个构建行，-1表示没有
+     */
+    private transient int matchRow = -1;
+
+    /**
+     * 按批探测的状态：当前探测批及其各行的第一个匹配行（整数键时）、选择向量中下一个位置、当前探测行
+     */
+    private transient TupleBatch probe;
+    private transient int[] firstRows;
+    private transient int probePos;
+    private transient int probeRow;
+    private transient boolean probeDone;
+    private transient TupleBatch out;
+
+    private void resetProbe() {
+        probe = null;
+        matchRow = -1;
+        probeDone = false;
+    }
+
+    /**
+     * @return the hash code of the key of t, without creating a Field for int keys
+     */
+    private int keyHash(Tuple t, int field) {
+        return table.hasIntKeys() ? t.getInt(field) : t.getField(field).hashCode();
+    }
+
+    private int find(Tuple probeTuple) {
+        int field = pred.getField2();
+        return table.hasIntKeys() ? table.find(probeTuple.getInt(field)) : table.find(probeTuple.getField(field));
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,48 +447,88 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
+        t1 = table.row(matchRow);
+        matchRow = table.next(matchRow);
 
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        // combined tuple; packed rows are joined with two byte copies
+        return Tuple.concat(comboTD, t1, t2);
 
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        while (true) {
+            if (matchRow != -1) {
+                return processList();
+            }
+            if (current == null && child2.hasNext()) {
+                // loop around child2
+                t2 = child2.next();
+                if (partitions != null) {
+                    int p = partition(keyHash(t2, pred.getField2()), 0);
+                    if (p != memoryPartition) {
+                        // 对应的构建分区为空时不可能有结果，不必写出
+                        if (partitions[p].build.size() > 0) {
+                            partitions[p].probe.add(t2);
+                        }
+                        continue;
+                    }
+                }
+                matchRow = find(t2);
+            } else if (current != null && probeIt.hasNext()) {
+                t2 = probeIt.next();
+                matchRow = find(t2);
+            } else if (current != null && loadChunk()) {
+                // 分区的构建侧分块装入时，每块重新扫描一遍探测侧
+                probeIt.rewind();
+            } else if (partitions == null || !nextPartition()) {
+                return null;
+            }
         }
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
+    /**
+     * Probes the hash table with batches of child2 and writes the joined rows
+     * straight into the column vectors of the output batch.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (partitions != null) {
+            // 溢出到磁盘的分区逐个元组地连接
+            return super.nextBatch();
         }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        if (out == null) {
+            out = new TupleBatch(comboTD, TupleBatch.DEFAULT_CAPACITY);
         }
-
-        return null;
+        out.clear();
+        int td1n = child1.getTupleDesc().numFields();
+        int td2n = child2.getTupleDesc().numFields();
+        while (!out.isFull() && !probeDone) {
+            if (matchRow != -1) {
+                Tuple left = table.row(matchRow);
+                matchRow = table.next(matchRow);
+                int row = out.addRow();
+                for (int i = 0; i < td1n; i++)
+                    out.set(i, row, left, i);
+                for (int i = 0; i < td2n; i++)
+                    out.set(td1n + i, row, probe, i, probeRow);
+            } else if (probe != null && probePos < probe.selectedCount()) {
+                matchRow = table.hasIntKeys() ? firstRows[probePos]
+                        : table.find(probe.getField(pred.getField2(), probe.selection()[probePos]));
+                probeRow = probe.selection()[probePos++];
+            } else if ((probe = child2.nextBatch()) != null) {
+                if (table.hasIntKeys()) {
+                    // 整批查找，各次查找的缓存缺失可以重叠
+                    if (firstRows == null || firstRows.length < probe.selectedCount()) {
+                        firstRows = new int[Math.max(probe.selectedCount(), TupleBatch.DEFAULT_CAPACITY)];
+                    }
+                    table.find(probe.intColumn(pred.getField2()), probe.selection(), probe.selectedCount(), firstRows);
+                }
+                probePos = 0;
+            } else {
+                probeDone = true;
+            }
+        }
+        return out.size() > 0 ? out : null;
     }
 
     @Override
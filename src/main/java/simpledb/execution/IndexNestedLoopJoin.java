@@ -0,0 +1,303 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin implements an equi-join whose inner relation is a table
+ * with a B+ tree on the join field. Instead of scanning the inner table, it
+ * looks up the key of the outer tuples with
+ * {@link BTreeFile#indexIterator} and an EQUALS {@link IndexPredicate}.
+ * <p>
+ * The outer tuples are read in blocks that fit in the join memory budget
+ * ({@link Join#getMemoryBudget()}), and every block is sorted on the join
+ * key: each distinct key is looked up once however many outer tuples have
+ * it, and the lookups walk the tree from left to right, so the pages they
+ * touch are mostly already in the buffer pool. The inner tuples of a key
+ * are kept in a {@link TupleBuffer} while the outer tuples with that key are
+ * joined with them.
+ * <p>
+ * The inner plan is a scan of the table, possibly under filters; see
+ * {@link #canProbe}. The filters are applied to the tuples found in the
+ * index, and the inner plan itself is never opened.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+
+    private OpIterator child1, child2;
+
+    private final TupleDesc comboTD;
+
+    /**
+     * 内表的B+树、扫描它的事务，以及内表计划中的过滤谓词
+     */
+    private transient BTreeFile index;
+
+    private transient TransactionId tid;
+
+    private transient List<Predicate> innerFilters;
+
+    /**
+     * 当前块中按连接键排序的外表元组，以及正在连接的外表元组的位置
+     */
+    private transient List<Tuple> block;
+
+    private transient int blockPos;
+
+    /**
+     * 块中的元组从查询预留的内存
+     */
+    private transient MemoryReservation memory;
+
+    /**
+     * 当前键在索引中找到的内表元组，以及它与当前外表元组连接时的迭代器
+     */
+    private transient TupleBuffer matches;
+
+    private transient DbFileIterator matchIt;
+
+    private transient int probes;
+
+    /**
+     * Constructor. Accepts the outer child, the inner child and the
+     * predicate to join them on
+     *
+     * @param p      The predicate to use to join the children; its operator
+     *               must be {@link Predicate.Op#EQUALS}
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 The scan of the inner table, possibly under filters,
+     *               for which {@link #canProbe} holds
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("an index nested-loop join needs an equality predicate");
+        }
+        if (!canProbe(child2, p.getField2())
+                || child1.getTupleDesc().getFieldType(p.getField1()) != child2.getTupleDesc().getFieldType(p.getField2())) {
+            throw new IllegalArgumentException("the inner plan is not a scan of a B+ tree keyed on the join field");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the scan at the bottom of a plan made of filters over a scan,
+     * or null if the plan is anything else
+     */
+    private static SeqScan scanOf(OpIterator plan) {
+        plan = ProfiledIterator.unwrap(plan);
+        while (plan instanceof Filter) {
+            plan = ProfiledIterator.unwrap(((Filter) plan).getChildren()[0]);
+        }
+        return plan instanceof SeqScan ? (SeqScan) plan : null;
+    }
+
+    /**
+     * @return the B+ tree of the table that plan scans if it is keyed on the
+     * given field, or null
+     */
+    public static BTreeFile indexOf(OpIterator plan, int field) {
+        SeqScan scan = scanOf(plan);
+        if (scan == null) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyField() != field) {
+            return null;
+        }
+        return (BTreeFile) file;
+    }
+
+    /**
+     * @return whether plan is a {@link SeqScan}, possibly under {@link Filter}s,
+     * of a table stored in a {@link BTreeFile} keyed on the given field, so
+     * that its tuples with a given key can be looked up in the index
+     */
+    public static boolean canProbe(OpIterator plan, int field) {
+        return indexOf(plan, field) != null;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the number of index lookups since the join was opened
+     */
+    public int getProbes() {
+        return probes;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        index = indexOf(child2, pred.getField2());
+        tid = scanOf(child2).getTransactionId();
+        innerFilters = new ArrayList<>();
+        for (OpIterator plan = ProfiledIterator.unwrap(child2); plan instanceof Filter;
+             plan = ProfiledIterator.unwrap(((Filter) plan).getChildren()[0])) {
+            innerFilters.addAll(((Filter) plan).getPredicates());
+        }
+        child1.open();
+        block = new ArrayList<>();
+        blockPos = 0;
+        memory = QueryMemory.reserve("IndexNestedLoopJoin");
+        matches = new TupleBuffer(index.getTupleDesc(), Join.getMemoryBudget());
+        probes = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        closeMatches();
+        if (matches != null) {
+            matches.clear();
+            matches = null;
+        }
+        block = null;
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        closeMatches();
+        block.clear();
+        blockPos = 0;
+    }
+
+    private void closeMatches() {
+        if (matchIt != null) {
+            matchIt.close();
+            matchIt = null;
+        }
+    }
+
+    /**
+     * Reads the next outer tuples that fit in the budget and in the memory
+     * the query grants, sorted on the join key.
+     *
+     * @return whether the block is not empty
+     */
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        blockPos = 0;
+        memory.shrink(0);
+        int tupleSize = child1.getTupleDesc().getSize();
+        long bytes = 0;
+        while (child1.hasNext() && (bytes + tupleSize <= Join.getMemoryBudget()
+                && memory.tryReserve(bytes + tupleSize) || block.isEmpty())) {
+            block.add(child1.next().compact());
+            bytes += tupleSize;
+        }
+        int field = pred.getField1();
+        if (child1.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            NormalizedKey.sortByInt(block, field, true);
+        } else {
+            int[] fields = {field};
+            boolean[] ascending = {true};
+            NormalizedKey.sort(block, t -> NormalizedKey.of(t, fields, ascending));
+        }
+        return !block.isEmpty();
+    }
+
+    /**
+     * Looks up the inner tuples with the given key and starts joining them
+     * with the current outer tuple.
+     */
+    private void probe(Field key) throws DbException, TransactionAbortedException {
+        closeMatches();
+        matches.clear();
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+        it.open();
+        try {
+            next:
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                for (Predicate p : innerFilters) {
+                    if (!p.filter(t)) {
+                        continue next;
+                    }
+                }
+                matches.add(t);
+            }
+        } finally {
+            it.close();
+        }
+        probes++;
+        matchIt = matches.iterator();
+        matchIt.open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Within a block the output is ordered on the join key.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matchIt != null) {
+                if (matchIt.hasNext()) {
+                    return Tuple.concat(comboTD, block.get(blockPos), matchIt.next());
+                }
+                Field key = block.get(blockPos++).getField(pred.getField1());
+                if (blockPos < block.size() && block.get(blockPos).getField(pred.getField1()).equals(key)) {
+                    // 下一个外表元组的键相同，不必再查索引
+                    matchIt.rewind();
+                    continue;
+                }
+                closeMatches();
+            }
+            if (blockPos >= block.size() && !readBlock()) {
+                return null;
+            }
+            probe(block.get(blockPos).getField(pred.getField1()));
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
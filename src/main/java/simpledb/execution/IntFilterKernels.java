@@ -0,0 +1,134 @@
+package simpledb.execution;
+
+import java.util.Arrays;
+
+/**
+ * Filter kernels over int columns. A kernel compares the first n values of a
+ * column with a constant and writes the result as a selection bitmap: bit
+ * (i &amp; 63) of word i / 64 is set if value i satisfies the comparison.
+ * <p>
+ * When the JVM is started with <code>--add-modules jdk.incubator.vector</code>
+ * the comparisons run as SIMD instructions through the Vector API; otherwise,
+ * or with -Dsimpledb.simd=false, a scalar loop produces the same bitmap.
+ *
+ * @see Predicate#filter(simpledb.storage.TupleBatch)
+ */
+public final class IntFilterKernels {
+
+    /**
+     * the SIMD implementation, or null if the Vector API is not available
+     */
+    private static final Kernel VECTOR = loadVectorKernel();
+
+    private static volatile boolean vectorized =
+            VECTOR != null && Boolean.parseBoolean(System.getProperty("simpledb.simd", "true"));
+
+    interface Kernel {
+        void compare(Predicate.Op op, int[] values, int n, int constant, long[] bits);
+    }
+
+    private IntFilterKernels() {
+    }
+
+    private static Kernel loadVectorKernel() {
+        try {
+            Kernel kernel = new VectorIntFilterKernel();
+            // 在这里触发Vector API类的加载，缺少模块时回退到标量实现
+            kernel.compare(Predicate.Op.EQUALS, new int[1], 1, 0, new long[1]);
+            return kernel;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the kernels currently run on the Vector API
+     */
+    public static boolean isVectorized() {
+        return vectorized;
+    }
+
+    /**
+     * Switches between the SIMD and the scalar kernels; meant for tests and
+     * benchmarks. The SIMD kernels are only used if they are available.
+     */
+    public static void setVectorized(boolean on) {
+        vectorized = on && VECTOR != null;
+    }
+
+    /**
+     * @return the number of longs of a bitmap over n rows
+     */
+    public static int words(int n) {
+        return (n + 63) >>> 6;
+    }
+
+    /**
+     * Sets the bits of the values among values[0..n) that satisfy
+     * "value op constant", and clears the others. Bits from n on are left 0.
+     */
+    public static void compare(Predicate.Op op, int[] values, int n, int constant, long[] bits) {
+        Arrays.fill(bits, 0, words(n), 0L);
+        if (vectorized) {
+            VECTOR.compare(op, values, n, constant, bits);
+        } else {
+            scalarCompare(op, values, n, constant, bits);
+        }
+    }
+
+    /**
+     * Writes the indexes of the set bits of a bitmap over n rows, in
+     * ascending order, to selection.
+     *
+     * @return the number of set bits
+     */
+    public static int select(long[] bits, int n, int[] selection) {
+        int out = 0;
+        for (int w = 0; w < words(n); w++) {
+            long word = bits[w];
+            while (word != 0) {
+                selection[out++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The scalar kernel; bits must be cleared. Also used for the tail of a
+     * column that does not fill a whole vector.
+     */
+    static void scalarCompare(Predicate.Op op, int[] values, int from, int n, int c, long[] bits) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = from; i < n; i++)
+                    if (values[i] == c) bits[i >>> 6] |= 1L << i;
+                break;
+            case NOT_EQUALS:
+                for (int i = from; i < n; i++)
+                    if (values[i] != c) bits[i >>> 6] |= 1L << i;
+                break;
+            case GREATER_THAN:
+                for (int i = from; i < n; i++)
+                    if (values[i] > c) bits[i >>> 6] |= 1L << i;
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = from; i < n; i++)
+                    if (values[i] >= c) bits[i >>> 6] |= 1L << i;
+                break;
+            case LESS_THAN:
+                for (int i = from; i < n; i++)
+                    if (values[i] < c) bits[i >>> 6] |= 1L << i;
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = from; i < n; i++)
+                    if (values[i] <= c) bits[i >>> 6] |= 1L << i;
+                break;
+        }
+    }
+
+    private static void scalarCompare(Predicate.Op op, int[] values, int n, int c, long[] bits) {
+        scalarCompare(op, values, 0, n, c, bits);
+    }
+}
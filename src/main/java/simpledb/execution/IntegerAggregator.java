@@ -1,15 +1,35 @@
 package simpledb.execution;
 
 import simpledb.common.Type;
-import simpledb.storage.Tuple;
+import simpledb.storage.*;
+
+import java.io.IOException;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * The groups and their running SUM, COUNT, MIN and MAX are kept in an
+ * {@link AggregateHashTable} that holds as many groups as fit in
+ * {@link Aggregate#getMemoryBudget()} and writes the values of the other
+ * groups to disk.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    private final int gbfield;
+
+    private final Type gbfieldtype;
+
+    private final int afield;
+
+    private final Op what;
+
+    /**
+     * 每个分组的聚合状态；无分组时只有一个组
+     */
+    private final AggregateHashTable groups;
+
     /**
      * Aggregate constructor
      *
@@ -23,6 +43,30 @@ public class IntegerAggregator implements Aggregator {
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, Aggregate.getMemoryBudget());
+    }
+
+    /**
+     * Creates an aggregator that holds the groups that fit in the given
+     * number of bytes in memory, such as one of several aggregators running
+     * at once.
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, long memoryBudget) {
+        if (what == Op.SUM_COUNT || what == Op.SC_AVG) {
+            throw new IllegalArgumentException("unsupported aggregate " + what);
+        }
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afield = afield;
+        this.what = what;
+        this.groups = new AggregateHashTable(gbfield == NO_GROUPING ? null : gbfieldtype, memoryBudget);
+    }
+
+    /**
+     * @return whether groups that did not fit in memory were written to disk
+     */
+    public boolean isSpilled() {
+        return groups.isSpilled();
     }
 
     /**
@@ -33,6 +77,69 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
+        if (gbfield == NO_GROUPING) {
+            groups.add(groups.group(0), tup.getInt(afield));
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            groups.aggregate(tup.getInt(gbfield), tup.getInt(afield));
+        } else {
+            groups.aggregate(tup.getField(gbfield), tup.getInt(afield));
+        }
+    }
+
+    /**
+     * Reads the aggregate column as an int vector. Without grouping the batch
+     * is folded into local variables; with grouping, runs of rows of the same
+     * group share one lookup, and int keys are read from their column without
+     * creating a Field.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        int[] values = batch.intColumn(afield);
+        int[] sel = batch.selection();
+        int n = batch.selectedCount();
+        if (gbfield == NO_GROUPING) {
+            long sum = 0;
+            long min = Integer.MAX_VALUE;
+            long max = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                int v = values[sel[i]];
+                sum += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (n > 0) {
+                groups.add(groups.group(0), sum, n, min, max);
+            }
+            return;
+        }
+        int[] intKeys = batch.intColumn(gbfield);
+        String[] stringKeys = batch.stringColumn(gbfield);
+        // 当前这一段行的组；-1表示这个组不在内存中，每行都写到磁盘
+        int group = -1;
+        boolean first = true;
+        int lastInt = 0;
+        String lastString = null;
+        Field lastKey = null;
+        for (int i = 0; i < n; i++) {
+            int r = sel[i];
+            if (intKeys != null) {
+                if (first || intKeys[r] != lastInt) {
+                    lastInt = intKeys[r];
+                    lastKey = null;
+                    group = groups.group(lastInt);
+                }
+            } else if (first || !stringKeys[r].equals(lastString)) {
+                lastString = stringKeys[r];
+                lastKey = new StringField(lastString, Type.STRING_LEN);
+                group = groups.group(lastKey);
+            }
+            first = false;
+            if (group >= 0) {
+                groups.add(group, values[r]);
+            } else {
+                groups.spill(lastKey != null ? lastKey : new IntField(lastInt), values[r]);
+            }
+        }
     }
 
     /**
@@ -45,8 +152,24 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        throw new
-                UnsupportedOperationException("please implement me for lab2");
+        TupleDesc td = gbfield == NO_GROUPING
+                ? new TupleDesc(new Type[]{Type.INT_TYPE})
+                : new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+        return groups.iterator(td, what, gbfield != NO_GROUPING);
+    }
+
+    @Override
+    public void merge(Aggregator partial, int part, int parts) {
+        try {
+            groups.merge(((IntegerAggregator) partial).groups, part, parts);
+        } catch (IOException e) {
+            throw new RuntimeException("could not read groups from disk", e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        groups.clear();
     }
 
 }
@@ -1,19 +1,73 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBuffer;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested-loop join: it reads as many outer tuples as fit in the memory budget
+ * into a block, then makes one pass over the inner relation for the whole
+ * block, instead of one pass per outer tuple.
+ * <p>
+ * An inner relation that is a base table scan is simply rescanned, as its
+ * pages stay in the buffer pool. Any other inner relation is written to a
+ * {@link TupleBuffer} during the first pass, in memory or in a temporary
+ * file, and later passes read the buffer.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    private static volatile long memoryBudget =
+            Long.getLong("simpledb.join.memory", 4L * 1024 * 1024);
+
+    private final JoinPredicate p;
+
+    private OpIterator child1, child2;
+
+    private final TupleDesc comboTD;
+
+    /**
+     * 当前块中的外表元组
+     */
+    private transient List<Tuple> block;
+
+    /**
+     * 块中的元组从查询预留的内存
+     */
+    private transient MemoryReservation memory;
+
+    /**
+     * 当前内表元组，以及下一个与之比较的块内位置
+     */
+    private transient Tuple inner;
+
+    private transient int blockPos;
+
+    /**
+     * 物化的内表；innerComplete表示内表已全部写入buffer，之后的扫描读buffer
+     */
+    private transient TupleBuffer innerBuffer;
+
+    private transient boolean innerComplete;
+
+    private transient DbFileIterator innerIt;
+
+    /**
+     * 自open或rewind以来扫描内表的遍数；buffering表示本次扫描内表时写入innerBuffer
+     */
+    private transient int passes;
+
+    private transient boolean buffering;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -24,11 +78,37 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
         // some code goes here
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        TupleDesc td1 = child1.getTupleDesc();
+        TupleDesc td2 = child2.getTupleDesc();
+        if (td1.getFieldType(p.getField1()) == td2.getFieldType(p.getField2())) {
+            // 在生成计划时编译连接谓词
+            p.compile(td1, td2);
+        }
+    }
+
+    /**
+     * @return the bytes of tuples a join buffers in memory: its block of
+     * outer tuples, and its copy of the inner relation if it makes one. Set
+     * with -Dsimpledb.join.memory; the default is 4MB.
+     */
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget of the joins opened from now on.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
     }
 
     public JoinPredicate getJoinPredicate() {
         // some code goes here
-        return null;
+        return p;
     }
 
     /**
@@ -37,7 +117,7 @@ public class Join extends Operator {
      */
     public String getJoinField1Name() {
         // some code goes here
-        return null;
+        return child1.getTupleDesc().getFieldName(p.getField1());
     }
 
     /**
@@ -46,7 +126,7 @@ public class Join extends Operator {
      */
     public String getJoinField2Name() {
         // some code goes here
-        return null;
+        return child2.getTupleDesc().getFieldName(p.getField2());
     }
 
     /**
@@ -55,20 +135,112 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        return comboTD;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        child1.open();
+        child2.open();
+        block = new ArrayList<>();
+        memory = QueryMemory.reserve("Join");
+        // 基表扫描的页留在buffer pool中，重扫的代价低；其他内表在第一遍时物化
+        innerBuffer = ProfiledIterator.unwrap(child2) instanceof SeqScan ? null : new TupleBuffer(child2.getTupleDesc(), memoryBudget / 2);
+        innerComplete = false;
+        passes = 0;
+        super.open();
     }
 
     public void close() {
         // some code goes here
+        super.close();
+        child2.close();
+        child1.close();
+        if (innerIt != null) {
+            innerIt.close();
+            innerIt = null;
+        }
+        if (innerBuffer != null) {
+            innerBuffer.clear();
+            innerBuffer = null;
+        }
+        block = null;
+        inner = null;
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        child1.rewind();
+        if (!innerComplete) {
+            // 内表没有完整物化，只能重新扫描
+            child2.rewind();
+            if (innerBuffer != null) {
+                innerBuffer.clear();
+            }
+            passes = 0;
+        }
+        block.clear();
+        inner = null;
+    }
+
+    /**
+     * Fills the block with the next outer tuples that fit in the budget and
+     * in the memory the query grants.
+     *
+     * @return whether the block is not empty
+     */
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        memory.shrink(0);
+        long limit = innerBuffer == null ? memoryBudget : memoryBudget / 2;
+        int tupleSize = child1.getTupleDesc().getSize();
+        long bytes = 0;
+        // 预算再小、预留被拒绝，每块也至少包含一个外表元组
+        while (child1.hasNext() && (bytes + tupleSize <= limit && memory.tryReserve(bytes + tupleSize)
+                || block.isEmpty())) {
+            block.add(child1.next().compact());
+            bytes += tupleSize;
+        }
+        return !block.isEmpty();
+    }
+
+    /**
+     * Starts a pass over the inner relation for the block just read.
+     */
+    private void startInnerPass() throws DbException, TransactionAbortedException {
+        if (passes++ == 0) {
+            // 外表只有一块时内表只扫描一遍，不必物化
+            buffering = innerBuffer != null && child1.hasNext();
+        } else if (innerComplete) {
+            if (innerIt == null) {
+                innerIt = innerBuffer.iterator();
+                innerIt.open();
+            } else {
+                innerIt.rewind();
+            }
+        } else {
+            child2.rewind();
+        }
+    }
+
+    private Tuple nextInner() throws DbException, TransactionAbortedException {
+        if (innerComplete) {
+            return innerIt.hasNext() ? innerIt.next() : null;
+        }
+        if (!child2.hasNext()) {
+            innerComplete = buffering;
+            return null;
+        }
+        Tuple t = child2.next();
+        if (buffering) {
+            innerBuffer.add(t);
+        }
+        return t;
     }
 
     /**
@@ -91,18 +263,38 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return null;
+        while (true) {
+            if (inner != null) {
+                while (blockPos < block.size()) {
+                    Tuple outer = block.get(blockPos++);
+                    if (p.filter(outer, inner)) {
+                        return Tuple.concat(comboTD, outer, inner);
+                    }
+                }
+            }
+            inner = block.isEmpty() ? null : nextInner();
+            blockPos = 0;
+            if (inner == null) {
+                // 内表扫描完毕，读入下一块外表元组
+                if (!readBlock()) {
+                    return null;
+                }
+                startInnerPass();
+            }
+        }
     }
 
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return null;
+        return new OpIterator[]{child1, child2};
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
+        this.child1 = children[0];
+        this.child2 = children[1];
     }
 
 }
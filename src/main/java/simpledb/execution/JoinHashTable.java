@@ -0,0 +1,280 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * JoinHashTable is the hash table on the build side of {@link HashEquiJoin}.
+ * The build rows are kept in one array in the order they were added; the
+ * rows that share a key are chained through a parallel int array. The keys
+ * are found by open addressing with linear probing over a power-of-two
+ * array of slots, and every slot remembers the 64-bit hash of its key, so a
+ * probe only calls {@link Field#equals} when the hashes match.
+ * <p>
+ * When both join fields are ints, the keys are read with {@link Tuple#getInt}
+ * and every slot is a single long holding the key and its first row, so that
+ * neither building nor probing creates a Field, and a probe reads one array
+ * of slots.
+ * <p>
+ * Iterate over the rows of a key with
+ * <pre>
+ * for (int row = table.find(key); row != -1; row = table.next(row)) {
+ *     Tuple t = table.row(row);
+ * }
+ * </pre>
+ */
+public final class JoinHashTable {
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private final int keyField;
+
+    private final boolean intKeys;
+
+    /**
+     * 整数键的槽：高32位是键，低32位是第一个行号加1，0表示空槽
+     */
+    private long[] intSlots;
+
+    /**
+     * 其他键的槽：第一个行号（-1表示空槽）、键的64位哈希和键本身
+     */
+    private int[] heads;
+
+    private long[] hashes;
+
+    private Field[] fieldKeys;
+
+    private int keys;
+
+    /**
+     * 构建行，以及同一个键的下一行的行号
+     */
+    private Tuple[] rows = new Tuple[INITIAL_SLOTS];
+
+    private int[] next = new int[INITIAL_SLOTS];
+
+    private int size;
+
+    /**
+     * @param keyField the field of the build rows that is the key
+     * @param intKeys  whether the keys of both sides are ints
+     */
+    public JoinHashTable(int keyField, boolean intKeys) {
+        this.keyField = keyField;
+        this.intKeys = intKeys;
+        allocateSlots(INITIAL_SLOTS);
+    }
+
+    private void allocateSlots(int n) {
+        if (intKeys) {
+            intSlots = new long[n];
+        } else {
+            heads = new int[n];
+            Arrays.fill(heads, -1);
+            hashes = new long[n];
+            fieldKeys = new Field[n];
+        }
+    }
+
+    private int slotCount() {
+        return intKeys ? intSlots.length : heads.length;
+    }
+
+    /**
+     * @return whether the keys are ints, to be probed with {@link #find(int)}
+     */
+    public boolean hasIntKeys() {
+        return intKeys;
+    }
+
+    /**
+     * Spreads the bits of a 32-bit hash code over 64 bits (the finalizer of
+     * SplitMix64).
+     */
+    static long hash(int h) {
+        long z = h * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Adds a build row, compacted ({@link Tuple#compact()}) so that the
+     * table does not keep the page it was read from.
+     */
+    public void add(Tuple t) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        // 负载因子不超过1/2
+        if (2 * (keys + 1) > slotCount()) {
+            resize();
+        }
+        int row = size++;
+        rows[row] = t.compact();
+        if (intKeys) {
+            int key = t.getInt(keyField);
+            int mask = intSlots.length - 1;
+            int slot = (int) hash(key) & mask;
+            long s;
+            while ((s = intSlots[slot]) != 0 && (int) (s >>> 32) != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (s == 0) {
+                keys++;
+            }
+            next[row] = (int) s - 1;
+            intSlots[slot] = (long) key << 32 | row + 1;
+        } else {
+            Field key = t.getField(keyField);
+            long h = hash(key.hashCode());
+            int mask = heads.length - 1;
+            int slot = (int) h & mask;
+            while (heads[slot] != -1 && (hashes[slot] != h || !fieldKeys[slot].equals(key))) {
+                slot = (slot + 1) & mask;
+            }
+            if (heads[slot] == -1) {
+                keys++;
+                fieldKeys[slot] = key;
+                hashes[slot] = h;
+            }
+            next[row] = heads[slot];
+            heads[slot] = row;
+        }
+    }
+
+    private void resize() {
+        if (intKeys) {
+            long[] old = intSlots;
+            allocateSlots(old.length * 2);
+            int mask = intSlots.length - 1;
+            for (long s : old) {
+                if (s == 0) {
+                    continue;
+                }
+                int slot = (int) hash((int) (s >>> 32)) & mask;
+                while (intSlots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                intSlots[slot] = s;
+            }
+            return;
+        }
+        int[] oldHeads = heads;
+        long[] oldHashes = hashes;
+        Field[] oldFields = fieldKeys;
+        allocateSlots(oldHeads.length * 2);
+        int mask = heads.length - 1;
+        for (int i = 0; i < oldHeads.length; i++) {
+            if (oldHeads[i] == -1) {
+                continue;
+            }
+            int slot = (int) oldHashes[i] & mask;
+            while (heads[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            heads[slot] = oldHeads[i];
+            hashes[slot] = oldHashes[i];
+            fieldKeys[slot] = oldFields[i];
+        }
+    }
+
+    /**
+     * @return the first row with the given int key, or -1 if there is none
+     */
+    public int find(int key) {
+        int mask = intSlots.length - 1;
+        int slot = (int) hash(key) & mask;
+        long s;
+        while ((s = intSlots[slot]) != 0) {
+            if ((int) (s >>> 32) == key) {
+                return (int) s - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first rows of n int keys at once: first[i] is find(keys[sel[i]]).
+     * The lookups do not depend on each other, so the processor overlaps their
+     * cache misses instead of waiting for one slot at a time.
+     */
+    public void find(int[] keys, int[] sel, int n, int[] first) {
+        long[] slots = intSlots;
+        int mask = slots.length - 1;
+        for (int i = 0; i < n; i++) {
+            int key = keys[sel[i]];
+            int slot = (int) hash(key) & mask;
+            long s;
+            while ((s = slots[slot]) != 0 && (int) (s >>> 32) != key) {
+                slot = (slot + 1) & mask;
+            }
+            first[i] = (int) s - 1;
+        }
+    }
+
+    /**
+     * @return the first row with the given key, or -1 if there is none
+     */
+    public int find(Field key) {
+        if (intKeys) {
+            return find(((IntField) key).getValue());
+        }
+        int mask = heads.length - 1;
+        long h = hash(key.hashCode());
+        int slot = (int) h & mask;
+        int head;
+        while ((head = heads[slot]) != -1) {
+            if (hashes[slot] == h && fieldKeys[slot].equals(key)) {
+                return head;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the next row with the same key as row, or -1
+     */
+    public int next(int row) {
+        return next[row];
+    }
+
+    public Tuple row(int row) {
+        return rows[row];
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all rows, keeping the arrays allocated.
+     */
+    public void clear() {
+        Arrays.fill(rows, 0, size, null);
+        size = 0;
+        if (keys > 0) {
+            if (intKeys) {
+                Arrays.fill(intSlots, 0);
+            } else {
+                Arrays.fill(heads, -1);
+                Arrays.fill(fieldKeys, null);
+            }
+            keys = 0;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
 
 /**
  * JoinPredicate compares fields of two tuples using a predicate. JoinPredicate
@@ -12,6 +15,19 @@ public class JoinPredicate implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private final int field1;
+
+    private final Predicate.Op op;
+
+    private final int field2;
+
+    /**
+     * 针对连接列类型编译出的比较，类型为(Tuple, Tuple)boolean
+     */
+    private transient MethodHandle compiled;
+
+    private transient Type compiledType;
+
     /**
      * Constructor -- create a new predicate over two fields of two tuples.
      *
@@ -25,6 +41,9 @@ public class JoinPredicate implements Serializable {
      */
     public JoinPredicate(int field1, Predicate.Op op, int field2) {
         // some code goes here
+        this.field1 = field1;
+        this.op = op;
+        this.field2 = field2;
     }
 
     /**
@@ -35,21 +54,38 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return false;
+        Type type = t1.getTupleDesc().getFieldType(field1);
+        if (type != compiledType) {
+            if (type != t2.getTupleDesc().getFieldType(field2)) {
+                return t1.getField(field1).compare(op, t2.getField(field2));
+            }
+            compile(t1.getTupleDesc(), t2.getTupleDesc());
+        }
+        return PredicateCompiler.test(compiled, t1, t2);
+    }
+
+    /**
+     * Compiles this predicate for left tuples of td1 and right tuples of td2.
+     * Join operators call this when the plan is built; filter() compiles on
+     * demand if it is not done.
+     */
+    public void compile(TupleDesc td1, TupleDesc td2) {
+        compiled = PredicateCompiler.compile(this, td1, td2);
+        compiledType = td1.getFieldType(field1);
     }
 
     public int getField1() {
         // some code goes here
-        return -1;
+        return field1;
     }
 
     public int getField2() {
         // some code goes here
-        return -1;
+        return field2;
     }
 
     public Predicate.Op getOperator() {
         // some code goes here
-        return null;
+        return op;
     }
 }
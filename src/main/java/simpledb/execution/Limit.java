@@ -0,0 +1,139 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit implements LIMIT ... OFFSET: it skips the first offset tuples of its
+ * child and returns at most limit of the tuples after them. As soon as the
+ * last of them has been returned the child is closed, so a scan or a join
+ * underneath stops reading pages and releases its buffers without running to
+ * the end.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+
+    private final long limit;
+
+    private final long offset;
+
+    /**
+     * 已经跳过的元组数、已经返回的元组数，以及孩子是否已经提前关闭
+     */
+    private transient long skipped;
+
+    private transient long returned;
+
+    private transient boolean childClosed;
+
+    /**
+     * @param limit  the largest number of tuples to return
+     * @param offset the number of tuples to skip before the first one returned
+     * @param child  the tuples to limit
+     */
+    public Limit(long limit, long offset, OpIterator child) {
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childClosed = false;
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (!childClosed) {
+            child.close();
+            childClosed = true;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childClosed) {
+            child.open();
+            childClosed = false;
+        } else {
+            child.rewind();
+        }
+        skipped = 0;
+        returned = 0;
+    }
+
+    /**
+     * @return whether the child was closed as soon as limit tuples were
+     * returned
+     */
+    public boolean isStoppedEarly() {
+        return childClosed && returned == limit;
+    }
+
+    /**
+     * Returns the next tuple after the offset, or null once limit tuples
+     * have been returned or the child is exhausted.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (returned >= limit) {
+            if (!childClosed) {
+                // 已经返回了足够的元组，不再读孩子
+                child.close();
+                childClosed = true;
+            }
+            return null;
+        }
+        while (skipped < offset) {
+            if (!child.hasNext()) {
+                return null;
+            }
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext()) {
+            return null;
+        }
+        Tuple t = child.next();
+        if (++returned == limit) {
+            // 最后一个元组：立即关闭孩子，不等下一次调用
+            child.close();
+            childClosed = true;
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+
+/**
+ * The memory one data structure of an operator holds, reserved from the
+ * {@link QueryMemory} of its query (see {@link QueryMemory#reserve}). The
+ * structure tells the reservation how many bytes it needs in all, as it
+ * grows: {@link #tryReserve} when it can spill or make do with less if it
+ * is refused, {@link #reserve} when it cannot. The bytes are taken from the
+ * query in chunks, so that growing by a tuple at a time rarely touches the
+ * query.
+ * <p>
+ * A reservation is used by one thread at a time.
+ */
+public final class MemoryReservation {
+
+    /**
+     * 每次向查询预留的最小字节数
+     */
+    static final long CHUNK = 64 * 1024;
+
+    private final QueryMemory query;
+
+    private final String owner;
+
+    /**
+     * 在ExplainAnalyze下运行时，创建预留的算子的记录
+     */
+    private final OperatorProfile profile;
+
+    /**
+     * 已经从查询取得的字节数，以及使用者需要的字节数及其峰值
+     */
+    private long granted;
+
+    private long bytes;
+
+    private long peak;
+
+    MemoryReservation(QueryMemory query, String owner) {
+        this.query = query;
+        this.owner = owner;
+        this.profile = ProfiledIterator.currentProfile();
+    }
+
+    /**
+     * Grows the reservation to the given size, if it is not that large yet.
+     *
+     * @param bytes the bytes the structure needs in all
+     * @return false, leaving the reservation as it was, if the query or all
+     * the queries together would go beyond their memory limits
+     */
+    public boolean tryReserve(long bytes) {
+        if (bytes > granted && query != null) {
+            long needed = bytes - granted;
+            // 先按块预留；接近上限时只预留需要的字节数
+            long chunk = Math.max(needed, CHUNK);
+            if (!query.acquire(chunk)) {
+                if (chunk == needed || !query.acquire(needed)) {
+                    return false;
+                }
+                chunk = needed;
+            }
+            granted += chunk;
+        }
+        set(bytes);
+        return true;
+    }
+
+    /**
+     * Grows the reservation to the given size, for a structure that cannot
+     * spill or make do with less.
+     *
+     * @param bytes the bytes the structure needs in all
+     * @throws DbException if the memory limits do not leave room for it,
+     *                     which ends the query
+     */
+    public void reserve(long bytes) throws DbException {
+        if (!tryReserve(bytes)) {
+            throw new DbException(String.format("%s needs %d bytes of memory, but %s",
+                    owner, bytes, query));
+        }
+    }
+
+    /**
+     * Shrinks the reservation to the given size, giving the bytes beyond it
+     * back to the query.
+     */
+    public void shrink(long bytes) {
+        if (bytes >= this.bytes) {
+            return;
+        }
+        set(bytes);
+        if (query != null && granted - bytes >= CHUNK) {
+            query.release(granted - bytes);
+            granted = bytes;
+        }
+    }
+
+    /**
+     * Gives all the bytes back to the query.
+     */
+    public void release() {
+        shrink(0);
+        if (query != null && granted > 0) {
+            query.release(granted);
+        }
+        granted = 0;
+    }
+
+    private void set(long bytes) {
+        if (profile != null) {
+            profile.reserve(bytes - this.bytes);
+        }
+        this.bytes = bytes;
+        peak = Math.max(peak, bytes);
+    }
+
+    /**
+     * @return the bytes the structure holds now
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the most bytes the structure held at once
+     */
+    public long getPeak() {
+        return peak;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+}
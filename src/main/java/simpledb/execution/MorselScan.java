@@ -0,0 +1,223 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sequential scan of a heap file that reads only the pages it claims, a
+ * morsel of {@link #MORSEL_PAGES} pages at a time, from {@link Morsels}
+ * shared with the other scans of the same table in a parallel plan. The
+ * scans of one Morsels read every page of the table exactly once between
+ * two calls to {@link Morsels#reset()}, and a scan that is faster than the
+ * others simply claims more morsels.
+ * <p>
+ * The morsels are reset by whoever starts the pipelines the scans belong to
+ * ({@link #reset(OpIterator[])}), not by open or rewind, which every scan
+ * calls at its own time.
+ */
+public class MorselScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of pages a scan claims at once
+     */
+    public static final int MORSEL_PAGES = 16;
+
+    /**
+     * The pages of a table not yet claimed by its scans.
+     */
+    public static final class Morsels implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int tableId;
+
+        private final AtomicInteger nextPage = new AtomicInteger();
+
+        public Morsels(int tableId) {
+            this.tableId = tableId;
+        }
+
+        /**
+         * @return the first page of the next morsel, or -1 if every page
+         * has been claimed
+         */
+        int claim() {
+            int numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).numPages();
+            int first = nextPage.getAndAdd(MORSEL_PAGES);
+            return first < numPages ? first : -1;
+        }
+
+        /**
+         * Makes every page available again, for a new run of the scans.
+         */
+        public void reset() {
+            nextPage.set(0);
+        }
+    }
+
+    private final Morsels morsels;
+
+    /**
+     * 当前页块中下一个要读的页和页块的末尾，以及当前页的元组
+     */
+    private transient int page;
+
+    private transient int end;
+
+    private transient Iterator<Tuple> tuples;
+
+    /**
+     * 已读出并通过运行时过滤的下一个元组
+     */
+    private transient Tuple passed;
+
+    private transient TupleBatch batch;
+
+    /**
+     * @param tid        the transaction this scan is running as a part of
+     * @param tableid    the heap file to scan
+     * @param tableAlias the alias of the table
+     * @param morsels    the morsels shared by the scans of the table
+     */
+    public MorselScan(TransactionId tid, int tableid, String tableAlias, Morsels morsels) {
+        super(tid, tableid, tableAlias);
+        this.morsels = morsels;
+    }
+
+    /**
+     * @return n scans of the table of scan, sharing new morsels
+     */
+    public static MorselScan[] split(SeqScan scan, int n) {
+        Morsels morsels = new Morsels(scan.getTableId());
+        MorselScan[] scans = new MorselScan[n];
+        for (int i = 0; i < n; i++) {
+            scans[i] = new MorselScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), morsels);
+        }
+        return scans;
+    }
+
+    /**
+     * @return whether scan can be split into morsels: it scans a heap file
+     */
+    public static boolean canSplit(OpIterator scan) {
+        return scan instanceof SeqScan && !(scan instanceof MorselScan)
+                && Database.getCatalog().getDatabaseFile(((SeqScan) scan).getTableId()) instanceof HeapFile;
+    }
+
+    /**
+     * Resets the morsels of the scans of the given pipelines, down to the
+     * exchanges they read from, which reset their own pipelines when they
+     * start.
+     */
+    public static void reset(OpIterator[] pipelines) {
+        for (OpIterator pipeline : pipelines) {
+            OpIterator op = ProfiledIterator.unwrap(pipeline);
+            if (op instanceof MorselScan) {
+                ((MorselScan) op).morsels.reset();
+            } else if (op instanceof Operator && !(op instanceof Exchange)) {
+                reset(((Operator) op).getChildren());
+            }
+        }
+    }
+
+    public Morsels getMorsels() {
+        return morsels;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        page = 0;
+        end = 0;
+        tuples = null;
+        passed = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        open();
+    }
+
+    @Override
+    public void close() {
+        tuples = null;
+        passed = null;
+    }
+
+    /**
+     * @return the next page to read, claiming a new morsel when the current
+     * one is done, or null if there are no pages left
+     */
+    private HeapPage nextPage() throws DbException, TransactionAbortedException {
+        if (page == end) {
+            int first = morsels.claim();
+            if (first < 0) {
+                return null;
+            }
+            page = first;
+            end = first + MORSEL_PAGES;
+        }
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(getTableId());
+        if (page >= file.numPages()) {
+            // 表的最后一个页块不满
+            page = end;
+            return nextPage();
+        }
+        HeapPageId pid = new HeapPageId(getTableId(), page++);
+        return (HeapPage) Database.getBufferPool().getPage(getTransactionId(), pid, Permissions.READ_ONLY);
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        while (passed == null) {
+            while (tuples == null || !tuples.hasNext()) {
+                HeapPage p = nextPage();
+                if (p == null) {
+                    return false;
+                }
+                tuples = p.iterator();
+            }
+            Tuple t = tuples.next();
+            if (passesRuntimeFilters(t)) {
+                passed = t;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = passed;
+        passed = null;
+        return t;
+    }
+
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null) {
+            batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        }
+        HeapPage p;
+        while ((p = nextPage()) != null) {
+            p.readBatch(batch);
+            applyRuntimeFilters(batch);
+            if (batch.selectedCount() > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -43,6 +44,24 @@ public interface OpIterator extends Serializable {
      */
     Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+    /**
+     * Returns the next tuples from the operator as a columnar batch, or null if
+     * there are no more tuples. A returned batch always has at least one
+     * selected row, and is only valid until the next call to nextBatch(),
+     * rewind() or close().
+     * <p>
+     * The default implementation adapts the tuple at a time interface; scans,
+     * filters, projections and joins override it to work on batches natively.
+     * A caller should use either next() or nextBatch() between open() (or
+     * rewind()) and close(), not both.
+     *
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        return batch.fill(this) ? batch : null;
+    }
+
     /**
      * Resets the iterator to the start.
      *
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -49,6 +50,17 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    /**
+     * Adapts fetchNext to the batch interface, reusing one batch.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        if (rowBatch == null)
+            rowBatch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        return rowBatch.fill(this) ? rowBatch : null;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -61,6 +73,7 @@ public abstract class Operator implements OpIterator {
 
     private Tuple next = null;
     private boolean open = false;
+    private transient TupleBatch rowBatch;
     private int estimatedCardinality = 0;
 
     public void open() throws DbException, TransactionAbortedException {
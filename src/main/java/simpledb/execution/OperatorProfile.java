@@ -0,0 +1,159 @@
+package simpledb.execution;
+
+/**
+ * What an operator did while a plan ran under {@link ExplainAnalyze}: the
+ * tuples it returned, the time it spent in open (and rewind) and in
+ * producing its tuples, the pages it requested from the buffer pool and the
+ * memory it allocated and reserved. Every figure but the reserved memory
+ * includes the work of the operators under it that ran on the same thread,
+ * since they run inside its calls; {@link ExplainAnalyze#getSelfNanos}
+ * subtracts them.
+ */
+public class OperatorProfile {
+
+    /**
+     * 第一次打开算子的线程
+     */
+    long thread = -1;
+
+    long opens;
+
+    long rows;
+
+    long batches;
+
+    long openNanos;
+
+    long openCpuNanos;
+
+    long nextNanos;
+
+    /**
+     * 读了CPU时间的那部分调用的墙钟时间和CPU时间
+     */
+    long sampledNextNanos;
+
+    long sampledNextCpuNanos;
+
+    long pageHits;
+
+    long pageMisses;
+
+    long allocatedBytes;
+
+    /**
+     * 算子的数据结构当前和最多预留的内存，见MemoryReservation
+     */
+    private long reservedBytes;
+
+    private long peakReservedBytes;
+
+    /**
+     * @return the number of times the operator was opened; 0 if it never
+     * ran, for instance because its parent read its input some other way
+     */
+    public long getOpens() {
+        return opens;
+    }
+
+    /**
+     * @return the number of tuples the operator returned
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the number of batches the operator returned from
+     * {@link OpIterator#nextBatch()}
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the wall time spent in open and rewind, in nanoseconds
+     */
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    /**
+     * @return the CPU time of the thread spent in open and rewind, in
+     * nanoseconds; 0 if the JVM does not measure it
+     */
+    public long getOpenCpuNanos() {
+        return openCpuNanos;
+    }
+
+    /**
+     * @return the wall time spent producing tuples (hasNext, next,
+     * nextBatch), in nanoseconds
+     */
+    public long getNextNanos() {
+        return nextNanos;
+    }
+
+    /**
+     * @return the CPU time of the thread spent producing tuples, in
+     * nanoseconds: the wall time of all the calls times the share of CPU
+     * time in the calls it was read for, a fraction of the calls that
+     * return a single tuple; 0 if the JVM does not measure it
+     */
+    public long getNextCpuNanos() {
+        if (sampledNextNanos == 0) {
+            return 0;
+        }
+        return (long) ((double) nextNanos * sampledNextCpuNanos / sampledNextNanos);
+    }
+
+    public long getTotalNanos() {
+        return openNanos + nextNanos;
+    }
+
+    public long getCpuNanos() {
+        return openCpuNanos + getNextCpuNanos();
+    }
+
+    /**
+     * @return the number of pages requested that were in the buffer pool
+     */
+    public long getPageHits() {
+        return pageHits;
+    }
+
+    /**
+     * @return the number of pages requested that were read from disk
+     */
+    public long getPageMisses() {
+        return pageMisses;
+    }
+
+    /**
+     * @return the bytes of memory allocated on the heap, a bound on the
+     * memory the operator can hold at once; 0 if the JVM does not measure it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    synchronized void reserve(long bytes) {
+        reservedBytes += bytes;
+        peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+    }
+
+    /**
+     * @return the most memory the data structures of the operator, such as
+     * its hash table, held at once ({@link MemoryReservation})
+     */
+    public synchronized long getPeakReservedBytes() {
+        return peakReservedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rows=%d open=%.3fms next=%.3fms cpu=%.3fms hits=%d misses=%d alloc=%dKB mem=%dKB",
+                rows, openNanos / 1e6, nextNanos / 1e6, getCpuNanos() / 1e6,
+                pageHits, pageMisses, allocatedBytes >> 10, getPeakReservedBytes() >> 10);
+    }
+}
@@ -1,7 +1,7 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
@@ -10,18 +10,36 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples of the child are sorted with an {@link ExternalSort}: in memory
+ * if they fit in the sort memory budget ({@link #getMemoryBudget()}), and
+ * otherwise in sorted runs written to temporary files by
+ * {@link #getThreads()} threads and merged while they are read. Rewinding
+ * reads the sorted tuples again without reading the child or sorting again.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    private static volatile long memoryBudget =
+            Long.getLong("simpledb.sort.memory", 16L * 1024 * 1024);
+
+    private static volatile int threads =
+            Integer.getInteger("simpledb.sort.threads", Runtime.getRuntime().availableProcessors());
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
     private final int orderByField;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
     private final boolean asc;
 
+    /**
+     * 排序后的元组，以及读取它们的迭代器
+     */
+    private transient ExternalSort sorter;
+
+    private transient DbFileIterator it;
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      *
@@ -37,6 +55,40 @@ public class OrderBy extends Operator {
         this.asc = asc;
     }
 
+    /**
+     * @return the bytes of tuples a sort holds in memory. Set with
+     * -Dsimpledb.sort.memory; the default is 16MB.
+     */
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget of the sorts opened from now on.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of threads that sort and merge the runs of a sort
+     * that does not fit in memory. Set with -Dsimpledb.sort.threads; the
+     * default is the number of processors.
+     */
+    public static int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads of the sorts opened from now on.
+     */
+    public static void setThreads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        threads = n;
+    }
+
     public boolean isASC() {
         return this.asc;
     }
@@ -56,21 +108,42 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sorter = new ExternalSort(td, new int[]{orderByField}, new boolean[]{asc}, memoryBudget, threads);
+        try {
+            while (child.hasNext())
+                sorter.add(child.next());
+            it = sorter.iterator();
+            it.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            sorter.clear();
+            sorter = null;
+            throw e;
+        }
         super.open();
     }
 
+    /**
+     * @return whether the last open() wrote the tuples to disk because they
+     * did not fit in the memory budget
+     */
+    public boolean isSpilled() {
+        return sorter != null && sorter.isSpilled();
+    }
+
     public void close() {
         super.close();
-        it = null;
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sorter != null) {
+            sorter.clear();
+            sorter = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
     }
 
     /**
@@ -80,7 +153,8 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      * tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException,
+            DbException, TransactionAbortedException {
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,25 +172,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-
-}
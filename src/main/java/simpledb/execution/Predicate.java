@@ -1,9 +1,16 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
+import simpledb.storage.DictionaryStringField;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringDictionary;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Predicate compares tuples to a specified Field value.
@@ -12,6 +19,23 @@ public class Predicate implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final byte UNKNOWN = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+
+    private final int field;
+
+    private final Op op;
+
+    private final Field operand;
+
+    /**
+     * 字典编码列的比较结果缓存，按code下标。没有同步，一个Predicate只能由一个线程使用
+     */
+    private transient StringDictionary verdictDictionary;
+
+    private transient byte[] verdicts;
+
     /**
      * Constants used for return codes in Field.compare
      */
@@ -57,6 +81,9 @@ public class Predicate implements Serializable {
      */
     public Predicate(int field, Op op, Field operand) {
         // some code goes here
+        this.field = field;
+        this.op = op;
+        this.operand = operand;
     }
 
     /**
@@ -64,7 +91,7 @@ public class Predicate implements Serializable {
      */
     public int getField() {
         // some code goes here
-        return -1;
+        return field;
     }
 
     /**
@@ -72,7 +99,7 @@ public class Predicate implements Serializable {
      */
     public Op getOp() {
         // some code goes here
-        return null;
+        return op;
     }
 
     /**
@@ -80,7 +107,7 @@ public class Predicate implements Serializable {
      */
     public Field getOperand() {
         // some code goes here
-        return null;
+        return operand;
     }
 
     /**
@@ -94,15 +121,179 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+        if (operand instanceof IntField && t.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            // 整数列直接比较packed字节中的值，不创建IntField
+            return compareInts(op, t.getInt(field), ((IntField) operand).getValue());
+        }
+        Field f = t.getField(field);
+        if (f instanceof DictionaryStringField) {
+            DictionaryStringField d = (DictionaryStringField) f;
+            return filterCode(d.getDictionary(), d.getCode());
+        }
+        return f.compare(op, operand);
+    }
+
+    /**
+     * Evaluates the predicate on the selected rows of batch, removing the rows
+     * that fail it from the selection vector. The comparison is chosen once per
+     * batch, so the loop over an int column is a plain array scan. When every
+     * row is still selected, an int column is compared as a whole by
+     * {@link IntFilterKernels} and the selection vector rebuilt from its bitmap.
+     * A string column read from a dictionary-encoded page is compared once per
+     * distinct code ({@link TupleBatch#codeColumn}).
+     */
+    public void filter(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.selectedCount();
+        int out = 0;
+        int[] col = batch.intColumn(field);
+        if (col != null && n == batch.size()) {
+            // 选择向量是0..n-1，整列比较后由位图重建选择向量
+            long[] bits = batch.bitmap();
+            IntFilterKernels.compare(op, col, n, ((IntField) operand).getValue(), bits);
+            out = IntFilterKernels.select(bits, n, sel);
+        } else if (col != null) {
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] == v) sel[out++] = r;
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] != v) sel[out++] = r;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] > v) sel[out++] = r;
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] >= v) sel[out++] = r;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] < v) sel[out++] = r;
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel[i];
+                        if (col[r] <= v) sel[out++] = r;
+                    }
+                    break;
+            }
+        } else {
+            String[] strings = batch.stringColumn(field);
+            int[] codes = batch.codeColumn(field);
+            String v = ((StringField) operand).getValue();
+            if (codes != null) {
+                // 字典编码列按码查每个不同值的结果，与filter(Tuple)共用verdicts
+                StringDictionary dictionary = batch.getDictionary();
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    int code = codes[r];
+                    if (code >= 0 ? filterCode(dictionary, code) : compareStrings(op, strings[r], v)) sel[out++] = r;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    if (compareStrings(op, strings[r], v)) sel[out++] = r;
+                }
+            }
+        }
+        batch.setSelectedCount(out);
+    }
+
+    /**
+     * Applies op to two strings, with the semantics of {@link StringField#compare}.
+     */
+    public static boolean compareStrings(Op op, String a, String b) {
+        if (op == Op.LIKE) {
+            return a.contains(b);
+        }
+        int c = a.compareTo(b);
+        switch (op) {
+            case EQUALS:
+                return c == 0;
+            case NOT_EQUALS:
+                return c != 0;
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQ:
+                return c >= 0;
+            case LESS_THAN:
+                return c < 0;
+            case LESS_THAN_OR_EQ:
+                return c <= 0;
+        }
+        return false;
+    }
+
+    /**
+     * Applies op to two int values, with the semantics of {@link IntField#compare}.
+     */
+    public static boolean compareInts(Op op, int a, int b) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return a == b;
+            case NOT_EQUALS:
+                return a != b;
+            case GREATER_THAN:
+                return a > b;
+            case GREATER_THAN_OR_EQ:
+                return a >= b;
+            case LESS_THAN:
+                return a < b;
+            case LESS_THAN_OR_EQ:
+                return a <= b;
+        }
         return false;
     }
 
+    /**
+     * For dictionary encoded strings the comparison is evaluated once per
+     * distinct value; after that a row costs an array lookup by its code.
+     */
+    private boolean filterCode(StringDictionary dictionary, int code) {
+        if (dictionary != verdictDictionary) {
+            verdictDictionary = dictionary;
+            verdicts = new byte[Math.max(16, verdictDictionary.size())];
+        }
+        if (code >= verdicts.length) {
+            verdicts = Arrays.copyOf(verdicts, Math.max(code + 1, verdicts.length * 2));
+        }
+        if (verdicts[code] == UNKNOWN) {
+            verdicts[code] = dictionary.field(code).compare(op, operand) ? TRUE : FALSE;
+        }
+        return verdicts[code] == TRUE;
+    }
+
+    /**
+     * Evaluates the predicate on a string field of t that is stored as a
+     * dictionary code ({@link Tuple#getStringDictionary}), by its code.
+     */
+    boolean filterCode(Tuple t) {
+        return filterCode(t.getStringDictionary(field), t.getStringCode(field));
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
      */
     public String toString() {
         // some code goes here
-        return "";
+        return "f = " + field + " op = " + op + " operand = " + operand;
     }
 }
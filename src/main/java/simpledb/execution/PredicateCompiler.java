@@ -0,0 +1,237 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * PredicateCompiler turns predicates into method handles specialized for one
+ * schema, built from {@link MethodHandles} combinators when the plan is made:
+ * the field index, the comparison and the constant are bound into the handle,
+ * and values are read with {@link Tuple#getInt}/{@link Tuple#getString}, so
+ * evaluating it involves no Field objects, no Field.compare dispatch and no
+ * switch over {@link Predicate.Op}. The JVM compiles a hot handle into code
+ * specialized for that handle.
+ * <p>
+ * A string field stored as a dictionary code is not decoded: the handle
+ * tests such a row by its code, through the verdict of every code that the
+ * predicate caches ({@link Predicate#filter(Tuple)}), and compares strings
+ * only for rows stored as strings.
+ * <p>
+ * A conjunction of predicates becomes one handle that evaluates the
+ * predicates in order and stops at the first that fails.
+ */
+public final class PredicateCompiler {
+
+    private static final MethodType INT_CMP = MethodType.methodType(boolean.class, int.class, int.class);
+
+    private static final MethodType STRING_CMP = MethodType.methodType(boolean.class, String.class, String.class);
+
+    private static final MethodHandle GET_INT;
+
+    private static final MethodHandle GET_STRING;
+
+    private static final MethodHandle IS_ENCODED;
+
+    private static final MethodHandle FILTER_CODE;
+
+    private static final MethodHandle FALSE =
+            MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Tuple.class);
+
+    private static final MethodHandle TRUE =
+            MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, Tuple.class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GET_INT = lookup.findVirtual(Tuple.class, "getInt", MethodType.methodType(int.class, int.class));
+            GET_STRING = lookup.findVirtual(Tuple.class, "getString", MethodType.methodType(String.class, int.class));
+            IS_ENCODED = lookup.findStatic(PredicateCompiler.class, "isEncoded",
+                    MethodType.methodType(boolean.class, Tuple.class, int.class));
+            FILTER_CODE = lookup.findVirtual(Predicate.class, "filterCode",
+                    MethodType.methodType(boolean.class, Tuple.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private PredicateCompiler() {
+    }
+
+    /**
+     * Compiles the conjunction of predicates over tuples of td.
+     *
+     * @return a handle of type (Tuple)boolean, to be called with {@link #test(MethodHandle, Tuple)}
+     */
+    public static MethodHandle compile(TupleDesc td, List<Predicate> predicates) {
+        MethodHandle result = TRUE;
+        // 从后往前嵌套，使谓词按给定顺序求值
+        for (int i = predicates.size() - 1; i >= 0; i--) {
+            MethodHandle p = compile(td, predicates.get(i));
+            result = i == predicates.size() - 1 ? p : MethodHandles.guardWithTest(p, result, FALSE);
+        }
+        return result;
+    }
+
+    private static MethodHandle compile(TupleDesc td, Predicate p) {
+        int field = p.getField();
+        if (td.getFieldType(field) == Type.INT_TYPE) {
+            MethodHandle cmp = MethodHandles.insertArguments(comparison(p.getOp(), INT_CMP),
+                    1, ((IntField) p.getOperand()).getValue());
+            return MethodHandles.filterArguments(cmp, 0, MethodHandles.insertArguments(GET_INT, 1, field));
+        }
+        MethodHandle cmp = MethodHandles.insertArguments(comparison(p.getOp(), STRING_CMP),
+                1, ((StringField) p.getOperand()).getValue());
+        MethodHandle strings = MethodHandles.filterArguments(cmp, 0, MethodHandles.insertArguments(GET_STRING, 1, field));
+        // 字典编码的行按code查谓词缓存的结果，不解码也不比较字符串
+        return MethodHandles.guardWithTest(MethodHandles.insertArguments(IS_ENCODED, 1, field),
+                FILTER_CODE.bindTo(p), strings);
+    }
+
+    private static boolean isEncoded(Tuple t, int field) {
+        return t.getStringDictionary(field) != null;
+    }
+
+    /**
+     * Compiles a join predicate over a left tuple of td1 and a right tuple of td2.
+     *
+     * @return a handle of type (Tuple, Tuple)boolean, to be called with {@link #test(MethodHandle, Tuple, Tuple)}
+     */
+    public static MethodHandle compile(JoinPredicate p, TupleDesc td1, TupleDesc td2) {
+        Type type = td1.getFieldType(p.getField1());
+        if (type != td2.getFieldType(p.getField2())) {
+            throw new IllegalArgumentException("cannot compare " + type + " with " + td2.getFieldType(p.getField2()));
+        }
+        MethodHandle getter = type == Type.INT_TYPE ? GET_INT : GET_STRING;
+        MethodHandle cmp = comparison(p.getOperator(), type == Type.INT_TYPE ? INT_CMP : STRING_CMP);
+        return MethodHandles.filterArguments(cmp, 0,
+                MethodHandles.insertArguments(getter, 1, p.getField1()),
+                MethodHandles.insertArguments(getter, 1, p.getField2()));
+    }
+
+    /**
+     * Evaluates a handle made by {@link #compile(TupleDesc, List)}.
+     */
+    public static boolean test(MethodHandle predicate, Tuple t) {
+        try {
+            return (boolean) predicate.invokeExact(t);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Evaluates a handle made by {@link #compile(JoinPredicate, TupleDesc, TupleDesc)}.
+     */
+    public static boolean test(MethodHandle predicate, Tuple t1, Tuple t2) {
+        try {
+            return (boolean) predicate.invokeExact(t1, t2);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle comparison(Predicate.Op op, MethodType type) {
+        String prefix = type == INT_CMP ? "int" : "string";
+        String name;
+        switch (op) {
+            case EQUALS:
+                name = "Equals";
+                break;
+            case NOT_EQUALS:
+                name = "NotEquals";
+                break;
+            case GREATER_THAN:
+                name = "GreaterThan";
+                break;
+            case GREATER_THAN_OR_EQ:
+                name = "GreaterThanOrEq";
+                break;
+            case LESS_THAN:
+                name = "LessThan";
+                break;
+            case LESS_THAN_OR_EQ:
+                name = "LessThanOrEq";
+                break;
+            case LIKE:
+                name = "Like";
+                break;
+            default:
+                throw new IllegalArgumentException("unknown operator " + op);
+        }
+        try {
+            return MethodHandles.lookup().findStatic(PredicateCompiler.class, prefix + name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 以下比较函数与IntField.compare、StringField.compare的语义一致
+
+    private static boolean intEquals(int a, int b) {
+        return a == b;
+    }
+
+    private static boolean intNotEquals(int a, int b) {
+        return a != b;
+    }
+
+    private static boolean intGreaterThan(int a, int b) {
+        return a > b;
+    }
+
+    private static boolean intGreaterThanOrEq(int a, int b) {
+        return a >= b;
+    }
+
+    private static boolean intLessThan(int a, int b) {
+        return a < b;
+    }
+
+    private static boolean intLessThanOrEq(int a, int b) {
+        return a <= b;
+    }
+
+    private static boolean intLike(int a, int b) {
+        return a == b;
+    }
+
+    private static boolean stringEquals(String a, String b) {
+        return a.equals(b);
+    }
+
+    private static boolean stringNotEquals(String a, String b) {
+        return !a.equals(b);
+    }
+
+    private static boolean stringGreaterThan(String a, String b) {
+        return a.compareTo(b) > 0;
+    }
+
+    private static boolean stringGreaterThanOrEq(String a, String b) {
+        return a.compareTo(b) >= 0;
+    }
+
+    private static boolean stringLessThan(String a, String b) {
+        return a.compareTo(b) < 0;
+    }
+
+    private static boolean stringLessThanOrEq(String a, String b) {
+        return a.compareTo(b) <= 0;
+    }
+
+    private static boolean stringLike(String a, String b) {
+        return a.contains(b);
+    }
+}
@@ -0,0 +1,216 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.NoSuchElementException;
+
+/**
+ * Wraps an operator of a plan run by {@link ExplainAnalyze} and records what
+ * every call to it does in an {@link OperatorProfile}. Operators that look
+ * at the type of their children see through it with {@link #unwrap}.
+ * <p>
+ * Reading the CPU time of the thread costs several times as much as reading
+ * the clock, so for the calls that return a single tuple it is read only on
+ * one call to hasNext and one call to next in {@link #CPU_SAMPLE}. The CPU
+ * time of the operator is the wall time of all its calls times the share of
+ * CPU time in the sampled ones ({@link OperatorProfile#getNextCpuNanos()}).
+ * hasNext and next are counted apart because they alternate, and one of
+ * them usually does most of the work.
+ */
+class ProfiledIterator implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported()
+            && THREADS.isThreadCpuTimeEnabled();
+
+    /**
+     * 只有HotSpot的ThreadMXBean能读出线程分配的字节数
+     */
+    private static final com.sun.management.ThreadMXBean ALLOCATION =
+            THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled()
+                    ? (com.sun.management.ThreadMXBean) THREADS : null;
+
+    private static final int CPU_SAMPLE = 16;
+
+    /**
+     * 当前线程正在调用的最内层算子的记录，它创建的MemoryReservation记在它名下
+     */
+    private static final ThreadLocal<OperatorProfile> CURRENT = new ThreadLocal<>();
+
+    private final OpIterator op;
+
+    private final transient OperatorProfile profile;
+
+    /**
+     * 当前调用开始时的计数：墙钟时间、CPU时间、命中页数、未命中页数、已分配字节数
+     */
+    private transient long wall, cpu, hits, misses, allocated;
+
+    /**
+     * 当前调用是否读CPU时间
+     */
+    private transient boolean sampled;
+
+    private transient long hasNextCalls, nextCalls;
+
+    private transient OperatorProfile outer;
+
+    ProfiledIterator(OpIterator op, OperatorProfile profile) {
+        this.op = op;
+        this.profile = profile;
+    }
+
+    /**
+     * @return op without the ProfiledIterator around it, if there is one
+     */
+    static OpIterator unwrap(OpIterator op) {
+        return op instanceof ProfiledIterator ? ((ProfiledIterator) op).op : op;
+    }
+
+    OpIterator getOperator() {
+        return op;
+    }
+
+    /**
+     * @return the profile of the innermost operator the calling thread is
+     * in a call of, or null
+     */
+    static OperatorProfile currentProfile() {
+        return CURRENT.get();
+    }
+
+    private void start(boolean sample) {
+        hits = BufferPool.getPageHits();
+        misses = BufferPool.getPageMisses();
+        allocated = ALLOCATION != null ? ALLOCATION.getCurrentThreadAllocatedBytes() : 0;
+        outer = CURRENT.get();
+        CURRENT.set(profile);
+        sampled = CPU_TIME && sample;
+        // CPU时间在墙钟时间的区间之内读取，调用的CPU时间不会超过它的墙钟时间
+        wall = System.nanoTime();
+        if (sampled) {
+            cpu = THREADS.getCurrentThreadCpuTime();
+        }
+    }
+
+    private long cpuNanos() {
+        return sampled ? THREADS.getCurrentThreadCpuTime() - cpu : 0;
+    }
+
+    private void stopOpen() {
+        long cpuNanos = cpuNanos();
+        profile.openNanos += System.nanoTime() - wall;
+        profile.openCpuNanos += cpuNanos;
+        stopCounters();
+    }
+
+    private void stopNext() {
+        long cpuNanos = cpuNanos();
+        long nanos = System.nanoTime() - wall;
+        profile.nextNanos += nanos;
+        if (sampled) {
+            profile.sampledNextCpuNanos += cpuNanos;
+            profile.sampledNextNanos += nanos;
+        }
+        stopCounters();
+    }
+
+    private void stopCounters() {
+        CURRENT.set(outer);
+        profile.pageHits += BufferPool.getPageHits() - hits;
+        profile.pageMisses += BufferPool.getPageMisses() - misses;
+        if (ALLOCATION != null) {
+            profile.allocatedBytes += ALLOCATION.getCurrentThreadAllocatedBytes() - allocated;
+        }
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (profile.opens++ == 0) {
+            profile.thread = Thread.currentThread().getId();
+        }
+        start(true);
+        try {
+            op.open();
+        } finally {
+            stopOpen();
+        }
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        start(hasNextCalls++ % CPU_SAMPLE == 0);
+        try {
+            return op.hasNext();
+        } finally {
+            stopNext();
+        }
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        start(nextCalls++ % CPU_SAMPLE == 0);
+        try {
+            Tuple t = op.next();
+            profile.rows++;
+            return t;
+        } finally {
+            stopNext();
+        }
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        start(true);
+        try {
+            TupleBatch batch = op.nextBatch();
+            if (batch != null) {
+                profile.batches++;
+                profile.rows += batch.selectedCount();
+            }
+            return batch;
+        } finally {
+            stopNext();
+        }
+    }
+
+    /**
+     * Pushes all the remaining tuples of the wrapped {@link PushPlan} into
+     * sink, as {@link PushPlan#pushAll} does.
+     */
+    void pushAll(TupleSink sink) throws DbException, TransactionAbortedException {
+        start(true);
+        try {
+            ((PushPlan) op).pushAll(t -> {
+                profile.rows++;
+                sink.push(t);
+            });
+        } finally {
+            stopNext();
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        start(true);
+        try {
+            op.rewind();
+        } finally {
+            stopOpen();
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return op.getTupleDesc();
+    }
+
+    public void close() {
+        op.close();
+    }
+}
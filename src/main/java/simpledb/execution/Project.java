@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -17,7 +18,7 @@ public class Project extends Operator {
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Integer> outFieldIds;
+    private final int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -35,7 +36,6 @@ public class Project extends Operator {
     public Project(List<Integer> fieldList, Type[] types,
                    OpIterator child) {
         this.child = child;
-        outFieldIds = fieldList;
         String[] fieldAr = new String[fieldList.size()];
         TupleDesc childtd = child.getTupleDesc();
 
@@ -43,12 +43,20 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = fieldList.stream().mapToInt(Integer::intValue).toArray();
     }
 
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * @return the fields of the child tuples that make up the output tuples
+     */
+    public int[] getOutFields() {
+        return outFields.clone();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -74,14 +82,20 @@ public class Project extends Operator {
             TransactionAbortedException, DbException {
         if (!child.hasNext()) return null;
         Tuple t = child.next();
-        Tuple newTuple = new Tuple(td);
+        Tuple newTuple = Tuple.project(td, t, outFields);
         newTuple.setRecordId(t.getRecordId());
-        for (int i = 0; i < td.numFields(); i++) {
-            newTuple.setField(i, t.getField(outFieldIds.get(i)));
-        }
         return newTuple;
     }
 
+    /**
+     * Projects a batch of the child by picking its column vectors; no values are copied.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(td, outFields);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
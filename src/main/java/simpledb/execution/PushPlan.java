@@ -0,0 +1,791 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A PushPlan runs a part of a plan made of {@link Filter}, {@link Project}
+ * and {@link HashEquiJoin} operators as push pipelines, instead of pulling
+ * every tuple through a chain of {@link OpIterator#next} calls.
+ * <p>
+ * The part is split at its pipeline breakers, the builds of the hash joins.
+ * Every pipeline reads a source, an operator outside the part such as a scan,
+ * and pushes each tuple through a chain of stages: a filter stage pushes on
+ * the tuples that pass, a projection stage pushes on the projected tuples,
+ * and the probe stage of a join pushes on every match in the hash table of
+ * the join. The joins of a pipeline do not create joined tuples; the rows
+ * they match travel together, and a tuple is created only where one is
+ * needed, such as the projection that usually ends the plan, which copies
+ * its fields straight from the matched rows. The build pipeline of a
+ * join ends in the hash table, and runs to the end when the PushPlan is
+ * opened, before the pipelines that probe it; the main pipeline, which
+ * probes the joins of the left-deep spine of the part, ends in the PushPlan
+ * itself, and reads its source as the tuples are asked for, so a consumer
+ * that stops early (a {@link Limit}) stops the pipeline as well. An operator
+ * that consumes its input as a whole, such as {@link Aggregate}, takes the
+ * tuples straight from the end of the pipeline with {@link #pushAll}.
+ * <p>
+ * A build whose join key comes straight from the source of the pipeline
+ * that probes it, a scan, publishes a {@link RuntimeFilter} of its keys to
+ * the scan, as {@link HashEquiJoin} does.
+ * <p>
+ * The hash tables of the builds are kept in memory. If they grow beyond the
+ * join memory budget ({@link Join#getMemoryBudget()}), before any tuple is
+ * returned, the PushPlan gives up and runs the pulling operators it was
+ * compiled from, whose hash joins partition their inputs to disk.
+ * <p>
+ * {@link #compile} replaces every such part of a plan that has a hash join
+ * with a PushPlan, when push execution is enabled ({@link #isEnabled()}).
+ */
+public class PushPlan extends Operator implements TupleSink {
+
+    private static final long serialVersionUID = 1L;
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("simpledb.push", "false"));
+
+    /**
+     * 被编译成流水线的那部分计划，回退时按拉取方式执行
+     */
+    private OpIterator root;
+
+    /**
+     * 各连接的构建按依赖顺序排列，主流水线的末端是这个PushPlan
+     */
+    private transient List<Build> builds;
+
+    private transient Pipeline main;
+
+    private transient boolean fallback;
+
+    /**
+     * pushAll时主流水线的元组直接交给target，否则放进buffer等待读取
+     */
+    private transient TupleSink target;
+
+    private transient List<Tuple> buffer;
+
+    private transient int pos;
+
+    /**
+     * Thrown by a build stage whose hash table no longer fits in the join
+     * memory budget.
+     */
+    private static final class BuildOverflow extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BuildOverflow() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A source and the first stage of the chain it pushes its tuples to.
+     */
+    private static final class Pipeline {
+        final OpIterator source;
+        final TupleSink first;
+
+        Pipeline(OpIterator source, TupleSink first) {
+            this.source = source;
+            this.first = first;
+        }
+
+        /**
+         * Pushes all the tuples of the source through the pipeline.
+         */
+        void run() throws DbException, TransactionAbortedException {
+            source.open();
+            try {
+                while (source.hasNext()) {
+                    first.push(source.next());
+                }
+            } catch (Throwable e) {
+                // 构建超出预算时源保持打开，回退后从停下的地方接着读
+                if (!(e instanceof BuildOverflow)) {
+                    source.close();
+                }
+                throw e;
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * The build of a hash join: the pipeline that fills its hash table.
+     */
+    private static final class Build {
+        final HashEquiJoin join;
+        final OpIterator child;
+        final JoinHashTable table;
+        final BuildSink sink;
+        Pipeline pipeline;
+
+        /**
+         * 发布给探测流水线源扫描的运行时过滤器，没有时为null
+         */
+        final RuntimeFilter filter;
+        final SeqScan scan;
+
+        /**
+         * 构建流水线是否已经读完它的源
+         */
+        boolean done;
+
+        Build(HashEquiJoin join, JoinHashTable table, RuntimeFilter filter, SeqScan scan) {
+            this.join = join;
+            this.child = join.getChildren()[0];
+            this.table = table;
+            this.filter = filter;
+            this.scan = scan;
+            this.sink = new BuildSink(table, child.getTupleDesc(), join.getJoinPredicate().getField1(), filter);
+        }
+
+        void publish() {
+            if (filter != null) {
+                filter.seal();
+                scan.addRuntimeFilter(filter);
+            }
+        }
+
+        void unpublish() {
+            if (filter != null) {
+                scan.removeRuntimeFilter(filter);
+                filter.release();
+            }
+        }
+
+        /**
+         * Gives the join back the build side it was compiled from.
+         */
+        void restore() {
+            join.setChildren(new OpIterator[]{child, join.getChildren()[1]});
+        }
+    }
+
+    /**
+     * A stage of a pipeline. The stages between two materializations of a
+     * tuple form a segment, and pass each other the rows matched so far as
+     * an array of parts: the array of a segment holds the rows of its joins
+     * and, last, the tuple that started the segment, and a stage reads the
+     * last parts of it, whose concatenation is its input tuple, in the order
+     * of the columns. No join creates its output tuple: the segment ends
+     * where a tuple has to be created, at a filter over joins, a projection,
+     * a build or the end of the main pipeline.
+     */
+    private interface Stage {
+        void push(Tuple[] parts) throws DbException, TransactionAbortedException;
+    }
+
+    /**
+     * A step of a pipeline that passes its rows on to a next stage.
+     */
+    private abstract static class Link {
+        Stage next;
+    }
+
+    /**
+     * Starts a segment with a single tuple.
+     */
+    private abstract static class Start extends Link {
+        Tuple[] out;
+
+        /**
+         * Sets the number of parts of the segment, known when it ends.
+         */
+        void setWidth(int width) {
+            out = new Tuple[width];
+        }
+
+        void start(Tuple t) throws DbException, TransactionAbortedException {
+            out[out.length - 1] = t;
+            next.push(out);
+        }
+    }
+
+    /**
+     * Starts the first segment with the tuples of the source. It takes whole
+     * tuples only, so it is a sink rather than a stage.
+     */
+    private static final class SourceStage extends Start implements TupleSink {
+        public void push(Tuple t) throws DbException, TransactionAbortedException {
+            start(t);
+        }
+    }
+
+    /**
+     * Creates the input tuple of a filter over joins.
+     */
+    private static final class MaterializeStage extends Start implements Stage {
+        private final TupleDesc td;
+
+        MaterializeStage(TupleDesc td) {
+            this.td = td;
+        }
+
+        public void push(Tuple[] parts) throws DbException, TransactionAbortedException {
+            start(Tuple.concat(td, parts));
+        }
+    }
+
+    private static final class ProjectStage extends Start implements Stage {
+        private final TupleDesc td;
+        private final int[] partIds;
+        private final int[] fieldIds;
+
+        ProjectStage(TupleDesc td, int[] partIds, int[] fieldIds) {
+            this.td = td;
+            this.partIds = partIds;
+            this.fieldIds = fieldIds;
+        }
+
+        public void push(Tuple[] parts) throws DbException, TransactionAbortedException {
+            Tuple projected = Tuple.project(td, parts, partIds, fieldIds);
+            if (parts.length == 1) {
+                projected.setRecordId(parts[0].getRecordId());
+            }
+            start(projected);
+        }
+    }
+
+    /**
+     * A filter whose input is the last part, a single tuple.
+     */
+    private static final class FilterStage extends Link implements Stage {
+        private final MethodHandle predicate;
+
+        FilterStage(Filter filter) {
+            this.predicate = PredicateCompiler.compile(filter.getTupleDesc(), filter.getPredicates());
+        }
+
+        public void push(Tuple[] parts) throws DbException, TransactionAbortedException {
+            if (PredicateCompiler.test(predicate, parts[parts.length - 1])) {
+                next.push(parts);
+            }
+        }
+    }
+
+    private static final class ProbeStage extends Link implements Stage {
+        private final JoinHashTable table;
+
+        /**
+         * 连接键所在的部分（距数组末尾的距离）和字段，以及构建行放入的部分
+         */
+        private final int keyPart;
+        private final int keyField;
+        private final int buildPart;
+
+        ProbeStage(JoinHashTable table, int keyPart, int keyField, int buildPart) {
+            this.table = table;
+            this.keyPart = keyPart;
+            this.keyField = keyField;
+            this.buildPart = buildPart;
+        }
+
+        public void push(Tuple[] parts) throws DbException, TransactionAbortedException {
+            Tuple key = parts[parts.length - keyPart];
+            int row = table.hasIntKeys() ? table.find(key.getInt(keyField)) : table.find(key.getField(keyField));
+            int slot = parts.length - buildPart;
+            for (; row != -1; row = table.next(row)) {
+                // 构建侧是HashEquiJoin的child1，在连接结果的前面
+                parts[slot] = table.row(row);
+                next.push(parts);
+            }
+        }
+    }
+
+    /**
+     * Ends a pipeline: creates the tuple of the parts and hands it to a sink.
+     */
+    private static final class EndStage implements Stage {
+        private final TupleDesc td;
+        private final TupleSink sink;
+
+        EndStage(TupleDesc td, TupleSink sink) {
+            this.td = td;
+            this.sink = sink;
+        }
+
+        public void push(Tuple[] parts) throws DbException, TransactionAbortedException {
+            sink.push(parts.length == 1 ? parts[0] : Tuple.concat(td, parts));
+        }
+    }
+
+    private static final class BuildSink implements TupleSink {
+        private final JoinHashTable table;
+        private final int tupleSize;
+        private final int keyField;
+        private final RuntimeFilter filter;
+        private long bytes;
+
+        /**
+         * 哈希表从查询预留的内存；预留被拒绝同超出预算一样回退
+         */
+        final MemoryReservation memory = QueryMemory.reserve("HashEquiJoin");
+
+        /**
+         * 超出预算之后构建流水线产生的元组，等待回退后的连接读取
+         */
+        Deque<Tuple> rest;
+
+        BuildSink(JoinHashTable table, TupleDesc td, int keyField, RuntimeFilter filter) {
+            this.table = table;
+            this.tupleSize = td.getSize();
+            this.keyField = keyField;
+            this.filter = filter;
+        }
+
+        public void push(Tuple t) {
+            if (rest != null) {
+                rest.add(t);
+                return;
+            }
+            if (filter != null) {
+                filter.add(table.hasIntKeys() ? t.getInt(keyField) : t.getField(keyField).hashCode());
+            }
+            table.add(t);
+            bytes += tupleSize;
+            if (bytes > Join.getMemoryBudget() || !memory.tryReserve(bytes)) {
+                rest = new ArrayDeque<>();
+                throw new BuildOverflow();
+            }
+        }
+    }
+
+    /**
+     * The build side of a join after the fallback: the rows of its hash
+     * table, then, if its build stopped halfway, the rest of the build
+     * pipeline, from where its source was left. No source is read twice, so
+     * the sources can be exchanges that cannot be read again.
+     */
+    private static final class Replay implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Build build;
+
+        private int row;
+
+        /**
+         * 是否已经从构建流水线读过哈希表之外的元组
+         */
+        private boolean resumed;
+
+        Replay(Build build) {
+            this.build = build;
+        }
+
+        public void open() {
+            row = 0;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (row < build.table.size()) {
+                return true;
+            }
+            Deque<Tuple> rest = build.sink.rest;
+            while (rest != null && rest.isEmpty() && !build.done) {
+                resumed = true;
+                if (build.pipeline.source.hasNext()) {
+                    build.pipeline.first.push(build.pipeline.source.next());
+                } else {
+                    build.done = true;
+                    build.pipeline.source.close();
+                }
+            }
+            return rest != null && !rest.isEmpty();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return row < build.table.size() ? build.table.row(row++) : build.sink.rest.poll();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            row = 0;
+            if (resumed) {
+                // 哈希表之外的元组已被消耗，从头重新运行构建流水线，所有元组都放进rest
+                build.table.clear();
+                build.sink.rest.clear();
+                if (build.done) {
+                    build.pipeline.source.open();
+                    build.done = false;
+                } else {
+                    build.pipeline.source.rewind();
+                }
+            }
+        }
+
+        public TupleDesc getTupleDesc() {
+            return build.child.getTupleDesc();
+        }
+
+        public void close() {
+            if (!build.done) {
+                build.pipeline.source.close();
+                build.done = true;
+            }
+        }
+    }
+
+    /**
+     * @param root a plan of filters, projections and hash joins over other
+     *             operators, the sources of the pipelines
+     */
+    public PushPlan(OpIterator root) {
+        this.root = root;
+        compileSources(root);
+    }
+
+    /**
+     * @return whether {@link #compile} replaces parts of plans with push
+     * pipelines. Set with -Dsimpledb.push=true; off by default.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns push execution of the plans built from now on on or off.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return whether op runs as a stage of a pipeline, rather than as its source
+     */
+    static boolean isPushable(OpIterator op) {
+        return op instanceof Filter || op instanceof Project || op instanceof HashEquiJoin;
+    }
+
+    /**
+     * @return whether the part of the plan under op that can be pushed has a hash join
+     */
+    private static boolean hasJoin(OpIterator op) {
+        if (op instanceof HashEquiJoin) {
+            return true;
+        }
+        if (!isPushable(op)) {
+            return false;
+        }
+        return hasJoin(((Operator) op).getChildren()[0]);
+    }
+
+    /**
+     * Replaces every part of a plan made of filters, projections and hash
+     * joins, with at least one hash join, by a PushPlan. Parts without a join
+     * are left to pull, since their operators already read the batches of
+     * their children ({@link OpIterator#nextBatch()}).
+     *
+     * @return the plan, or the PushPlan that replaces its root
+     */
+    public static OpIterator compile(OpIterator plan) {
+        if (!(plan instanceof Operator) || plan instanceof PushPlan) {
+            return plan;
+        }
+        if (hasJoin(plan)) {
+            return new PushPlan(plan);
+        }
+        Operator op = (Operator) plan;
+        OpIterator[] children = op.getChildren();
+        boolean changed = false;
+        for (int i = 0; i < children.length; i++) {
+            OpIterator child = compile(children[i]);
+            changed |= child != children[i];
+            children[i] = child;
+        }
+        if (changed) {
+            op.setChildren(children);
+        }
+        return plan;
+    }
+
+    /**
+     * Compiles the sources of the pipelines of a part of the plan, so that
+     * the parts of the plan under them run in pipelines as well.
+     */
+    private static void compileSources(OpIterator op) {
+        if (!isPushable(op)) {
+            return;
+        }
+        Operator operator = (Operator) op;
+        OpIterator[] children = operator.getChildren();
+        boolean changed = false;
+        for (int i = 0; i < children.length; i++) {
+            if (isPushable(children[i])) {
+                compileSources(children[i]);
+            } else {
+                OpIterator child = compile(children[i]);
+                changed |= child != children[i];
+                children[i] = child;
+            }
+        }
+        if (changed) {
+            operator.setChildren(children);
+        }
+    }
+
+    /**
+     * @return the position of a column in a concatenation of tuples of the
+     * given schemas: the distance of its tuple from the end and its field
+     */
+    private static int[] locate(List<TupleDesc> parts, int column) {
+        for (int i = 0; i < parts.size(); i++) {
+            int n = parts.get(i).numFields();
+            if (column < n) {
+                return new int[]{parts.size() - i, column};
+            }
+            column -= n;
+        }
+        throw new IllegalArgumentException("no such column");
+    }
+
+    /**
+     * @return the pipeline that reads the tuples of op and pushes them to
+     * sink; the build pipelines of the joins under op are added to builds
+     */
+    private Pipeline pipeline(OpIterator op, TupleSink sink) {
+        // 从根沿探测侧走到源，再从源向外逐个建立阶段
+        List<OpIterator> spine = new ArrayList<>();
+        while (isPushable(op)) {
+            spine.add(op);
+            op = ((Operator) op).getChildren()[op instanceof HashEquiJoin ? 1 : 0];
+        }
+        Collections.reverse(spine);
+        SourceStage source = new SourceStage();
+        Start start = source;
+        Link last = source;
+        // 当前段中各部分的模式，按列的顺序
+        List<TupleDesc> parts = new ArrayList<>();
+        parts.add(op.getTupleDesc());
+        for (OpIterator o : spine) {
+            if (o instanceof HashEquiJoin) {
+                HashEquiJoin join = (HashEquiJoin) o;
+                JoinPredicate p = join.getJoinPredicate();
+                OpIterator build = join.getChildren()[0];
+                OpIterator probe = join.getChildren()[1];
+                boolean intKeys = build.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                        && probe.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+                JoinHashTable table = new JoinHashTable(p.getField1(), intKeys);
+                int[] key = locate(parts, p.getField2());
+                RuntimeFilter filter = null;
+                if (RuntimeFilter.isEnabled() && start == source && key[0] == 1
+                        && ProfiledIterator.unwrap(op) instanceof SeqScan
+                        && build.getTupleDesc().getFieldType(p.getField1())
+                        == probe.getTupleDesc().getFieldType(p.getField2())) {
+                    // 连接键就是源元组中的字段，构建把它的键发布给源扫描
+                    filter = new RuntimeFilter(key[1], intKeys);
+                }
+                Build b = new Build(join, table, filter, filter != null ? (SeqScan) ProfiledIterator.unwrap(op) : null);
+                // 构建侧中的连接先加入builds，先于这个构建流水线运行
+                b.pipeline = pipeline(build, b.sink);
+                builds.add(b);
+                ProbeStage probeStage = new ProbeStage(table, key[0], key[1], parts.size() + 1);
+                last.next = probeStage;
+                last = probeStage;
+                parts.add(0, build.getTupleDesc());
+            } else if (o instanceof Project) {
+                Project project = (Project) o;
+                int[] fields = project.getOutFields();
+                int[] partIds = new int[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    int[] at = locate(parts, fields[i]);
+                    partIds[i] = parts.size() - at[0];
+                    fields[i] = at[1];
+                }
+                ProjectStage projection = new ProjectStage(project.getTupleDesc(), partIds, fields);
+                start.setWidth(parts.size());
+                start = projection;
+                last.next = projection;
+                last = projection;
+                parts = new ArrayList<>();
+                parts.add(project.getTupleDesc());
+            } else {
+                if (parts.size() > 1) {
+                    // 连接之上的过滤需要完整的元组
+                    MaterializeStage materialize = new MaterializeStage(o.getTupleDesc());
+                    start.setWidth(parts.size());
+                    start = materialize;
+                    last.next = materialize;
+                    last = materialize;
+                    parts = new ArrayList<>();
+                    parts.add(o.getTupleDesc());
+                }
+                FilterStage filterStage = new FilterStage((Filter) o);
+                last.next = filterStage;
+                last = filterStage;
+            }
+        }
+        start.setWidth(parts.size());
+        last.next = new EndStage(spine.isEmpty() ? op.getTupleDesc() : spine.get(spine.size() - 1).getTupleDesc(),
+                sink);
+        return new Pipeline(op, source);
+    }
+
+    private void clearTables() {
+        if (builds != null) {
+            for (Build build : builds) {
+                build.table.clear();
+                build.sink.memory.release();
+                build.unpublish();
+            }
+        }
+        builds = null;
+        main = null;
+    }
+
+    /**
+     * Switches to the pulling operators when build k does not fit in
+     * memory: the joins whose builds are done, and join k, read their build
+     * sides from their hash tables and the rest of the build pipeline of k,
+     * and the joins whose builds have not run read their own build sides.
+     */
+    private void fallBack(int k) throws DbException, TransactionAbortedException {
+        fallback = true;
+        for (Build build : builds) {
+            // 拉取方式的连接发布各自的过滤器
+            build.unpublish();
+        }
+        for (int i = 0; i <= k; i++) {
+            Build build = builds.get(i);
+            build.done = i < k;
+            build.join.setChildren(new OpIterator[]{new Replay(build), build.join.getChildren()[1]});
+        }
+        root.open();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        builds = new ArrayList<>();
+        main = pipeline(root, this);
+        buffer = new ArrayList<>();
+        pos = 0;
+        fallback = false;
+        int k = 0;
+        try {
+            for (; k < builds.size(); k++) {
+                builds.get(k).pipeline.run();
+                builds.get(k).publish();
+            }
+            main.source.open();
+        } catch (BuildOverflow e) {
+            fallBack(k);
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (fallback) {
+            root.close();
+            for (Build build : builds) {
+                build.restore();
+            }
+            fallback = false;
+        } else if (main != null) {
+            main.source.close();
+        }
+        clearTables();
+        buffer = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (fallback) {
+            root.rewind();
+            return;
+        }
+        // 哈希表保留，只重新运行主流水线
+        buffer.clear();
+        pos = 0;
+        main.source.rewind();
+    }
+
+    /**
+     * @return whether the builds did not fit in memory and the plan runs
+     * the pulling operators it was compiled from
+     */
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * Receives the tuples at the end of the main pipeline.
+     */
+    public void push(Tuple t) throws DbException, TransactionAbortedException {
+        if (target != null) {
+            target.push(t);
+        } else {
+            buffer.add(t);
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (fallback) {
+            return root.hasNext() ? root.next() : null;
+        }
+        // 每次推入一个源元组，直到缓冲区中有结果
+        while (pos == buffer.size()) {
+            buffer.clear();
+            pos = 0;
+            if (!main.source.hasNext()) {
+                return null;
+            }
+            main.first.push(main.source.next());
+        }
+        return buffer.get(pos++);
+    }
+
+    /**
+     * Pushes all the remaining tuples of the plan into sink, instead of
+     * returning them one by one; for operators that consume their whole
+     * input, called after open and not mixed with hasNext and next.
+     */
+    public void pushAll(TupleSink sink) throws DbException, TransactionAbortedException {
+        if (fallback) {
+            while (root.hasNext()) {
+                sink.push(root.next());
+            }
+            return;
+        }
+        while (pos < buffer.size()) {
+            sink.push(buffer.get(pos++));
+        }
+        target = sink;
+        try {
+            while (main.source.hasNext()) {
+                main.first.push(main.source.next());
+            }
+        } finally {
+            target = null;
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return root.getTupleDesc();
+    }
+
+    /**
+     * @return the part of the plan this PushPlan runs
+     */
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{root};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.root = children[0];
+    }
+}
@@ -7,7 +7,9 @@ import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -15,6 +17,9 @@ import java.util.NoSuchElementException;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * Clients read the results through a {@link Cursor} ({@link #cursor}), which
+ * runs the query a fetch at a time; {@link #execute} prints them.
  *
  * @author Sam Madden
  */
@@ -28,6 +33,11 @@ public class Query implements Serializable {
     final TransactionId tid;
     transient private boolean started = false;
 
+    /**
+     * 查询运行期间的内存，start时创建，close时释放
+     */
+    transient private QueryMemory memory;
+
     public TransactionId getTransactionId() {
         return this.tid;
     }
@@ -59,11 +69,34 @@ public class Query implements Serializable {
 
     public void start() throws DbException,
             TransactionAbortedException {
-        op.open();
+        if (memory != null) {
+            memory.close();
+        }
+        memory = new QueryMemory();
+        QueryMemory previous = QueryMemory.bind(memory);
+        try {
+            op.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            // 调用者不会关闭没有启动的查询，由这里归还算子已经预留的内存
+            op.close();
+            memory.close();
+            memory = null;
+            throw e;
+        } finally {
+            QueryMemory.bind(previous);
+        }
 
         started = true;
     }
 
+    /**
+     * @return the memory the operators of the query reserve from, or null if
+     * the query has not been started
+     */
+    public QueryMemory getMemory() {
+        return memory;
+    }
+
     public TupleDesc getOutputTupleDesc() {
         return this.op.getTupleDesc();
     }
@@ -72,7 +105,12 @@ public class Query implements Serializable {
      * @return true if there are more tuples remaining.
      */
     public boolean hasNext() throws DbException, TransactionAbortedException {
-        return op.hasNext();
+        QueryMemory previous = QueryMemory.bind(memory);
+        try {
+            return op.hasNext();
+        } finally {
+            QueryMemory.bind(previous);
+        }
     }
 
     /**
@@ -89,38 +127,76 @@ public class Query implements Serializable {
         if (!started)
             throw new DbException("Database not started.");
 
-        return op.next();
+        QueryMemory previous = QueryMemory.bind(memory);
+        try {
+            return op.next();
+        } finally {
+            QueryMemory.bind(previous);
+        }
     }
 
     /**
      * Close the iterator
      */
     public void close() {
-        op.close();
+        QueryMemory previous = QueryMemory.bind(memory);
+        try {
+            op.close();
+        } finally {
+            QueryMemory.bind(previous);
+        }
         started = false;
+        if (memory != null) {
+            // 还给全局的，包括算子没有释放的预留
+            memory.close();
+        }
+    }
+
+    /**
+     * Starts the query and returns a cursor over its results.
+     *
+     * @param fetchSize the largest number of tuples a fetch of the cursor returns
+     */
+    public Cursor cursor(int fetchSize) throws DbException, TransactionAbortedException {
+        return new Cursor(this, fetchSize);
+    }
+
+    /**
+     * Starts the query and returns a cursor over its results, with the
+     * default fetch size ({@link Cursor#getDefaultFetchSize()}).
+     */
+    public Cursor cursor() throws DbException, TransactionAbortedException {
+        return cursor(Cursor.getDefaultFetchSize());
     }
 
     public void execute() throws DbException, TransactionAbortedException {
+        execute(System.out);
+    }
+
+    /**
+     * Runs the query and prints its results to out, a fetch at a time.
+     */
+    public void execute(PrintStream out) throws DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
         StringBuilder names = new StringBuilder();
         for (int i = 0; i < td.numFields(); i++) {
             names.append(td.getFieldName(i)).append("\t");
         }
-        System.out.println(names);
+        out.println(names);
         for (int i = 0; i < names.length() + td.numFields() * 4; i++) {
-            System.out.print("-");
+            out.print("-");
         }
-        System.out.println();
-
-        this.start();
-        int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        out.println();
+
+        try (Cursor cursor = this.cursor()) {
+            for (List<Tuple> tuples = cursor.fetch(); !tuples.isEmpty(); tuples = cursor.fetch()) {
+                for (Tuple tup : tuples) {
+                    out.println(tup);
+                }
+                out.flush();
+            }
+            out.println("\n " + cursor.getRowCount() + " rows.");
         }
-        System.out.println("\n " + cnt + " rows.");
-        this.close();
     }
 }
@@ -0,0 +1,194 @@
+package simpledb.execution;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory of a running query. The operators that hold tuples in memory
+ * (hash joins, sorts, aggregates, buffers) take a {@link MemoryReservation}
+ * in the query they run in, and reserve their memory from it as they grow.
+ * A reservation is refused when it would take the query beyond its limit
+ * ({@link #getQueryLimit()}), or all the queries together beyond the global
+ * limit ({@link #getGlobalLimit()}); the operator then does with what it has:
+ * it spills to disk or switches to a strategy that needs less memory, and
+ * only an operator that cannot do either fails the query, with an error
+ * that says how much memory it wanted.
+ * <p>
+ * A {@link Query} binds its QueryMemory to the thread that runs it while it
+ * runs, and {@link WorkerPool} binds it to the workers of its parallel
+ * pipelines; reservations taken on a thread with no query bound, such as
+ * by operators run outside a Query, are not limited. Closing the query
+ * releases whatever its operators still hold.
+ */
+public final class QueryMemory implements AutoCloseable {
+
+    private static volatile long queryLimit =
+            Long.getLong("simpledb.memory.query", Runtime.getRuntime().maxMemory() / 4);
+
+    private static volatile long globalLimit =
+            Long.getLong("simpledb.memory.global", Runtime.getRuntime().maxMemory() / 2);
+
+    /**
+     * 所有查询已经预留的字节数
+     */
+    private static final AtomicLong globalReserved = new AtomicLong();
+
+    private static final ThreadLocal<QueryMemory> current = new ThreadLocal<>();
+
+    private final long limit;
+
+    /**
+     * 查询已经预留的字节数及其峰值；预留按块进行，加锁的次数不多
+     */
+    private volatile long reserved;
+
+    private volatile long peak;
+
+    private boolean closed;
+
+    /**
+     * Creates the memory of a query limited to {@link #getQueryLimit()}.
+     */
+    public QueryMemory() {
+        this(queryLimit);
+    }
+
+    /**
+     * @param limit the most bytes the operators of the query can reserve at once
+     */
+    public QueryMemory(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("the memory limit must not be negative: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * @return the memory limit of the queries started from now on. Set with
+     * -Dsimpledb.memory.query=bytes; a quarter of the heap by default.
+     */
+    public static long getQueryLimit() {
+        return queryLimit;
+    }
+
+    public static void setQueryLimit(long bytes) {
+        queryLimit = bytes;
+    }
+
+    /**
+     * @return the most memory all the queries together can reserve. Set with
+     * -Dsimpledb.memory.global=bytes; half of the heap by default.
+     */
+    public static long getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public static void setGlobalLimit(long bytes) {
+        globalLimit = bytes;
+    }
+
+    /**
+     * @return the bytes reserved by all the running queries
+     */
+    public static long getGlobalReserved() {
+        return globalReserved.get();
+    }
+
+    /**
+     * @return the QueryMemory bound to the calling thread, or null
+     */
+    public static QueryMemory current() {
+        return current.get();
+    }
+
+    /**
+     * Binds memory to the calling thread, so that the reservations taken on
+     * it are taken in memory, until the previous binding is restored.
+     *
+     * @param memory the memory to bind, or null to leave the thread unbound
+     * @return the memory bound before, to pass to bind when done
+     */
+    public static QueryMemory bind(QueryMemory memory) {
+        QueryMemory previous = current.get();
+        if (memory != previous) {
+            current.set(memory);
+        }
+        return previous;
+    }
+
+    /**
+     * @param owner what the memory is for, for the error of a query that
+     *              runs out of memory
+     * @return a new, empty reservation in the query bound to the calling
+     * thread, or an unlimited one if there is none
+     */
+    public static MemoryReservation reserve(String owner) {
+        return new MemoryReservation(current.get(), owner);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the bytes the operators of the query hold now
+     */
+    public long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the most bytes the operators of the query held at once
+     */
+    public long getPeak() {
+        return peak;
+    }
+
+    /**
+     * Takes bytes from the limit of the query and the global limit.
+     *
+     * @return false, taking nothing, if either limit does not have room
+     */
+    synchronized boolean acquire(long bytes) {
+        if (closed || reserved + bytes > limit) {
+            return false;
+        }
+        if (globalReserved.addAndGet(bytes) > globalLimit) {
+            globalReserved.addAndGet(-bytes);
+            return false;
+        }
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+        return true;
+    }
+
+    /**
+     * Gives back bytes taken by {@link #acquire}; nothing once the query is
+     * closed, since closing gave back everything.
+     */
+    synchronized void release(long bytes) {
+        if (!closed) {
+            reserved -= bytes;
+            globalReserved.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * Returns whatever the operators of the query still hold to the global
+     * limit; reservations taken afterwards are refused.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        globalReserved.addAndGet(-reserved);
+        reserved = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d bytes reserved by the query, %d of %d by all queries",
+                reserved, limit, globalReserved.get(), globalLimit);
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb.execution;
+
+/**
+ * An exchange that splits the tuples of several pipelines by the hash of a
+ * field, so that the tuples of a key all reach the same output. The inputs
+ * of a join partitioned alike on their join fields can be joined output by
+ * output.
+ */
+public class Repartition extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+
+    private Repartition(Channel channel, int output, int field) {
+        super(channel, output);
+        this.field = field;
+    }
+
+    /**
+     * @param producers the pipelines to run in parallel, all with the same
+     *                  schema
+     * @param field     the field whose hash chooses the output of a tuple
+     * @param outputs   the number of outputs
+     * @return the outputs of the exchange
+     */
+    public static Repartition[] of(OpIterator[] producers, int field, int outputs) {
+        Channel channel = new Channel(producers, outputs, field, false);
+        Repartition[] exchanges = new Repartition[outputs];
+        for (int o = 0; o < outputs; o++) {
+            exchanges[o] = new Repartition(channel, o, field);
+        }
+        return exchanges;
+    }
+
+    public int getField() {
+        return field;
+    }
+
+    @Override
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + "," + getProducers() + ")";
+    }
+}
@@ -0,0 +1,296 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+
+import java.util.Arrays;
+
+/**
+ * A RuntimeFilter is published by the build of a hash join to the scan on
+ * its probe side ({@link SeqScan#addRuntimeFilter}), so that the scan drops
+ * the rows whose join key cannot match, right after it decodes a page and
+ * before the rows are turned into tuples, filtered and probed.
+ * <p>
+ * The filter is a blocked Bloom filter over the hash codes of the build keys
+ * (the hash codes {@link JoinHashTable} uses: the key itself for int keys,
+ * {@link simpledb.storage.Field#hashCode()} otherwise): every key sets three
+ * bits of a single 64-bit word, so a test reads one word. For int keys it
+ * also keeps the smallest and largest build key, and rows outside that range
+ * are dropped without touching the Bloom filter. A build of more than
+ * {@link #MAX_KEYS} rows only publishes its bounds, and so does a build whose
+ * query ({@link QueryMemory}) refuses the memory of its keys or of the Bloom
+ * filter.
+ * <p>
+ * A filter that turns out to drop few rows switches itself off, so a join
+ * whose build side matches most of the probe side pays for a few thousand
+ * tests and no more.
+ */
+public final class RuntimeFilter {
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("simpledb.runtimefilter", "true"));
+
+    /**
+     * the largest number of build rows the Bloom filter is built for
+     */
+    public static final int MAX_KEYS = 1 << 22;
+
+    /**
+     * Bloom过滤器每个键占用的位数：每个64位的块中置3位，误判率约为1%
+     */
+    private static final int BITS_PER_KEY = 16;
+
+    /**
+     * 测试这么多行之后，丢弃的行不到1/10则不再测试
+     */
+    private static final int SAMPLE_ROWS = 16384;
+
+    private final int field;
+
+    private final boolean intKeys;
+
+    /**
+     * 构建时收集的键的哈希码，seal时写进Bloom过滤器后丢弃
+     */
+    private int[] keys = new int[16];
+
+    private int count;
+
+    private int min = Integer.MAX_VALUE;
+
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * Bloom过滤器的块，键太多时为null，只用上下界
+     */
+    private long[] blocks;
+
+    /**
+     * 键和Bloom过滤器从查询预留的内存，过滤器撤下时由连接释放
+     */
+    private final MemoryReservation memory = QueryMemory.reserve("RuntimeFilter");
+
+    private boolean sealed;
+
+    private long tested;
+
+    private long dropped;
+
+    private boolean active = true;
+
+    /**
+     * @param field   the field of the probe-side rows that is the join key
+     * @param intKeys whether the keys of both sides of the join are ints
+     */
+    public RuntimeFilter(int field, boolean intKeys) {
+        this.field = field;
+        this.intKeys = intKeys;
+    }
+
+    /**
+     * @return whether hash joins publish runtime filters to the scans they
+     * probe. Set with -Dsimpledb.runtimefilter=false to turn them off.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns runtime filters on or off for the joins opened from now on.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return the scan that produces the rows of op with their columns
+     * unchanged, under any number of filters, or null if there is none
+     */
+    public static SeqScan probeScan(OpIterator op) {
+        op = ProfiledIterator.unwrap(op);
+        while (op instanceof Filter) {
+            op = ProfiledIterator.unwrap(((Filter) op).getChildren()[0]);
+        }
+        return op instanceof SeqScan ? (SeqScan) op : null;
+    }
+
+    /**
+     * @return the field of the probe-side rows the filter tests
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * Adds the key of a build row: the key itself for int keys, the hash
+     * code of the key otherwise.
+     */
+    public void add(int keyHash) {
+        if (sealed) {
+            throw new IllegalStateException("the filter has been published");
+        }
+        if (intKeys) {
+            min = Math.min(min, keyHash);
+            max = Math.max(max, keyHash);
+        }
+        if (keys == null) {
+            return;
+        }
+        if (count == MAX_KEYS) {
+            keys = null;
+            return;
+        }
+        if (count == keys.length) {
+            if (!memory.tryReserve(8L * count)) {
+                // 内存不够时只发布上下界
+                keys = null;
+                memory.shrink(0);
+                return;
+            }
+            keys = Arrays.copyOf(keys, count * 2);
+        }
+        keys[count++] = keyHash;
+    }
+
+    /**
+     * Builds the Bloom filter from the keys added so far; no keys can be
+     * added afterwards.
+     */
+    public void seal() {
+        if (sealed) {
+            return;
+        }
+        sealed = true;
+        if (keys != null) {
+            long bits = Math.max(64L, (long) count * BITS_PER_KEY);
+            int length = Integer.highestOneBit((int) ((bits + 63) >>> 6) * 2 - 1);
+            if (!memory.tryReserve(4L * keys.length + 8L * length)) {
+                keys = null;
+                memory.shrink(0);
+                return;
+            }
+            blocks = new long[length];
+            for (int i = 0; i < count; i++) {
+                long h = JoinHashTable.hash(keys[i]);
+                blocks[block(h)] |= mask(h);
+            }
+            keys = null;
+            memory.shrink(8L * length);
+        }
+    }
+
+    /**
+     * Gives back the memory of the filter, once it has been removed from its
+     * scan.
+     */
+    void release() {
+        memory.release();
+    }
+
+    private int block(long h) {
+        return (int) (h >>> 32) & (blocks.length - 1);
+    }
+
+    /**
+     * @return the three bits of the block of a hash that are set for its key
+     */
+    private static long mask(long h) {
+        return 1L << h | 1L << (h >>> 6) | 1L << (h >>> 12);
+    }
+
+    /**
+     * @return false if no build row has the key, true if one might have
+     */
+    public boolean mightContain(int keyHash) {
+        if (intKeys && (keyHash < min || keyHash > max)) {
+            return false;
+        }
+        if (blocks == null) {
+            return true;
+        }
+        long h = JoinHashTable.hash(keyHash);
+        long m = mask(h);
+        return (blocks[block(h)] & m) == m;
+    }
+
+    /**
+     * @return false if the key of t cannot match a build row
+     */
+    public boolean test(Tuple t) {
+        if (!active) {
+            return true;
+        }
+        int keyHash = intKeys ? t.getInt(field) : t.getString(field).hashCode();
+        boolean pass = mightContain(keyHash);
+        count(1, pass ? 0 : 1);
+        return pass;
+    }
+
+    /**
+     * Removes the rows whose key cannot match a build row from the selection
+     * vector of batch. Only the column of the key is decoded.
+     */
+    public void filter(TupleBatch batch) {
+        int n = batch.selectedCount();
+        if (!active || n == 0) {
+            return;
+        }
+        int[] selection = batch.selection();
+        int kept = 0;
+        if (intKeys) {
+            int[] column = batch.intColumn(field);
+            for (int i = 0; i < n; i++) {
+                int row = selection[i];
+                if (mightContain(column[row])) {
+                    selection[kept++] = row;
+                }
+            }
+        } else {
+            String[] column = batch.stringColumn(field);
+            for (int i = 0; i < n; i++) {
+                int row = selection[i];
+                if (mightContain(column[row].hashCode())) {
+                    selection[kept++] = row;
+                }
+            }
+        }
+        batch.setSelectedCount(kept);
+        count(n, n - kept);
+    }
+
+    private void count(int rows, int drops) {
+        tested += rows;
+        dropped += drops;
+        if (tested >= SAMPLE_ROWS && dropped * 10 < tested) {
+            active = false;
+        }
+    }
+
+    /**
+     * @return whether the filter still tests rows; it stops when it drops
+     * less than a tenth of the rows it tests
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return the number of rows the filter has tested
+     */
+    public long getTested() {
+        return tested;
+    }
+
+    /**
+     * @return the number of rows the filter has dropped
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "RuntimeFilter(field " + field + (intKeys && min <= max ? ", " + min + ".." + max : "")
+                + (blocks != null ? ", " + blocks.length * 64 + " bits" : "") + ")";
+    }
+}
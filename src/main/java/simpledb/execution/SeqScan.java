@@ -2,13 +2,14 @@ package simpledb.execution;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
-import simpledb.storage.DbFileIterator;
-import simpledb.storage.Tuple;
-import simpledb.storage.TupleDesc;
+import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -28,6 +29,20 @@ public class SeqScan implements OpIterator {
 
     private DbFileIterator tupleIterator;
 
+    /**
+     * 按批扫描时下一个要读取的页号，以及复用的批
+     */
+    private transient int batchPageNo;
+
+    private transient TupleBatch batch;
+
+    /**
+     * 探测这个扫描的哈希连接发布的运行时过滤器，以及逐个元组读取时已通过过滤的下一个元组
+     */
+    private transient List<RuntimeFilter> runtimeFilters;
+
+    private transient Tuple passed;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -66,6 +81,20 @@ public class SeqScan implements OpIterator {
         return tableAlias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      *
@@ -91,6 +120,8 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         tupleIterator.open();
+        batchPageNo = 0;
+        passed = null;
     }
 
     /**
@@ -125,28 +156,130 @@ public class SeqScan implements OpIterator {
         return new TupleDesc(types, names);
     }
 
+    /**
+     * Makes the scan drop the rows that filter rules out, from the next row
+     * or batch it reads on; published by the hash join that probes the rows
+     * of this scan once its build is done.
+     */
+    public void addRuntimeFilter(RuntimeFilter filter) {
+        if (runtimeFilters == null) {
+            runtimeFilters = new ArrayList<>();
+        }
+        runtimeFilters.add(filter);
+    }
+
+    /**
+     * Stops applying a filter added with {@link #addRuntimeFilter}.
+     */
+    public void removeRuntimeFilter(RuntimeFilter filter) {
+        if (runtimeFilters != null) {
+            runtimeFilters.remove(filter);
+            if (runtimeFilters.isEmpty()) {
+                runtimeFilters = null;
+            }
+        }
+    }
+
+    /**
+     * @return the runtime filters the scan applies
+     */
+    public List<RuntimeFilter> getRuntimeFilters() {
+        return runtimeFilters == null ? new ArrayList<>() : new ArrayList<>(runtimeFilters);
+    }
+
+    /**
+     * @return whether t passes the runtime filters
+     */
+    protected boolean passesRuntimeFilters(Tuple t) {
+        if (runtimeFilters != null) {
+            for (RuntimeFilter filter : runtimeFilters) {
+                if (!filter.test(t)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the rows of a batch just read from a page that do not pass the
+     * runtime filters from its selection vector.
+     */
+    protected void applyRuntimeFilters(TupleBatch batch) {
+        if (runtimeFilters != null) {
+            for (int i = 0; i < runtimeFilters.size() && batch.selectedCount() > 0; i++) {
+                runtimeFilters.get(i).filter(batch);
+            }
+        }
+    }
+
     @Override
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-
-        return tupleIterator.hasNext();
+        if (runtimeFilters == null && passed == null) {
+            return tupleIterator.hasNext();
+        }
+        while (passed == null && tupleIterator.hasNext()) {
+            Tuple t = tupleIterator.next();
+            if (passesRuntimeFilters(t)) {
+                passed = t;
+            }
+        }
+        return passed != null;
     }
 
     @Override
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return tupleIterator.next();
+        if (runtimeFilters == null && passed == null) {
+            return tupleIterator.next();
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Tuple t = passed;
+        passed = null;
+        return t;
     }
 
     @Override
     public void close() {
         tupleIterator.close();
+        passed = null;
     }
 
     @Override
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         tupleIterator.rewind();
+        batchPageNo = 0;
+        passed = null;
+    }
+
+    /**
+     * Decodes a HeapFile one page per batch, straight from the page bytes into
+     * the column vectors; other files go through the tuple iterator.
+     */
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            return OpIterator.super.nextBatch();
+        }
+        if (batch == null) {
+            batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_CAPACITY);
+        }
+        int numPages = ((HeapFile) file).numPages();
+        while (batchPageNo < numPages) {
+            HeapPageId pid = new HeapPageId(tableid, batchPageNo++);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(transactionId, pid, Permissions.READ_ONLY);
+            page.readBatch(batch);
+            applyRuntimeFilters(batch);
+            if (batch.selectedCount() > 0) {
+                return batch;
+            }
+        }
+        return null;
     }
 }
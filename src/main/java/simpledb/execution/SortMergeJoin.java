@@ -0,0 +1,252 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.NormalizedKey;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBuffer;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin implements an equi-join by merging two inputs that are sorted
+ * on their join fields in ascending order. An input that is already ordered
+ * on its join field (see {@link #isOrdered}), such as a {@link BTreeScan} of
+ * a B+ tree keyed on it, is read as it is; any other input is sorted with an
+ * {@link OrderBy} first.
+ * <p>
+ * The right tuples that share a key are collected in a {@link TupleBuffer}
+ * bounded by the join memory budget ({@link Join#getMemoryBudget()}), and
+ * every left tuple with that key is joined with the whole group, so a group
+ * larger than the budget is read back from disk once per left tuple. The
+ * output is ordered on the join fields as well.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+
+    private OpIterator child1, child2;
+
+    private final TupleDesc comboTD;
+
+    private final boolean intKeys;
+
+    /**
+     * 实际读取的两个有序输入：已有序的孩子本身，或者对孩子排序的OrderBy
+     */
+    private transient OpIterator sorted1, sorted2;
+
+    /**
+     * 当前左元组，以及下一个键还没有处理的右元组
+     */
+    private transient Tuple left;
+
+    private transient Tuple right;
+
+    /**
+     * 当前键相同的一组右元组，以及它与当前左元组连接时的迭代器
+     */
+    private transient TupleBuffer group;
+
+    private transient Tuple groupFirst;
+
+    private transient DbFileIterator groupIt;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p      The predicate to use to join the children; its operator
+     *               must be {@link Predicate.Op#EQUALS}
+     * @param child1 Iterator for the left relation to join
+     * @param child2 Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("a sort-merge join needs an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+    }
+
+    /**
+     * @return whether the tuples of it come out in ascending order of the
+     * given field, without sorting them
+     */
+    public static boolean isOrdered(OpIterator it, int field) {
+        it = ProfiledIterator.unwrap(it);
+        if (it instanceof BTreeScan) {
+            return ((BTreeScan) it).getKeyField() == field;
+        }
+        if (it instanceof OrderBy) {
+            OrderBy orderBy = (OrderBy) it;
+            return orderBy.isASC() && orderBy.getOrderByField() == field;
+        }
+        if (it instanceof Filter) {
+            return isOrdered(((Filter) it).getChildren()[0], field);
+        }
+        if (it instanceof SortMergeJoin) {
+            // 两边的连接字段相等，输出按其中任意一个有序
+            SortMergeJoin join = (SortMergeJoin) it;
+            int left = join.child1.getTupleDesc().numFields();
+            return field == join.pred.getField1() || field == left + join.pred.getField2();
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        sorted1 = isOrdered(child1, pred.getField1()) ? child1 : new OrderBy(pred.getField1(), true, child1);
+        sorted2 = isOrdered(child2, pred.getField2()) ? child2 : new OrderBy(pred.getField2(), true, child2);
+        sorted1.open();
+        sorted2.open();
+        group = new TupleBuffer(child2.getTupleDesc(), Join.getMemoryBudget());
+        resetMerge();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeGroup();
+        if (group != null) {
+            group.clear();
+            group = null;
+        }
+        // OrderBy不关闭它的孩子
+        if (sorted1 != null && sorted1 != child1) {
+            sorted1.close();
+        }
+        if (sorted2 != null && sorted2 != child2) {
+            sorted2.close();
+        }
+        child1.close();
+        child2.close();
+        sorted1 = sorted2 = null;
+        left = right = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted1.rewind();
+        sorted2.rewind();
+        closeGroup();
+        resetMerge();
+    }
+
+    private void resetMerge() throws DbException, TransactionAbortedException {
+        group.clear();
+        groupFirst = null;
+        left = sorted1.hasNext() ? sorted1.next() : null;
+        right = sorted2.hasNext() ? sorted2.next() : null;
+    }
+
+    private void closeGroup() {
+        if (groupIt != null) {
+            groupIt.close();
+            groupIt = null;
+        }
+    }
+
+    /**
+     * Compares the join key of a left tuple with that of a right tuple.
+     */
+    private int compare(Tuple l, Tuple r) {
+        if (intKeys) {
+            return Integer.compare(l.getInt(pred.getField1()), r.getInt(pred.getField2()));
+        }
+        return NormalizedKey.compare(l.getField(pred.getField1()), r.getField(pred.getField2()));
+    }
+
+    /**
+     * Reads the right tuples with the key of left into the group.
+     */
+    private void readGroup() throws DbException, TransactionAbortedException {
+        closeGroup();
+        group.clear();
+        groupFirst = right;
+        while (right != null && compare(left, right) == 0) {
+            group.add(right);
+            right = sorted2.hasNext() ? sorted2.next() : null;
+        }
+        groupIt = group.iterator();
+        groupIt.open();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The left tuples and the right tuples are read in key
+     * order; a left tuple whose key equals that of the current group is
+     * joined with every tuple of the group.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (groupIt != null) {
+                if (groupIt.hasNext()) {
+                    return Tuple.concat(comboTD, left, groupIt.next());
+                }
+                left = sorted1.hasNext() ? sorted1.next() : null;
+                if (left != null && compare(left, groupFirst) == 0) {
+                    // 下一个左元组的键相同，重读这一组
+                    groupIt.rewind();
+                    continue;
+                }
+                closeGroup();
+            }
+            if (left == null || right == null) {
+                return null;
+            }
+            int c = compare(left, right);
+            if (c < 0) {
+                left = sorted1.hasNext() ? sorted1.next() : null;
+            } else if (c > 0) {
+                right = sorted2.hasNext() ? sorted2.next() : null;
+            } else {
+                readGroup();
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -1,15 +1,29 @@
 package simpledb.execution;
 
 import simpledb.common.Type;
-import simpledb.storage.Tuple;
+import simpledb.storage.*;
+
+import java.io.IOException;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * <p>
+ * The counts are kept in an {@link AggregateHashTable}, as in
+ * {@link IntegerAggregator}.
  */
 public class StringAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    private final int gbfield;
+
+    private final Type gbfieldtype;
+
+    /**
+     * 每个分组的计数；无分组时只有一个组
+     */
+    private final AggregateHashTable counts;
+
     /**
      * Aggregate constructor
      *
@@ -22,6 +36,27 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        this(gbfield, gbfieldtype, afield, what, Aggregate.getMemoryBudget());
+    }
+
+    /**
+     * Creates an aggregator that holds the groups that fit in the given
+     * number of bytes in memory.
+     */
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, long memoryBudget) {
+        if (what != Op.COUNT) {
+            throw new IllegalArgumentException("only COUNT is supported over strings, not " + what);
+        }
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.counts = new AggregateHashTable(gbfield == NO_GROUPING ? null : gbfieldtype, memoryBudget);
+    }
+
+    /**
+     * @return whether groups that did not fit in memory were written to disk
+     */
+    public boolean isSpilled() {
+        return counts.isSpilled();
     }
 
     /**
@@ -31,6 +66,36 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
+        if (gbfield == NO_GROUPING) {
+            counts.add(counts.group(0), 0);
+        } else if (gbfieldtype == Type.INT_TYPE) {
+            counts.aggregate(tup.getInt(gbfield), 0);
+        } else {
+            counts.aggregate(tup.getField(gbfield), 0);
+        }
+    }
+
+    /**
+     * Counts the selected rows without turning them into tuples.
+     */
+    @Override
+    public void mergeBatch(TupleBatch batch) {
+        int[] sel = batch.selection();
+        int n = batch.selectedCount();
+        if (gbfield == NO_GROUPING) {
+            if (n > 0) {
+                counts.add(counts.group(0), 0, n, 0, 0);
+            }
+            return;
+        }
+        int[] intKeys = batch.intColumn(gbfield);
+        for (int i = 0; i < n; i++) {
+            if (intKeys != null) {
+                counts.aggregate(intKeys[sel[i]], 0);
+            } else {
+                counts.aggregate(batch.getField(gbfield, sel[i]), 0);
+            }
+        }
     }
 
     /**
@@ -43,7 +108,24 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        throw new UnsupportedOperationException("please implement me for lab2");
+        TupleDesc td = gbfield == NO_GROUPING
+                ? new TupleDesc(new Type[]{Type.INT_TYPE})
+                : new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+        return counts.iterator(td, Op.COUNT, gbfield != NO_GROUPING);
+    }
+
+    @Override
+    public void merge(Aggregator partial, int part, int parts) {
+        try {
+            counts.merge(((StringAggregator) partial).counts, part, parts);
+        } catch (IOException e) {
+            throw new RuntimeException("could not read groups from disk", e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        counts.clear();
     }
 
 }
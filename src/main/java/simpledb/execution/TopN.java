@@ -0,0 +1,296 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.NormalizedKey;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * TopN returns the first n tuples of its child in the order of an
+ * {@link OrderBy} on the same field, without sorting the whole child: it
+ * keeps the n tuples that come first so far in a max-heap, whose root is the
+ * one that would be dropped next, and compares every new tuple only with
+ * that root. Ties keep the order of the child, as in OrderBy.
+ * <p>
+ * Used for ORDER BY ... LIMIT, below a {@link Limit} that skips the offset,
+ * when n tuples fit in the sort memory budget ({@link #fits}). The child is
+ * closed as soon as it has been read.
+ * <p>
+ * The heap cannot spill, so the memory it reserves from the
+ * {@link QueryMemory} of the query as it grows is required: the query fails
+ * if it is refused.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+
+    private final int orderByField;
+
+    private final boolean asc;
+
+    private final int n;
+
+    private final boolean intKey;
+
+    private final int[] keyFields;
+
+    private final boolean[] ascending;
+
+    /**
+     * 堆中的元组；int键时codes是键与到达序号拼成的long，否则是到达序号，keys是规范化键
+     */
+    private transient Tuple[] rows;
+
+    private transient long[] codes;
+
+    private transient byte[][] keys;
+
+    private transient int size;
+
+    /**
+     * 排好序后下一个返回的位置，以及孩子是否已经关闭
+     */
+    private transient int pos;
+
+    private transient boolean childClosed;
+
+    /**
+     * 堆从查询预留的内存
+     */
+    private transient MemoryReservation memory;
+
+    /**
+     * @param orderByField the field to which the sort is applied
+     * @param asc          true if the sort order is ascending
+     * @param n            the number of tuples to return, see {@link #fits}
+     * @param child        the tuples to sort
+     */
+    public TopN(int orderByField, boolean asc, long n, OpIterator child) {
+        if (n < 0 || n > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("cannot keep " + n + " tuples in a heap");
+        }
+        this.child = child;
+        this.orderByField = orderByField;
+        this.asc = asc;
+        this.n = (int) n;
+        this.intKey = child.getTupleDesc().getFieldType(orderByField) == Type.INT_TYPE;
+        this.keyFields = new int[]{orderByField};
+        this.ascending = new boolean[]{asc};
+    }
+
+    /**
+     * @return whether n tuples of td fit in the sort memory budget
+     * ({@link OrderBy#getMemoryBudget()}), so that a TopN can replace a sort
+     */
+    public static boolean fits(TupleDesc td, long n) {
+        long tupleBytes = td.getSize() + ExternalSort.TUPLE_OVERHEAD;
+        return n <= OrderBy.getMemoryBudget() / tupleBytes;
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childClosed = false;
+        int capacity = Math.min(n, 1024);
+        memory = QueryMemory.reserve("TopN");
+        memory.reserve(capacity * tupleBytes());
+        rows = new Tuple[capacity];
+        codes = new long[capacity];
+        keys = intKey ? null : new byte[capacity][];
+        size = 0;
+        long seq = 0;
+        while (child.hasNext()) {
+            offer(child.next(), seq++);
+        }
+        child.close();
+        childClosed = true;
+        sortHeap();
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (!childClosed) {
+            child.close();
+            childClosed = true;
+        }
+        rows = null;
+        codes = null;
+        keys = null;
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
+    }
+
+    public void rewind() {
+        pos = 0;
+    }
+
+    /**
+     * Keeps t if it is among the first n tuples seen so far.
+     */
+    private void offer(Tuple t, long seq) throws DbException {
+        if (n == 0) {
+            return;
+        }
+        long code;
+        byte[] key = null;
+        if (intKey) {
+            int v = t.getInt(orderByField);
+            // 与NormalizedKey.sortByInt相同：高32位是键，低32位是到达序号
+            code = (long) (asc ? v : ~v) << 32 | (seq & 0xFFFFFFFFL);
+        } else {
+            key = NormalizedKey.of(t, keyFields, ascending);
+            code = seq;
+        }
+        if (size < n) {
+            if (size == rows.length) {
+                grow();
+            }
+            set(size, t, code, key);
+            siftUp(size++);
+        } else if (compare(code, key, codes[0], keys == null ? null : keys[0]) < 0) {
+            set(0, t, code, key);
+            siftDown(0, size);
+        }
+    }
+
+    private long tupleBytes() {
+        return child.getTupleDesc().getSize() + ExternalSort.TUPLE_OVERHEAD;
+    }
+
+    private void grow() throws DbException {
+        int capacity = (int) Math.min(n, 2L * rows.length);
+        memory.reserve(capacity * tupleBytes());
+        rows = Arrays.copyOf(rows, capacity);
+        codes = Arrays.copyOf(codes, capacity);
+        if (keys != null) {
+            keys = Arrays.copyOf(keys, capacity);
+        }
+    }
+
+    private void set(int i, Tuple t, long code, byte[] key) {
+        rows[i] = t.compact();
+        codes[i] = code;
+        if (keys != null) {
+            keys[i] = key;
+        }
+    }
+
+    private static int compare(long code1, byte[] key1, long code2, byte[] key2) {
+        if (key1 != null) {
+            int c = NormalizedKey.compare(key1, key2);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Long.compare(code1, code2);
+    }
+
+    /**
+     * @return whether the entry at i comes after the entry at j in the output
+     */
+    private boolean after(int i, int j) {
+        return compare(codes[i], keys == null ? null : keys[i], codes[j], keys == null ? null : keys[j]) > 0;
+    }
+
+    private void swap(int i, int j) {
+        Tuple t = rows[i];
+        rows[i] = rows[j];
+        rows[j] = t;
+        long c = codes[i];
+        codes[i] = codes[j];
+        codes[j] = c;
+        if (keys != null) {
+            byte[] k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!after(i, parent)) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int larger = 2 * i + 1;
+            if (larger >= end) {
+                return;
+            }
+            if (larger + 1 < end && after(larger + 1, larger)) {
+                larger++;
+            }
+            if (!after(larger, i)) {
+                return;
+            }
+            swap(i, larger);
+            i = larger;
+        }
+    }
+
+    /**
+     * Turns the max-heap into the output order by heapsort.
+     */
+    private void sortHeap() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        codes = null;
+        keys = null;
+    }
+
+    /**
+     * Returns the next of the first n tuples in order, or null when all of
+     * them have been returned.
+     */
+    protected Tuple fetchNext() {
+        if (rows != null && pos < size) {
+            return rows[pos++];
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,20 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * A consumer of tuples in a push pipeline ({@link PushPlan}). The producer
+ * of a pipeline calls {@link #push} once for every tuple it reads, and each
+ * stage of the pipeline pushes the tuples it produces on to the next one,
+ * up to the sink that ends the pipeline.
+ */
+@FunctionalInterface
+public interface TupleSink {
+
+    /**
+     * Consumes a tuple. The tuple may be kept, but not changed.
+     */
+    void push(Tuple t) throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,63 @@
+package simpledb.execution;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD kernel of {@link IntFilterKernels}, the only class that touches
+ * the incubating Vector API. A vector of the preferred species is compared
+ * with the constant at once, and its lane mask is or-ed into the bitmap.
+ * Lane counts are powers of two up to 64, so a mask never straddles two
+ * words of the bitmap.
+ */
+class VectorIntFilterKernel implements IntFilterKernels.Kernel {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void compare(Predicate.Op op, int[] values, int n, int constant, long[] bits) {
+        int i;
+        // 比较运算符必须是常量，JIT才会把compare编译为单条向量指令
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                i = compare(VectorOperators.EQ, values, n, constant, bits);
+                break;
+            case NOT_EQUALS:
+                i = compare(VectorOperators.NE, values, n, constant, bits);
+                break;
+            case GREATER_THAN:
+                i = compare(VectorOperators.GT, values, n, constant, bits);
+                break;
+            case GREATER_THAN_OR_EQ:
+                i = compare(VectorOperators.GE, values, n, constant, bits);
+                break;
+            case LESS_THAN:
+                i = compare(VectorOperators.LT, values, n, constant, bits);
+                break;
+            case LESS_THAN_OR_EQ:
+                i = compare(VectorOperators.LE, values, n, constant, bits);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown operator " + op);
+        }
+        IntFilterKernels.scalarCompare(op, values, i, n, constant, bits);
+    }
+
+    /**
+     * Compares the whole vectors among values[0..n).
+     *
+     * @return the index of the first value left to the scalar kernel
+     */
+    private static int compare(VectorOperators.Comparison cmp, int[] values, int n, int constant, long[] bits) {
+        int lanes = SPECIES.length();
+        int upper = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < upper; i += lanes) {
+            long mask = IntVector.fromArray(SPECIES, values, i).compare(cmp, constant).toLong();
+            bits[i >>> 6] |= mask << (i & 63);
+        }
+        return i;
+    }
+}
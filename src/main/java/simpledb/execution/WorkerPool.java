@@ -0,0 +1,83 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The threads that run the pipelines of parallel plans: the producers of
+ * {@link Exchange} operators and the workers of a parallel {@link Aggregate}.
+ * <p>
+ * A worker can wait for the output of pipelines that run on other workers
+ * (a producer of one exchange reads the outputs of another), so the pool
+ * grows with the number of pipelines running at once instead of having a
+ * fixed size that could leave a waiting pipeline without a thread to feed
+ * it. The degree of parallelism is set by the plan, with the number of
+ * pipelines it creates; idle threads exit after a minute.
+ */
+public final class WorkerPool {
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "simpledb-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Runs a task on a worker, reserving memory from the {@link QueryMemory}
+     * of the calling thread.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        QueryMemory memory = QueryMemory.current();
+        return POOL.submit(() -> {
+            QueryMemory previous = QueryMemory.bind(memory);
+            try {
+                return task.call();
+            } finally {
+                QueryMemory.bind(previous);
+            }
+        });
+    }
+
+    /**
+     * Waits for a task, and rethrows its failure as a DbException, or as the
+     * TransactionAbortedException it threw.
+     *
+     * @param what what the task was doing, for the message of the exception
+     */
+    public static <T> T await(Future<T> future, String what) throws DbException, TransactionAbortedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while " + what);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause(), what);
+        }
+    }
+
+    /**
+     * @return the failure of a worker as a DbException to throw, or throws
+     * it if it is a TransactionAbortedException or an Error
+     */
+    static DbException rethrow(Throwable cause, String what) throws TransactionAbortedException {
+        if (cause instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof DbException) {
+            return (DbException) cause;
+        }
+        return new DbException("failed while " + what + ": " + cause);
+    }
+}
@@ -32,6 +32,7 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
+    private final FileExtentAllocator allocator;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +47,30 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.allocator = new FileExtentAllocator(f, BTreeRootPtrPage.getPageSize());
+        try {
+            allocator.trimZeroTail(minPagesInUse());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A page of the tree that is in use is never all zeros unless it is the
+     * root or the first page, since every other page points to its parent or
+     * previous header page. Those two are located through the root pointer
+     * page and must not be mistaken for unused preallocated pages.
+     */
+    private int minPagesInUse() throws IOException {
+        if (f.length() < BTreeRootPtrPage.getPageSize()) {
+            return 0;
+        }
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(f))) {
+            int root = dis.readInt();
+            dis.readByte();
+            int header = dis.readInt();
+            return Math.max(1, Math.max(root, header));
+        }
     }
 
     /**
@@ -149,6 +174,7 @@ public class BTreeFile implements DbFile {
             rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
             rf.write(data);
             rf.close();
+            allocator.ensurePages(id.getPageNumber());
         }
     }
 
@@ -156,8 +182,8 @@ public class BTreeFile implements DbFile {
      * Returns the number of pages in this BTreeFile.
      */
     public int numPages() {
-        // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        // the file grows in preallocated extents, so its length may exceed the pages in use
+        return allocator.numPages();
     }
 
     /**
@@ -186,7 +212,23 @@ public class BTreeFile implements DbFile {
                                        Field f)
             throws DbException, TransactionAbortedException {
         // some code goes here
-        return null;
+        if (pid.pgcateg() == BTreePageId.LEAF) {
+            return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+        }
+        BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry entry = null;
+        while (it.hasNext()) {
+            entry = it.next();
+            // 键等于f时也走左孩子：重复的键可能跨越分裂点，左边的页里也可能有f
+            if (f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+                return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+            }
+        }
+        if (entry == null) {
+            throw new DbException("internal page " + pid + " has no entries");
+        }
+        return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
     }
 
     /**
@@ -811,6 +853,7 @@ public class BTreeFile implements DbFile {
                 bw.write(emptyRootPtrData);
                 bw.write(emptyLeafData);
                 bw.close();
+                allocator.ensurePages(1);
             }
         }
 
@@ -863,13 +906,9 @@ public class BTreeFile implements DbFile {
         // or there are no free slots
         if (headerId == null) {
             synchronized (this) {
-                // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
+                // take the next page of the preallocated extent (page numbers start at 1);
+                // getEmptyPage wipes it on disk before it is used
+                emptyPageNo = allocator.allocatePage() + 1;
             }
         }
 
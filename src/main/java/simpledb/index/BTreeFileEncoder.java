@@ -4,7 +4,6 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
-import simpledb.execution.Predicate.Op;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -133,13 +132,7 @@ public class BTreeFileEncoder {
          * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
          */
         public int compare(Tuple t1, Tuple t2) {
-            int cmp = 0;
-            if (t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
-                cmp = -1;
-            } else if (t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
-                cmp = 1;
-            }
-            return cmp;
+            return Integer.signum(NormalizedKey.compare(t1.getField(keyField), t2.getField(keyField)));
         }
     }
 
@@ -217,7 +210,7 @@ public class BTreeFileEncoder {
             tuples.add(tup);
         }
         it.close();
-        tuples.sort(new TupleComparator(keyField));
+        NormalizedKey.sort(tuples, t -> NormalizedKey.of(t.getField(keyField)));
 
         // add the tuples to B+ tree file
         BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
@@ -548,7 +541,7 @@ public class BTreeFileEncoder {
         if (i % 8 > 0)
             dos.writeByte(headerbyte);
 
-        tuples.sort(new TupleComparator(keyField));
+        NormalizedKey.sort(tuples, t -> NormalizedKey.of(t.getField(keyField)));
         for (int t = 0; t < recordcount; t++) {
             TupleDesc td = tuples.get(t).getTupleDesc();
             for (int j = 0; j < td.numFields(); j++) {
@@ -573,13 +566,7 @@ public class BTreeFileEncoder {
          * @return -1 if e1 < e2, 1 if e1 > e2, 0 if e1 == e2
          */
         public int compare(BTreeEntry e1, BTreeEntry e2) {
-            int cmp = 0;
-            if (e1.getKey().compare(Op.LESS_THAN, e2.getKey())) {
-                cmp = -1;
-            } else if (e1.getKey().compare(Op.GREATER_THAN, e2.getKey())) {
-                cmp = 1;
-            }
-            return cmp;
+            return Integer.signum(NormalizedKey.compare(e1.getKey(), e2.getKey()));
         }
     }
 
@@ -593,13 +580,7 @@ public class BTreeFileEncoder {
          * @return -1 if e1 > e2, 1 if e1 < e2, 0 if e1 == e2
          */
         public int compare(BTreeEntry e1, BTreeEntry e2) {
-            int cmp = 0;
-            if (e1.getKey().compare(Op.GREATER_THAN, e2.getKey())) {
-                cmp = -1;
-            } else if (e1.getKey().compare(Op.LESS_THAN, e2.getKey())) {
-                cmp = 1;
-            }
-            return cmp;
+            return Integer.signum(NormalizedKey.compare(e2.getKey(), e1.getKey()));
         }
     }
 
@@ -659,7 +640,7 @@ public class BTreeFileEncoder {
         if (i % 8 > 0)
             dos.writeByte(headerbyte);
 
-        entries.sort(new EntryComparator());
+        NormalizedKey.sort(entries, e -> NormalizedKey.of(e.getKey()));
         for (int e = 0; e < entrycount; e++) {
             entries.get(e).getKey().serialize(dos);
         }
@@ -28,6 +28,7 @@ public class BTreeScan implements OpIterator {
     private transient DbFileIterator it;
     private String tablename;
     private String alias;
+    private int keyField;
 
     /**
      * Creates a B+ tree scan over the specified table as a part of the
@@ -65,6 +66,14 @@ public class BTreeScan implements OpIterator {
         return this.alias;
     }
 
+    /**
+     * @return the index of the key field of the B+ tree, by which the tuples
+     * come out in ascending order
+     */
+    public int getKeyField() {
+        return this.keyField;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      *
@@ -80,6 +89,7 @@ public class BTreeScan implements OpIterator {
         this.isOpen = false;
         this.alias = tableAlias;
         this.tablename = Database.getCatalog().getTableName(tableid);
+        this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
         if (ipred == null) {
             this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
         } else {
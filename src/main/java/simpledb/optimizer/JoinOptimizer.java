@@ -1,8 +1,12 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.db.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 
 import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -67,7 +71,15 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (lj.p == Predicate.Op.EQUALS && lj.indexJoin && IndexNestedLoopJoin.canProbe(plan2, t2id)
+                && plan1.getTupleDesc().getFieldType(t1id) == plan2.getTupleDesc().getFieldType(t2id)) {
+            // 外表小、内表在连接字段上有B+树时，逐个查索引而不扫描内表
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS
+                && SortMergeJoin.isOrdered(plan1, t1id) && SortMergeJoin.isOrdered(plan2, t2id)) {
+            // 两边都已按连接字段有序（例如B+树扫描），直接归并，不必建哈希表
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -118,7 +130,83 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return -1.0;
+            if (j.p == Predicate.Op.EQUALS) {
+                // instantiateJoin为等值连接选择HashEquiJoin，两边已有序时选择SortMergeJoin：
+                // 两边各读一遍，每个元组哈希或比较一次。内表有索引时也可以逐个查索引
+                double hashCost = cost1 + cost2 + card1 + card2;
+                return Math.min(hashCost, estimateIndexJoinCost(j, card1, cost1, cost2));
+            }
+            // 块嵌套循环连接：外表读一遍，每个外表块读一遍内表，每对元组比较一次。
+            // 块数ceil(x)按x + 1估计，使代价对card1是线性的
+            double blocks = 1 + (double) card1 * tupleSize(j.t1Alias) / Join.getMemoryBudget();
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * Estimates the cost of an index nested-loop join: one scan of the outer
+     * side, and one lookup in the B+ tree of the inner table per outer tuple.
+     * A lookup reads one page per level of the tree, and compares each tuple
+     * it finds with the filters of the inner table.
+     *
+     * @param cost2 the cost of a full scan of the inner table
+     * @return the cost, or infinity if the inner table of j has no B+ tree on
+     * the join field
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1, double cost2) {
+        BTreeFile index = innerIndex(j);
+        if (index == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int pages = Math.max(1, index.numPages());
+        // 内部页的扇出约为一页能放下的键和子页号的个数
+        int keySize = index.getTupleDesc().getFieldType(index.keyField()).getLen();
+        double fanout = Math.max(2, BufferPool.getPageSize() / (keySize + 4));
+        double depth = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        TableStats stats = TableStats.getTableStats(Database.getCatalog().getTableName(index.getId()));
+        double matches = stats == null ? 1
+                : stats.totalTuples() * stats.avgSelectivity(index.keyField(), Predicate.Op.EQUALS);
+        return cost1 + card1 * (depth * cost2 / pages + matches);
+    }
+
+    /**
+     * @return the B+ tree of the inner table of j if it is keyed on the join
+     * field of j and j is an equi-join, or null
+     */
+    private BTreeFile innerIndex(LogicalJoinNode j) {
+        if (j.p != Predicate.Op.EQUALS || j instanceof LogicalSubplanJoinNode || j.t2Alias == null) {
+            return null;
+        }
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            return null;
+        }
+        try {
+            BTreeFile index = (BTreeFile) file;
+            return file.getTupleDesc().fieldNameToIndex(j.f2PureName) == index.keyField() ? index : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the size of the tuples of the table of alias, or of a single
+     * int if the table is not known. For the outer side of a join that is
+     * itself a join, this underestimates the width of its tuples.
+     */
+    private int tupleSize(String alias) {
+        Integer tableId = alias == null ? null : p.getTableId(alias);
+        if (tableId == null) {
+            return Type.INT_TYPE.getLen();
+        }
+        try {
+            return Database.getCatalog().getTupleDesc(tableId).getSize();
+        } catch (NoSuchElementException e) {
+            return Type.INT_TYPE.getLen();
         }
     }
 
@@ -217,6 +305,66 @@ public class JoinOptimizer {
         return joins;
     }
 
+    /**
+     * Decides, for every join of a left-deep plan in the order returned by
+     * {@link #orderJoins}, whether to look up the tuples of its outer side in
+     * the B+ tree of its inner table ({@link LogicalJoinNode#indexJoin})
+     * rather than to scan the inner table. The outer side of a join is the
+     * result of the joins before it, whose cardinality and cost are estimated
+     * as in {@link #computeCostAndCardOfSubplan}.
+     *
+     * @param joins               the joins in the order they are executed
+     * @param stats               table stats, referenced by table names
+     * @param filterSelectivities the selectivities of the filters over each
+     *                            of the tables, referenced by alias
+     */
+    public void chooseJoinMethods(List<LogicalJoinNode> joins, Map<String, TableStats> stats,
+                                  Map<String, Double> filterSelectivities) {
+        Set<String> joined = new HashSet<>();
+        int card = 0;
+        double cost = 0;
+        boolean pkey = false;
+        for (LogicalJoinNode j : joins) {
+            j.indexJoin = false;
+            if (j instanceof LogicalSubplanJoinNode) {
+                continue;
+            }
+            TableStats stats1 = stats.get(Database.getCatalog().getTableName(p.getTableId(j.t1Alias)));
+            TableStats stats2 = stats.get(Database.getCatalog().getTableName(p.getTableId(j.t2Alias)));
+            if (stats1 == null || stats2 == null) {
+                continue;
+            }
+            int card1, card2;
+            double cost1, cost2;
+            boolean pkey1, pkey2;
+            if (joined.contains(j.t1Alias)) {
+                card1 = card;
+                cost1 = cost;
+                pkey1 = pkey;
+            } else {
+                card1 = stats1.estimateTableCardinality(filterSelectivities.getOrDefault(j.t1Alias, 1.0));
+                cost1 = stats1.estimateScanCost();
+                pkey1 = isPkey(j.t1Alias, j.f1PureName);
+            }
+            if (joined.contains(j.t2Alias)) {
+                // 内表是之前连接的结果，没有索引可查
+                card2 = card;
+                cost2 = cost;
+                pkey2 = pkey;
+            } else {
+                card2 = stats2.estimateTableCardinality(filterSelectivities.getOrDefault(j.t2Alias, 1.0));
+                cost2 = stats2.estimateScanCost();
+                pkey2 = isPkey(j.t2Alias, j.f2PureName);
+                j.indexJoin = estimateIndexJoinCost(j, card1, cost1, cost2) < cost1 + cost2 + card1 + card2;
+            }
+            cost = estimateJoinCost(j, card1, card2, cost1, cost2);
+            card = estimateJoinCardinality(j, card1, card2, pkey1, pkey2, stats);
+            pkey = pkey1 || pkey2;
+            joined.add(j.t1Alias);
+            joined.add(j.t2Alias);
+        }
+    }
+
     // ===================== Private Methods =================================
 
     /**
@@ -37,6 +37,12 @@ public class LogicalJoinNode {
      */
     public Predicate.Op p;
 
+    /**
+     * Whether to look up the tuples of t1 in the B+ tree of t2 instead of
+     * scanning t2; decided by {@link JoinOptimizer#chooseJoinMethods}
+     */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
@@ -0,0 +1,28 @@
+package simpledb.optimizer;
+
+/**
+ * A LogicalLimitNode represents the LIMIT ... OFFSET clause of a
+ * LogicalQueryPlan: the query returns at most limit tuples, after skipping
+ * the first offset tuples of the result.
+ */
+public class LogicalLimitNode {
+    /**
+     * The largest number of tuples the query returns
+     */
+    public final long limit;
+
+    /**
+     * The number of tuples skipped before the first one returned
+     */
+    public final long offset;
+
+    public LogicalLimitNode(long limit, long offset) {
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    @Override
+    public String toString() {
+        return offset == 0 ? "LIMIT " + limit : "LIMIT " + limit + " OFFSET " + offset;
+    }
+}
@@ -16,16 +16,27 @@ import java.util.*;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, group by fields, aggregates, and
+ * optionally a limit node. All the aggregates of a query are computed by a
+ * single {@link Aggregate} over the same group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
  * best implementations for joins.
+ * <p>
+ * With a degree of parallelism ({@link #getParallelism()}) above 1, the
+ * scans, filters and hash joins of a plan run in that many pipelines at
+ * once: every scan of a heap file is split into morsels, the inputs of a hash
+ * join are repartitioned on the join fields (or its build side broadcast to
+ * every pipeline if it is small), and the pipelines meet in a parallel
+ * {@link Aggregate}, or in a {@link Gather} under the ORDER BY, or above
+ * their own projections.
  */
 public class LogicalPlan {
+
+    private static volatile int parallelism = Integer.getInteger("simpledb.parallelism", 1);
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -33,12 +44,11 @@ public class LogicalPlan {
     private final Map<String, Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private final List<String> groupByFields = new ArrayList<>();
+    private final List<LogicalSelectListNode> aggregates = new ArrayList<>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private LogicalLimitNode limit;
     private String query;
 //    private Query owner;
 
@@ -56,6 +66,24 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /**
+     * @return the number of pipelines the plans built from now on run in.
+     * Set with -Dsimpledb.parallelism; the default is 1, a serial plan.
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of pipelines the plans built from now on run in.
+     */
+    public static void setParallelism(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        parallelism = n;
+    }
+
     /**
      * Set the text of the query representing this logical plan.  Does NOT parse the
      * specified query -- this method is just used so that the object can print the
@@ -205,22 +233,61 @@ public class LogicalPlan {
 
     /**
      * Add an aggregate over the field with the specified grouping to
-     * the query.  SimpleDb only supports a single aggregate
-     * expression and GROUP BY field.
+     * the query.
      *
      * @param op     the aggregation operator
      * @param afield the field to aggregate over
-     * @param gfield the field to group by
+     * @param gfield the field to group by, or null
      * @throws ParsingException
      */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield = disambiguateName(afield);
         if (gfield != null)
-            gfield = disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupBy(gfield);
+        addAggregate(op, afield);
+    }
+
+    /**
+     * Add an aggregate over the field to the query. All the aggregates are
+     * grouped by the fields added with {@link #addGroupBy}, and computed in
+     * one pass.
+     *
+     * @param op     the aggregation operator
+     * @param afield the field to aggregate over
+     * @throws ParsingException
+     */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        getAggOp(op);
+        afield = disambiguateName(afield);
+        for (LogicalSelectListNode agg : aggregates) {
+            if (agg.aggOp.equalsIgnoreCase(op) && agg.fname.equals(afield))
+                return;
+        }
+        aggregates.add(new LogicalSelectListNode(op, afield));
+    }
+
+    /**
+     * Add a field to the GROUP BY list of the query.
+     *
+     * @param gfield the field to group by
+     * @throws ParsingException
+     */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield = disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /**
+     * @return the position of an aggregate in the output of the Aggregate
+     * node, or -1 if the query does not compute it
+     */
+    private int aggregateIndex(String op, String fname) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode agg = aggregates.get(i);
+            if (agg.aggOp.equalsIgnoreCase(op) && agg.fname.equals(fname))
+                return groupByFields.size() + i;
+        }
+        return -1;
     }
 
     /**
@@ -238,6 +305,30 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /**
+     * Add a LIMIT clause: the query returns at most limit tuples, after
+     * skipping the first offset tuples. Combined with an ORDER BY whose first
+     * limit + offset tuples fit in the sort memory budget, the sort is done
+     * with a bounded heap ({@link TopN}) instead of sorting every tuple.
+     *
+     * @param limit  the largest number of tuples to return
+     * @param offset the number of tuples to skip
+     * @throws ParsingException if limit or offset is negative
+     */
+    public void addLimit(long limit, long offset) throws ParsingException {
+        if (limit < 0 || offset < 0) {
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = new LogicalLimitNode(limit, offset);
+    }
+
+    /**
+     * @return the LIMIT clause of the query, or null if it has none
+     */
+    public LogicalLimitNode getLimit() {
+        return limit;
+    }
+
     /**
      * Given a name of a field, try to figure out what table it belongs to by looking
      * through all of the tables added via {@link #addScan}.
@@ -323,6 +414,16 @@ public class LogicalPlan {
      * @throws ParsingException if the logical plan is not valid
      */
     public OpIterator physicalPlan(TransactionId t, Map<String, TableStats> baseTableStats, boolean explain) throws ParsingException {
+        OpIterator plan = pullPlan(t, baseTableStats, explain);
+        // 含有哈希连接的部分编译成推送流水线
+        return PushPlan.isEnabled() ? PushPlan.compile(plan) : plan;
+    }
+
+    /**
+     * @return the plan of operators that pull the tuples of their children
+     * @see #physicalPlan
+     */
+    private OpIterator pullPlan(TransactionId t, Map<String, TableStats> baseTableStats, boolean explain) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         Map<String, String> equivMap = new HashMap<>();
         Map<String, Double> filterSelectivities = new HashMap<>();
@@ -344,6 +445,8 @@ public class LogicalPlan {
 
         }
 
+        // 同一张表上的过滤条件合并为一个Filter，整个合取在生成计划时编译
+        Map<String, List<Predicate>> conjunctions = new LinkedHashMap<>();
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -370,7 +473,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            conjunctions.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -379,10 +482,15 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+        for (Map.Entry<String, List<Predicate>> conjunction : conjunctions.entrySet()) {
+            String alias = conjunction.getKey();
+            subplanMap.put(alias, new Filter(conjunction.getValue(), subplanMap.get(alias)));
+        }
 
         JoinOptimizer jo = new JoinOptimizer(this, joins);
 
         joins = jo.orderJoins(statsMap, filterSelectivities, explain);
+        jo.chooseJoinMethods(joins, statsMap, filterSelectivities);
 
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
@@ -441,6 +549,9 @@ public class LogicalPlan {
         }
 
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        // 扫描、过滤和哈希连接拆成多条流水线；含有不能并行的算子时为null，整个计划串行执行
+        int n = parallelism;
+        OpIterator[] pipelines = n > 1 ? parallelize(node, n) : null;
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -448,7 +559,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField != null ? 1 : 0);
+                int index = aggregateIndex(si.aggOp, si.fname);
+                if (index < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+                }
+                outFields.add(index);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -459,17 +574,18 @@ public class LogicalPlan {
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
-            } else if (hasAgg) {
-                if (groupByField == null) {
+            } else if (!aggregates.isEmpty()) {
+                int index = groupByFields.indexOf(si.fname);
+                if (index < 0) {
                     throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                 }
-                outFields.add(0);
+                outFields.add(index);
                 TupleDesc td = node.getTupleDesc();
                 int id;
                 try {
-                    id = td.fieldNameToIndex(groupByField);
+                    id = td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " + groupByField + " in GROUP BY statement");
+                    throw new ParsingException("Unknown field " + si.fname + " in GROUP BY statement");
                 }
                 outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -492,27 +608,128 @@ public class LogicalPlan {
             }
         }
 
-        if (hasAgg) {
+        if (!aggregates.isEmpty()) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                        td.fieldNameToIndex(aggField),
-                        groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField),
-                        getAggOp(aggOp));
+                int[] afields = new int[aggregates.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggregates.get(i).fname);
+                    aops[i] = getAggOp(aggregates.get(i).aggOp);
+                    if (td.getFieldType(afields[i]) != Type.INT_TYPE && aops[i] != Aggregator.Op.COUNT) {
+                        throw new ParsingException("Only COUNT is supported over string field " + aggregates.get(i).fname);
+                    }
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                }
+                aggNode = pipelines != null
+                        ? new Aggregate(pipelines, afields, aops, gfields)
+                        : new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new ParsingException(e);
             }
             node = aggNode;
+        } else if (pipelines != null && !hasOrderBy) {
+            // 没有聚合和排序时各条流水线自己投影
+            OpIterator[] projects = new OpIterator[n];
+            for (int i = 0; i < n; i++) {
+                projects[i] = new Project(outFields, outTypes, pipelines[i]);
+            }
+            node = new Gather(projects);
+            return limit != null ? new Limit(limit.limit, limit.offset, node) : node;
+        } else if (pipelines != null) {
+            node = new Gather(pipelines);
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            // 只需要前limit+offset个元组时用有界堆代替完整排序
+            if (limit != null && limit.limit <= Long.MAX_VALUE - limit.offset
+                    && TopN.fits(node.getTupleDesc(), limit.limit + limit.offset)) {
+                node = new TopN(field, oByAsc, limit.limit + limit.offset, node);
+            } else {
+                node = new OrderBy(field, oByAsc, node);
+            }
+        }
+
+        if (limit != null) {
+            node = new Limit(limit.limit, limit.offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Splits a plan of scans of heap files, filters and hash joins into n
+     * pipelines that together produce the tuples of the plan.
+     *
+     * @return the pipelines, or null if the plan has other operators
+     */
+    private static OpIterator[] parallelize(OpIterator node, int n) {
+        if (MorselScan.canSplit(node)) {
+            return MorselScan.split((SeqScan) node, n);
+        }
+        if (node instanceof Filter) {
+            Filter filter = (Filter) node;
+            OpIterator[] children = parallelize(filter.getChildren()[0], n);
+            if (children == null) {
+                return null;
+            }
+            OpIterator[] filters = new OpIterator[n];
+            for (int i = 0; i < n; i++) {
+                // Predicate缓存字典编码列的比较结果，不能在流水线的线程之间共享
+                List<Predicate> predicates = new ArrayList<>();
+                for (Predicate p : filter.getPredicates()) {
+                    predicates.add(new Predicate(p.getField(), p.getOp(), p.getOperand()));
+                }
+                filters[i] = new Filter(predicates, children[i]);
+            }
+            return filters;
+        }
+        if (node instanceof HashEquiJoin) {
+            HashEquiJoin join = (HashEquiJoin) node;
+            OpIterator build = join.getChildren()[0];
+            OpIterator[] left = parallelize(build, n);
+            OpIterator[] right = parallelize(join.getChildren()[1], n);
+            if (left == null || right == null) {
+                return null;
+            }
+            JoinPredicate p = join.getJoinPredicate();
+            if (isSmall(build, n)) {
+                // 每条流水线都有完整的构建侧，探测侧不必重新分区
+                left = Broadcast.of(left, n);
+            } else {
+                left = Repartition.of(left, p.getField1(), n);
+                right = Repartition.of(right, p.getField2(), n);
+            }
+            OpIterator[] joins = new OpIterator[n];
+            for (int i = 0; i < n; i++) {
+                joins[i] = new HashEquiJoin(p, left[i], right[i]);
+            }
+            return joins;
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the build side of a join is a scan of a table, maybe
+     * filtered, small enough for n copies to fit in the join memory budget
+     */
+    private static boolean isSmall(OpIterator build, int n) {
+        while (build instanceof Filter) {
+            build = ((Filter) build).getChildren()[0];
+        }
+        if (!(build instanceof SeqScan)) {
+            return false;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(((SeqScan) build).getTableId());
+        return file instanceof HeapFile
+                && (long) ((HeapFile) file).numPages() * BufferPool.getPageSize() * n <= Join.getMemoryBudget();
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
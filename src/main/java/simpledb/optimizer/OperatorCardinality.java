@@ -25,8 +25,9 @@ public class OperatorCardinality {
                     tableStats);
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
-        } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+        } else if (o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof IndexNestedLoopJoin) {
+            return updateEquiJoinCardinality(o,
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
@@ -46,6 +47,11 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof Limit) {
+                childC = (int) Math.min(childC, ((Limit) o).getLimit());
+            } else if (o instanceof TopN) {
+                childC = Math.min(childC, ((TopN) o).getN());
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -55,20 +61,22 @@ public class OperatorCardinality {
                                                    Map<String, Integer> tableAliasToId,
                                                    Map<String, TableStats> tableStats) {
         OpIterator child = f.getChildren()[0];
-        Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
+        String[] tmp = child.getTupleDesc().getFieldName(f.getPredicate().getField())
                 .split("[.]");
         String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
         Integer tableId = tableAliasToId.get(tableAlias);
         double selectivity = 1.0;
         if (tableId != null) {
-            selectivity = tableStats.get(
-                    Database.getCatalog().getTableName(tableId))
-                    .estimateSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            pred.getOp(), pred.getOperand());
+            // 合取中各谓词的选择率相乘（假设相互独立）
+            for (Predicate pred : f.getPredicates()) {
+                String pureFieldName = child.getTupleDesc().getFieldName(pred.getField()).split("[.]")[1];
+                selectivity *= tableStats.get(
+                        Database.getCatalog().getTableName(tableId))
+                        .estimateSelectivity(
+                                Database.getCatalog().getTupleDesc(tableId)
+                                        .fieldNameToIndex(pureFieldName),
+                                pred.getOp(), pred.getOperand());
+            }
             if (child instanceof Operator) {
                 Operator oChild = (Operator) child;
                 boolean hasJoinPK = updateOperatorCardinality(oChild,
@@ -143,20 +151,33 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-                                                         Map<String, Integer> tableAliasToId,
-                                                         Map<String, TableStats> tableStats) {
+    /**
+     * @return the predicate of a HashEquiJoin, SortMergeJoin or IndexNestedLoopJoin
+     */
+    private static JoinPredicate equiJoinPredicate(Operator j) {
+        if (j instanceof HashEquiJoin) {
+            return ((HashEquiJoin) j).getJoinPredicate();
+        } else if (j instanceof SortMergeJoin) {
+            return ((SortMergeJoin) j).getJoinPredicate();
+        }
+        return ((IndexNestedLoopJoin) j).getJoinPredicate();
+    }
+
+    private static boolean updateEquiJoinCardinality(Operator j,
+                                                     Map<String, Integer> tableAliasToId,
+                                                     Map<String, TableStats> tableStats) {
 
         OpIterator[] children = j.getChildren();
         OpIterator child1 = children[0];
         OpIterator child2 = children[1];
         int child1Card = 1;
         int child2Card = 1;
+        JoinPredicate pred = equiJoinPredicate(j);
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = child1.getTupleDesc().getFieldName(pred.getField1()).split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = child2.getTupleDesc().getFieldName(pred.getField2()).split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -191,8 +212,8 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                        .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(pred
+                        .getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -221,24 +242,26 @@ public class OperatorCardinality {
                     .estimateTableCardinality(1.0);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // 多个分组字段时，组数估计为各字段不同值个数之积，不超过孩子的基数
+        double groups = 1.0;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = a.groupFieldName(i).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
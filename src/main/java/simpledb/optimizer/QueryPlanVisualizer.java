@@ -6,20 +6,45 @@ import simpledb.storage.TupleDesc.TDItem;
 
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.StringJoiner;
 
 public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
+    static final String PUSH = "push";
     static final String SPACE = "  ";
 
+    /**
+     * 运行过的计划中各个算子的实际情况，见{@link ExplainAnalyze}
+     */
+    private Map<OpIterator, OperatorProfile> profiles = Collections.emptyMap();
+
+    /**
+     * @return the estimated cardinality of op, followed by the number of
+     * tuples it actually returned if the plan has been run
+     */
+    private String card(Operator op) {
+        OperatorProfile profile = profiles.get(op);
+        if (profile == null || profile.getOpens() == 0) {
+            return String.valueOf(op.getEstimatedCardinality());
+        }
+        return op.getEstimatedCardinality() + ",rows:" + profile.getRows();
+    }
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
@@ -29,7 +54,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -76,6 +102,9 @@ public class QueryPlanVisualizer {
                 alias = "";
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
+            OperatorProfile profile = profiles.get(s);
+            if (profile != null && profile.getOpens() > 0)
+                thisNode.text += ",rows:" + profile.getRows();
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -114,8 +143,8 @@ public class QueryPlanVisualizer {
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2, j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$s", JOIN,
+                        field1 + jp.getOperator() + field2, card(j));
                 int upBarShift = parentUpperBarStartShift;
                 if (JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = JOIN.length() / 2;
@@ -136,18 +165,29 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin
+                    || plan instanceof IndexNestedLoopJoin) {
+                String symbol;
+                JoinPredicate jp;
+                if (plan instanceof HashEquiJoin) {
+                    symbol = HASH_JOIN;
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                } else if (plan instanceof SortMergeJoin) {
+                    symbol = MERGE_JOIN;
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                } else {
+                    symbol = INDEX_JOIN;
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2, j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$s", symbol, field1
+                        + jp.getOperator() + field2, card(plan));
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -156,7 +196,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -170,15 +210,23 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                StringJoiner aggs = new StringJoiner(", ");
+                for (int j = 0; j < a.aggregateOps().length; j++) {
+                    aggs.add(a.aggregateOps()[j] + "("
+                            + children[0].getTupleDesc().getFieldName(a.aggregateFields()[j]) + ")");
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(), a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$s",
+                            aggs, card(a));
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(), a.getEstimatedCardinality());
+                    StringJoiner groups = new StringJoiner(",");
+                    for (int i = 0; i < a.groupFields().length; i++) {
+                        groups.add(a.groupFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$s",
+                            GROUPBY, groups, aggs, card(a));
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -197,11 +245,15 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(), f.getEstimatedCardinality());
+                StringBuilder condition = new StringBuilder();
+                for (Predicate p : f.getPredicates()) {
+                    if (condition.length() > 0)
+                        condition.append(" AND ");
+                    condition.append(children[0].getTupleDesc().getFieldName(p.getField()))
+                            .append(p.getOp()).append(p.getOperand());
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$s", SELECT, condition,
+                        card(f));
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -216,22 +268,40 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
-                thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()), o.getEstimatedCardinality());
+            } else if (plan instanceof OrderBy || plan instanceof TopN || plan instanceof Limit) {
+                String symbol;
+                if (plan instanceof OrderBy) {
+                    OrderBy o = (OrderBy) plan;
+                    symbol = ORDERBY;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),card:%3$s",
+                            ORDERBY,
+                            children[0].getTupleDesc().getFieldName(
+                                    o.getOrderByField()), card(o));
+                } else if (plan instanceof TopN) {
+                    TopN o = (TopN) plan;
+                    symbol = TOPN;
+                    thisNode.text = String.format(
+                            "%1$s(%2$d,%3$s),card:%4$s",
+                            TOPN, o.getN(),
+                            children[0].getTupleDesc().getFieldName(
+                                    o.getOrderByField()), card(o));
+                } else {
+                    Limit l = (Limit) plan;
+                    symbol = LIMIT;
+                    thisNode.text = String.format(
+                            "%1$s(%2$d,%3$d),card:%4$s",
+                            LIMIT, l.getLimit(), l.getOffset(), card(l));
+                }
                 int upBarShift = parentUpperBarStartShift;
-                if (ORDERBY.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = ORDERBY.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
                 SubTreeDescriptor child = this.buildTree(queryPlanDepth,
                         currentDepth + 2 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
                 thisNode.upBarPosition = child.upBarPosition;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - ORDERBY.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(child.width,
                         thisNode.textStartPosition + thisNode.text.length()
                                 - currentStartPosition);
@@ -244,7 +314,7 @@ public class QueryPlanVisualizer {
                 while (it.hasNext())
                     fields.append(it.next().fieldName).append(",");
                 fields = new StringBuilder(fields.substring(0, fields.length() - 1));
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields.toString(), p.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$s", PROJECT, fields.toString(), card(p));
                 int upBarShift = parentUpperBarStartShift;
                 if (PROJECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = PROJECT.length() / 2;
@@ -259,17 +329,12 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name = "Exchange";
-                int card = 0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            } else if (plan instanceof Exchange || plan instanceof PushPlan) {
+                // 只画出交换的第一个生产者的流水线，其余的相同
+                String name = plan instanceof Exchange ? ((Exchange) plan).getName() : PUSH;
+                String card = card(plan);
 
-                thisNode.text = String.format("%1$s,card:%2$d", name, card);
+                thisNode.text = String.format("%1$s,card:%2$s", name, card);
                 int upBarShift = parentUpperBarStartShift;
                 if (name.length() / 2 > parentUpperBarStartShift)
                     upBarShift = name.length() / 2;
@@ -302,7 +367,7 @@ public class QueryPlanVisualizer {
                     e.printStackTrace();
                 }
                 String oldName = plan.getChildren()[0].getTupleDesc().getFieldName(fieldIdx);
-                thisNode.text = String.format("%1$s,%2$s->%3$s,card:%4$d", RENAME, oldName, newName, plan.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s,%2$s->%3$s,card:%4$s", RENAME, oldName, newName, card(plan));
                 int upBarShift = parentUpperBarStartShift;
                 if (RENAME.length() / 2 > parentUpperBarStartShift)
                     upBarShift = RENAME.length() / 2;
@@ -386,6 +451,21 @@ public class QueryPlanVisualizer {
         return sb.reverse().toString();
     }
 
+    /**
+     * @param profiles what the operators of the plan did when it ran, such as
+     *                 {@link ExplainAnalyze#getProfiles()}; the tree shows the
+     *                 number of tuples every operator returned next to the
+     *                 estimated cardinality
+     */
+    public String getQueryPlanTree(OpIterator physicalPlan, Map<OpIterator, OperatorProfile> profiles) {
+        this.profiles = profiles;
+        try {
+            return getQueryPlanTree(physicalPlan);
+        } finally {
+            this.profiles = Collections.emptyMap();
+        }
+    }
+
     public void printQueryPlanTree(OpIterator physicalPlan, PrintStream out) {
         if (out == null)
             out = System.out;
@@ -8,8 +8,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -46,6 +47,11 @@ public class BufferPool {
     //private static Map<Integer, Page> pageCacheMap;
     private static Map<PageId, Page> pageCacheMap;
 
+    /**
+     * 每个线程从缓冲池请求的页数：[命中, 未命中]
+     */
+    private static final ThreadLocal<long[]> pageRequests = ThreadLocal.withInitial(() -> new long[2]);
+
     public final int MAX_PAGE_SIZE;
 
     /**
@@ -56,7 +62,8 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // some code goes here
         MAX_PAGE_SIZE = numPages;
-        pageCacheMap = new HashMap<>();
+        // 并行聚合的多个线程会同时读取缓存
+        pageCacheMap = new ConcurrentHashMap<>();
     }
 
     public static int getPageSize() {
@@ -77,6 +84,22 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * @return the number of pages the calling thread has requested with
+     * {@link #getPage} that were already in the buffer pool
+     */
+    public static long getPageHits() {
+        return pageRequests.get()[0];
+    }
+
+    /**
+     * @return the number of pages the calling thread has requested with
+     * {@link #getPage} that had to be read from disk
+     */
+    public static long getPageMisses() {
+        return pageRequests.get()[1];
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -99,9 +122,13 @@ public class BufferPool {
             throw new IllegalArgumentException("获取数据页参数异常！");
         }
         //int tableId = pid.getTableId();
-        if (pageCacheMap.containsKey(pid)) {
-            return pageCacheMap.get(pid);
+        Page cached = pageCacheMap.get(pid);
+        long[] requests = pageRequests.get();
+        if (cached != null) {
+            requests[0]++;
+            return cached;
         }
+        requests[1]++;
         //todo 锁实现？？？
         synchronized (this) {
             Catalog catalog = Database.getCatalog();
@@ -109,8 +136,6 @@ public class BufferPool {
              下述使用DBFile的形式去获取页，导致ScanTest中单元测试testSmall、testCache异常
              */
             DbFile dbFile = catalog.getDatabaseFile(pid.getTableId());
-            dbFile.readPage(pid);
-            HeapFile table = (HeapFile) catalog.getDatabaseFile(pid.getTableId());
             Page page = dbFile.readPage(pid);
             pageCacheMap.put(pid, page);
             return page;
@@ -139,6 +164,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /**
@@ -160,6 +186,22 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        if (commit) {
+            try {
+                flushPages(tid);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+        // abort：丢弃该事务修改过的页，下次访问时从磁盘重新读取
+        synchronized (this) {
+            for (Map.Entry<PageId, Page> entry : new ArrayList<>(pageCacheMap.entrySet())) {
+                if (tid.equals(entry.getValue().isDirty())) {
+                    discardPage(entry.getKey());
+                }
+            }
+        }
     }
 
     /**
@@ -181,6 +223,11 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page page : dbFile.insertTuple(tid, t)) {
+            page.markDirty(true, tid);
+            pageCacheMap.put(page.getId(), page);
+        }
     }
 
     /**
@@ -200,6 +247,14 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (t.getRecordId() == null) {
+            throw new DbException("tuple has no RecordId");
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        for (Page page : dbFile.deleteTuple(tid, t)) {
+            page.markDirty(true, tid);
+            pageCacheMap.put(page.getId(), page);
+        }
     }
 
     /**
@@ -210,7 +265,9 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-
+        for (PageId pid : new ArrayList<>(pageCacheMap.keySet())) {
+            flushPage(pid);
+        }
     }
 
     /**
@@ -225,6 +282,7 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        pageCacheMap.remove(pid);
     }
 
     /**
@@ -235,6 +293,18 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        Page page = pageCacheMap.get(pid);
+        if (page == null) {
+            return;
+        }
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null) {
+            // write ahead: the update record must reach the log before the page reaches the table file
+            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().force();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            page.markDirty(false, null);
+        }
     }
 
     /**
@@ -243,6 +313,13 @@ public class BufferPool {
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (Map.Entry<PageId, Page> entry : new ArrayList<>(pageCacheMap.entrySet())) {
+            if (tid.equals(entry.getValue().isDirty())) {
+                flushPage(entry.getKey());
+                // the flushed version becomes the before image of the next update
+                entry.getValue().setBeforeImage();
+            }
+        }
     }
 
     /**
@@ -0,0 +1,74 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+/**
+ * A StringField read from a dictionary encoded table. It carries the
+ * dictionary code next to the value, so that comparisons and hashing between
+ * fields of the same dictionary are integer operations, and all fields with
+ * the same code share one String instance (and its cached hash code).
+ * <p>
+ * It is equal to, and hashes like, a plain {@link StringField} with the same
+ * value, so it can be mixed freely with fields of other tables.
+ *
+ * @see StringDictionary
+ */
+public class DictionaryStringField extends StringField {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient StringDictionary dictionary;
+
+    private final int code;
+
+    public DictionaryStringField(StringDictionary dictionary, int code) {
+        super(dictionary.decode(code), Type.STRING_LEN);
+        this.dictionary = dictionary;
+        this.code = code;
+    }
+
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return true if field is a DictionaryStringField of the same dictionary
+     */
+    public boolean sameDictionary(Field field) {
+        return field instanceof DictionaryStringField
+                && dictionary != null
+                && ((DictionaryStringField) field).dictionary == dictionary;
+    }
+
+    @Override
+    public boolean equals(Object field) {
+        if (field instanceof DictionaryStringField && sameDictionary((Field) field)) {
+            return ((DictionaryStringField) field).code == code;
+        }
+        return super.equals(field);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean compare(Predicate.Op op, Field val) {
+        if (sameDictionary(val)) {
+            int other = ((DictionaryStringField) val).code;
+            if (op == Predicate.Op.EQUALS) {
+                return code == other;
+            }
+            if (op == Predicate.Op.NOT_EQUALS) {
+                return code != other;
+            }
+        }
+        return super.compare(op, val);
+    }
+}
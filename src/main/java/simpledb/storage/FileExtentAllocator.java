@@ -0,0 +1,225 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileExtentAllocator keeps track of the pages of a paged table file and grows
+ * the file in extents instead of one page at a time.
+ * <p>
+ * When a new page is needed and the file has no preallocated page left, a whole
+ * extent of zero-filled pages is written at the end of the file with a single
+ * write. Appends then only fill pages that already exist on disk, which keeps
+ * the file contiguous and avoids a file system metadata update per page.
+ * <p>
+ * Because of the preallocated tail, the length of the file is no longer the
+ * number of pages in use; the logical page count is kept in memory. Every
+ * extent written is recorded in a sidecar file ({@link #sidecarFor(File)}):
+ * the page it starts at and the page it ends at. When a file is opened, the
+ * count is derived from the file length and then the trailing all-zero pages
+ * (a zero page is an empty page for every page format in SimpleDB) of the last
+ * extent are given back to the preallocated region, down to a minimum given by
+ * the owner of the file. Pages in front of the extent, and the pages of a file
+ * whose length no longer matches the recorded extent, are never trimmed, so an
+ * empty page that was written on purpose stays in use.
+ * <p>
+ * The extent size is read from the system property {@code simpledb.extentPages}
+ * and defaults to {@link #DEFAULT_EXTENT_PAGES}.
+ *
+ * @see HeapFile
+ * @see simpledb.index.BTreeFile
+ */
+public class FileExtentAllocator {
+
+    public static final int DEFAULT_EXTENT_PAGES = 16;
+
+    private static int extentPages = Integer.getInteger("simpledb.extentPages", DEFAULT_EXTENT_PAGES);
+
+    private final File file;
+
+    /**
+     * bytes in front of the first page (e.g. the root pointer page of a B+ tree)
+     */
+    private final long offset;
+
+    /**
+     * pages handed out so far
+     */
+    private int numPages;
+
+    /**
+     * pages that physically exist in the file, numPages of which are in use
+     */
+    private int allocatedPages;
+
+    /**
+     * @param file   the paged file
+     * @param offset the number of bytes in front of the first page
+     */
+    public FileExtentAllocator(File file, long offset) {
+        this.file = file;
+        this.offset = offset;
+        long length = Math.max(0, file.length() - offset);
+        this.allocatedPages = (int) (length / BufferPool.getPageSize());
+        this.numPages = allocatedPages;
+    }
+
+    public static int getExtentPages() {
+        return extentPages;
+    }
+
+    /**
+     * THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+     */
+    public static void setExtentPages(int extentPages) {
+        if (extentPages < 1) {
+            throw new IllegalArgumentException("an extent has at least one page");
+        }
+        FileExtentAllocator.extentPages = extentPages;
+    }
+
+    /**
+     * THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+     */
+    public static void resetExtentPages() {
+        FileExtentAllocator.extentPages = Integer.getInteger("simpledb.extentPages", DEFAULT_EXTENT_PAGES);
+    }
+
+    /**
+     * @return the file that records the last extent of the paged file dataFile
+     */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".extent");
+    }
+
+    /**
+     * @return the number of pages in use
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the number of pages that physically exist in the file
+     */
+    public synchronized int allocatedPages() {
+        return allocatedPages;
+    }
+
+    /**
+     * Hands trailing all-zero pages of the last recorded extent back to the
+     * preallocated region, keeping at least minPages pages in use. Meant to be
+     * called once when the file is opened, before any page of it is cached.
+     *
+     * @param minPages the number of pages that must stay in use
+     */
+    public synchronized void trimZeroTail(int minPages) throws IOException {
+        File sidecar = sidecarFor(file);
+        if (!sidecar.exists()) {
+            return;
+        }
+        int extentStart;
+        int extentEnd;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(sidecar))) {
+            extentStart = in.readInt();
+            extentEnd = in.readInt();
+        }
+        if (extentEnd != allocatedPages) {
+            // 文件在记录extent之后被别的写入者改过，不知道哪些页是预分配的
+            return;
+        }
+        minPages = Math.max(minPages, extentStart);
+        if (numPages <= minPages) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        byte[] buf = new byte[pageSize];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            while (numPages > minPages) {
+                raf.seek(offset + (long) (numPages - 1) * pageSize);
+                raf.readFully(buf);
+                if (!isZero(buf)) {
+                    break;
+                }
+                numPages--;
+            }
+        }
+    }
+
+    /**
+     * Takes the next page at the end of the file, writing a new zero-filled
+     * extent if no preallocated page is left. The new page reads as all zeros.
+     *
+     * @return the index of the new page, counted from 0
+     */
+    public synchronized int allocatePage() throws IOException {
+        if (numPages >= allocatedPages) {
+            extendTo(numPages + extentPages);
+        }
+        return numPages++;
+    }
+
+    /**
+     * Makes sure that pages [0, pages) count as in use, e.g. after a page was
+     * written past the current end by a loader or an encoder.
+     */
+    public synchronized void ensurePages(int pages) {
+        if (pages > numPages) {
+            numPages = pages;
+        }
+        if (pages > allocatedPages) {
+            allocatedPages = pages;
+        }
+    }
+
+    /**
+     * Shrinks the file to its first pages pages, dropping the preallocated tail too.
+     */
+    public synchronized void truncate(int pages) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.getChannel().truncate(offset + (long) pages * BufferPool.getPageSize());
+        }
+        File sidecar = sidecarFor(file);
+        if (sidecar.exists() && !sidecar.delete()) {
+            throw new IOException("cannot delete " + sidecar);
+        }
+        numPages = pages;
+        allocatedPages = pages;
+    }
+
+    private void extendTo(int pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long start = offset + (long) allocatedPages * pageSize;
+        long end = offset + (long) pages * pageSize;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            // one sequential zero-filled write per extent, so the blocks are really allocated on disk
+            ByteBuffer zeros = ByteBuffer.allocate((int) (end - start));
+            long position = start;
+            while (zeros.hasRemaining()) {
+                position += channel.write(zeros, position);
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(sidecarFor(file)))) {
+            out.writeInt(allocatedPages);
+            out.writeInt(pages);
+        }
+        allocatedPages = pages;
+    }
+
+    private static boolean isZero(byte[] buf) {
+        for (byte b : buf) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
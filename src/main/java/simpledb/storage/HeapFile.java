@@ -37,7 +37,15 @@ public class HeapFile implements DbFile {
 
     private TupleDesc tupleDesc;
 
-    private int numberOfPages;
+    /**
+     * 页数在内存中维护，文件按extent预分配增长，文件长度不再等于页数
+     */
+    private final FileExtentAllocator allocator;
+
+    /**
+     * 字符串列的字典，表未做字典编码时为null
+     */
+    private final StringDictionary dictionary;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -46,11 +54,43 @@ public class HeapFile implements DbFile {
      *             file.
      */
     public HeapFile(File file, TupleDesc td) {
+        this(file, td, StringDictionary.sidecarFor(file).exists());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally storing
+     * its string fields as codes of a {@link StringDictionary}. The dictionary
+     * is kept in {@link StringDictionary#sidecarFor(File)}; a file that already
+     * has one is always opened dictionary encoded by
+     * {@link #HeapFile(File, TupleDesc)}.
+     *
+     * @param file              the file that stores the on-disk backing store for this heap
+     *                          file.
+     * @param dictionaryEncoded whether string fields are dictionary encoded
+     */
+    public HeapFile(File file, TupleDesc td, boolean dictionaryEncoded) {
         // some code goes here
         this.file = file;
         this.tupleDesc = td;
-        //file.length()  返回的是文件的字节长度
-        this.numberOfPages = (int) (file.length() / BufferPool.getPageSize());
+        File dictFile = StringDictionary.sidecarFor(file);
+        try {
+            if (!dictionaryEncoded) {
+                this.dictionary = null;
+            } else if (dictFile.exists()) {
+                this.dictionary = StringDictionary.open(dictFile);
+            } else {
+                this.dictionary = StringDictionary.create(dictFile);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("failed to open string dictionary " + dictFile, e);
+        }
+        this.allocator = new FileExtentAllocator(file, 0);
+        try {
+            // 最后一个extent末尾全0的页是预分配但未使用的页，不计入页数
+            allocator.trimZeroTail(0);
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read the extents of " + file, e);
+        }
     }
 
     /**
@@ -63,6 +103,13 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * @return the dictionary of the string fields, or null if this file is not dictionary encoded
+     */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -128,6 +175,12 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(getFile(), "rw")) {
+            long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(page.getPageData());
+        }
+        allocator.ensurePages(page.getId().getPageNumber() + 1);
     }
 
     /**
@@ -135,23 +188,66 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return numberOfPages;
+        return allocator.numPages();
+    }
+
+    /**
+     * Truncates this file to its first numPages pages. Used by
+     * {@link HeapFileCompactor} after the trailing pages have been emptied and
+     * flushed; callers must make sure no cached copy of a removed page remains
+     * in the BufferPool. {@link #insertTuple} synchronizes on this file too, so
+     * a caller that holds the file's lock from checking the pages until the
+     * truncate knows that no tuple went into them in between.
+     *
+     * @param numPages the number of pages to keep
+     * @throws IOException if the underlying file cannot be shrunk
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        if (numPages < 0 || numPages > numPages()) {
+            throw new IllegalArgumentException("invalid page count " + numPages);
+        }
+        allocator.truncate(numPages);
     }
 
     // see DbFile.java for javadocs
-    public List<Page> insertTuple(TransactionId tid, Tuple t)
+    // 与truncate互斥：压缩检查尾部空页到截断之间，插入不能落到这些页上
+    public synchronized List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        return null;
         // not necessary for lab1
+        List<Page> dirtyPages = new ArrayList<>();
+        for (int pageNo = 0; pageNo < numPages(); pageNo++) {
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() > 0) {
+                page.insertTuple(t);
+                dirtyPages.add(page);
+                return dirtyPages;
+            }
+        }
+        // 所有页都已满，从预分配的extent中取一个新页（磁盘上已是全0的空页）
+        HeapPageId pid = new HeapPageId(getId(), allocator.allocatePage());
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        dirtyPages.add(page);
+        return dirtyPages;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        return null;
         // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()
+                || rid.getPageId().getPageNumber() >= numPages()) {
+            throw new DbException("tuple is not a member of this file");
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        ArrayList<Page> dirtyPages = new ArrayList<>();
+        dirtyPages.add(page);
+        return dirtyPages;
     }
 
     // see DbFile.java for javadocs
@@ -200,13 +296,16 @@ public class HeapFile implements DbFile {
             //如果遍历完当前页，测试是否还有页未遍历
             //注意要减一，这里与for循环的一般判断逻辑（迭代变量<长度）不同，是因为我们要在接下来代码中将pagePos加1才使用
             //如果不理解，可以自己举一个例子想象运行过程
-            if (pagePos < numPages() - 1) {
+            //这时不能直接return ture，有可能返回的新的迭代器是不含有tuple的（删除后中间可能出现空页），需要继续向后找
+            while (pagePos < numPages() - 1) {
                 pagePos++;
                 HeapPageId pid = new HeapPageId(getId(), pagePos);
                 tuplesInPage = getTuplesInPage(pid);
-                //这时不能直接return ture，有可能返回的新的迭代器是不含有tuple的
-                return tuplesInPage.hasNext();
-            } else return false;
+                if (tuplesInPage.hasNext()) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
@@ -0,0 +1,264 @@
+package simpledb.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * HeapFileCompactor reclaims the space left behind by deletes in a
+ * {@link HeapFile} (a "vacuum").
+ * <p>
+ * Tuples are moved from the pages at the end of the file into free slots of
+ * the pages at the beginning of the file, after which the emptied trailing
+ * pages are cut off the file. The work is split into one short transaction
+ * per source page so that the table stays usable while it is compacted:
+ * pages are fetched through {@link BufferPool#getPage} with
+ * {@link Permissions#READ_WRITE}, every modified page goes through the
+ * write-ahead log when the transaction commits, and a page that currently
+ * holds uncommitted changes of another transaction is left alone.
+ * <p>
+ * Moving a tuple changes its {@link RecordId}. Structures that remember record
+ * ids (secondary indexes, cursors, ...) register a {@link RelocationListener}
+ * to be told about every move.
+ *
+ * @see HeapFile#truncate(int)
+ */
+public class HeapFileCompactor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HeapFileCompactor.class);
+
+    /**
+     * Receives the new location of every tuple moved by the compactor.
+     */
+    public interface RelocationListener {
+        /**
+         * Called after the moving transaction has committed, for every tuple
+         * it moved from oldRid to newRid. Moves of a transaction that aborts
+         * are never reported.
+         *
+         * @param tableId the id of the compacted table
+         * @param oldRid  the record id before the move
+         * @param newRid  the record id after the move
+         */
+        void relocated(int tableId, RecordId oldRid, RecordId newRid);
+    }
+
+    /**
+     * Summary of one compaction run.
+     */
+    public static class Report {
+        private final int pagesBefore;
+        private final int pagesAfter;
+        private final int tuplesMoved;
+        private final long scanNanosBefore;
+        private final long scanNanosAfter;
+
+        Report(int pagesBefore, int pagesAfter, int tuplesMoved, long scanNanosBefore, long scanNanosAfter) {
+            this.pagesBefore = pagesBefore;
+            this.pagesAfter = pagesAfter;
+            this.tuplesMoved = tuplesMoved;
+            this.scanNanosBefore = scanNanosBefore;
+            this.scanNanosAfter = scanNanosAfter;
+        }
+
+        public int getPagesBefore() {
+            return pagesBefore;
+        }
+
+        public int getPagesAfter() {
+            return pagesAfter;
+        }
+
+        public int getTuplesMoved() {
+            return tuplesMoved;
+        }
+
+        /**
+         * @return the number of bytes the table file shrank by
+         */
+        public long getBytesReclaimed() {
+            return (long) (pagesBefore - pagesAfter) * BufferPool.getPageSize();
+        }
+
+        /**
+         * @return the time of a full scan of the table file before compaction, in nanoseconds
+         */
+        public long getScanNanosBefore() {
+            return scanNanosBefore;
+        }
+
+        /**
+         * @return the time of a full scan of the table file after compaction, in nanoseconds
+         */
+        public long getScanNanosAfter() {
+            return scanNanosAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("pages: %d -> %d, tuples moved: %d, bytes reclaimed: %d, full scan: %.3f ms -> %.3f ms",
+                    pagesBefore, pagesAfter, tuplesMoved, getBytesReclaimed(),
+                    scanNanosBefore / 1e6, scanNanosAfter / 1e6);
+        }
+    }
+
+    private final HeapFile file;
+
+    private final List<RelocationListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param file the heap file to compact; it must be registered in the catalog
+     */
+    public HeapFileCompactor(HeapFile file) {
+        this.file = file;
+    }
+
+    public void addRelocationListener(RelocationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeRelocationListener(RelocationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Compacts the file and truncates the pages that became empty.
+     *
+     * @return what the compaction achieved
+     */
+    public Report compact() throws DbException, TransactionAbortedException, IOException {
+        int pagesBefore = file.numPages();
+        long scanNanosBefore = timeFullScan();
+
+        int tuplesMoved = 0;
+        int dst = 0;
+        int src = pagesBefore - 1;
+        while (src > dst) {
+            Transaction transaction = new Transaction();
+            transaction.start();
+            boolean committed = false;
+            try {
+                HeapPage srcPage = getPage(transaction, src);
+                if (srcPage.isDirty() != null) {
+                    // 源页上有其他事务未提交的修改，跳过该页
+                    transaction.commit();
+                    committed = true;
+                    src--;
+                    continue;
+                }
+                List<Tuple> toMove = new ArrayList<>();
+                srcPage.iterator().forEachRemaining(toMove::add);
+                // 每次移动的{旧位置, 新位置}，事务提交后才通知监听者
+                List<RecordId[]> moves = new ArrayList<>();
+                for (Tuple t : toMove) {
+                    HeapPage dstPage = null;
+                    while (dst < src) {
+                        dstPage = getPage(transaction, dst);
+                        if (dstPage.getNumEmptySlots() > 0 && !isDirtiedByOther(dstPage, transaction)) {
+                            break;
+                        }
+                        dst++;
+                    }
+                    if (dst >= src) {
+                        break;
+                    }
+                    RecordId oldRid = t.getRecordId();
+                    srcPage.deleteTuple(t);
+                    dstPage.insertTuple(t);
+                    srcPage.markDirty(true, transaction.getId());
+                    dstPage.markDirty(true, transaction.getId());
+                    moves.add(new RecordId[]{oldRid, t.getRecordId()});
+                }
+                transaction.commit();
+                committed = true;
+                tuplesMoved += moves.size();
+                for (RecordId[] move : moves) {
+                    for (RelocationListener listener : listeners) {
+                        listener.relocated(file.getId(), move[0], move[1]);
+                    }
+                }
+                if (srcPage.getNumEmptySlots() == srcPage.numSlots) {
+                    src--;
+                }
+            } finally {
+                if (!committed) {
+                    transaction.abort();
+                }
+            }
+        }
+
+        truncateEmptyTail();
+        long scanNanosAfter = timeFullScan();
+        Report report = new Report(pagesBefore, file.numPages(), tuplesMoved, scanNanosBefore, scanNanosAfter);
+        LOGGER.info("vacuum {}: {}", file.getFile().getName(), report);
+        return report;
+    }
+
+    private HeapPage getPage(Transaction transaction, int pageNo)
+            throws TransactionAbortedException, DbException {
+        HeapPageId pid = new HeapPageId(file.getId(), pageNo);
+        return (HeapPage) Database.getBufferPool().getPage(transaction.getId(), pid, Permissions.READ_WRITE);
+    }
+
+    private static boolean isDirtiedByOther(HeapPage page, Transaction transaction) {
+        return page.isDirty() != null && !page.isDirty().equals(transaction.getId());
+    }
+
+    /**
+     * Cuts off the trailing pages that contain no tuple. Those pages are
+     * committed as empty, so dropping them needs no further logging. The
+     * file's lock is held from the check to the truncate, so that a concurrent
+     * {@link HeapFile#insertTuple} cannot put a tuple into a page that is
+     * about to be cut off; BufferPool does not lock pages yet.
+     */
+    private void truncateEmptyTail() throws DbException, TransactionAbortedException, IOException {
+        synchronized (file) {
+            Transaction transaction = new Transaction();
+            transaction.start();
+            int keep = file.numPages();
+            try {
+                while (keep > 1) {
+                    HeapPage page = getPage(transaction, keep - 1);
+                    if (page.isDirty() != null || page.getNumEmptySlots() != page.numSlots) {
+                        break;
+                    }
+                    keep--;
+                }
+            } finally {
+                transaction.commit();
+            }
+            for (int pageNo = keep; pageNo < file.numPages(); pageNo++) {
+                Database.getBufferPool().discardPage(new HeapPageId(file.getId(), pageNo));
+            }
+            file.truncate(keep);
+        }
+    }
+
+    /**
+     * Times a scan of every tuple of the file straight from disk, so that the
+     * result does not depend on what the BufferPool happens to cache.
+     */
+    private long timeFullScan() {
+        long start = System.nanoTime();
+        long tuples = 0;
+        for (int pageNo = 0; pageNo < file.numPages(); pageNo++) {
+            HeapPage page = (HeapPage) file.readPage(new HeapPageId(file.getId(), pageNo));
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                tuples++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        LOGGER.debug("scanned {} tuples in {} pages", tuples, file.numPages());
+        return elapsed;
+    }
+}
@@ -0,0 +1,438 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * HeapFileLoader converts a delimited text file into a heap file, using
+ * several threads.
+ * <p>
+ * The input is cut into chunks of about {@link #DEFAULT_CHUNK_BYTES} bytes that
+ * always end at a newline. A pool of workers reads the chunks with positional
+ * reads from a shared {@link FileChannel} and encodes every line into the
+ * fixed-width binary record of the table. The calling thread takes the encoded
+ * chunks back in input order, packs the records into pages exactly as
+ * {@link HeapPage} lays them out and appends the pages to the output through
+ * another FileChannel. Only a bounded number of chunks is in flight, so memory
+ * use does not depend on the size of the input.
+ * <p>
+ * Input format: one tuple per line, fields separated by the field separator,
+ * surrounding white space (including the '\r' of Windows line endings) ignored,
+ * empty lines skipped, the last line may lack its newline. A line with the
+ * wrong number of fields or an int field that is not a number makes the load
+ * fail with an IOException naming the byte offset of the line. String fields
+ * longer than {@link Type#STRING_LEN} bytes are truncated. An empty input
+ * still produces one empty page. With {@link #setDictionaryEncoded(boolean)}
+ * string fields are written as {@link StringDictionary} codes instead.
+ *
+ * @see HeapFileEncoder
+ */
+public class HeapFileLoader {
+
+    public static final int DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Summary of one load.
+     */
+    public static class Result {
+        private final long rows;
+        private final int pages;
+        private final long nanos;
+
+        Result(long rows, int pages, long nanos) {
+            this.rows = rows;
+            this.pages = pages;
+            this.nanos = nanos;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public int getPages() {
+            return pages;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows, %d pages in %.3f s (%.0f rows/sec)",
+                    rows, pages, nanos / 1e9, getRowsPerSecond());
+        }
+    }
+
+    /**
+     * The records encoded from one chunk of the input.
+     */
+    private static class EncodedChunk {
+        final byte[] records;
+        final int count;
+
+        EncodedChunk(byte[] records, int count) {
+            this.records = records;
+            this.count = count;
+        }
+    }
+
+    private final Type[] types;
+    private final char fieldSeparator;
+    private final int pageSize;
+    private int recordBytes;
+    private int recordsPerPage;
+    private int headerBytes;
+    private boolean dictionaryEncoded = false;
+    private StringDictionary dictionary;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkBytes = DEFAULT_CHUNK_BYTES;
+
+    /**
+     * @param types          the types of the fields of each line
+     * @param fieldSeparator the character between two fields of a line
+     * @param pageSize       the number of bytes per page of the output file
+     */
+    public HeapFileLoader(Type[] types, char fieldSeparator, int pageSize) {
+        this.types = types.clone();
+        this.fieldSeparator = fieldSeparator;
+        this.pageSize = pageSize;
+        computeLayout();
+    }
+
+    private void computeLayout() {
+        this.recordBytes = HeapPage.storedTupleSize(new TupleDesc(types), dictionaryEncoded);
+        // same layout as HeapPage: one header bit per slot, header rounded up to whole bytes
+        this.recordsPerPage = (pageSize * 8) / (recordBytes * 8 + 1);
+        this.headerBytes = (recordsPerPage + 7) / 8;
+    }
+
+    /**
+     * @param dictionaryEncoded whether to store string fields as codes of a
+     *                          {@link StringDictionary} written next to the output file
+     * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+     */
+    public HeapFileLoader setDictionaryEncoded(boolean dictionaryEncoded) {
+        this.dictionaryEncoded = dictionaryEncoded;
+        computeLayout();
+        return this;
+    }
+
+    /**
+     * @param threads the number of parsing threads, at least 1
+     */
+    public HeapFileLoader setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param chunkBytes the approximate number of input bytes handed to a worker at once
+     */
+    public HeapFileLoader setChunkBytes(int chunkBytes) {
+        if (chunkBytes < 1) {
+            throw new IllegalArgumentException("chunkBytes must be positive");
+        }
+        this.chunkBytes = chunkBytes;
+        return this;
+    }
+
+    /**
+     * Converts inFile into the heap file outFile, replacing outFile if it exists.
+     *
+     * @throws IOException if a file can't be read or written or a malformed line is encountered
+     */
+    public Result load(File inFile, File outFile) throws IOException {
+        long start = System.nanoTime();
+        File dictFile = StringDictionary.sidecarFor(outFile);
+        dictionary = dictionaryEncoded ? StringDictionary.create(dictFile) : null;
+        if (!dictionaryEncoded && dictFile.exists() && !dictFile.delete()) {
+            // a stale dictionary would make the new plain file open as dictionary encoded
+            throw new IOException("cannot delete " + dictFile);
+        }
+        File extentFile = FileExtentAllocator.sidecarFor(outFile);
+        if (extentFile.exists() && !extentFile.delete()) {
+            // the extent of the old file would make the new file lose its trailing empty pages
+            throw new IOException("cannot delete " + extentFile);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "heapfile-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PageWriter writer = new PageWriter(out);
+            Deque<Future<EncodedChunk>> inFlight = new ArrayDeque<>();
+            long size = in.size();
+            long chunkStart = 0;
+            while (chunkStart < size || !inFlight.isEmpty()) {
+                // keep every worker busy plus one chunk in reserve, but not more
+                while (chunkStart < size && inFlight.size() < threads * 2) {
+                    long chunkEnd = findChunkEnd(in, chunkStart + chunkBytes, size);
+                    final long from = chunkStart;
+                    inFlight.add(pool.submit(() -> encode(in, from, chunkEnd)));
+                    chunkStart = chunkEnd;
+                }
+                writer.append(await(inFlight.poll()));
+            }
+            writer.finish();
+            if (dictionary != null) {
+                dictionary.sync();
+            }
+            return new Result(writer.rows, writer.pages, System.nanoTime() - start);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static EncodedChunk await(Future<EncodedChunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the offset just past the first newline at or after from, or size if there is none
+     */
+    private static long findChunkEnd(FileChannel in, long from, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long pos = from;
+        while (pos < size) {
+            buf.clear();
+            int n = in.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * Parses the lines in [from, to) into consecutive binary records.
+     */
+    private EncodedChunk encode(FileChannel in, long from, long to) throws IOException {
+        byte[] data = new byte[(int) (to - from)];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, from + buf.position()) < 0) {
+                throw new IOException("unexpected end of input at byte " + (from + buf.position()));
+            }
+        }
+
+        byte[] records = new byte[recordBytes * 64];
+        int count = 0;
+        int pos = 0;
+        while (pos < data.length) {
+            int lineEnd = pos;
+            while (lineEnd < data.length && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (!isBlank(data, pos, lineEnd)) {
+                if ((count + 1) * recordBytes > records.length) {
+                    records = Arrays.copyOf(records, records.length * 2);
+                }
+                encodeLine(data, pos, lineEnd, records, count * recordBytes, from + pos);
+                count++;
+            }
+            pos = lineEnd + 1;
+        }
+        return new EncodedChunk(records, count);
+    }
+
+    private static boolean isBlank(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void encodeLine(byte[] data, int from, int to, byte[] out, int outPos, long lineOffset)
+            throws IOException {
+        int fieldStart = from;
+        for (int field = 0; field < types.length; field++) {
+            int fieldEnd = fieldStart;
+            while (fieldEnd < to && data[fieldEnd] != fieldSeparator) {
+                fieldEnd++;
+            }
+            boolean last = field == types.length - 1;
+            if (last != (fieldEnd == to)) {
+                throw new IOException("line at byte " + lineOffset + " does not have "
+                        + types.length + " fields");
+            }
+            // trim white space, including the '\r' of "\r\n"
+            int s = fieldStart;
+            int e = fieldEnd;
+            while (s < e && (data[s] & 0xff) <= ' ') {
+                s++;
+            }
+            while (e > s && (data[e - 1] & 0xff) <= ' ') {
+                e--;
+            }
+            if (types[field] == Type.INT_TYPE) {
+                writeInt(out, outPos, parseInt(data, s, e, lineOffset));
+            } else if (dictionary != null) {
+                writeInt(out, outPos, dictionary.encode(new String(data, s, cut(data, s, e), StandardCharsets.UTF_8)));
+            } else {
+                int len = cut(data, s, e);
+                writeInt(out, outPos, len);
+                // the rest of the field stays zero
+                System.arraycopy(data, s, out, outPos + 4, len);
+            }
+            outPos += dictionary != null && types[field] == Type.STRING_TYPE ? 4 : types[field].getLen();
+            fieldStart = fieldEnd + 1;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 string in data[from, to) that
+     * are stored: at most {@link Type#STRING_LEN}, and never part of a character
+     */
+    private static int cut(byte[] data, int from, int to) {
+        int len = Math.min(to - from, Type.STRING_LEN);
+        // 第一个不保留的字节是10xxxxxx时截断点落在字符中间，退到字符的首字节之前
+        while (len > 0 && from + len < to && (data[from + len] & 0xc0) == 0x80) {
+            len--;
+        }
+        return len;
+    }
+
+    private static int parseInt(byte[] data, int from, int to, long lineOffset) throws IOException {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i == to) {
+            throw badInt(data, from, to, lineOffset);
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw badInt(data, from, to, lineOffset);
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw badInt(data, from, to, lineOffset);
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw badInt(data, from, to, lineOffset);
+        }
+        return (int) value;
+    }
+
+    private static IOException badInt(byte[] data, int from, int to, long lineOffset) {
+        return new IOException("bad int '" + new String(data, from, to - from)
+                + "' in line at byte " + lineOffset);
+    }
+
+    private static void writeInt(byte[] out, int pos, int v) {
+        out[pos] = (byte) (v >>> 24);
+        out[pos + 1] = (byte) (v >>> 16);
+        out[pos + 2] = (byte) (v >>> 8);
+        out[pos + 3] = (byte) v;
+    }
+
+    /**
+     * Packs records into pages and writes them out in order, several pages per write.
+     */
+    private class PageWriter {
+        private static final int PAGES_PER_WRITE = 64;
+
+        private final FileChannel out;
+        private final ByteBuffer pending = ByteBuffer.allocate(pageSize * PAGES_PER_WRITE);
+        private final byte[] page = new byte[pageSize];
+        private int recordsInPage = 0;
+        long rows = 0;
+        int pages = 0;
+
+        PageWriter(FileChannel out) {
+            this.out = out;
+        }
+
+        void append(EncodedChunk chunk) throws IOException {
+            int done = 0;
+            while (done < chunk.count) {
+                int n = Math.min(chunk.count - done, recordsPerPage - recordsInPage);
+                System.arraycopy(chunk.records, done * recordBytes,
+                        page, headerBytes + recordsInPage * recordBytes, n * recordBytes);
+                recordsInPage += n;
+                done += n;
+                if (recordsInPage == recordsPerPage) {
+                    emitPage();
+                }
+            }
+            rows += chunk.count;
+        }
+
+        void finish() throws IOException {
+            // a partial last page, or a single empty page for an empty input
+            if (recordsInPage > 0 || pages == 0) {
+                emitPage();
+            }
+            flush();
+        }
+
+        private void emitPage() throws IOException {
+            for (int i = 0; i < recordsInPage; i++) {
+                page[i / 8] |= (byte) (1 << (i % 8));
+            }
+            if (!pending.hasRemaining()) {
+                flush();
+            }
+            pending.put(page);
+            Arrays.fill(page, (byte) 0);
+            recordsInPage = 0;
+            pages++;
+        }
+
+        private void flush() throws IOException {
+            pending.flip();
+            while (pending.hasRemaining()) {
+                out.write(pending);
+            }
+            pending.clear();
+        }
+    }
+}
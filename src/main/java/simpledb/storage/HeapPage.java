@@ -3,9 +3,11 @@ package simpledb.storage;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -47,6 +49,33 @@ public class HeapPage implements Page {
 
     private final Byte oldDataLock = (byte) 0;
 
+    /**
+     * 最近一次修改该页的事务，页未被修改时为null
+     */
+    private volatile TransactionId dirtier;
+
+    /**
+     * 表的字符串字典，表未做字典编码时为null；编码后字符串列在页中只存4字节的code
+     */
+    final StringDictionary dictionary;
+
+    /**
+     * 一个元组在页中占用的字节数
+     */
+    final int tupleSize;
+
+    /**
+     * 元组在页中的字节布局
+     */
+    final RowLayout rowLayout;
+
+    /**
+     * 从磁盘读入的页字节，只读
+     */
+    private final byte[] data;
+
+    private final TupleBatch.ColumnLoader columnLoader = this::decodeColumn;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -67,25 +96,19 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId heapPageId, byte[] data) throws IOException {
         this.pid = heapPageId;
         this.td = Database.getCatalog().getTupleDesc(heapPageId.getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(heapPageId.getTableId());
+        this.dictionary = file instanceof HeapFile ? ((HeapFile) file).getDictionary() : null;
+        this.tupleSize = storedTupleSize(td, dictionary != null);
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.rowLayout = dictionary != null ? new RowLayout(td, dictionary) : td.getRowLayout();
+        // 元组不再逐个解析成Field，而是按需创建指向页字节的packed元组（见tupleAt），
+        // 因此页字节在页的整个生命周期内不能被修改
+        this.data = data.clone();
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++) {
-            header[i] = dis.readByte();
-        }
+        header = Arrays.copyOf(this.data, getHeaderSize());
 
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++) {
-                tuples[i] = readNextTuple(dis, i);
-            }
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
 
         setBeforeImage();
     }
@@ -101,10 +124,26 @@ public class HeapPage implements Page {
         if (numSlots != 0) {
             return numSlots;
         }
-        return Math.floorDiv(BufferPool.getPageSize() * 8, td.getSize() * 8 + 1);
+        return Math.floorDiv(BufferPool.getPageSize() * 8, tupleSize * 8 + 1);
 //        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
     }
 
+    /**
+     * @param td                the schema of the table
+     * @param dictionaryEncoded whether string fields are stored as dictionary codes
+     * @return the number of bytes a tuple of td takes in a page
+     */
+    public static int storedTupleSize(TupleDesc td, boolean dictionaryEncoded) {
+        if (!dictionaryEncoded) {
+            return td.getSize();
+        }
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            size += td.getFieldType(i) == Type.STRING_TYPE ? 4 : td.getFieldType(i).getLen();
+        }
+        return size;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple
      * occupying tupleSize bytes
@@ -162,37 +201,68 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in slot slotId, creating it as a packed view of the
+     * page bytes the first time it is asked for, or null if the slot is empty.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple tupleAt(int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(rowLayout, data, header.length + slotId * tupleSize);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
+        }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Loads the tuples of this page into batch, one row per used slot, in slot
+     * order. Columns are decoded from the page bytes only when an operator
+     * asks the batch for them. The batch is resized to hold every slot of the
+     * page; its previous contents are discarded.
+     */
+    public void readBatch(TupleBatch batch) {
+        batch.ensureCapacity(numSlots);
+        int[] slots = batch.slots();
+        int rows = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (isSlotUsed(slot)) {
+                slots[rows++] = slot;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+        batch.setLazy(rows, columnLoader, dictionary);
+    }
 
-        return t;
+    private void decodeColumn(TupleBatch batch, int f) {
+        int[] slots = batch.slots();
+        int[] ints = batch.intColumn(f);
+        String[] strings = batch.stringColumn(f);
+        int[] codes = strings != null && dictionary != null ? batch.codes(f) : null;
+        int offset = header.length + rowLayout.getOffset(f);
+        for (int row = 0; row < batch.size(); row++) {
+            int slot = slots[row];
+            Tuple t = tuples[slot];
+            if (t != null && !t.isPackedIn(data)) {
+                // 插入或修改过的元组以Tuple为准
+                batch.set(f, row, t, f);
+                if (codes != null) {
+                    // 修改后的值可能不是本字典中的码，这样的行只能比较字符串
+                    codes[row] = t.getStringDictionary(f) == dictionary ? t.getStringCode(f) : -1;
+                }
+                continue;
+            }
+            int pos = offset + slot * tupleSize;
+            if (ints != null) {
+                ints[row] = RowLayout.readInt(data, pos);
+            } else if (dictionary != null) {
+                codes[row] = RowLayout.readInt(data, pos);
+                strings[row] = dictionary.decode(codes[row]);
+            } else {
+                strings[row] = RowLayout.readString(data, pos);
+            }
+        }
     }
 
     /**
@@ -202,69 +272,70 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The codes of a dictionary-encoded page are synced to the dictionary
+     * file first; if that fails, a RuntimeException is thrown rather than
+     * returning bytes with codes that could not be decoded after a crash.
      *
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] page = new byte[BufferPool.getPageSize()];
 
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        System.arraycopy(header, 0, page, 0, header.length);
 
-        // create the tuples
+        // create the tuples; empty slots and the padding stay zero
+        ByteArrayOutputStream baos = null;
         for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
             if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                continue;
+            }
+            int pos = header.length + i * tupleSize;
+            if (tuples[i] == null) {
+                // never touched since the page was read: the bytes are unchanged
+                System.arraycopy(data, pos, page, pos, tupleSize);
+                continue;
+            }
+            if (tuples[i].copyPackedTo(rowLayout, page, pos)) {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot built from Field objects
+            if (baos == null) {
+                baos = new ByteArrayOutputStream(tupleSize);
+            }
+            baos.reset();
+            DataOutputStream dos = new DataOutputStream(baos);
             for (int j = 0; j < td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
-                    f.serialize(dos);
-
+                    if (dictionary != null && f instanceof StringField) {
+                        dos.writeInt(f instanceof DictionaryStringField && ((DictionaryStringField) f).getDictionary() == dictionary
+                                ? ((DictionaryStringField) f).getCode()
+                                : dictionary.encode(((StringField) f).getValue()));
+                    } else {
+                        f.serialize(dos);
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, page, pos, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (dictionary != null) {
+            try {
+                // 新分配的code必须先于引用它们的页数据（日志或表文件）落盘
+                dictionary.sync();
+            } catch (IOException e) {
+                // 不能交出引用了未落盘code的页数据
+                throw new RuntimeException("could not sync the dictionary of the page", e);
+            }
         }
 
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -292,6 +363,17 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            throw new DbException("tuple slot is already empty");
+        }
+        markSlotUsed(slot, false);
+        tuples[slot] = null;
+        t.setRecordId(null);
     }
 
     /**
@@ -305,6 +387,18 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("tupleDesc is mismatch");
+        }
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                markSlotUsed(i, true);
+                t.setRecordId(new RecordId(pid, i));
+                tuples[i] = t;
+                return;
+            }
+        }
+        throw new DbException("page is full");
     }
 
     /**
@@ -314,6 +408,7 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
         // not necessary for lab1
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
@@ -322,7 +417,7 @@ public class HeapPage implements Page {
     public TransactionId isDirty() {
         // some code goes here
         // Not necessary for lab1
-        return null;
+        return dirtier;
     }
 
     /**
@@ -372,6 +467,13 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        int byteNum = i / 8;
+        int posInByte = i % 8;
+        if (value) {
+            header[byteNum] |= (byte) (1 << posInByte);
+        } else {
+            header[byteNum] &= (byte) ~(1 << posInByte);
+        }
     }
 
     /**
@@ -414,7 +516,7 @@ public class HeapPage implements Page {
                 index++;
             }
             pos++;
-            return tuples[index++];
+            return tupleAt(index++);
         }
     }
 
@@ -0,0 +1,196 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * NormalizedKey encodes fields into byte strings whose unsigned lexicographic
+ * order (memcmp order) is the order of the fields, so that sorting compares
+ * raw bytes instead of calling {@link Field#compare} once per operator.
+ * <ul>
+ * <li>An int is written as 4 big-endian bytes with the sign bit flipped.</li>
+ * <li>A string is written as its UTF-16 chars, 2 big-endian bytes each, which
+ * is the order of {@link String#compareTo}. A char 0 is escaped as 0x0000 0xFFFF
+ * and the string is terminated by 0x0000 0x0000, so no encoded string is a
+ * prefix of another: keys of several fields can simply be concatenated, and
+ * inverting a key reverses its order.</li>
+ * <li>A descending field has all its bytes inverted.</li>
+ * </ul>
+ * Sorting first compares the first 8 bytes of the keys as one long (see
+ * {@link #prefix(byte[])}), and only looks at the rest of the keys on a tie.
+ */
+public final class NormalizedKey {
+
+    private NormalizedKey() {
+    }
+
+    /**
+     * @return the key of a single field in ascending order
+     */
+    public static byte[] of(Field f) {
+        if (f.getType() == Type.INT_TYPE) {
+            byte[] key = new byte[4];
+            putInt(((IntField) f).getValue(), key, 0);
+            return key;
+        }
+        String s = ((StringField) f).getValue();
+        byte[] key = new byte[stringLength(s)];
+        putString(s, key, 0);
+        return key;
+    }
+
+    /**
+     * @param fields    the fields of t that make up the key, most significant first
+     * @param ascending the direction of every field of the key
+     * @return the key of t
+     */
+    public static byte[] of(Tuple t, int[] fields, boolean[] ascending) {
+        TupleDesc td = t.getTupleDesc();
+        int length = 0;
+        for (int field : fields) {
+            length += td.getFieldType(field) == Type.INT_TYPE ? 4 : stringLength(t.getString(field));
+        }
+        byte[] key = new byte[length];
+        int off = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = off;
+            if (td.getFieldType(fields[i]) == Type.INT_TYPE) {
+                off = putInt(t.getInt(fields[i]), key, off);
+            } else {
+                off = putString(t.getString(fields[i]), key, off);
+            }
+            if (!ascending[i]) {
+                for (int j = start; j < off; j++) {
+                    key[j] = (byte) ~key[j];
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Writes the 4 byte key of v at off.
+     *
+     * @return the offset after the key
+     */
+    public static int putInt(int v, byte[] key, int off) {
+        v ^= Integer.MIN_VALUE;
+        key[off] = (byte) (v >>> 24);
+        key[off + 1] = (byte) (v >>> 16);
+        key[off + 2] = (byte) (v >>> 8);
+        key[off + 3] = (byte) v;
+        return off + 4;
+    }
+
+    private static int stringLength(String s) {
+        int length = 2 * s.length() + 4;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == 0) length += 2;
+        }
+        return length;
+    }
+
+    private static int putString(String s, byte[] key, int off) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            key[off++] = (byte) (c >>> 8);
+            key[off++] = (byte) c;
+            if (c == 0) {
+                key[off++] = (byte) 0xFF;
+                key[off++] = (byte) 0xFF;
+            }
+        }
+        // 终止符与转义后的0在第二个char处不同，编码因此无前缀关系
+        return off + 4;
+    }
+
+    /**
+     * Compares two keys byte by byte as unsigned values.
+     */
+    public static int compare(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /**
+     * @return the first 8 bytes of key as a long, padded with zeros; if two
+     * prefixes differ, {@link Long#compareUnsigned} on them orders the keys
+     */
+    public static long prefix(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = prefix << 8 | (i < key.length ? key[i] & 0xFF : 0);
+        }
+        return prefix;
+    }
+
+    /**
+     * Compares two fields of the same type with a single comparison, in the
+     * order of their keys.
+     */
+    public static int compare(Field a, Field b) {
+        if (a.getType() == Type.INT_TYPE) {
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        }
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    /**
+     * Sorts items by the keys that keyOf computes for them, computing each key
+     * only once. The sort is stable.
+     */
+    public static <T> void sort(List<T> items, Function<? super T, byte[]> keyOf) {
+        Entry[] entries = new Entry[items.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(keyOf.apply(items.get(i)), items.get(i));
+        }
+        Arrays.sort(entries, Entry::compareTo);
+        for (int i = 0; i < entries.length; i++) {
+            @SuppressWarnings("unchecked")
+            T item = (T) entries[i].item;
+            items.set(i, item);
+        }
+    }
+
+    /**
+     * Sorts tuples by the int field of the given index. An int key fits in
+     * the high half of a long, so it is packed together with the position of
+     * every tuple into a long and sorted as a primitive; the position keeps
+     * the sort stable. Longs are compared signed, so the sign bit of the value
+     * is kept rather than flipped.
+     */
+    public static void sortByInt(List<Tuple> tuples, int field, boolean ascending) {
+        long[] keys = new long[tuples.size()];
+        for (int i = 0; i < keys.length; i++) {
+            int v = tuples.get(i).getInt(field);
+            keys[i] = (long) (ascending ? v : ~v) << 32 | i;
+        }
+        Arrays.sort(keys);
+        Tuple[] sorted = new Tuple[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sorted[i] = tuples.get((int) keys[i]);
+        }
+        for (int i = 0; i < sorted.length; i++) {
+            tuples.set(i, sorted[i]);
+        }
+    }
+
+    private static final class Entry {
+        final long prefix;
+        final byte[] key;
+        final Object item;
+
+        Entry(byte[] key, Object item) {
+            this.prefix = prefix(key);
+            this.key = key;
+            this.item = item;
+        }
+
+        int compareTo(Entry other) {
+            int c = Long.compareUnsigned(prefix, other.prefix);
+            return c != 0 ? c : compare(key, other.key);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * RowLayout describes where the fields of a packed row live inside a byte
+ * array: the offset of every field relative to the start of the row and the
+ * total width. The standard layout, {@link TupleDesc#getRowLayout()}, is the
+ * on-page format written by {@link Field#serialize}; a dictionary encoded
+ * table uses a layout whose string fields are 4 byte {@link StringDictionary}
+ * codes.
+ *
+ * @see Tuple#Tuple(RowLayout, byte[], int)
+ */
+public final class RowLayout implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TupleDesc td;
+
+    private final int[] offsets;
+
+    private final int size;
+
+    private final transient StringDictionary dictionary;
+
+    /**
+     * @param td         the schema of the rows
+     * @param dictionary the dictionary of the string fields, or null if they are stored inline
+     */
+    public RowLayout(TupleDesc td, StringDictionary dictionary) {
+        this.td = td;
+        this.dictionary = dictionary;
+        this.offsets = new int[td.numFields()];
+        int offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            Type type = td.getFieldType(i);
+            offset += dictionary != null && type == Type.STRING_TYPE ? 4 : type.getLen();
+        }
+        this.size = offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the offset of field i from the start of the row
+     */
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * @return the number of bytes of a row
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the dictionary of the string fields, or null if strings are stored inline
+     */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return whether rows of this layout can be copied byte for byte into rows of other
+     */
+    public boolean isStandard() {
+        return dictionary == null;
+    }
+
+    /**
+     * big-endian int view of a byte[], one bounds-checked load instead of four
+     */
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    static int readInt(byte[] data, int pos) {
+        return (int) INT.get(data, pos);
+    }
+
+    static String readString(byte[] data, int pos) {
+        int len = Math.min(Math.max(readInt(data, pos), 0), Type.STRING_LEN);
+        return new String(data, pos + 4, len);
+    }
+
+    static void writeInt(byte[] data, int pos, int v) {
+        INT.set(data, pos, v);
+    }
+}
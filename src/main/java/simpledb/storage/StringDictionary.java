@@ -0,0 +1,182 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StringDictionary maps the distinct values of the string columns of one
+ * table to dense int codes 0, 1, 2, ...
+ * <p>
+ * A dictionary encoded {@link HeapFile} stores the 4 byte code instead of the
+ * {@link Type#STRING_LEN} + 4 byte string in its pages. The dictionary only
+ * ever grows, so a code never changes its meaning, and it lives next to the
+ * table file in a "&lt;table file&gt;.dict" file holding the values in code
+ * order. New codes are appended to that file by {@link #sync()}, which
+ * {@link HeapPage#getPageData()} calls before page bytes that may contain the
+ * new codes reach the log or the table file.
+ *
+ * @see DictionaryStringField
+ */
+public class StringDictionary {
+
+    private final File file;
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+
+    private volatile String[] values = new String[16];
+
+    private volatile int size = 0;
+
+    private volatile DictionaryStringField[] fields = new DictionaryStringField[16];
+
+    /**
+     * number of codes that are already in the dictionary file
+     */
+    private int synced = 0;
+
+    private StringDictionary(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the dictionary file that belongs to the table file dataFile
+     */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".dict");
+    }
+
+    /**
+     * Creates a new, empty dictionary, replacing the dictionary file if it exists.
+     */
+    public static StringDictionary create(File file) throws IOException {
+        new FileOutputStream(file).close();
+        return new StringDictionary(file);
+    }
+
+    /**
+     * Loads the dictionary stored in file.
+     */
+    public static StringDictionary open(File file) throws IOException {
+        StringDictionary dict = new StringDictionary(file);
+        // end of the last complete value
+        long complete = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (dis.available() > 0) {
+                byte[] bytes = new byte[dis.readUnsignedShort()];
+                dis.readFully(bytes);
+                dict.add(new String(bytes, StandardCharsets.UTF_8));
+                complete += 2 + bytes.length;
+            }
+        } catch (EOFException e) {
+            // a value cut short by a crash was never synced, so no page refers to it
+        }
+        if (complete < file.length()) {
+            // 去掉残缺的记录，否则sync追加的值会接在它后面，重新打开时被错读
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(complete);
+            }
+        }
+        dict.synced = dict.size;
+        return dict;
+    }
+
+    /**
+     * @return the code of s, or -1 if s is not in the dictionary
+     */
+    public int lookup(String s) {
+        Integer code = codes.get(s);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @return the code of s, adding s to the dictionary if it is new. s is cut
+     * to {@link Type#STRING_LEN} characters like a {@link StringField}.
+     */
+    public int encode(String s) {
+        if (s.length() > Type.STRING_LEN) {
+            s = s.substring(0, Type.STRING_LEN);
+        }
+        Integer code = codes.get(s);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(s);
+            return code != null ? code : add(s);
+        }
+    }
+
+    /**
+     * @return the value of code
+     */
+    public String decode(int code) {
+        if (code < 0 || code >= size) {
+            throw new IllegalArgumentException("unknown dictionary code " + code);
+        }
+        return values[code];
+    }
+
+    /**
+     * @return the field for code; all rows with the same code share one instance
+     */
+    public DictionaryStringField field(int code) {
+        DictionaryStringField[] cache = fields;
+        if (code < cache.length && cache[code] != null) {
+            return cache[code];
+        }
+        synchronized (this) {
+            if (code >= fields.length) {
+                fields = Arrays.copyOf(fields, Math.max(code + 1, fields.length * 2));
+            }
+            if (fields[code] == null) {
+                fields[code] = new DictionaryStringField(this, code);
+            }
+            return fields[code];
+        }
+    }
+
+    /**
+     * @return the number of distinct values
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends the codes added since the last call to the dictionary file and
+     * forces them to disk.
+     */
+    public synchronized void sync() throws IOException {
+        if (synced == size) {
+            return;
+        }
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            for (int code = synced; code < size; code++) {
+                byte[] bytes = values[code].getBytes(StandardCharsets.UTF_8);
+                dos.writeShort(bytes.length);
+                dos.write(bytes);
+            }
+            dos.flush();
+            fos.getChannel().force(true);
+        }
+        synced = size;
+    }
+
+    private synchronized int add(String s) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int code = size;
+        values[code] = s;
+        // publish the value before the code becomes visible to lock-free readers
+        size = code + 1;
+        codes.put(s, code);
+        return code;
+    }
+}
@@ -1,5 +1,7 @@
 package simpledb.storage;
 
+import simpledb.common.Type;
+
 import java.io.Serializable;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -8,6 +10,14 @@ import java.util.NoSuchElementException;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page is a packed row: a view of the row's bytes inside
+ * the page, described by a {@link RowLayout}. Its fields are only turned into
+ * Field objects when {@link #getField} asks for them; the typed accessors
+ * {@link #getInt} and {@link #getString} read the bytes directly, and
+ * {@link #concat} / {@link #project} build new packed rows with plain byte
+ * copies. Setting a field stores it as a Field object that overrides the
+ * packed value.
  */
 public class Tuple implements Serializable {
 
@@ -19,10 +29,24 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
 
     /**
-     * 元组包含的字段
+     * 元组包含的字段，packed元组中按需创建（null表示尚未从字节中解析）
      */
     private Field[] fields;
 
+    /**
+     * packed元组的字节布局、所在字节数组以及起始偏移量；非packed元组为null
+     */
+    private final RowLayout layout;
+
+    private final byte[] data;
+
+    private final int base;
+
+    /**
+     * 是否有字段被setField覆盖过（此时packed字节不再完整代表该元组）
+     */
+    private boolean modified;
+
     /**
      * 元组的id序号
      */
@@ -39,6 +63,251 @@ public class Tuple implements Serializable {
         this.tupleDesc = td;
         // init fields array
         this.fields = new Field[td.numFields()];
+        this.layout = null;
+        this.data = null;
+        this.base = 0;
+    }
+
+    /**
+     * Create a packed tuple that reads its fields from data, starting at base,
+     * laid out as described by layout. The bytes must not change while the
+     * tuple is in use.
+     *
+     * @param layout the layout of the row
+     * @param data   the array holding the row
+     * @param base   the offset of the row in data
+     */
+    public Tuple(RowLayout layout, byte[] data, int base) {
+        this.tupleDesc = layout.getTupleDesc();
+        this.layout = layout;
+        this.data = data;
+        this.base = base;
+    }
+
+    /**
+     * @return whether all fields of this tuple can be read from packed bytes of the standard layout
+     */
+    private boolean isStandardPacked() {
+        return layout != null && !modified && layout.isStandard();
+    }
+
+    /**
+     * Copies this packed row into dest.
+     *
+     * @return false if this tuple is not an unmodified packed row of the given layout
+     */
+    boolean copyPackedTo(RowLayout expected, byte[] dest, int destPos) {
+        if (layout == null || modified || layout.getSize() != expected.getSize()
+                || layout.getDictionary() != expected.getDictionary()) {
+            return false;
+        }
+        System.arraycopy(data, base, dest, destPos, layout.getSize());
+        return true;
+    }
+
+    /**
+     * Returns this tuple with its row in an array of its own. A packed row
+     * read from a page is a view into the whole page, so an operator that
+     * keeps it, and charges only {@link TupleDesc#getSize()} for it, would
+     * keep the page alive as well.
+     *
+     * @return this tuple if it does not share its bytes, otherwise a copy of it
+     */
+    public Tuple compact() {
+        if (layout == null || data.length == layout.getSize()) {
+            return this;
+        }
+        byte[] row = new byte[layout.getSize()];
+        System.arraycopy(data, base, row, 0, row.length);
+        Tuple t = new Tuple(layout, row, 0);
+        t.fields = fields == null ? null : fields.clone();
+        t.modified = modified;
+        t.recordId = recordId;
+        return t;
+    }
+
+    /**
+     * @return whether this tuple is an unmodified packed row inside data
+     */
+    boolean isPackedIn(byte[] data) {
+        return layout != null && !modified && this.data == data;
+    }
+
+    /**
+     * Returns the value of the int field i without creating a Field object.
+     *
+     * @param i index of an INT_TYPE field
+     */
+    public int getInt(int i) {
+        if (layout == null || (fields != null && fields[i] != null)) {
+            return ((IntField) getField(i)).getValue();
+        }
+        return RowLayout.readInt(data, base + layout.getOffset(i));
+    }
+
+    /**
+     * Returns the value of the string field i without creating a Field object.
+     *
+     * @param i index of a STRING_TYPE field
+     */
+    public String getString(int i) {
+        if (layout == null || (fields != null && fields[i] != null)) {
+            return ((StringField) getField(i)).getValue();
+        }
+        int pos = base + layout.getOffset(i);
+        if (layout.getDictionary() != null) {
+            return layout.getDictionary().decode(RowLayout.readInt(data, pos));
+        }
+        return RowLayout.readString(data, pos);
+    }
+
+    /**
+     * @return the dictionary the string field i is stored as a code of, or
+     * null if it is stored as a string
+     */
+    public StringDictionary getStringDictionary(int i) {
+        if (layout == null || (fields != null && fields[i] != null)) {
+            Field f = fields[i];
+            return f instanceof DictionaryStringField ? ((DictionaryStringField) f).getDictionary() : null;
+        }
+        return layout.getDictionary();
+    }
+
+    /**
+     * Returns the dictionary code of the string field i without creating a
+     * Field object.
+     *
+     * @param i index of a STRING_TYPE field whose {@link #getStringDictionary}
+     *          is not null
+     */
+    public int getStringCode(int i) {
+        if (layout == null || (fields != null && fields[i] != null)) {
+            return ((DictionaryStringField) fields[i]).getCode();
+        }
+        return RowLayout.readInt(data, base + layout.getOffset(i));
+    }
+
+    private Field materialize(int i) {
+        int pos = base + layout.getOffset(i);
+        if (tupleDesc.getFieldType(i) == Type.INT_TYPE) {
+            return new IntField(RowLayout.readInt(data, pos));
+        }
+        if (layout.getDictionary() != null) {
+            return layout.getDictionary().field(RowLayout.readInt(data, pos));
+        }
+        return new StringField(getString(i), Type.STRING_LEN);
+    }
+
+    /**
+     * Creates the concatenation of t1 and t2, as produced by a join. Packed
+     * rows of the standard layout are combined with two byte copies.
+     *
+     * @param td the schema of the result, the merge of the schemas of t1 and t2
+     */
+    public static Tuple concat(TupleDesc td, Tuple t1, Tuple t2) {
+        if (t1.isStandardPacked() && t2.isStandardPacked()) {
+            int size1 = t1.layout.getSize();
+            int size2 = t2.layout.getSize();
+            byte[] row = new byte[size1 + size2];
+            System.arraycopy(t1.data, t1.base, row, 0, size1);
+            System.arraycopy(t2.data, t2.base, row, size1, size2);
+            return new Tuple(td.getRowLayout(), row, 0);
+        }
+        int n1 = t1.tupleDesc.numFields();
+        int n2 = t2.tupleDesc.numFields();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < n1; i++) {
+            t.fields[i] = t1.getField(i);
+        }
+        for (int i = 0; i < n2; i++) {
+            t.fields[n1 + i] = t2.getField(i);
+        }
+        return t;
+    }
+
+    /**
+     * Creates the concatenation of several tuples, such as the rows matched
+     * by a pipeline of joins, with one copy of each.
+     *
+     * @param td the schema of the result, the merge of the schemas of parts
+     */
+    public static Tuple concat(TupleDesc td, Tuple[] parts) {
+        int size = 0;
+        for (Tuple part : parts) {
+            if (!part.isStandardPacked()) {
+                size = -1;
+                break;
+            }
+            size += part.layout.getSize();
+        }
+        if (size >= 0) {
+            byte[] row = new byte[size];
+            int pos = 0;
+            for (Tuple part : parts) {
+                System.arraycopy(part.data, part.base, row, pos, part.layout.getSize());
+                pos += part.layout.getSize();
+            }
+            return new Tuple(td.getRowLayout(), row, 0);
+        }
+        Tuple t = new Tuple(td);
+        int i = 0;
+        for (Tuple part : parts) {
+            for (int f = 0; f < part.tupleDesc.numFields(); f++) {
+                t.fields[i++] = part.getField(f);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Creates a tuple holding the fields fieldIds[i] of parts[partIds[i]],
+     * in that order: the projection of the concatenation of parts, without
+     * creating the concatenation.
+     *
+     * @param td the schema of the result
+     */
+    public static Tuple project(TupleDesc td, Tuple[] parts, int[] partIds, int[] fieldIds) {
+        boolean packed = true;
+        for (int p : partIds) {
+            packed &= parts[p].isStandardPacked();
+        }
+        if (packed) {
+            RowLayout out = td.getRowLayout();
+            byte[] row = new byte[out.getSize()];
+            for (int i = 0; i < fieldIds.length; i++) {
+                Tuple t = parts[partIds[i]];
+                System.arraycopy(t.data, t.base + t.layout.getOffset(fieldIds[i]), row, out.getOffset(i),
+                        td.getFieldType(i).getLen());
+            }
+            return new Tuple(out, row, 0);
+        }
+        Tuple result = new Tuple(td);
+        for (int i = 0; i < fieldIds.length; i++) {
+            result.fields[i] = parts[partIds[i]].getField(fieldIds[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a tuple holding the fields fieldIds of t, in that order.
+     *
+     * @param td the schema of the result
+     */
+    public static Tuple project(TupleDesc td, Tuple t, int[] fieldIds) {
+        if (t.isStandardPacked()) {
+            RowLayout out = td.getRowLayout();
+            byte[] row = new byte[out.getSize()];
+            for (int i = 0; i < fieldIds.length; i++) {
+                System.arraycopy(t.data, t.base + t.layout.getOffset(fieldIds[i]), row, out.getOffset(i),
+                        td.getFieldType(i).getLen());
+            }
+            return new Tuple(out, row, 0);
+        }
+        Tuple result = new Tuple(td);
+        for (int i = 0; i < fieldIds.length; i++) {
+            result.fields[i] = t.getField(fieldIds[i]);
+        }
+        return result;
     }
 
     /**
@@ -79,12 +348,15 @@ public class Tuple implements Serializable {
         if (isInValidIndex(i)) {
             throw new IllegalArgumentException("the index of " + i + " is illegal !");
         }
-
+        if (fields == null) {
+            fields = new Field[tupleDesc.numFields()];
+        }
         fields[i] = f;
+        modified = layout != null;
     }
 
     private boolean isInValidIndex(int i) {
-        return i < 0 || i >= fields.length;
+        return i < 0 || i >= tupleDesc.numFields();
     }
 
     /**
@@ -96,6 +368,15 @@ public class Tuple implements Serializable {
         if (isInValidIndex(i)) {
             throw new IllegalArgumentException("the index of " + i + " is illegal !");
         }
+        if (layout == null) {
+            return fields[i];
+        }
+        if (fields == null) {
+            fields = new Field[tupleDesc.numFields()];
+        }
+        if (fields[i] == null) {
+            fields[i] = materialize(i);
+        }
         return fields[i];
     }
 
@@ -112,11 +393,12 @@ public class Tuple implements Serializable {
         // some code goes here
         //throw new UnsupportedOperationException("Implement this");
         StringBuilder tuple = new StringBuilder();
-        for (int i = 0; i < fields.length; i++) {
-            if (i == fields.length - 1) {
-                tuple.append(fields[i].toString() + "\n");
+        int n = tupleDesc.numFields();
+        for (int i = 0; i < n; i++) {
+            if (i == n - 1) {
+                tuple.append(getField(i).toString() + "\n");
             } else {
-                tuple.append(fields[i].toString() + "\t");
+                tuple.append(getField(i).toString() + "\t");
             }
         }
         return tuple.toString();
@@ -136,7 +418,7 @@ public class Tuple implements Serializable {
 
         @Override
         public boolean hasNext() {
-            return fields.length > pos;
+            return tupleDesc.numFields() > pos;
         }
 
         @Override
@@ -144,7 +426,7 @@ public class Tuple implements Serializable {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            return fields[pos++];
+            return getField(pos++);
         }
     }
 
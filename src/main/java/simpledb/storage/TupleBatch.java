@@ -0,0 +1,416 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a batch of rows in columnar form: an int[] vector for every
+ * INT_TYPE field and a String[] vector for every STRING_TYPE field, plus a
+ * selection vector listing the rows of the batch that are still alive.
+ * Operators that filter a batch only shrink the selection vector; the column
+ * vectors are left untouched.
+ * <p>
+ * A batch returned by {@link OpIterator#nextBatch()} belongs to the operator
+ * that returned it and is only valid until the next call to nextBatch,
+ * rewind or close of that operator.
+ *
+ * @see OpIterator#nextBatch()
+ */
+public class TupleBatch {
+
+    /**
+     * the number of rows of the batches built by operators that do not read pages
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("simpledb.batch", "true"));
+
+    private final TupleDesc td;
+
+    private final int[][] ints;
+
+    private final String[][] strings;
+
+    /**
+     * 从字典编码页读入的批中字符串列每行的字典码，按需分配；dictionary为null时无效
+     */
+    private final int[][] codes;
+
+    private StringDictionary dictionary;
+
+    private int[] selection;
+
+    /**
+     * 过滤内核使用的位图，每行一位，按需分配
+     */
+    private long[] bitmap;
+
+    /**
+     * 列的来源：从页读入的批按需解码每一列，loaded记录已解码的列
+     */
+    private ColumnLoader loader;
+
+    private final boolean[] loaded;
+
+    /**
+     * 批中每一行在来源页中的slot号，供loader使用
+     */
+    private int[] slots;
+
+    /**
+     * 投影视图的底层批以及视图列到底层列的映射；普通批为null
+     */
+    private final TupleBatch base;
+
+    private final int[] fieldMap;
+
+    /**
+     * 批中的物理行数
+     */
+    private int size;
+
+    /**
+     * 选择向量中有效的行数
+     */
+    private int selected;
+
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        this.codes = new int[td.numFields()][];
+        this.selection = new int[capacity];
+        this.slots = new int[capacity];
+        this.loaded = new boolean[td.numFields()];
+        this.base = null;
+        this.fieldMap = null;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new String[capacity];
+            }
+        }
+        Arrays.fill(loaded, true);
+    }
+
+    private TupleBatch(TupleDesc td, TupleBatch base, int[] fieldMap) {
+        this.td = td;
+        this.base = base;
+        this.fieldMap = fieldMap;
+        this.ints = null;
+        this.strings = null;
+        this.codes = null;
+        this.loaded = null;
+    }
+
+    /**
+     * Decodes one column of a batch from wherever its rows came from.
+     */
+    interface ColumnLoader {
+        void load(TupleBatch batch, int field);
+    }
+
+    /**
+     * @return whether operators that consume their input as a whole (such as
+     * {@link simpledb.execution.Aggregate}) pull it batch at a time. Set with
+     * -Dsimpledb.batch=false to fall back to tuple at a time execution.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns batch execution on or off; meant for tests and benchmarks.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public int capacity() {
+        return base != null ? base.capacity() : selection.length;
+    }
+
+    /**
+     * @return the number of rows in the batch, selected or not
+     */
+    public int size() {
+        return base != null ? base.size : size;
+    }
+
+    /**
+     * Makes room for capacity rows; the contents of the batch are discarded.
+     */
+    public void ensureCapacity(int capacity) {
+        clear();
+        if (capacity <= selection.length) {
+            return;
+        }
+        selection = new int[capacity];
+        slots = new int[capacity];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (ints[i] != null) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new String[capacity];
+            }
+        }
+    }
+
+    /**
+     * Removes all rows.
+     */
+    public void clear() {
+        size = 0;
+        selected = 0;
+        loader = null;
+        dictionary = null;
+        Arrays.fill(loaded, true);
+    }
+
+    /**
+     * Sets size rows whose columns are decoded by loader the first time they
+     * are asked for, and selects all of them. The source slot of every row is
+     * in {@link #slots()}. If the rows hold dictionary codes, loader fills in
+     * the {@link #codes} of every string column it decodes.
+     */
+    void setLazy(int size, ColumnLoader loader, StringDictionary dictionary) {
+        setSize(size);
+        this.loader = loader;
+        this.dictionary = dictionary;
+        Arrays.fill(loaded, false);
+    }
+
+    /**
+     * @return the code vector of the string field i, for the loader to fill in
+     */
+    int[] codes(int i) {
+        if (codes[i] == null || codes[i].length < selection.length) {
+            codes[i] = new int[selection.length];
+        }
+        return codes[i];
+    }
+
+    /**
+     * @return the slot numbers of the rows, filled in by the reader of a page
+     */
+    int[] slots() {
+        return slots;
+    }
+
+    private void load(int i) {
+        if (!loaded[i]) {
+            loaded[i] = true;
+            loader.load(this, i);
+        }
+    }
+
+    /**
+     * Sets the number of rows after the column vectors were filled directly,
+     * and selects all of them.
+     */
+    public void setSize(int size) {
+        this.size = size;
+        for (int i = 0; i < size; i++) {
+            selection[i] = i;
+        }
+        this.selected = size;
+    }
+
+    /**
+     * Appends an empty, selected row.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        int row = size++;
+        selection[selected++] = row;
+        return row;
+    }
+
+    /**
+     * @return whether no more rows can be added
+     */
+    public boolean isFull() {
+        return size == selection.length;
+    }
+
+    /**
+     * @return the values of the int field i, indexed by row, or null if field i is not an int
+     */
+    public int[] intColumn(int i) {
+        if (base != null) {
+            return base.intColumn(fieldMap[i]);
+        }
+        if (ints[i] == null) {
+            return null;
+        }
+        load(i);
+        return ints[i];
+    }
+
+    /**
+     * @return the values of the string field i, indexed by row, or null if field i is not a string
+     */
+    public String[] stringColumn(int i) {
+        if (base != null) {
+            return base.stringColumn(fieldMap[i]);
+        }
+        if (strings[i] == null) {
+            return null;
+        }
+        load(i);
+        return strings[i];
+    }
+
+    /**
+     * @return the dictionary codes of the string field i, indexed by row, or
+     * null if the rows were not read from a dictionary-encoded page. A row
+     * whose code is -1 has a value that is not in {@link #getDictionary()}.
+     */
+    public int[] codeColumn(int i) {
+        if (base != null) {
+            return base.codeColumn(fieldMap[i]);
+        }
+        if (strings[i] == null || dictionary == null) {
+            return null;
+        }
+        load(i);
+        return codes[i];
+    }
+
+    /**
+     * @return the dictionary of the codes in {@link #codeColumn}, or null
+     */
+    public StringDictionary getDictionary() {
+        return base != null ? base.getDictionary() : dictionary;
+    }
+
+    /**
+     * @return the rows that are selected, in the first {@link #selectedCount()} entries
+     */
+    public int[] selection() {
+        return base != null ? base.selection() : selection;
+    }
+
+    /**
+     * @return a scratch bitmap with one bit per row of the batch, for filter
+     * kernels that compute a whole column at once; its contents are undefined
+     */
+    public long[] bitmap() {
+        if (base != null) {
+            return base.bitmap();
+        }
+        int words = (selection.length + 63) >>> 6;
+        if (bitmap == null || bitmap.length < words) {
+            bitmap = new long[words];
+        }
+        return bitmap;
+    }
+
+    public int selectedCount() {
+        return base != null ? base.selected : selected;
+    }
+
+    /**
+     * Keeps the first n entries of the selection vector.
+     */
+    public void setSelectedCount(int n) {
+        if (base != null) {
+            base.setSelectedCount(n);
+        } else {
+            this.selected = n;
+        }
+    }
+
+    /**
+     * @return the value of field i of row as a Field
+     */
+    public Field getField(int i, int row) {
+        int[] column = intColumn(i);
+        return column != null ? new IntField(column[row]) : new StringField(stringColumn(i)[row], Type.STRING_LEN);
+    }
+
+    /**
+     * Copies field srcField of t into field i of row.
+     */
+    public void set(int i, int row, Tuple t, int srcField) {
+        if (ints[i] != null) {
+            ints[i][row] = t.getInt(srcField);
+        } else {
+            strings[i][row] = t.getString(srcField);
+        }
+    }
+
+    /**
+     * Copies field srcField of row srcRow of src into field i of row.
+     */
+    public void set(int i, int row, TupleBatch src, int srcField, int srcRow) {
+        if (ints[i] != null) {
+            ints[i][row] = src.intColumn(srcField)[srcRow];
+        } else {
+            strings[i][row] = src.stringColumn(srcField)[srcRow];
+        }
+    }
+
+    /**
+     * Appends t as a new selected row.
+     */
+    public void add(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            set(i, row, t, i);
+        }
+    }
+
+    /**
+     * Row adapter: creates a Tuple holding the values of row.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            t.setField(i, getField(i, row));
+        }
+        return t;
+    }
+
+    /**
+     * Creates a view of the fields fieldIds of this batch. The view reads the
+     * column and selection vectors of this batch; nothing is copied, and rows
+     * cannot be added to it.
+     *
+     * @param td the schema of the result
+     */
+    public TupleBatch project(TupleDesc td, int[] fieldIds) {
+        if (base != null) {
+            int[] mapped = new int[fieldIds.length];
+            for (int i = 0; i < fieldIds.length; i++) {
+                mapped[i] = fieldMap[fieldIds[i]];
+            }
+            return new TupleBatch(td, base, mapped);
+        }
+        return new TupleBatch(td, this, fieldIds.clone());
+    }
+
+    /**
+     * Fills this batch with the next tuples of it, up to the capacity of the batch.
+     *
+     * @return false if it had no more tuples
+     */
+    public boolean fill(OpIterator it) throws DbException, TransactionAbortedException {
+        clear();
+        while (!isFull() && it.hasNext()) {
+            add(it.next());
+        }
+        return size > 0;
+    }
+}
@@ -0,0 +1,212 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.execution.MemoryReservation;
+import simpledb.execution.QueryMemory;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TupleBuffer is an append-only sequence of tuples of one TupleDesc, used by
+ * operators to hold intermediate results. Tuples are kept in memory until
+ * their size reaches a byte limit; the tuples added after that are written to
+ * a temporary file in the format of {@link Field#serialize}, and read back
+ * from it by {@link #iterator()}.
+ * <p>
+ * The size of a tuple is taken to be {@link TupleDesc#getSize()}. The memory
+ * is reserved from the {@link QueryMemory} of the query the buffer is
+ * created in; the buffer also spills when the query refuses it more.
+ */
+public class TupleBuffer {
+
+    private final TupleDesc td;
+
+    private final long memoryLimit;
+
+    private final List<Tuple> memory = new ArrayList<>();
+
+    private long memoryBytes;
+
+    /**
+     * 内存中的元组从查询预留的内存，第一次放入元组时创建
+     */
+    private MemoryReservation reservation;
+
+    /**
+     * 超出内存上限后写入的临时文件，以及其中的元组数
+     */
+    private File file;
+
+    private DataOutputStream out;
+
+    private int spilled;
+
+    /**
+     * @param td          the schema of the tuples
+     * @param memoryLimit the number of bytes of tuples kept in memory
+     */
+    public TupleBuffer(TupleDesc td, long memoryLimit) {
+        this.td = td;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Appends t. The buffer keeps t, or a compact copy of it
+     * ({@link Tuple#compact()}), as long as it fits in memory.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null && memoryBytes + td.getSize() <= memoryLimit && reserve(memoryBytes + td.getSize())) {
+            memory.add(t.compact());
+            memoryBytes += td.getSize();
+            return;
+        }
+        try {
+            if (out == null) {
+                file = File.createTempFile("spill", ".dat");
+                file.deleteOnExit();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            }
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+            spilled++;
+        } catch (IOException e) {
+            throw new DbException("could not spill tuples: " + e.getMessage());
+        }
+    }
+
+    private boolean reserve(long bytes) {
+        if (reservation == null) {
+            reservation = QueryMemory.reserve("TupleBuffer");
+        }
+        return reservation.tryReserve(bytes);
+    }
+
+    /**
+     * @return the number of tuples in the buffer
+     */
+    public int size() {
+        return memory.size() + spilled;
+    }
+
+    /**
+     * @return whether some of the tuples were written to disk
+     */
+    public boolean isSpilled() {
+        return spilled > 0;
+    }
+
+    /**
+     * @return the bytes of the tuples held in memory
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return an iterator over the tuples added so far, in the order they
+     * were added. The iterator must be opened before use.
+     */
+    public DbFileIterator iterator() throws DbException {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new DbException("could not spill tuples: " + e.getMessage());
+            }
+        }
+        return new BufferIterator(spilled);
+    }
+
+    /**
+     * Removes all tuples and deletes the temporary file.
+     */
+    public void clear() {
+        memory.clear();
+        memoryBytes = 0;
+        if (reservation != null) {
+            reservation.release();
+            reservation = null;
+        }
+        spilled = 0;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+            file.delete();
+            file = null;
+        }
+    }
+
+    private class BufferIterator extends AbstractDbFileIterator {
+
+        private final int spilledCount;
+
+        private int pos;
+
+        private DataInputStream in;
+
+        private boolean open;
+
+        BufferIterator(int spilledCount) {
+            this.spilledCount = spilledCount;
+        }
+
+        public void open() {
+            open = true;
+            pos = 0;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (!open) {
+                return null;
+            }
+            if (pos < memory.size()) {
+                return memory.get(pos++);
+            }
+            if (pos - memory.size() >= spilledCount) {
+                return null;
+            }
+            try {
+                if (in == null) {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                }
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+                pos++;
+                return t;
+            } catch (IOException | ParseException e) {
+                throw new DbException("could not read spilled tuples: " + e.getMessage());
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            open = false;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+                in = null;
+            }
+        }
+    }
+}
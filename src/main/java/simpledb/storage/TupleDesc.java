@@ -100,6 +100,11 @@ public class TupleDesc implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * 字段偏移量，第一次使用时计算
+     */
+    private transient volatile RowLayout rowLayout;
+
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
      * specified types, with associated named fields.
@@ -222,6 +227,26 @@ public class TupleDesc implements Serializable {
         return totalSize;
     }
 
+    /**
+     * @return the standard packed layout of rows of this TupleDesc, with the
+     * field offsets precomputed
+     */
+    public RowLayout getRowLayout() {
+        RowLayout layout = rowLayout;
+        if (layout == null) {
+            layout = new RowLayout(this, null);
+            rowLayout = layout;
+        }
+        return layout;
+    }
+
+    /**
+     * @return the byte offset of field i in the standard packed layout of a row
+     */
+    public int getOffset(int i) {
+        return getRowLayout().getOffset(i);
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
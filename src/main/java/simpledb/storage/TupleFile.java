@@ -0,0 +1,146 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+
+/**
+ * TupleFile is a temporary file of tuples of one TupleDesc, written once (or
+ * appended to) and then read any number of times from the start, as the
+ * sorted runs of an external sort are. The tuples are stored in a compact binary format rather
+ * than in the fixed width format of {@link Field#serialize}: an int field is 4
+ * bytes, and a string field is only as long as its value, written with
+ * {@link DataOutputStream#writeUTF}.
+ */
+public class TupleFile {
+
+    /**
+     * 读写文件时的缓冲区大小
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+
+    private final File file;
+
+    private int size;
+
+    /**
+     * Creates an empty temporary file, deleted when the JVM exits if
+     * {@link #delete()} was not called before.
+     *
+     * @param td the schema of the tuples
+     */
+    public TupleFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("run", ".dat");
+        this.file.deleteOnExit();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples written to the file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of the file
+     */
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * @return a writer that replaces the content of the file
+     */
+    public Writer writer() throws IOException {
+        size = 0;
+        return new Writer(false);
+    }
+
+    /**
+     * @return a writer that adds tuples after the content of the file
+     */
+    public Writer appender() throws IOException {
+        return new Writer(true);
+    }
+
+    /**
+     * @return a reader positioned at the first tuple of the file
+     */
+    public Reader reader() throws IOException {
+        return new Reader();
+    }
+
+    /**
+     * Deletes the file.
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    public class Writer implements Closeable {
+
+        private final DataOutputStream out;
+
+        private Writer(boolean append) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE));
+        }
+
+        public void write(Tuple t) throws IOException {
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeInt(t.getInt(i));
+                } else {
+                    out.writeUTF(t.getString(i));
+                }
+            }
+            size++;
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public class Reader implements Closeable {
+
+        private final DataInputStream in;
+
+        private final int count = size;
+
+        private int pos;
+
+        private Reader() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return the next tuple of the file, or null at the end of the file
+         */
+        public Tuple next() throws IOException {
+            if (pos >= count) {
+                return null;
+            }
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    t.setField(i, new IntField(in.readInt()));
+                } else {
+                    t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            }
+            pos++;
+            return t;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb;
+
+import simpledb.BenchmarkHarness.Plan;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs grouped aggregates over a table cached in the buffer pool with 1, 2,
+ * 4, ... threads, up to the number of processors, and prints the time and the
+ * speedup over one thread of each. The groups are few, so that the partial
+ * aggregates are small, or about one per ten rows, so that the final merge
+ * is a large part of the work. Not a unit test; run it with
+ * <pre>java -cp ... simpledb.AggregateBenchmark [rows] [max threads]</pre>
+ */
+public class AggregateBenchmark {
+
+    private static final BenchmarkHarness HARNESS = new BenchmarkHarness(3, 5);
+
+    private static void run(String name, int maxThreads, Plan plan) throws Exception {
+        TransactionId tid = new TransactionId();
+        long serial = 0;
+        long expected = 0;
+        System.out.println(name);
+        for (int n = 1; n <= maxThreads; n *= 2) {
+            Aggregate.setThreads(n);
+            long best = HARNESS.time(plan, tid);
+            if (n == 1) {
+                serial = best;
+                expected = HARNESS.getChecksum();
+            } else if (HARNESS.getChecksum() != expected) {
+                throw new IllegalStateException(name + ": results differ with " + n + " threads");
+            }
+            System.out.printf("  %2d threads %8.1f ms   x%.2f%n", n, best / 1e6, (double) serial / best);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Random random = new Random(rows);
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            tuples.add(List.of(random.nextInt(64), random.nextInt(rows / 10), random.nextInt(1000)));
+        }
+        HeapFile hf = BenchmarkHarness.table("aggregate", tuples);
+
+        run("sum group by 64 keys", maxThreads, tid -> new Aggregate(new SeqScan(tid, hf.getId()), 2, 0,
+                Aggregator.Op.SUM));
+        run("sum, count, max group by " + rows / 10 + " keys", maxThreads, tid -> new Aggregate(
+                new SeqScan(tid, hf.getId()), new int[]{2, 2, 2},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX}, new int[]{1}));
+    }
+}
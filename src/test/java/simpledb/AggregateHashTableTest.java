@@ -0,0 +1,171 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the aggregators give the same groups whether they all fit in
+ * memory or most of them are written to disk, in one or several levels of
+ * partitions, and that the results can be read again.
+ */
+public class AggregateHashTableTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget =
+            new TestUtil.Setting<>(Aggregate::getMemoryBudget, Aggregate::setMemoryBudget);
+
+    @Rule
+    public final TestUtil.Setting<Boolean> batch =
+            new TestUtil.Setting<>(TupleBatch::isEnabled, TupleBatch::setEnabled);
+
+    private static Set<String> read(Aggregator agg) throws Exception {
+        OpIterator it = agg.iterator();
+        it.open();
+        Set<String> rows = TestUtil.distinct(it);
+        it.rewind();
+        assertEquals(rows, TestUtil.distinct(it));
+        it.close();
+        return rows;
+    }
+
+    /**
+     * @return the results of what over column 1 grouped by column 0,
+     * computed with a map
+     */
+    private static Set<String> expected(List<Tuple> tuples, Aggregator.Op what) {
+        Map<Field, List<Integer>> groups = new HashMap<>();
+        for (Tuple t : tuples) {
+            groups.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(t.getInt(1));
+        }
+        Set<String> rows = new HashSet<>();
+        for (Map.Entry<Field, List<Integer>> group : groups.entrySet()) {
+            List<Integer> values = group.getValue();
+            long sum = 0;
+            for (int v : values) {
+                sum += v;
+            }
+            int result;
+            switch (what) {
+                case MIN:
+                    result = Collections.min(values);
+                    break;
+                case MAX:
+                    result = Collections.max(values);
+                    break;
+                case SUM:
+                    result = (int) sum;
+                    break;
+                case AVG:
+                    result = (int) (sum / values.size());
+                    break;
+                default:
+                    result = values.size();
+            }
+            rows.add(group.getKey() + "\t" + result + "\n");
+        }
+        return rows;
+    }
+
+    private static List<Tuple> tuples(Type keyType, int n, int keys) {
+        TupleDesc td = new TupleDesc(new Type[]{keyType, Type.INT_TYPE});
+        Random random = new Random(42);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(td);
+            int key = random.nextInt(keys) - keys / 2;
+            t.setField(0, keyType == Type.INT_TYPE ? new IntField(key) : new StringField("k" + key, Type.STRING_LEN));
+            t.setField(1, new IntField(random.nextInt(2000) - 1000));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    @Test
+    public void intKeysSpilled() throws Exception {
+        List<Tuple> tuples = tuples(Type.INT_TYPE, 20000, 5000);
+        // 内存中只能放下约100个组
+        Aggregate.setMemoryBudget(100 * 52);
+        for (Aggregator.Op what : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, what);
+            for (Tuple t : tuples) {
+                agg.mergeTupleIntoGroup(t);
+            }
+            assertTrue(agg.isSpilled());
+            assertEquals(expected(tuples, what), read(agg));
+            agg.clear();
+        }
+    }
+
+    /**
+     * A budget of a single group: the partitions are partitioned again
+     * down to the last level
+     */
+    @Test
+    public void stringKeysManyLevels() throws Exception {
+        List<Tuple> tuples = tuples(Type.STRING_TYPE, 3000, 1000);
+        Aggregate.setMemoryBudget(1);
+        StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 0, Aggregator.Op.COUNT);
+        IntegerAggregator max = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.MAX);
+        for (Tuple t : tuples) {
+            agg.mergeTupleIntoGroup(t);
+            max.mergeTupleIntoGroup(t);
+        }
+        assertTrue(agg.isSpilled());
+        assertEquals(expected(tuples, Aggregator.Op.COUNT), read(agg));
+        assertEquals(expected(tuples, Aggregator.Op.MAX), read(max));
+
+        // 读过结果之后还可以继续合并
+        for (Tuple t : tuples) {
+            agg.mergeTupleIntoGroup(t);
+        }
+        List<Tuple> twice = new ArrayList<>(tuples);
+        twice.addAll(tuples);
+        assertEquals(expected(twice, Aggregator.Op.COUNT), read(agg));
+        agg.clear();
+        max.clear();
+    }
+
+    @Test
+    public void aggregateOperator() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 30000, 100000, new HashMap<>(), null);
+        TransactionId tid = new TransactionId();
+        List<Tuple> tuples = new ArrayList<>();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            tuples.add(scan.next());
+        }
+        scan.close();
+
+        Aggregate.setMemoryBudget(1000 * 52);
+        for (boolean batches : new boolean[]{false, true}) {
+            TupleBatch.setEnabled(batches);
+            Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), 1, 0, Aggregator.Op.SUM);
+            agg.open();
+            Set<String> rows = TestUtil.distinct(agg);
+            assertEquals(expected(tuples, Aggregator.Op.SUM), rows);
+            agg.rewind();
+            assertEquals(rows, TestUtil.distinct(agg));
+            agg.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AggregateHashTableTest.class);
+    }
+}
@@ -105,7 +105,7 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
      * it needs to obtain a write lock on the root node in order to split the page. This will cause
      * a deadlock situation.
      */
-    @Test
+    @Test(timeout = 60000)
     public void testReadWriteDeadlock() throws Exception {
         System.out.println("testReadWriteDeadlock constructing deadlock:");
 
@@ -0,0 +1,55 @@
+package simpledb;
+
+import simpledb.BenchmarkHarness.Plan;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs scan-filter-aggregate queries over a table cached in the buffer pool,
+ * once pulling tuples and once pulling batches, and prints the throughput of
+ * both. Not a unit test; run it with
+ * <pre>java -cp ... simpledb.BatchExecutionBenchmark [rows]</pre>
+ */
+public class BatchExecutionBenchmark {
+
+    private static final BenchmarkHarness HARNESS = new BenchmarkHarness(10, 10);
+
+    private static void run(String name, long rows, Plan plan) throws Exception {
+        TransactionId tid = new TransactionId();
+        long[] best = new long[2];
+        long[] checksum = new long[2];
+        for (int mode = 0; mode < 2; mode++) {
+            TupleBatch.setEnabled(mode == 1);
+            best[mode] = HARNESS.time(plan, tid);
+            checksum[mode] = HARNESS.getChecksum();
+        }
+        if (checksum[0] != checksum[1]) {
+            throw new IllegalStateException(name + ": results differ");
+        }
+        System.out.printf("%-24s tuples %10.0f rows/s   batches %10.0f rows/s   x%.1f%n", name,
+                rows * 1e9 / best[0], rows * 1e9 / best[1], (double) best[0] / best[1]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(rows);
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            tuples.add(List.of(random.nextInt(64), random.nextInt(1 << 20), random.nextInt(1000)));
+        }
+        HeapFile hf = BenchmarkHarness.table("batch", tuples);
+        Predicate half = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1 << 19));
+
+        run("sum", rows, tid -> new Aggregate(new SeqScan(tid, hf.getId()), 2, Aggregator.NO_GROUPING,
+                Aggregator.Op.SUM));
+        run("filter + sum", rows, tid -> new Aggregate(new Filter(half, new SeqScan(tid, hf.getId())), 2,
+                Aggregator.NO_GROUPING, Aggregator.Op.SUM));
+        run("filter + group by + max", rows, tid -> new Aggregate(new Filter(half, new SeqScan(tid, hf.getId())),
+                2, 0, Aggregator.Op.MAX));
+    }
+}
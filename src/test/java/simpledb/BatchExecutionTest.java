@@ -0,0 +1,112 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the batch interface of the operators returns the same rows as
+ * the tuple at a time interface.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Boolean> batch =
+            new TestUtil.Setting<>(TupleBatch::isEnabled, TupleBatch::setEnabled);
+
+    private TransactionId tid;
+    private HeapFile big;
+    private HeapFile small;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        big = SystemTestUtil.createRandomHeapFile(3, 5000, 100, new HashMap<>(), null);
+        small = SystemTestUtil.createRandomHeapFile(2, 300, 100, new HashMap<>(), null);
+    }
+
+    private static List<String> batchRows(OpIterator it) throws Exception {
+        List<String> rows = new ArrayList<>();
+        it.open();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.selectedCount() > 0);
+            for (int i = 0; i < batch.selectedCount(); i++) {
+                rows.add(batch.getTuple(batch.selection()[i]).toString());
+            }
+        }
+        it.close();
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private OpIterator filteredScan() {
+        return new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30)), new SeqScan(tid, big.getId()));
+    }
+
+    @Test
+    public void scanFilterProject() throws Exception {
+        assertEquals(5000, batchRows(new SeqScan(tid, big.getId())).size());
+        assertEquals(TestUtil.rows(filteredScan()), batchRows(filteredScan()));
+
+        List<Integer> fields = List.of(2, 0);
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        List<String> expected = TestUtil.rows(new Project(fields, types, filteredScan()));
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, batchRows(new Project(fields, types, filteredScan())));
+    }
+
+    @Test
+    public void stringFilterOverRowSource() throws Exception {
+        Object[] data = {1, "apple", 2, "pear", 3, "grape", 4, "plum"};
+        Predicate like = new Predicate(1, Predicate.Op.LIKE, new StringField("p", Type.STRING_LEN));
+        List<String> expected = TestUtil.rows(new Filter(like, TestUtil.createTupleList(2, data)));
+        assertEquals(4, expected.size());
+        assertEquals(expected, batchRows(new Filter(like, TestUtil.createTupleList(2, data))));
+
+        Predicate gt = new Predicate(1, Predicate.Op.GREATER_THAN, new StringField("grape", Type.STRING_LEN));
+        assertEquals(2, batchRows(new Filter(gt, TestUtil.createTupleList(2, data))).size());
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.AVG}) {
+            for (int group : new int[]{Aggregator.NO_GROUPING, 0}) {
+                TupleBatch.setEnabled(false);
+                List<String> expected = TestUtil.rows(new Aggregate(filteredScan(), 2, group, op));
+                TupleBatch.setEnabled(true);
+                assertEquals(expected, TestUtil.rows(new Aggregate(filteredScan(), 2, group, op)));
+            }
+        }
+    }
+
+    @Test
+    public void hashJoin() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<String> expected = TestUtil.rows(new HashEquiJoin(pred, new SeqScan(tid, small.getId()), filteredScan()));
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, batchRows(new HashEquiJoin(pred, new SeqScan(tid, small.getId()), filteredScan())));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * The measuring loop shared by the benchmarks: runs a task a few times to
+ * warm up, then keeps the best time of a few more runs, along with the
+ * checksum the task returned and the bytes it allocated, so that a benchmark
+ * can check that the variants it compares agree.
+ */
+class BenchmarkHarness {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Task {
+        /**
+         * @return a checksum of the work done, which also keeps the JIT from
+         * optimizing the work away
+         */
+        long run() throws Exception;
+    }
+
+    interface Plan {
+        OpIterator build(TransactionId tid);
+    }
+
+    private final int warmup;
+
+    private final int rounds;
+
+    private long checksum;
+
+    private long allocatedBytes;
+
+    BenchmarkHarness(int warmup, int rounds) {
+        this.warmup = warmup;
+        this.rounds = rounds;
+    }
+
+    /**
+     * @return the best time of the task, in nanoseconds
+     */
+    long time(Task task) throws Exception {
+        for (int r = 0; r < warmup; r++) {
+            checksum = task.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long allocated = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            checksum = task.run();
+            best = Math.min(best, System.nanoTime() - start);
+            allocatedBytes = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        }
+        return best;
+    }
+
+    /**
+     * @return the best time of building the plan and draining it, in nanoseconds
+     */
+    long time(Plan plan, TransactionId tid) throws Exception {
+        return time(() -> drain(plan.build(tid)));
+    }
+
+    /**
+     * @return the checksum returned by the last run
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return the bytes allocated by the thread during the last run
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Opens the iterator, reads all its tuples and closes it.
+     *
+     * @return the sum of the int fields of the tuples
+     */
+    static long drain(OpIterator it) throws Exception {
+        long checksum = 0;
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                checksum += t.getInt(i);
+            }
+        }
+        it.close();
+        return checksum;
+    }
+
+    /**
+     * Writes the rows of ints into a temporary heap file and adds it to the
+     * catalog under the given name.
+     */
+    static HeapFile table(String name, List<List<Integer>> tuples) throws Exception {
+        int columns = tuples.get(0).size();
+        File file = File.createTempFile("bench_" + name, ".dat");
+        file.deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), columns);
+        HeapFile hf = new HeapFile(file, Utility.getTupleDesc(columns, name));
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+}
@@ -0,0 +1,215 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.db.Parser;
+import simpledb.db.ParsingException;
+import simpledb.execution.*;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that cursors return the results of a query in fetches of at most
+ * fetchSize tuples, run the query only as far as the fetches ask for, and
+ * close the plan at the end, when they are closed early and on errors.
+ */
+public class CursorTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    private HeapFile table;
+
+    private List<List<Integer>> tuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(2, 2500, 1000, new HashMap<>(), tuples, "c");
+    }
+
+    /**
+     * Counts the tuples its child produces, and whether it is open.
+     */
+    private static class Counting extends Operator {
+        private static final long serialVersionUID = 1L;
+
+        private OpIterator child;
+
+        int produced;
+
+        boolean open;
+
+        /**
+         * the tuple at which fetchNext fails, or -1
+         */
+        int failAt = -1;
+
+        Counting(OpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+            open = true;
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            open = false;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (produced == failAt) {
+                throw new DbException("failed");
+            }
+            if (!child.hasNext()) {
+                return null;
+            }
+            produced++;
+            return child.next();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+    }
+
+    @Test
+    public void fetches() throws Exception {
+        Counting plan = new Counting(new SeqScan(tid, table.getId()));
+        Cursor cursor = new Query(plan, tid).cursor(1000);
+        assertTrue(plan.open);
+        List<List<Integer>> fetched = new ArrayList<>();
+        int[] sizes = new int[4];
+        for (int i = 0; i < sizes.length; i++) {
+            List<Tuple> rows = cursor.fetch();
+            sizes[i] = rows.size();
+            // 查询只运行到这次取回的元组为止
+            assertEquals(fetched.size() + rows.size(), plan.produced);
+            for (Tuple t : rows) {
+                fetched.add(Arrays.asList(t.getInt(0), t.getInt(1)));
+            }
+        }
+        assertArrayEquals(new int[]{1000, 1000, 500, 0}, sizes);
+        assertTrue(cursor.isDone());
+        assertFalse(plan.open);
+        assertEquals(2500, cursor.getRowCount());
+        assertEquals(tuples, fetched);
+        cursor.close();
+    }
+
+    @Test
+    public void exactMultiple() throws Exception {
+        Cursor cursor = new Query(new SeqScan(tid, table.getId()), tid).cursor(500);
+        int fetches = 0;
+        while (!cursor.fetch().isEmpty()) {
+            fetches++;
+        }
+        assertEquals(5, fetches);
+        assertTrue(cursor.isDone());
+    }
+
+    @Test
+    public void closeEarly() throws Exception {
+        Counting plan = new Counting(new SeqScan(tid, table.getId()));
+        try (Cursor cursor = new Query(plan, tid).cursor(100)) {
+            assertEquals(100, cursor.fetch(t -> {
+            }));
+        }
+        assertFalse(plan.open);
+        assertEquals(100, plan.produced);
+    }
+
+    @Test
+    public void failure() throws Exception {
+        Counting plan = new Counting(new SeqScan(tid, table.getId()));
+        plan.failAt = 150;
+        Cursor cursor = new Query(plan, tid).cursor(100);
+        assertEquals(100, cursor.fetch().size());
+        try {
+            cursor.fetch();
+            fail("expected the error of the plan");
+        } catch (DbException expected) {
+        }
+        assertFalse(plan.open);
+        assertTrue(cursor.isDone());
+        assertTrue(cursor.fetch().isEmpty());
+    }
+
+    @Test
+    public void invalidFetchSize() throws Exception {
+        try {
+            new Query(new SeqScan(tid, table.getId()), tid).cursor(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void execute() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new Query(new SeqScan(tid, table.getId(), "c"), tid).execute(new PrintStream(bytes, true));
+        String out = bytes.toString();
+        assertTrue(out.startsWith("c.c0\tc.c1\t"));
+        assertTrue(out.endsWith("2500 rows.\n"));
+    }
+
+    @Test
+    public void preparedStatements() throws Exception {
+        Database.getCatalog().addTable(table, "c");
+        TableStats.setTableStats("c", new TableStats(table.getId(), 1));
+        Parser parser = new Parser();
+        Query query = parser.prepare(tid, "SELECT c.c0 FROM c WHERE c.c1 < 500 LIMIT 7;");
+        List<Tuple> rows;
+        try (Cursor cursor = query.cursor(3)) {
+            rows = new ArrayList<>(cursor.fetch());
+            rows.addAll(cursor.fetch());
+            rows.addAll(cursor.fetch());
+            assertTrue(cursor.isDone());
+        }
+        assertEquals(7, rows.size());
+        for (String sql : new String[]{"SELECT FROM;", "COMMIT;", "DELETE FROM c WHERE c.c0 = 1 LIMIT 2;"}) {
+            try {
+                parser.prepare(tid, sql);
+                fail("expected ParsingException for " + sql);
+            } catch (ParsingException expected) {
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CursorTest.class);
+    }
+}
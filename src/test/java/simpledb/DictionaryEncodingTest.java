@@ -0,0 +1,197 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DictionaryEncodingTest extends SimpleDbTestBase {
+    private static final Type[] TYPES = {Type.INT_TYPE, Type.STRING_TYPE};
+    private static final String[] CITIES = {"boston", "paris", "beijing", "lima", "oslo"};
+    private static final int ROWS = 3000;
+
+    private File dataFile;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        File text = File.createTempFile("dict", ".txt");
+        text.deleteOnExit();
+        try (Writer w = new FileWriter(text)) {
+            for (int i = 0; i < ROWS; i++) {
+                w.write(i + "," + CITIES[i % CITIES.length] + "\n");
+            }
+        }
+        dataFile = File.createTempFile("dict", ".dat");
+        dataFile.deleteOnExit();
+        StringDictionary.sidecarFor(dataFile).deleteOnExit();
+        HeapFileEncoder.convert(text, dataFile, BufferPool.getPageSize(), 2, TYPES, ',', true);
+    }
+
+    private HeapFile open() {
+        HeapFile hf = new HeapFile(dataFile, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        return hf;
+    }
+
+    private static List<Tuple> scan(HeapFile hf) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    @Test
+    public void pagesStoreCodes() throws Exception {
+        HeapFile hf = open();
+        assertNotNull(hf.getDictionary());
+        assertEquals(CITIES.length, hf.getDictionary().size());
+        // an (int, code) row takes 8 bytes instead of 136
+        int perPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        assertEquals((ROWS + perPage - 1) / perPage, hf.numPages());
+
+        List<Tuple> tuples = scan(hf);
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++) {
+            Field f = tuples.get(i).getField(1);
+            assertTrue(f instanceof DictionaryStringField);
+            assertEquals(new StringField(CITIES[i % CITIES.length], Type.STRING_LEN), f);
+            assertEquals(CITIES[i % CITIES.length].hashCode(), f.hashCode());
+        }
+    }
+
+    @Test
+    public void predicatesUseCodes() throws Exception {
+        HeapFile hf = open();
+        Predicate eq = new Predicate(1, Predicate.Op.EQUALS, new StringField("paris", Type.STRING_LEN));
+        Predicate like = new Predicate(1, Predicate.Op.LIKE, new StringField("o", Type.STRING_LEN));
+        int eqCount = 0;
+        int likeCount = 0;
+        for (Tuple t : scan(hf)) {
+            eqCount += eq.filter(t) ? 1 : 0;
+            likeCount += like.filter(t) ? 1 : 0;
+        }
+        assertEquals(ROWS / CITIES.length, eqCount);
+        // boston, oslo
+        assertEquals(2 * ROWS / CITIES.length, likeCount);
+    }
+
+    /**
+     * Batches read from the pages carry the codes, and a predicate over a
+     * batch keeps the same rows as over the tuples
+     */
+    @Test
+    public void batchPredicatesUseCodes() throws Exception {
+        HeapFile hf = open();
+        Predicate eq = new Predicate(1, Predicate.Op.EQUALS, new StringField("paris", Type.STRING_LEN));
+        Predicate like = new Predicate(1, Predicate.Op.LIKE, new StringField("o", Type.STRING_LEN));
+        int eqCount = 0;
+        int likeCount = 0;
+        SeqScan scan = new SeqScan(new TransactionId(), hf.getId());
+        scan.open();
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            int[] codes = batch.codeColumn(1);
+            assertNotNull(codes);
+            assertSame(hf.getDictionary(), batch.getDictionary());
+            String[] strings = batch.stringColumn(1);
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(hf.getDictionary().lookup(strings[i]), codes[i]);
+            }
+            TupleBatch view = batch.project(batch.getTupleDesc(), new int[]{0, 1});
+            eq.filter(view);
+            eqCount += batch.selectedCount();
+            batch.setSize(batch.size());
+            like.filter(batch);
+            likeCount += batch.selectedCount();
+        }
+        scan.close();
+        assertEquals(ROWS / CITIES.length, eqCount);
+        assertEquals(2 * ROWS / CITIES.length, likeCount);
+    }
+
+    @Test
+    public void newValuesSurviveReopen() throws Exception {
+        HeapFile hf = open();
+        TransactionId tid = new TransactionId();
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new StringField("cairo", Type.STRING_LEN));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.reset();
+        HeapFile reopened = open();
+        assertEquals(CITIES.length + 1, reopened.getDictionary().size());
+        boolean found = false;
+        for (Tuple r : scan(reopened)) {
+            if (((IntField) r.getField(0)).getValue() == -1) {
+                assertEquals("cairo", ((StringField) r.getField(1)).getValue());
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    /**
+     * A value cut short by a crash is dropped on open, so values synced after it read back correctly
+     */
+    @Test
+    public void partialValueIsTruncated() throws IOException {
+        File dictFile = StringDictionary.sidecarFor(dataFile);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(dictFile, true))) {
+            // length prefix of 10 bytes, followed by only 3 of them
+            out.writeShort(10);
+            out.write(new byte[]{'c', 'a', 'i'});
+        }
+        StringDictionary dict = StringDictionary.open(dictFile);
+        assertEquals(CITIES.length, dict.size());
+        int cairo = dict.encode("cairo");
+        dict.sync();
+
+        StringDictionary reopened = StringDictionary.open(dictFile);
+        assertEquals(CITIES.length + 1, reopened.size());
+        for (String city : CITIES) {
+            assertEquals(city, reopened.decode(dict.lookup(city)));
+        }
+        assertEquals("cairo", reopened.decode(cairo));
+    }
+
+    @Test
+    public void plainLoadRemovesStaleDictionary() throws IOException {
+        File text = File.createTempFile("dict", ".txt");
+        text.deleteOnExit();
+        HeapFileEncoder.convert(text, dataFile, BufferPool.getPageSize(), 2, TYPES, ',');
+        assertFalse(StringDictionary.sidecarFor(dataFile).exists());
+        assertNull(open().getDictionary());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DictionaryEncodingTest.class);
+    }
+}
@@ -0,0 +1,222 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.db.Parser;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that gather, repartition and broadcast exchanges deliver every tuple
+ * of their producers to the right outputs, that they stop their producers
+ * when closed early, and that parsed queries planned in several pipelines
+ * give the same rows as serial plans.
+ */
+public class ExchangeTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Integer> parallelism =
+            new TestUtil.Setting<>(LogicalPlan::getParallelism, LogicalPlan::setParallelism);
+
+    @Rule
+    public final TestUtil.Setting<Long> budget = new TestUtil.Setting<>(Join::getMemoryBudget, Join::setMemoryBudget);
+
+    @Rule
+    public final TestUtil.Setting<Boolean> batch =
+            new TestUtil.Setting<>(TupleBatch::isEnabled, TupleBatch::setEnabled);
+
+    private TransactionId tid;
+
+    private HeapFile table;
+
+    private HeapFile other;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        // 约70页，每次扫描分成多个页块
+        table = SystemTestUtil.createRandomHeapFile(3, 20000, 500, new HashMap<>(), null, "a");
+        other = SystemTestUtil.createRandomHeapFile(2, 3000, 500, new HashMap<>(), null, "b");
+    }
+
+    private List<String> scan(HeapFile file) throws Exception {
+        return TestUtil.rows(new SeqScan(tid, file.getId()));
+    }
+
+    @Test
+    public void gatherMorsels() throws Exception {
+        List<String> all = scan(table);
+        for (boolean batches : new boolean[]{false, true}) {
+            TupleBatch.setEnabled(batches);
+            Gather gather = new Gather(MorselScan.split(new SeqScan(tid, table.getId()), 4));
+            gather.open();
+            assertEquals(all, TestUtil.sorted(TestUtil.drain(gather)));
+            gather.rewind();
+            assertEquals(all, TestUtil.sorted(TestUtil.drain(gather)));
+            gather.close();
+        }
+    }
+
+    private List<List<String>> readAll(Exchange[] outputs) throws Exception {
+        // 输出在各自的线程中读，否则一个输出的队列满时生产者会等待
+        List<java.util.concurrent.Future<List<String>>> futures = new ArrayList<>();
+        for (Exchange output : outputs) {
+            futures.add(WorkerPool.submit(() -> {
+                output.open();
+                List<String> rows = TestUtil.drain(output);
+                output.close();
+                return rows;
+            }));
+        }
+        List<List<String>> rows = new ArrayList<>();
+        for (java.util.concurrent.Future<List<String>> f : futures) {
+            rows.add(WorkerPool.await(f, "reading an exchange"));
+        }
+        return rows;
+    }
+
+    @Test
+    public void repartition() throws Exception {
+        Repartition[] outputs = Repartition.of(MorselScan.split(new SeqScan(tid, table.getId()), 3), 1, 4);
+        List<String> union = new ArrayList<>();
+        Map<Integer, Integer> outputOfKey = new HashMap<>();
+        List<List<String>> rows = readAll(outputs);
+        for (int i = 0; i < outputs.length; i++) {
+            int o = i;
+            for (String row : rows.get(o)) {
+                int key = Integer.parseInt(row.split("\t")[1]);
+                // 同一个键只能到一个输出
+                assertEquals(o, (int) outputOfKey.computeIfAbsent(key, k -> o));
+                union.add(row);
+            }
+        }
+        assertEquals(scan(table), TestUtil.sorted(union));
+        assertTrue(outputOfKey.values().stream().distinct().count() > 1);
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        List<String> all = scan(other);
+        Broadcast[] outputs = Broadcast.of(MorselScan.split(new SeqScan(tid, other.getId()), 2), 3);
+        for (List<String> rows : readAll(outputs)) {
+            assertEquals(all, TestUtil.sorted(rows));
+        }
+    }
+
+    /**
+     * A Limit closes the gather long before the producers are done
+     */
+    @Test
+    public void closeEarly() throws Exception {
+        Limit limit = new Limit(10, 0, new Gather(MorselScan.split(new SeqScan(tid, table.getId()), 4)));
+        limit.open();
+        assertEquals(10, TestUtil.drain(limit).size());
+        assertTrue(limit.isStoppedEarly());
+        limit.close();
+    }
+
+    @Test
+    public void producerFailure() throws Exception {
+        OpIterator failing = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(0)),
+                new SeqScan(tid, table.getId())) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean hasNext() throws simpledb.common.DbException {
+                throw new simpledb.common.DbException("broken producer");
+            }
+
+            @Override
+            public TupleBatch nextBatch() throws simpledb.common.DbException {
+                throw new simpledb.common.DbException("broken producer");
+            }
+        };
+        Gather gather = new Gather(new OpIterator[]{failing});
+        gather.open();
+        try {
+            TestUtil.drain(gather);
+            fail("expected the failure of the producer");
+        } catch (simpledb.common.DbException e) {
+            assertEquals("broken producer", e.getMessage());
+        }
+        gather.close();
+    }
+
+    /**
+     * @return whether the plan has an operator of the given class
+     */
+    private static boolean contains(OpIterator plan, Class<?> c) {
+        if (c.isInstance(plan)) {
+            return true;
+        }
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (contains(child, c)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<String> query(String sql, int n, Class<?> exchange) throws Exception {
+        LogicalPlan.setParallelism(n);
+        OpIterator plan = new Parser().generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertEquals(n > 1, contains(plan, exchange));
+        plan.open();
+        List<String> rows = TestUtil.drain(plan);
+        plan.close();
+        return rows;
+    }
+
+    private void check(String sql, boolean ordered, Class<?> exchange) throws Exception {
+        List<String> serial = query(sql, 1, exchange);
+        assertFalse(serial.isEmpty());
+        for (int n : new int[]{2, 4}) {
+            List<String> parallel = query(sql, n, exchange);
+            if (ordered) {
+                assertEquals(serial, parallel);
+            } else {
+                assertEquals(TestUtil.sorted(serial), TestUtil.sorted(parallel));
+            }
+        }
+    }
+
+    @Test
+    public void parsedQueries() throws Exception {
+        Database.getCatalog().addTable(table, "big");
+        Database.getCatalog().addTable(other, "small");
+        TableStats.setTableStats("big", new TableStats(table.getId(), 1));
+        TableStats.setTableStats("small", new TableStats(other.getId(), 1));
+
+        check("SELECT big.a0, big.a2 FROM big WHERE big.a1 < 100;", false, Gather.class);
+        check("SELECT big.a0, small.b1 FROM big, small WHERE big.a1 = small.b0 AND big.a2 < 50;", false, Broadcast.class);
+        check("SELECT small.b1, COUNT(big.a0) FROM big, small WHERE big.a1 = small.b0 GROUP BY small.b1;", false, Broadcast.class);
+        check("SELECT big.a0, big.a1 FROM big WHERE big.a2 < 20 ORDER BY big.a0;", false, Gather.class);
+
+        // 两边都大时按连接字段重新分区
+        Join.setMemoryBudget(BufferPool.getPageSize());
+        check("SELECT SUM(small.b1) FROM big, small WHERE big.a1 = small.b0;", true, Repartition.class);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
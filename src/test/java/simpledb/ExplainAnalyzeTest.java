@@ -0,0 +1,201 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.db.Parser;
+import simpledb.execution.*;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that EXPLAIN ANALYZE counts the tuples every operator returns,
+ * without changing how the plan runs or what it returns, and restores the
+ * plan afterwards.
+ */
+public class ExplainAnalyzeTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Boolean> runtimeFilters =
+            new TestUtil.Setting<>(RuntimeFilter::isEnabled, RuntimeFilter::setEnabled);
+
+    private TransactionId tid;
+
+    private HeapFile fact;
+
+    private HeapFile dim;
+
+    private List<List<Integer>> factTuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        factTuples = new ArrayList<>();
+        fact = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, new HashMap<>(), factTuples, "f");
+        dim = SystemTestUtil.createRandomHeapFile(2, 500, 1000, new HashMap<>(), null, "d");
+    }
+
+    private static long count(OpIterator it) throws Exception {
+        long n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    @Test
+    public void actualRows() throws Exception {
+        SeqScan scan = new SeqScan(tid, fact.getId());
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)), scan);
+        filter.setEstimatedCardinality(123);
+        Limit limit = new Limit(50, 0, filter);
+        long matching = factTuples.stream().filter(t -> t.get(1) < 100).count();
+        assertTrue(matching > 50);
+
+        ExplainAnalyze analyze = new ExplainAnalyze(limit);
+        assertEquals(50, analyze.run());
+        assertEquals(50, analyze.getProfile(limit).getRows());
+        assertEquals(50, analyze.getProfile(filter).getRows());
+        assertEquals(1, analyze.getProfile(scan).getOpens());
+        assertTrue(analyze.getProfile(scan).getRows() < factTuples.size());
+        assertTrue(analyze.getProfile(scan).getPageHits() + analyze.getProfile(scan).getPageMisses() > 0);
+        assertTrue(analyze.getSelfNanos(limit) <= analyze.getProfile(limit).getTotalNanos());
+        // 运行结束后计划恢复原样
+        assertSame(filter, limit.getChildren()[0]);
+        assertSame(scan, filter.getChildren()[0]);
+        assertTrue(analyze.getReport().contains("card:123,rows:50"));
+
+        Limit all = new Limit(factTuples.size(), 0, filter);
+        analyze = new ExplainAnalyze(all);
+        assertEquals(matching, analyze.run());
+        assertEquals(factTuples.size(), analyze.getProfile(scan).getRows());
+        assertEquals(matching, count(all));
+    }
+
+    /**
+     * On a single thread an operator cannot use more CPU time than wall
+     * time, though hasNext and next, which alternate, do unequal work
+     */
+    @Test
+    public void cpuWithinWall() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 200000, 1000, new HashMap<>(), null, "b");
+        SeqScan scan = new SeqScan(tid, big.getId());
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10)), scan);
+        ExplainAnalyze analyze = new ExplainAnalyze(filter);
+        analyze.run();
+        for (OpIterator op : new OpIterator[]{filter, scan}) {
+            OperatorProfile profile = analyze.getProfile(op);
+            assertTrue(profile.toString(), profile.getNextCpuNanos() > 0);
+            assertTrue(profile.toString(), profile.getNextCpuNanos() <= profile.getNextNanos());
+            assertTrue(profile.toString(), profile.getCpuNanos() <= profile.getTotalNanos());
+        }
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        SeqScan scan = new SeqScan(tid, fact.getId());
+        Aggregate agg = new Aggregate(scan, new int[]{1}, new Aggregator.Op[]{Aggregator.Op.COUNT}, new int[]{0});
+        ExplainAnalyze analyze = new ExplainAnalyze(agg);
+        long groups = analyze.run();
+        assertEquals(factTuples.stream().map(t -> t.get(0)).distinct().count(), groups);
+        assertEquals(factTuples.size(), analyze.getProfile(scan).getRows());
+        // 聚合在open中读完输入
+        OperatorProfile profile = analyze.getProfile(agg);
+        assertTrue(profile.getOpenNanos() >= analyze.getProfile(scan).getTotalNanos());
+        assertEquals(groups, analyze.run());
+    }
+
+    /**
+     * The join still publishes its runtime filter to the scan under the
+     * wrappers, which then returns only the rows that may match
+     */
+    @Test
+    public void hashJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        RuntimeFilter.setEnabled(true);
+        SeqScan probe = new SeqScan(tid, fact.getId());
+        HashEquiJoin join = new HashEquiJoin(p,
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)), new SeqScan(tid, dim.getId())),
+                probe);
+        long expected = count(join);
+        ExplainAnalyze analyze = new ExplainAnalyze(join);
+        assertEquals(expected, analyze.run());
+        assertEquals(expected, analyze.getProfile(join).getRows());
+        assertTrue(analyze.getProfile(probe).getRows() < factTuples.size() / 2);
+    }
+
+    @Test
+    public void pushPlan() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        SeqScan build = new SeqScan(tid, dim.getId());
+        SeqScan probe = new SeqScan(tid, fact.getId());
+        HashEquiJoin join = new HashEquiJoin(p, build, probe);
+        OpIterator pushed = PushPlan.compile(join);
+        assertTrue(pushed instanceof PushPlan);
+        long expected = count(pushed);
+        ExplainAnalyze analyze = new ExplainAnalyze(pushed);
+        assertEquals(expected, analyze.run());
+        // 连接是流水线中的阶段，只有流水线和它的源被包装
+        assertNull(analyze.getProfile(join));
+        assertEquals(500, analyze.getProfile(build).getRows());
+        assertTrue(analyze.getProfile(probe).getOpens() > 0);
+        assertSame(build, join.getChildren()[0]);
+        assertTrue(analyze.getReport().contains("(pushed)"));
+    }
+
+    @Test
+    public void gather() throws Exception {
+        OpIterator[] producers = MorselScan.split(new SeqScan(tid, fact.getId()), 4);
+        Gather gather = new Gather(producers);
+        ExplainAnalyze analyze = new ExplainAnalyze(gather);
+        assertEquals(factTuples.size(), analyze.run());
+        long rows = 0;
+        for (OpIterator producer : producers) {
+            rows += analyze.getProfile(producer).getRows();
+        }
+        assertEquals(factTuples.size(), rows);
+        assertEquals(analyze.getProfile(gather).getTotalNanos(), analyze.getSelfNanos(gather));
+        assertEquals(factTuples.size(), count(gather));
+    }
+
+    @Test
+    public void parser() throws Exception {
+        Database.getCatalog().addTable(fact, "f");
+        TableStats.setTableStats("f", new TableStats(fact.getId(), 1));
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            new Parser().processNextStatement("EXPLAIN ANALYZE SELECT f.f0 FROM f WHERE f.f1 < 100;");
+        } finally {
+            System.setOut(out);
+        }
+        long matching = factTuples.stream().filter(t -> t.get(1) < 100).count();
+        String report = bytes.toString();
+        assertTrue(report, report.contains("scan(f),rows:" + factTuples.size()));
+        assertTrue(report, report.contains(matching + " rows in "));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExplainAnalyzeTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.ExternalSort;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that ExternalSort gives the same order as a stable in-memory sort,
+ * whether the tuples fit in memory, are written to a few runs, or to so many
+ * runs that they are merged in several passes, and that reading the output
+ * again gives the same tuples.
+ */
+public class ExternalSortTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+
+    @Rule
+    public final TestUtil.Setting<Long> budget =
+            new TestUtil.Setting<>(OrderBy::getMemoryBudget, OrderBy::setMemoryBudget);
+
+    @Rule
+    public final TestUtil.Setting<Integer> threads = new TestUtil.Setting<>(OrderBy::getThreads, OrderBy::setThreads);
+
+    private List<Tuple> tuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(40);
+        tuples = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(random.nextInt(300) - 150));
+            t.setField(1, new StringField("s" + random.nextInt(50), Type.STRING_LEN));
+            // 第三列记录输入顺序，用来检查排序是否稳定
+            t.setField(2, new IntField(i));
+            tuples.add(t);
+        }
+    }
+
+    private static List<String> read(DbFileIterator it) throws Exception {
+        List<String> rows = new ArrayList<>();
+        while (it.hasNext()) {
+            rows.add(it.next().toString());
+        }
+        return rows;
+    }
+
+    private List<String> expected(Comparator<Tuple> order) {
+        List<Tuple> sorted = new ArrayList<>(tuples);
+        sorted.sort(order);
+        List<String> rows = new ArrayList<>();
+        for (Tuple t : sorted) {
+            rows.add(t.toString());
+        }
+        return rows;
+    }
+
+    private ExternalSort sort(int[] fields, boolean[] ascending, long memory, int threads) throws Exception {
+        ExternalSort sort = new ExternalSort(TD, fields, ascending, memory, threads);
+        for (Tuple t : tuples) {
+            sort.add(t);
+        }
+        sort.finish();
+        return sort;
+    }
+
+    private void check(ExternalSort sort, List<String> expected) throws Exception {
+        DbFileIterator it = sort.iterator();
+        it.open();
+        assertEquals(expected, read(it));
+        it.rewind();
+        assertEquals(expected, read(it));
+        it.close();
+        sort.clear();
+    }
+
+    @Test
+    public void inMemory() throws Exception {
+        ExternalSort sort = sort(new int[]{0}, new boolean[]{true}, 1 << 20, 2);
+        assertFalse(sort.isSpilled());
+        assertEquals(0, sort.numRuns());
+        check(sort, expected(Comparator.comparingInt(t -> t.getInt(0))));
+    }
+
+    /**
+     * Runs of a few hundred tuples, merged in one pass
+     */
+    @Test
+    public void fewRuns() throws Exception {
+        ExternalSort sort = sort(new int[]{0}, new boolean[]{false}, 8 * TupleFile.BUFFER_SIZE, 3);
+        assertTrue(sort.isSpilled());
+        assertTrue(sort.numRuns() > 1);
+        check(sort, expected(Comparator.comparingInt((Tuple t) -> t.getInt(0)).reversed()));
+    }
+
+    /**
+     * A budget of a few tuples: the merge of two runs at a time takes
+     * several passes
+     */
+    @Test
+    public void multiPassMerge() throws Exception {
+        ExternalSort sort = sort(new int[]{1, 0}, new boolean[]{false, true}, 20 * (TD.getSize() + ExternalSort.TUPLE_OVERHEAD), 4);
+        assertTrue(sort.numRuns() <= 2);
+        Comparator<Tuple> order = Comparator.comparing((Tuple t) -> t.getString(1)).reversed()
+                .thenComparingInt(t -> t.getInt(0));
+        check(sort, expected(order));
+    }
+
+    @Test
+    public void orderBy() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, new HashMap<>(), null);
+        TransactionId tid = new TransactionId();
+        OrderBy.setMemoryBudget(1000 * (table.getTupleDesc().getSize() + ExternalSort.TUPLE_OVERHEAD));
+        OrderBy.setThreads(2);
+        OrderBy orderBy = new OrderBy(1, true, new SeqScan(tid, table.getId()));
+        orderBy.open();
+        assertTrue(orderBy.isSpilled());
+        List<Integer> keys = new ArrayList<>();
+        while (orderBy.hasNext()) {
+            keys.add(orderBy.next().getInt(1));
+        }
+        assertEquals(20000, keys.size());
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1) <= keys.get(i));
+        }
+        orderBy.rewind();
+        int n = 0;
+        while (orderBy.hasNext()) {
+            assertEquals(keys.get(n++), Integer.valueOf(orderBy.next().getInt(1)));
+        }
+        assertEquals(20000, n);
+        orderBy.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import simpledb.BenchmarkHarness.Task;
+import simpledb.execution.IntFilterKernels;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+
+import java.util.Random;
+
+/**
+ * Measures the selection of the rows of an int column that pass a range
+ * predicate, batch by batch: once comparing IntField objects one at a time
+ * with {@link IntField#compare}, and once each with the scalar and the SIMD
+ * {@link IntFilterKernels}, followed by the conversion of the bitmap into a
+ * selection vector. Not a unit test; run it with
+ * <pre>java --add-modules jdk.incubator.vector -cp ... simpledb.FilterKernelBenchmark [rows]</pre>
+ */
+public class FilterKernelBenchmark {
+
+    private static final int BATCH = 1024;
+
+    private static final BenchmarkHarness HARNESS = new BenchmarkHarness(20, 20);
+
+    private static double bench(Task kernel, long rows) throws Exception {
+        return rows * 1e9 / HARNESS.time(kernel);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 22;
+        int batches = rows / BATCH;
+        Random random = new Random(rows);
+        int[][] columns = new int[batches][BATCH];
+        Field[][] fields = new Field[batches][BATCH];
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < BATCH; i++) {
+                columns[b][i] = random.nextInt(1 << 20);
+                fields[b][i] = new IntField(columns[b][i]);
+            }
+        }
+        int[] selection = new int[BATCH];
+        long[] bits = new long[IntFilterKernels.words(BATCH)];
+        long total = (long) batches * BATCH;
+        System.out.println("vector API available: " + IntFilterKernels.isVectorized());
+
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.LESS_THAN, Predicate.Op.EQUALS}) {
+            int c = 1 << 19;
+            IntField operand = new IntField(c);
+            double fieldRate = bench(() -> {
+                long selected = 0;
+                for (Field[] batch : fields) {
+                    int out = 0;
+                    for (int i = 0; i < BATCH; i++) {
+                        if (batch[i].compare(op, operand)) selection[out++] = i;
+                    }
+                    selected += out;
+                }
+                return selected;
+            }, total);
+            Task kernel = () -> {
+                long selected = 0;
+                for (int[] column : columns) {
+                    IntFilterKernels.compare(op, column, BATCH, c, bits);
+                    selected += IntFilterKernels.select(bits, BATCH, selection);
+                }
+                return selected;
+            };
+            boolean vectorized = IntFilterKernels.isVectorized();
+            IntFilterKernels.setVectorized(false);
+            double scalarRate = bench(kernel, total);
+            IntFilterKernels.setVectorized(vectorized);
+            double vectorRate = vectorized ? bench(kernel, total) : Double.NaN;
+            System.out.printf("%-20s IntField.compare %6.0f M/s   scalar %6.0f M/s   simd %6.0f M/s%n",
+                    op, fieldRate / 1e6, scalarRate / 1e6, vectorRate / 1e6);
+        }
+    }
+}
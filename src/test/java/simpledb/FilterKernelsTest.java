@@ -0,0 +1,108 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Test;
+import simpledb.common.Utility;
+import simpledb.execution.IntFilterKernels;
+import simpledb.execution.Predicate;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FilterKernelsTest extends SimpleDbTestBase {
+
+    private static final boolean VECTORIZED = IntFilterKernels.isVectorized();
+
+    @After
+    public void restore() {
+        IntFilterKernels.setVectorized(VECTORIZED);
+    }
+
+    /**
+     * Both kernels set exactly the bits of the values for which IntField.compare holds,
+     * including for columns that do not fill a whole vector or bitmap word
+     */
+    @Test
+    public void matchesIntFieldCompare() {
+        Random random = new Random(33);
+        for (int n : new int[]{0, 1, 7, 63, 64, 65, 100, 1000}) {
+            int[] values = new int[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = random.nextInt(9) - 4;
+            }
+            for (boolean vectorized : new boolean[]{false, true}) {
+                IntFilterKernels.setVectorized(vectorized);
+                for (Predicate.Op op : Predicate.Op.values()) {
+                    for (int c = -5; c <= 5; c++) {
+                        // 位图多出的字应被清零
+                        long[] bits = new long[IntFilterKernels.words(n) + 1];
+                        Arrays.fill(bits, -1L);
+                        bits[bits.length - 1] = 0;
+                        IntFilterKernels.compare(op, values, n, c, bits);
+                        for (int i = 0; i < n; i++) {
+                            boolean expected = new IntField(values[i]).compare(op, new IntField(c));
+                            assertEquals(op + " " + c + " at " + i, expected, (bits[i >>> 6] >>> i & 1) != 0);
+                        }
+                        for (int i = n; i < bits.length * 64; i++) {
+                            assertEquals(0, bits[i >>> 6] >>> i & 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void select() {
+        long[] bits = {0x8000000000000001L, 0L, 0x5L};
+        int[] sel = new int[192];
+        assertEquals(4, IntFilterKernels.select(bits, 192, sel));
+        assertArrayEquals(new int[]{0, 63, 128, 130}, Arrays.copyOf(sel, 4));
+        assertEquals(0, IntFilterKernels.select(new long[0], 0, sel));
+    }
+
+    /**
+     * Predicate.filter selects the same rows through the kernels, used while every row
+     * is selected, as through the selection vector loop, used once rows were dropped
+     */
+    @Test
+    public void batchFilter() {
+        TupleBatch batch = new TupleBatch(Utility.getTupleDesc(1), 200);
+        int[] col = batch.intColumn(0);
+        for (int i = 0; i < 200; i++) {
+            col[i] = i % 10;
+        }
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(0, op, new IntField(4));
+            for (int dropped = 0; dropped <= 1; dropped++) {
+                batch.setSize(200);
+                if (dropped == 1) {
+                    // 去掉第0行，选择向量不再是0..n-1
+                    new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0)).filter(batch);
+                    assertEquals(180, batch.selectedCount());
+                }
+                p.filter(batch);
+                int expected = 0;
+                for (int i = 0; i < 200; i++) {
+                    if ((dropped == 0 || col[i] > 0) && new IntField(col[i]).compare(op, new IntField(4))) {
+                        assertEquals(op.toString(), i, batch.selection()[expected++]);
+                    }
+                }
+                assertEquals(op.toString(), expected, batch.selectedCount());
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FilterKernelsTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.db.Parser;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an Aggregate over several group-by fields computes several
+ * aggregates in one pass, in memory and spilled to disk, and that a query
+ * with such a GROUP BY is planned as a single Aggregate.
+ */
+public class GroupByTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget =
+            new TestUtil.Setting<>(Aggregate::getMemoryBudget, Aggregate::setMemoryBudget);
+
+    private TransactionId tid;
+
+    private HeapFile table;
+
+    private List<Tuple> tuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        table = SystemTestUtil.createRandomHeapFile(3, 5000, 40, new HashMap<>(), null, "c");
+        tuples = new ArrayList<>();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            tuples.add(scan.next());
+        }
+        scan.close();
+    }
+
+    /**
+     * @return SUM, COUNT and MAX of column 2 and MIN of column 0, grouped by
+     * columns 0 and 1, computed with a map
+     */
+    private Set<String> expected() {
+        Map<List<Integer>, int[]> groups = new HashMap<>();
+        for (Tuple t : tuples) {
+            int[] state = groups.computeIfAbsent(Arrays.asList(t.getInt(0), t.getInt(1)),
+                    k -> new int[]{0, 0, Integer.MIN_VALUE, Integer.MAX_VALUE});
+            state[0] += t.getInt(2);
+            state[1]++;
+            state[2] = Math.max(state[2], t.getInt(2));
+            state[3] = Math.min(state[3], t.getInt(0));
+        }
+        Set<String> rows = new HashSet<>();
+        for (Map.Entry<List<Integer>, int[]> group : groups.entrySet()) {
+            int[] state = group.getValue();
+            rows.add(group.getKey().get(0) + "\t" + group.getKey().get(1) + "\t"
+                    + state[0] + "\t" + state[1] + "\t" + state[2] + "\t" + state[3] + "\n");
+        }
+        return rows;
+    }
+
+    private Aggregate aggregate() {
+        return new Aggregate(new SeqScan(tid, table.getId()), new int[]{2, 2, 2, 0},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX, Aggregator.Op.MIN},
+                new int[]{0, 1});
+    }
+
+    @Test
+    public void severalAggregates() throws Exception {
+        Aggregate agg = aggregate();
+        TupleDesc td = agg.getTupleDesc();
+        assertEquals(6, td.numFields());
+        assertTrue(td.getFieldName(0).endsWith(".c0"));
+        assertTrue(td.getFieldName(2).startsWith("sum(") && td.getFieldName(2).endsWith(".c2)"));
+        assertTrue(td.getFieldName(5).startsWith("min(") && td.getFieldName(5).endsWith(".c0)"));
+        agg.open();
+        Set<String> rows = TestUtil.distinct(agg);
+        assertEquals(expected(), rows);
+        agg.rewind();
+        assertEquals(rows, TestUtil.distinct(agg));
+        agg.close();
+    }
+
+    @Test
+    public void spilled() throws Exception {
+        // 40*40个组中只有约100个能留在内存
+        Aggregate.setMemoryBudget(50 * 300);
+        Aggregate agg = aggregate();
+        agg.open();
+        assertEquals(expected(), TestUtil.distinct(agg));
+        agg.close();
+    }
+
+    @Test
+    public void stringKeysAndCount() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE});
+        List<Tuple> strings = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("a" + i % 3, Type.STRING_LEN));
+            t.setField(1, new IntField(i % 2));
+            t.setField(2, new StringField("v" + i, Type.STRING_LEN));
+            strings.add(t);
+        }
+        Aggregate agg = new Aggregate(new TupleIterator(td, strings), new int[]{2, 1},
+                new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.SUM}, new int[]{0, 1});
+        agg.open();
+        Set<String> rows = TestUtil.distinct(agg);
+        agg.close();
+        assertEquals(6, rows.size());
+        assertTrue(rows.contains("a0\t0\t50\t0\n"));
+        assertTrue(rows.contains("a1\t1\t50\t50\n"));
+
+        try {
+            new HashAggregator(td, new int[]{0}, new int[]{2}, new Aggregator.Op[]{Aggregator.Op.SUM});
+            fail("SUM over a string field");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void parsedGroupBy() throws Exception {
+        Database.getCatalog().addTable(table, "grouped");
+        TableStats.setTableStats("grouped", new TableStats(table.getId(), 1));
+        Parser parser = new Parser();
+        LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT grouped.c0, grouped.c1, SUM(grouped.c2), "
+                + "COUNT(grouped.c2), MAX(grouped.c2), MIN(grouped.c0) FROM grouped GROUP BY grouped.c0, grouped.c1;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OpIterator agg = ((Operator) plan).getChildren()[0];
+        assertTrue(agg instanceof Aggregate);
+        assertTrue(((Operator) agg).getChildren()[0] instanceof SeqScan);
+        plan.open();
+        assertEquals(expected(), TestUtil.distinct(plan));
+        plan.close();
+
+        // 选择列表的顺序可以与GROUP BY不同，同一个聚合只计算一次
+        lp = parser.generateLogicalPlan(tid, "SELECT MAX(grouped.c2), grouped.c1, MAX(grouped.c2) "
+                + "FROM grouped GROUP BY grouped.c0, grouped.c1;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        agg = ((Operator) plan).getChildren()[0];
+        assertEquals(1, ((Aggregate) agg).aggregateOps().length);
+        assertEquals(3, plan.getTupleDesc().numFields());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupByTest.class);
+    }
+}
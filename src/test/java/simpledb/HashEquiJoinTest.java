@@ -0,0 +1,101 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that HashEquiJoin gives the same rows as a nested loop join whether
+ * its build side fits in memory, is partitioned, or is partitioned down to
+ * partitions that have to be joined chunk by chunk.
+ */
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget = new TestUtil.Setting<>(Join::getMemoryBudget, Join::setMemoryBudget);
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    private void check(HeapFile left, HeapFile right, long memory) throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        Join.setMemoryBudget(Long.MAX_VALUE);
+        Join nested = new Join(pred, new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()));
+        List<String> expected = TestUtil.rows(nested);
+        assertFalse(expected.isEmpty());
+
+        Join.setMemoryBudget(memory);
+        HashEquiJoin join = new HashEquiJoin(pred, new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()));
+        join.open();
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(join)));
+        join.rewind();
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(join)));
+
+        join.rewind();
+        List<String> batchRows = new ArrayList<>();
+        TupleBatch batch;
+        while ((batch = join.nextBatch()) != null) {
+            for (int i = 0; i < batch.selectedCount(); i++) {
+                batchRows.add(batch.getTuple(batch.selection()[i]).toString());
+            }
+        }
+        Collections.sort(batchRows);
+        assertEquals(expected, batchRows);
+        join.close();
+    }
+
+    @Test
+    public void inMemory() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, new HashMap<>(), null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 1000, 500, new HashMap<>(), null);
+        check(left, right, Long.MAX_VALUE);
+    }
+
+    /**
+     * The build side is about four times the budget: one partition stays in
+     * memory, the others are spilled
+     */
+    @Test
+    public void hybrid() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, new HashMap<>(), null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 1000, 500, new HashMap<>(), null);
+        check(left, right, 2000 * 8 / 4);
+    }
+
+    /**
+     * The budget holds only a few tuples, so partitions are split again, and
+     * the partitions of the last level are joined chunk by chunk
+     */
+    @Test
+    public void recursiveAndChunked() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 20, new HashMap<>(), null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 300, 20, new HashMap<>(), null);
+        check(left, right, 8 * 8);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeapFileCompactorTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+    private int tuplesPerPage;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        // two int columns: 504 tuples per 4096 byte page
+        tuplesPerPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        hf = SystemTestUtil.createRandomHeapFile(2, tuplesPerPage * 4, null, tuples);
+    }
+
+    /**
+     * Deletes every tuple whose first column is odd, or every tuple when keepNone is set,
+     * and returns the remaining rows.
+     */
+    private List<List<Integer>> deleteSome(boolean keepNone) throws Exception {
+        TransactionId tid = new TransactionId();
+        List<List<Integer>> remaining = new ArrayList<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        List<Tuple> toDelete = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (keepNone || ((IntField) t.getField(0)).getValue() % 2 != 0) {
+                toDelete.add(t);
+            } else {
+                remaining.add(SystemTestUtil.tupleToList(t));
+            }
+        }
+        it.close();
+        for (Tuple t : toDelete) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return remaining;
+    }
+
+    @Test
+    public void compactAfterDeletes() throws Exception {
+        List<List<Integer>> remaining = deleteSome(false);
+        int pagesNeeded = Math.max(1, (remaining.size() + tuplesPerPage - 1) / tuplesPerPage);
+
+        Map<RecordId, RecordId> moves = new HashMap<>();
+        HeapFileCompactor compactor = new HeapFileCompactor(hf);
+        compactor.addRelocationListener((tableId, oldRid, newRid) -> {
+            assertEquals(hf.getId(), tableId);
+            // reported only once committed, so the page on disk already holds the tuple
+            HeapPage page = (HeapPage) hf.readPage(newRid.getPageId());
+            assertTrue(page.isSlotUsed(newRid.getTupleNumber()));
+            moves.put(oldRid, newRid);
+        });
+        HeapFileCompactor.Report report = compactor.compact();
+
+        assertEquals(4, report.getPagesBefore());
+        assertEquals(pagesNeeded, report.getPagesAfter());
+        assertEquals(pagesNeeded, hf.numPages());
+        assertEquals((long) pagesNeeded * BufferPool.getPageSize(), hf.getFile().length());
+        assertEquals((long) (4 - pagesNeeded) * BufferPool.getPageSize(), report.getBytesReclaimed());
+        assertEquals(report.getTuplesMoved(), moves.size());
+        for (RecordId rid : moves.values()) {
+            assertTrue(rid.getPageId().getPageNumber() < pagesNeeded);
+        }
+
+        // same rows, both through the buffer pool and straight from disk
+        SystemTestUtil.matchTuples(hf, remaining);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, remaining);
+    }
+
+    @Test
+    public void compactEmptyTable() throws Exception {
+        deleteSome(true);
+        HeapFileCompactor.Report report = new HeapFileCompactor(hf).compact();
+        assertEquals(0, report.getTuplesMoved());
+        assertEquals(1, hf.numPages());
+        assertEquals(3L * BufferPool.getPageSize(), report.getBytesReclaimed());
+        SystemTestUtil.matchTuples(hf, new ArrayList<>());
+    }
+
+    @Test
+    public void compactFullTableIsNoop() throws Exception {
+        HeapFileCompactor.Report report = new HeapFileCompactor(hf).compact();
+        assertEquals(0, report.getTuplesMoved());
+        assertEquals(0, report.getBytesReclaimed());
+        assertEquals(4, hf.numPages());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Tuples committed by another thread while the vacuum runs are all kept,
+     * including those that land in the trailing pages the vacuum cuts off
+     */
+    @Test
+    public void insertWhileCompacting() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            deleteSome(true);
+            int count = tuplesPerPage * 3;
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread inserter = new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        TransactionId tid = new TransactionId();
+                        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            inserter.start();
+            while (inserter.isAlive()) {
+                new HeapFileCompactor(hf).compact();
+            }
+            inserter.join();
+            assertNull(error.get());
+
+            int found = 0;
+            DbFileIterator it = hf.iterator(new TransactionId());
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+                found++;
+            }
+            it.close();
+            assertEquals(count, found);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileCompactorTest.class);
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HeapFileLoaderTest extends SimpleDbTestBase {
+    private static final Type[] TYPES = {Type.INT_TYPE, Type.STRING_TYPE};
+
+    private static File textFile(String content) throws IOException {
+        File f = File.createTempFile("loader", ".txt");
+        f.deleteOnExit();
+        try (Writer w = new FileWriter(f, StandardCharsets.UTF_8)) {
+            w.write(content);
+        }
+        return f;
+    }
+
+    private static List<String> load(HeapFileLoader loader, File in) throws Exception {
+        File out = File.createTempFile("loader", ".dat");
+        out.deleteOnExit();
+        StringDictionary.sidecarFor(out).deleteOnExit();
+        loader.load(in, out);
+        HeapFile hf = new HeapFile(out, new TupleDesc(TYPES));
+        Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+        List<String> rows = new ArrayList<>();
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            rows.add(((IntField) t.getField(0)).getValue() + "|" + ((StringField) t.getField(1)).getValue());
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Many small chunks on several threads still produce the rows in input order.
+     */
+    @Test
+    public void parallelChunksKeepOrder() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(i - 2500).append(",  name").append(i).append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i % 1000 == 0) {
+                sb.append("\n");
+            }
+            expected.add((i - 2500) + "|name" + i);
+        }
+        // the last line has no newline
+        sb.append("7,last");
+        expected.add("7|last");
+
+        HeapFileLoader loader = new HeapFileLoader(TYPES, ',', BufferPool.getPageSize())
+                .setThreads(4).setChunkBytes(997);
+        assertEquals(expected, load(loader, textFile(sb.toString())));
+    }
+
+    @Test
+    public void emptyInputGivesOneEmptyPage() throws Exception {
+        File in = textFile("");
+        File out = File.createTempFile("loader", ".dat");
+        out.deleteOnExit();
+        StringDictionary.sidecarFor(out).deleteOnExit();
+        HeapFileLoader.Result result = new HeapFileLoader(TYPES, ',', BufferPool.getPageSize()).load(in, out);
+        assertEquals(0, result.getRows());
+        assertEquals(1, result.getPages());
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    /**
+     * A string longer than {@link Type#STRING_LEN} bytes is cut before the
+     * character that does not fit, with or without a dictionary
+     */
+    @Test
+    public void longStringsCutAtCharacters() throws Exception {
+        String kept = "a".repeat(Type.STRING_LEN - 1);
+        File in = textFile("1," + kept + "\u00e9\u00e9\n");
+        assertEquals(List.of("1|" + kept), load(new HeapFileLoader(TYPES, ',', BufferPool.getPageSize()), in));
+        assertEquals(List.of("1|" + kept), load(new HeapFileLoader(TYPES, ',', BufferPool.getPageSize())
+                .setDictionaryEncoded(true), in));
+    }
+
+    @Test
+    public void malformedLinesFail() throws Exception {
+        for (String bad : new String[]{"1,a\nx,b\n", "1,a\n2\n", "1,a,3\n", "99999999999,a\n"}) {
+            try {
+                new HeapFileLoader(TYPES, ',', BufferPool.getPageSize()).load(textFile(bad),
+                        File.createTempFile("loader", ".dat"));
+                fail("expected IOException for " + bad);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileLoaderTest.class);
+    }
+}
@@ -54,6 +54,38 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * New pages come out of preallocated extents; the page count survives reopening the file.
+     */
+    @Test
+    public void growByExtents() throws Exception {
+        FileExtentAllocator.setExtentPages(4);
+        try {
+            // the single empty page written by the fixture is full after 504 tuples
+            for (int i = 0; i < 504 * 2 + 1; ++i) {
+                Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+            }
+            assertEquals(3, empty.numPages());
+            // page 1 started an extent of four pages
+            assertEquals(5L * BufferPool.getPageSize(), empty.getFile().length());
+
+            Database.getBufferPool().transactionComplete(tid);
+            HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+            assertEquals(3, reopened.numPages());
+        } finally {
+            FileExtentAllocator.resetExtentPages();
+        }
+    }
+
+    /**
+     * An empty page written on purpose is not taken for a preallocated page when the file is reopened.
+     */
+    @Test
+    public void emptyPageSurvivesReopen() {
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(1, reopened.numPages());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -0,0 +1,149 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that IndexNestedLoopJoin gives the same rows as a nested loop join,
+ * looking up each distinct outer key once per block, and that the optimizer
+ * only picks it for an inner table with a B+ tree on the join field.
+ */
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget = new TestUtil.Setting<>(Join::getMemoryBudget, Join::setMemoryBudget);
+
+    private TransactionId tid;
+
+    private HeapFile outer;
+
+    private BTreeFile inner;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        outer = SystemTestUtil.createRandomHeapFile(2, 300, 400, new HashMap<>(), null);
+        // 每个键平均有10个内表元组
+        inner = BTreeUtility.createRandomBTreeFile(2, 2000, 200, null, null, 0);
+    }
+
+    private void check(OpIterator innerPlan, OpIterator expectedInnerPlan) throws Exception {
+        JoinPredicate pred = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        Join nested = new Join(pred, new SeqScan(tid, outer.getId()), expectedInnerPlan);
+        List<String> expected = TestUtil.rows(nested);
+        assertFalse(expected.isEmpty());
+
+        Set<Integer> keys = new HashSet<>();
+        SeqScan scan = new SeqScan(tid, outer.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            keys.add(scan.next().getInt(1));
+        }
+        scan.close();
+
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred, new SeqScan(tid, outer.getId()), innerPlan);
+        join.open();
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(join)));
+        assertEquals(keys.size(), join.getProbes());
+        join.rewind();
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(join)));
+        join.close();
+    }
+
+    @Test
+    public void probe() throws Exception {
+        check(new SeqScan(tid, inner.getId()), new SeqScan(tid, inner.getId()));
+    }
+
+    /**
+     * The filters over the inner scan are applied to the tuples found in the index
+     */
+    @Test
+    public void filteredInner() throws Exception {
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1 << 15));
+        check(new Filter(p, new SeqScan(tid, inner.getId())), new Filter(p, new SeqScan(tid, inner.getId())));
+    }
+
+    /**
+     * With a budget of a few tuples the outer side is read in many blocks, and
+     * each block looks up its own keys
+     */
+    @Test
+    public void smallBlocks() throws Exception {
+        Join.setMemoryBudget(16 * 8);
+        JoinPredicate pred = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        Join nested = new Join(pred, new SeqScan(tid, outer.getId()), new SeqScan(tid, inner.getId()));
+        List<String> expected = TestUtil.rows(nested);
+
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred, new SeqScan(tid, outer.getId()),
+                new SeqScan(tid, inner.getId()));
+        join.open();
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(join)));
+        assertTrue(join.getProbes() <= 300);
+        join.close();
+    }
+
+    @Test
+    public void canProbe() {
+        assertTrue(IndexNestedLoopJoin.canProbe(new SeqScan(tid, inner.getId()), 0));
+        assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, inner.getId()), 1));
+        assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, outer.getId()), 0));
+    }
+
+    /**
+     * The index join costs less than a hash join for a small outer side, and
+     * is instantiated once the optimizer has chosen it
+     */
+    @Test
+    public void chosenByOptimizer() throws Exception {
+        // 同一个文件以带列名的TupleDesc重新登记，才能按列名解析连接字段
+        BTreeFile named = new BTreeFile(inner.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named, "indexed");
+        HeapFile plain = SystemTestUtil.createRandomHeapFile(2, 300, 400, new HashMap<>(), null, "c");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(plain.getId(), "a");
+        lp.addScan(named.getId(), "b");
+        LogicalJoinNode toIndexed = new LogicalJoinNode("a", "b", "c1", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode toPlain = toIndexed.swapInnerOuter();
+        JoinOptimizer jo = new JoinOptimizer(lp, Arrays.asList(toIndexed));
+
+        double scanCost = 1000 * named.numPages();
+        double indexCost = jo.estimateIndexJoinCost(toIndexed, 2, 100, scanCost);
+        assertTrue(indexCost < 100 + scanCost + 2 + 2000);
+        assertTrue(jo.estimateIndexJoinCost(toIndexed, 100000, 100, scanCost) > 100 + scanCost + 100000 + 2000);
+        assertEquals(Double.POSITIVE_INFINITY, jo.estimateIndexJoinCost(toPlain, 10, 100, scanCost), 0);
+
+        OpIterator plan1 = new SeqScan(tid, plain.getId(), "a");
+        OpIterator plan2 = new SeqScan(tid, named.getId(), "b");
+        assertTrue(JoinOptimizer.instantiateJoin(toIndexed, plan1, plan2) instanceof HashEquiJoin);
+        toIndexed.indexJoin = true;
+        assertTrue(JoinOptimizer.instantiateJoin(toIndexed, plan1, plan2) instanceof IndexNestedLoopJoin);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import simpledb.common.Type;
+import simpledb.execution.JoinHashTable;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the build side of a hash join kept in a
+ * {@code HashMap<Field, List<Tuple>>} with the same rows kept in a
+ * {@link JoinHashTable}: the time to build and to probe with int keys, one
+ * key at a time and a batch of keys at a time, and the heap retained by the
+ * table beyond the tuples themselves. Not a unit test; run it with
+ * <pre>java -cp ... simpledb.JoinHashTableBenchmark [rows]</pre>
+ */
+public class JoinHashTableBenchmark {
+
+    private static final int ROUNDS = 10;
+
+    private static final int BATCH = 1024;
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        Random random = new Random(rows);
+        Tuple[] build = new Tuple[rows];
+        int[] probe = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            // 平均每个键两行，一半的探测键没有匹配
+            build[i] = new Tuple(td);
+            build[i].setField(0, new IntField(random.nextInt(rows / 2)));
+            build[i].setField(1, new IntField(i));
+            probe[i] = random.nextInt(rows);
+        }
+
+        long base = usedMemory();
+        Map<Field, List<Tuple>> map = new HashMap<>();
+        for (Tuple t : build) {
+            map.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(t);
+        }
+        long mapBytes = usedMemory() - base;
+        long mapBuild = Long.MAX_VALUE, mapProbe = Long.MAX_VALUE;
+        long mapSum = 0, tableSum = 0, batchSum = 0;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            Map<Field, List<Tuple>> m = new HashMap<>();
+            for (Tuple t : build) {
+                m.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(t);
+            }
+            mapBuild = Math.min(mapBuild, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int key : probe) {
+                List<Tuple> l = m.get(new IntField(key));
+                if (l != null) {
+                    for (Tuple t : l) {
+                        mapSum += t.getInt(1);
+                    }
+                }
+            }
+            mapProbe = Math.min(mapProbe, System.nanoTime() - start);
+        }
+        map = null;
+
+        base = usedMemory();
+        JoinHashTable table = new JoinHashTable(0, true);
+        for (Tuple t : build) {
+            table.add(t);
+        }
+        long tableBytes = usedMemory() - base;
+        long tableBuild = Long.MAX_VALUE, tableProbe = Long.MAX_VALUE, batchProbe = Long.MAX_VALUE;
+        int[] sel = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            sel[i] = i;
+        }
+        int[] keys = new int[BATCH];
+        int[] first = new int[BATCH];
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            JoinHashTable h = new JoinHashTable(0, true);
+            for (Tuple t : build) {
+                h.add(t);
+            }
+            tableBuild = Math.min(tableBuild, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int key : probe) {
+                for (int row = h.find(key); row != -1; row = h.next(row)) {
+                    tableSum += h.row(row).getInt(1);
+                }
+            }
+            tableProbe = Math.min(tableProbe, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int off = 0; off < rows; off += BATCH) {
+                int n = Math.min(BATCH, rows - off);
+                System.arraycopy(probe, off, keys, 0, n);
+                h.find(keys, sel, n, first);
+                for (int i = 0; i < n; i++) {
+                    for (int row = first[i]; row != -1; row = h.next(row)) {
+                        batchSum += h.row(row).getInt(1);
+                    }
+                }
+            }
+            batchProbe = Math.min(batchProbe, System.nanoTime() - start);
+        }
+        if (mapSum != tableSum || tableSum != batchSum || table.size() != rows) {
+            throw new AssertionError("the tables found different rows");
+        }
+
+        System.out.printf("HashMap        build %5d ms  probe %6.1f M/s  %5.1f bytes/row%n",
+                mapBuild / 1_000_000, rows * 1e3 / mapProbe, (double) mapBytes / rows);
+        System.out.printf("JoinHashTable  build %5d ms  probe %6.1f M/s  %5.1f bytes/row  batched probe %6.1f M/s%n",
+                tableBuild / 1_000_000, rows * 1e3 / tableProbe, (double) tableBytes / rows, rows * 1e3 / batchProbe);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.JoinHashTable;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class JoinHashTableTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+
+    private static Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> rows(JoinHashTable table, int row) {
+        List<Tuple> rows = new ArrayList<>();
+        for (; row != -1; row = table.next(row)) {
+            rows.add(table.row(row));
+        }
+        return rows;
+    }
+
+    /**
+     * Every key finds exactly the rows added with it, across several resizes
+     */
+    @Test
+    public void intKeys() {
+        JoinHashTable table = new JoinHashTable(0, true);
+        assertTrue(table.hasIntKeys());
+        Map<Integer, Set<Tuple>> expected = new HashMap<>();
+        Random random = new Random(37);
+        for (int i = 0; i < 5000; i++) {
+            // 包含负数和重复的键
+            int key = random.nextInt(2000) - 1000;
+            Tuple t = tuple(key, "r" + i);
+            table.add(t);
+            expected.computeIfAbsent(key, k -> new HashSet<>()).add(t);
+        }
+        assertEquals(5000, table.size());
+        for (int key = -1000; key < 1000; key++) {
+            Set<Tuple> want = expected.getOrDefault(key, Collections.emptySet());
+            List<Tuple> got = rows(table, table.find(key));
+            assertEquals(want.size(), got.size());
+            assertEquals(want, new HashSet<>(got));
+            assertEquals(got, rows(table, table.find(new IntField(key))));
+        }
+        assertEquals(-1, table.find(Integer.MIN_VALUE));
+
+        // 整批查找与逐个查找一致
+        int[] keys = new int[3000];
+        int[] sel = new int[1000];
+        for (int i = 0; i < sel.length; i++) {
+            sel[i] = 3 * i + 1;
+            keys[sel[i]] = i * 3 % 2100 - 1050;
+        }
+        int[] first = new int[sel.length];
+        table.find(keys, sel, sel.length, first);
+        for (int i = 0; i < sel.length; i++) {
+            assertEquals(table.find(keys[sel[i]]), first[i]);
+        }
+    }
+
+    @Test
+    public void stringKeys() {
+        JoinHashTable table = new JoinHashTable(1, false);
+        assertFalse(table.hasIntKeys());
+        for (int i = 0; i < 300; i++) {
+            table.add(tuple(i, "k" + i % 100));
+        }
+        for (int k = 0; k < 100; k++) {
+            List<Tuple> got = rows(table, table.find(new StringField("k" + k, Type.STRING_LEN)));
+            assertEquals(3, got.size());
+            for (Tuple t : got) {
+                assertEquals(k, t.getInt(0) % 100);
+            }
+        }
+        assertEquals(-1, table.find(new StringField("k100", Type.STRING_LEN)));
+    }
+
+    @Test
+    public void clear() {
+        JoinHashTable table = new JoinHashTable(0, true);
+        for (int i = 0; i < 100; i++) {
+            table.add(tuple(i, ""));
+        }
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertEquals(-1, table.find(5));
+        table.add(tuple(5, "again"));
+        List<Tuple> got = rows(table, table.find(5));
+        assertEquals(1, got.size());
+        assertEquals("again", got.get(0).getString(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JoinHashTableTest.class);
+    }
+}
@@ -114,6 +114,34 @@ public class JoinTest extends SimpleDbTestBase {
         TestUtil.matchAllTuples(eqJoin, op);
     }
 
+    /**
+     * Unit test for Join.getNext() with a memory budget that holds a single outer
+     * tuple per block, so that the inner relation is read once per outer tuple
+     * and buffered entirely on disk
+     */
+    @Test
+    public void blockJoinWithSpilledInner() throws Exception {
+        long budget = Join.getMemoryBudget();
+        Join.setMemoryBudget(1);
+        try {
+            JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+            Join op = new Join(pred, scan1, scan2);
+            op.open();
+            gtJoin.open();
+            TestUtil.matchAllTuples(gtJoin, op);
+            op.rewind();
+            int count = 0;
+            while (op.hasNext()) {
+                op.next();
+                count++;
+            }
+            assertEquals(11, count);
+            op.close();
+        } finally {
+            Join.setMemoryBudget(budget);
+        }
+    }
+
     /**
      * JUnit suite target
      */
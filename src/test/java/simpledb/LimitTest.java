@@ -0,0 +1,166 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.db.Parser;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that Limit skips and cuts the tuples of its child and stops reading
+ * it early, that TopN returns the same tuples as the start of an OrderBy,
+ * and that a LIMIT clause reaches the physical plan through the parser.
+ */
+public class LimitTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget =
+            new TestUtil.Setting<>(OrderBy::getMemoryBudget, OrderBy::setMemoryBudget);
+
+    private TransactionId tid;
+
+    private HeapFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        // 只有50个不同的键，检查并列时的顺序
+        table = SystemTestUtil.createRandomHeapFile(2, 1000, 50, new HashMap<>(), null, "c");
+    }
+
+    private List<String> scan() throws Exception {
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        List<String> rows = TestUtil.drain(scan);
+        scan.close();
+        return rows;
+    }
+
+    @Test
+    public void limitOffset() throws Exception {
+        List<String> all = scan();
+        Limit limit = new Limit(10, 5, new SeqScan(tid, table.getId()));
+        limit.open();
+        assertEquals(all.subList(5, 15), TestUtil.drain(limit));
+        assertTrue(limit.isStoppedEarly());
+        limit.rewind();
+        assertEquals(all.subList(5, 15), TestUtil.drain(limit));
+        limit.close();
+    }
+
+    @Test
+    public void limitPastEnd() throws Exception {
+        List<String> all = scan();
+        Limit limit = new Limit(10, 995, new SeqScan(tid, table.getId()));
+        limit.open();
+        assertEquals(all.subList(995, 1000), TestUtil.drain(limit));
+        assertFalse(limit.isStoppedEarly());
+        limit.close();
+
+        limit = new Limit(0, 0, new SeqScan(tid, table.getId()));
+        limit.open();
+        assertFalse(limit.hasNext());
+        limit.close();
+    }
+
+    private void checkTopN(int field, boolean asc, int n) throws Exception {
+        OrderBy orderBy = new OrderBy(field, asc, new SeqScan(tid, table.getId()));
+        orderBy.open();
+        List<String> sorted = TestUtil.drain(orderBy);
+        orderBy.close();
+
+        TopN topN = new TopN(field, asc, n, new SeqScan(tid, table.getId()));
+        topN.open();
+        assertEquals(sorted.subList(0, Math.min(n, sorted.size())), TestUtil.drain(topN));
+        topN.rewind();
+        assertEquals(sorted.subList(0, Math.min(n, sorted.size())), TestUtil.drain(topN));
+        topN.close();
+    }
+
+    @Test
+    public void topNMatchesOrderBy() throws Exception {
+        for (int n : new int[]{0, 1, 7, 100, 1000, 5000}) {
+            checkTopN(1, true, n);
+            checkTopN(1, false, n);
+        }
+    }
+
+    @Test
+    public void topNStringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> tuples = new ArrayList<>();
+        Random random = new Random(41);
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + random.nextInt(40), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy orderBy = new OrderBy(0, asc, new TupleIterator(td, tuples));
+            orderBy.open();
+            List<String> sorted = TestUtil.drain(orderBy);
+            orderBy.close();
+            TopN topN = new TopN(0, asc, 30, new TupleIterator(td, tuples));
+            topN.open();
+            assertEquals(sorted.subList(0, 30), TestUtil.drain(topN));
+            topN.close();
+        }
+    }
+
+    /**
+     * ORDER BY ... LIMIT is planned as a Limit over a TopN when the first
+     * rows fit in the sort budget, and over an OrderBy when they do not
+     */
+    @Test
+    public void parsedLimit() throws Exception {
+        Database.getCatalog().addTable(table, "limited");
+        TableStats.setTableStats("limited", new TableStats(table.getId(), 1));
+        Parser parser = new Parser();
+        String sql = "SELECT * FROM limited ORDER BY limited.c1 DESC LIMIT 5 OFFSET 2;";
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid, sql);
+        assertEquals(5, lp.getLimit().limit);
+        assertEquals(2, lp.getLimit().offset);
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OpIterator limit = ((Operator) plan).getChildren()[0];
+        assertTrue(limit instanceof Limit);
+        assertTrue(((Operator) limit).getChildren()[0] instanceof TopN);
+
+        OrderBy orderBy = new OrderBy(1, false, new SeqScan(tid, table.getId()));
+        orderBy.open();
+        List<String> sorted = TestUtil.drain(orderBy);
+        orderBy.close();
+        plan.open();
+        assertEquals(sorted.subList(2, 7), TestUtil.drain(plan));
+        plan.close();
+
+        OrderBy.setMemoryBudget(1);
+        plan = parser.generateLogicalPlan(tid, sql).physicalPlan(tid, TableStats.getStatsMap(), false);
+        limit = ((Operator) plan).getChildren()[0];
+        assertTrue(((Operator) limit).getChildren()[0] instanceof OrderBy);
+
+        assertNull(parser.generateLogicalPlan(tid, "SELECT * FROM limited;").getLimit());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LimitTest.class);
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NormalizedKeyTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+
+    private static final String[] STRINGS = {"", "a", "a\0", "a\0b", "a\1", "ab", "b", "￿", "", "\uD800"};
+
+    private static final int[] INTS = {Integer.MIN_VALUE, -256, -1, 0, 1, 255, 256, Integer.MAX_VALUE};
+
+    private static Tuple tuple(String s, int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField(s, Type.STRING_LEN));
+        t.setField(1, new IntField(i));
+        return t;
+    }
+
+    private static int signum(boolean less, boolean equal) {
+        return equal ? 0 : less ? -1 : 1;
+    }
+
+    /**
+     * Keys of single fields compare like the fields
+     */
+    @Test
+    public void singleFields() {
+        for (int a : INTS) {
+            for (int b : INTS) {
+                IntField fa = new IntField(a), fb = new IntField(b);
+                int expected = signum(fa.compare(Predicate.Op.LESS_THAN, fb), fa.compare(Predicate.Op.EQUALS, fb));
+                assertEquals(expected, Integer.signum(NormalizedKey.compare(NormalizedKey.of(fa), NormalizedKey.of(fb))));
+                assertEquals(expected, Integer.signum(NormalizedKey.compare(fa, fb)));
+            }
+        }
+        for (String a : STRINGS) {
+            for (String b : STRINGS) {
+                StringField fa = new StringField(a, Type.STRING_LEN), fb = new StringField(b, Type.STRING_LEN);
+                int expected = signum(fa.compare(Predicate.Op.LESS_THAN, fb), fa.compare(Predicate.Op.EQUALS, fb));
+                assertEquals(a + " vs " + b, expected,
+                        Integer.signum(NormalizedKey.compare(NormalizedKey.of(fa), NormalizedKey.of(fb))));
+            }
+        }
+    }
+
+    /**
+     * Keys of several fields, in either direction, compare like the fields one after the other
+     */
+    @Test
+    public void compositeKeys() {
+        int[] fields = {0, 1};
+        for (boolean[] ascending : new boolean[][]{{true, true}, {true, false}, {false, true}, {false, false}}) {
+            for (String s1 : STRINGS) {
+                for (String s2 : STRINGS) {
+                    for (int i1 : INTS) {
+                        for (int i2 : INTS) {
+                            int c = s1.compareTo(s2);
+                            c = c != 0 ? (ascending[0] ? c : -c) : (ascending[1] ? 1 : -1) * Integer.compare(i1, i2);
+                            byte[] k1 = NormalizedKey.of(tuple(s1, i1), fields, ascending);
+                            byte[] k2 = NormalizedKey.of(tuple(s2, i2), fields, ascending);
+                            assertEquals(Integer.signum(c), Integer.signum(NormalizedKey.compare(k1, k2)));
+                            long p1 = NormalizedKey.prefix(k1), p2 = NormalizedKey.prefix(k2);
+                            if (p1 != p2) {
+                                assertEquals(Integer.signum(c), Integer.signum(Long.compareUnsigned(p1, p2)));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sortIsStable() {
+        Random random = new Random(34);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            tuples.add(tuple(STRINGS[random.nextInt(STRINGS.length)], i));
+        }
+        List<Tuple> expected = new ArrayList<>(tuples);
+        expected.sort((a, b) -> a.getString(0).compareTo(b.getString(0)));
+        NormalizedKey.sort(tuples, t -> NormalizedKey.of(t.getField(0)));
+        assertEquals(expected, tuples);
+
+        for (Tuple t : tuples) {
+            t.setField(1, new IntField(random.nextInt(20) - 10));
+        }
+        for (boolean asc : new boolean[]{true, false}) {
+            expected = new ArrayList<>(tuples);
+            expected.sort((a, b) -> (asc ? 1 : -1) * Integer.compare(a.getInt(1), b.getInt(1)));
+            NormalizedKey.sortByInt(tuples, 1, asc);
+            assertEquals(expected, tuples);
+        }
+    }
+
+    @Test
+    public void orderByStrings() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < STRINGS.length; i++) {
+            tuples.add(tuple(STRINGS[(i * 7) % STRINGS.length], i));
+        }
+        String[] sorted = STRINGS.clone();
+        Arrays.sort(sorted);
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy ob = new OrderBy(0, asc, new TupleIterator(TD, tuples));
+            ob.open();
+            for (int i = 0; i < sorted.length; i++) {
+                assertEquals(sorted[asc ? i : sorted.length - 1 - i], ob.next().getString(0));
+            }
+            assertFalse(ob.hasNext());
+            ob.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(NormalizedKeyTest.class);
+    }
+}
@@ -0,0 +1,197 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that aggregates computed by several threads over morsels of a
+ * table, with partial aggregates merged in parts, give the same groups as a
+ * single thread, in memory and spilled to disk, and that aggregators merge
+ * partial aggregators of any kind of key.
+ */
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget =
+            new TestUtil.Setting<>(Aggregate::getMemoryBudget, Aggregate::setMemoryBudget);
+
+    @Rule
+    public final TestUtil.Setting<Integer> threads =
+            new TestUtil.Setting<>(Aggregate::getThreads, Aggregate::setThreads);
+
+    @Rule
+    public final TestUtil.Setting<Boolean> batch =
+            new TestUtil.Setting<>(TupleBatch::isEnabled, TupleBatch::setEnabled);
+
+    private TransactionId tid;
+
+    private HeapFile table;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        // 约70页，每个线程读到多个页块
+        table = SystemTestUtil.createRandomHeapFile(3, 20000, 3000, new HashMap<>(), null);
+    }
+
+    private Set<String> aggregate(int threads, int[] afields, Aggregator.Op[] aops, int[] gfields) throws Exception {
+        Aggregate.setThreads(threads);
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), afields, aops, gfields);
+        agg.open();
+        Set<String> rows = TestUtil.distinct(agg);
+        agg.rewind();
+        assertEquals(rows, TestUtil.distinct(agg));
+        agg.close();
+        return rows;
+    }
+
+    private void check(int[] afields, Aggregator.Op[] aops, int[] gfields) throws Exception {
+        Set<String> serial = aggregate(1, afields, aops, gfields);
+        assertFalse(serial.isEmpty());
+        for (int n : new int[]{2, 4, 7}) {
+            assertEquals(serial, aggregate(n, afields, aops, gfields));
+        }
+    }
+
+    private void checkAll() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            check(new int[]{1}, new Aggregator.Op[]{op}, new int[]{0});
+        }
+        check(new int[]{2}, new Aggregator.Op[]{Aggregator.Op.AVG}, new int[0]);
+        check(new int[]{2, 2, 1}, new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX},
+                new int[]{0, 1});
+    }
+
+    @Test
+    public void matchesSerial() throws Exception {
+        for (boolean batches : new boolean[]{false, true}) {
+            TupleBatch.setEnabled(batches);
+            checkAll();
+        }
+    }
+
+    /**
+     * Unless asked for threads, an aggregate over a large table stays serial
+     * and returns its groups in the order they first appear in the table
+     */
+    @Test
+    public void serialByDefault() throws Exception {
+        assertEquals(1, Aggregate.getThreads());
+        List<Integer> firstSeen = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        while (scan.hasNext()) {
+            int key = ((IntField) scan.next().getField(0)).getValue();
+            if (seen.add(key)) {
+                firstSeen.add(key);
+            }
+        }
+        scan.close();
+
+        Aggregate agg = new Aggregate(new SeqScan(tid, table.getId()), 1, 0, Aggregator.Op.SUM);
+        agg.open();
+        List<Integer> groups = new ArrayList<>();
+        while (agg.hasNext()) {
+            groups.add(((IntField) agg.next().getField(0)).getValue());
+        }
+        agg.close();
+        assertEquals(firstSeen, groups);
+    }
+
+    /**
+     * Neither the partial nor the final aggregators hold all the groups
+     */
+    @Test
+    public void spilled() throws Exception {
+        Aggregate.setMemoryBudget(20000);
+        checkAll();
+    }
+
+    /**
+     * Merging string keys, with the states of the groups that do not fit
+     * written to disk and merged again when the partitions are read
+     */
+    @Test
+    public void mergeStringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        Random random = new Random(7);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 6000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + random.nextInt(1500), Type.STRING_LEN));
+            t.setField(1, new IntField(random.nextInt(2000) - 1000));
+            tuples.add(t);
+        }
+        IntegerAggregator whole = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG);
+        StringAggregator wholeCount = new StringAggregator(0, Type.STRING_TYPE, 0, Aggregator.Op.COUNT);
+        // 1500个组中只有约200个能留在内存
+        long small = 200 * 300;
+        IntegerAggregator[] partials = new IntegerAggregator[3];
+        StringAggregator[] partialCounts = new StringAggregator[3];
+        for (int i = 0; i < partials.length; i++) {
+            partials[i] = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG, small);
+            partialCounts[i] = new StringAggregator(0, Type.STRING_TYPE, 0, Aggregator.Op.COUNT, small);
+        }
+        for (int i = 0; i < tuples.size(); i++) {
+            whole.mergeTupleIntoGroup(tuples.get(i));
+            wholeCount.mergeTupleIntoGroup(tuples.get(i));
+            partials[i % 3].mergeTupleIntoGroup(tuples.get(i));
+            partialCounts[i % 3].mergeTupleIntoGroup(tuples.get(i));
+        }
+        assertTrue(partials[0].isSpilled());
+
+        Set<String> merged = new HashSet<>();
+        Set<String> mergedCounts = new HashSet<>();
+        for (int part = 0; part < 2; part++) {
+            IntegerAggregator agg = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG, small);
+            StringAggregator count = new StringAggregator(0, Type.STRING_TYPE, 0, Aggregator.Op.COUNT, small);
+            for (int i = 0; i < partials.length; i++) {
+                agg.merge(partials[i], part, 2);
+                count.merge(partialCounts[i], part, 2);
+            }
+            assertTrue(agg.isSpilled());
+            merged.addAll(read(agg));
+            mergedCounts.addAll(read(count));
+            agg.clear();
+            count.clear();
+        }
+        assertEquals(read(whole), merged);
+        assertEquals(read(wholeCount), mergedCounts);
+        whole.clear();
+        wholeCount.clear();
+        for (int i = 0; i < partials.length; i++) {
+            partials[i].clear();
+            partialCounts[i].clear();
+        }
+    }
+
+    private static Set<String> read(Aggregator agg) throws Exception {
+        OpIterator it = agg.iterator();
+        it.open();
+        Set<String> rows = TestUtil.distinct(it);
+        it.close();
+        return rows;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
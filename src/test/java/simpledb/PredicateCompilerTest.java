@@ -0,0 +1,123 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PredicateCompilerTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+
+    private static Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Compiled predicates agree with Predicate.filter for every operator
+     */
+    @Test
+    public void matchesInterpretedPredicates() {
+        Tuple[] tuples = {tuple(-1, "apple"), tuple(0, "pear"), tuple(1, "grape"), tuple(2, "apple pie")};
+        for (Predicate.Op op : Predicate.Op.values()) {
+            List<Predicate> predicates = Arrays.asList(
+                    new Predicate(0, op, new IntField(0)),
+                    new Predicate(1, op, new StringField("grape", Type.STRING_LEN)),
+                    new Predicate(1, op, new StringField("apple", Type.STRING_LEN)));
+            for (Predicate p : predicates) {
+                MethodHandle compiled = PredicateCompiler.compile(TD, List.of(p));
+                for (Tuple t : tuples) {
+                    assertEquals(p + " on " + t, p.filter(t), PredicateCompiler.test(compiled, t));
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows whose strings are dictionary codes are tested by their codes, with
+     * the same results as Predicate.filter
+     */
+    @Test
+    public void dictionaryEncodedStrings() throws Exception {
+        File file = File.createTempFile("compiled", ".dict");
+        file.deleteOnExit();
+        StringDictionary dictionary = StringDictionary.create(file);
+        String[] values = {"apple", "pear", "grape", "apple pie", "pear"};
+        Tuple[] tuples = new Tuple[values.length];
+        for (int i = 0; i < values.length; i++) {
+            tuples[i] = new Tuple(TD);
+            tuples[i].setField(0, new IntField(i));
+            tuples[i].setField(1, dictionary.field(dictionary.encode(values[i])));
+            assertSame(dictionary, tuples[i].getStringDictionary(1));
+        }
+        assertNull(tuple(0, "apple").getStringDictionary(1));
+        for (Predicate.Op op : Predicate.Op.values()) {
+            for (String operand : new String[]{"apple", "grape", "pe"}) {
+                Predicate interpreted = new Predicate(1, op, new StringField(operand, Type.STRING_LEN));
+                Predicate p = new Predicate(1, op, new StringField(operand, Type.STRING_LEN));
+                MethodHandle compiled = PredicateCompiler.compile(TD, List.of(p));
+                for (Tuple t : tuples) {
+                    assertEquals(p + " on " + t, interpreted.filter(t), PredicateCompiler.test(compiled, t));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void conjunction() {
+        MethodHandle compiled = PredicateCompiler.compile(TD, Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+                new Predicate(1, Predicate.Op.LIKE, new StringField("pp", Type.STRING_LEN))));
+        assertTrue(PredicateCompiler.test(compiled, tuple(3, "apple")));
+        assertFalse(PredicateCompiler.test(compiled, tuple(-3, "apple")));
+        assertFalse(PredicateCompiler.test(compiled, tuple(10, "apple")));
+        assertFalse(PredicateCompiler.test(compiled, tuple(3, "pear")));
+    }
+
+    @Test
+    public void filterWithConjunction() throws Exception {
+        OpIterator child = TestUtil.createTupleList(2, new int[]{1, 5, 2, 6, 3, 7, 4, 8});
+        Filter f = new Filter(Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(1)),
+                new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(7))), child);
+        f.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(2, new int[]{2, 6, 3, 7}), f);
+        assertEquals(2, f.getPredicates().size());
+    }
+
+    @Test
+    public void joinPredicates() {
+        Tuple small = tuple(1, "apple");
+        Tuple big = tuple(2, "pear");
+        for (Predicate.Op op : Predicate.Op.values()) {
+            for (int field : new int[]{0, 1}) {
+                JoinPredicate p = new JoinPredicate(field, op, field);
+                boolean expected = small.getField(field).compare(op, big.getField(field));
+                assertEquals(expected, p.filter(small, big));
+                p.compile(TD, TD);
+                assertEquals(expected, p.filter(small, big));
+                assertEquals(big.getField(field).compare(op, small.getField(field)), p.filter(big, small));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PredicateCompilerTest.class);
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import simpledb.BenchmarkHarness.Plan;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs queries with two and three hash joins over tables cached in the
+ * buffer pool as trees of pulling operators, tuple at a time and batch at a
+ * time, and compiled into push pipelines ({@link PushPlan}), and prints the
+ * time of each and the speedup of the pipelines over pulling tuple at a
+ * time. Not a unit test; run it with
+ * <pre>java -cp ... simpledb.PushBenchmark [rows]</pre>
+ */
+public class PushBenchmark {
+
+    private static final BenchmarkHarness HARNESS = new BenchmarkHarness(3, 5);
+
+    private static void run(String name, Plan plan) throws Exception {
+        TransactionId tid = new TransactionId();
+        boolean enabled = TupleBatch.isEnabled();
+        TupleBatch.setEnabled(false);
+        long tuples = HARNESS.time(plan, tid);
+        long expected = HARNESS.getChecksum();
+        TupleBatch.setEnabled(true);
+        long batches = HARNESS.time(plan, tid);
+        long push = HARNESS.time(t -> PushPlan.compile(plan.build(t)), tid);
+        TupleBatch.setEnabled(enabled);
+        if (HARNESS.getChecksum() != expected) {
+            throw new IllegalStateException(name + ": push pipelines give different results");
+        }
+        System.out.println(name);
+        System.out.printf("  pull, tuples  %8.1f ms%n", tuples / 1e6);
+        System.out.printf("  pull, batches %8.1f ms   x%.2f%n", batches / 1e6, (double) tuples / batches);
+        System.out.printf("  push          %8.1f ms   x%.2f%n", push / 1e6, (double) tuples / push);
+    }
+
+    private static HeapFile table(String name, int rows, int columns, int[] maxValues) throws Exception {
+        Random random = new Random(rows + columns);
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            List<Integer> t = new ArrayList<>(columns);
+            for (int c = 0; c < columns; c++) {
+                t.add(c == 0 && maxValues[0] == 0 ? i : random.nextInt(Math.max(1, maxValues[c])));
+            }
+            tuples.add(t);
+        }
+        return BenchmarkHarness.table(name, tuples);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int dims = rows / 20;
+        // 事实表的f1、f2引用两个维表的主键d0、e0
+        HeapFile fact = table("f", rows, 4, new int[]{1000, dims, dims / 4, 1000});
+        HeapFile dim1 = table("d", dims, 3, new int[]{0, 100, 1000});
+        HeapFile dim2 = table("e", dims / 4, 2, new int[]{0, 50});
+        Type[] two = {Type.INT_TYPE, Type.INT_TYPE};
+        Type[] three = {Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
+
+        run("f join d, filtered, projected", tid -> new Project(Arrays.asList(0, 5), two,
+                new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                        new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)),
+                                new SeqScan(tid, dim1.getId())),
+                        new SeqScan(tid, fact.getId()))));
+        run("(f join d) join e, projected", tid -> new Project(Arrays.asList(0, 4, 8), three,
+                new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 5),
+                        new SeqScan(tid, dim2.getId()),
+                        new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                                new SeqScan(tid, dim1.getId()),
+                                new SeqScan(tid, fact.getId())))));
+        run("sum over (f join d) join e, grouped", tid -> new Aggregate(
+                new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 5),
+                        new SeqScan(tid, dim2.getId()),
+                        new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                                new SeqScan(tid, dim1.getId()),
+                                new SeqScan(tid, fact.getId()))),
+                new int[]{8, 8}, new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.COUNT}, new int[]{1}));
+    }
+}
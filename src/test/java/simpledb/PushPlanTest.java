@@ -0,0 +1,252 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.db.Parser;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that plans of filters, projections and hash joins compiled into
+ * push pipelines give the same tuples as the pulling operators, that they
+ * stop early, rewind and fall back to the pulling operators when a build
+ * does not fit in memory, and that LogicalPlan compiles parsed queries into
+ * pipelines when push execution is enabled.
+ */
+public class PushPlanTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Boolean> enabled = new TestUtil.Setting<>(PushPlan::isEnabled, PushPlan::setEnabled);
+
+    @Rule
+    public final TestUtil.Setting<Integer> parallelism =
+            new TestUtil.Setting<>(LogicalPlan::getParallelism, LogicalPlan::setParallelism);
+
+    @Rule
+    public final TestUtil.Setting<Long> budget = new TestUtil.Setting<>(Join::getMemoryBudget, Join::setMemoryBudget);
+
+    private TransactionId tid;
+
+    private HeapFile a;
+
+    private HeapFile b;
+
+    private HeapFile c;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        a = SystemTestUtil.createRandomHeapFile(3, 3000, 200, new HashMap<>(), null, "a");
+        b = SystemTestUtil.createRandomHeapFile(2, 400, 200, new HashMap<>(), null, "b");
+        c = SystemTestUtil.createRandomHeapFile(2, 100, 50, new HashMap<>(), null, "c");
+    }
+
+    private static List<String> run(OpIterator it) throws Exception {
+        it.open();
+        List<String> rows = TestUtil.drain(it);
+        it.rewind();
+        assertEquals(rows, TestUtil.drain(it));
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Project(c ⋈ Filter(b ⋈ a)): a filter over a join, and joins on both
+     * sides of the spine
+     */
+    private OpIterator threeWay() {
+        HashEquiJoin ab = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, b.getId()),
+                new Filter(new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(20)),
+                        new SeqScan(tid, a.getId())));
+        Filter filtered = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(150)), ab);
+        HashEquiJoin abc = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 4),
+                new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 1),
+                        new SeqScan(tid, c.getId()), new SeqScan(tid, b.getId())),
+                filtered);
+        return new Project(Arrays.asList(8, 0, 3, 6), new Type[]{Type.INT_TYPE, Type.INT_TYPE,
+                Type.INT_TYPE, Type.INT_TYPE}, abc);
+    }
+
+    private OpIterator twoWay() {
+        return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                new SeqScan(tid, b.getId()), new SeqScan(tid, a.getId()));
+    }
+
+    @Test
+    public void matchesPull() throws Exception {
+        List<String> pulled = run(threeWay());
+        assertFalse(pulled.isEmpty());
+        OpIterator pushed = PushPlan.compile(threeWay());
+        assertTrue(pushed instanceof PushPlan);
+        assertEquals(pulled, run(pushed));
+
+        pulled = run(twoWay());
+        assertEquals(pulled, run(PushPlan.compile(twoWay())));
+    }
+
+    @Test
+    public void stringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}, new String[]{"k", "v"});
+        List<Tuple> left = new ArrayList<>();
+        List<Tuple> right = new ArrayList<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + random.nextInt(40), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            (i % 3 == 0 ? left : right).add(t);
+        }
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<String> pulled = run(new HashEquiJoin(p, new TupleIterator(td, left), new TupleIterator(td, right)));
+        assertEquals(pulled, run(new PushPlan(
+                new HashEquiJoin(p, new TupleIterator(td, left), new TupleIterator(td, right)))));
+    }
+
+    /**
+     * A plan without hash joins keeps pulling batches; the parts of a plan
+     * under an operator that cannot be pushed are compiled on their own
+     */
+    @Test
+    public void compile() throws Exception {
+        OpIterator filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+                new SeqScan(tid, a.getId()));
+        assertSame(filter, PushPlan.compile(filter));
+
+        OrderBy orderBy = new OrderBy(0, true, twoWay());
+        List<String> pulled = run(orderBy);
+        orderBy = new OrderBy(0, true, twoWay());
+        assertSame(orderBy, PushPlan.compile(orderBy));
+        assertTrue(orderBy.getChildren()[0] instanceof PushPlan);
+        assertEquals(pulled, run(orderBy));
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        int[] afields = {2, 3};
+        Aggregator.Op[] aops = {Aggregator.Op.SUM, Aggregator.Op.COUNT};
+        int[] gfields = {1};
+        List<String> pulled = run(new Aggregate(threeWay(), afields, aops, gfields));
+        assertEquals(pulled, run(new Aggregate(PushPlan.compile(threeWay()), afields, aops, gfields)));
+    }
+
+    @Test
+    public void limit() throws Exception {
+        List<String> pulled = run(new Limit(7, 3, threeWay()));
+        Limit limit = new Limit(7, 3, PushPlan.compile(threeWay()));
+        assertEquals(pulled, run(limit));
+        limit.open();
+        TestUtil.drain(limit);
+        assertTrue(limit.isStoppedEarly());
+        limit.close();
+    }
+
+    /**
+     * A build larger than the join budget falls back to the hash joins,
+     * which partition it to disk
+     */
+    @Test
+    public void fallback() throws Exception {
+        List<String> pulled = TestUtil.sorted(run(threeWay()));
+        Join.setMemoryBudget(1000);
+        PushPlan pushed = (PushPlan) PushPlan.compile(threeWay());
+        pushed.open();
+        assertTrue(pushed.isFallback());
+        // 分区后的连接按分区的顺序输出
+        assertEquals(pulled, TestUtil.sorted(TestUtil.drain(pushed)));
+        pushed.close();
+        assertEquals(pulled, TestUtil.sorted(run(PushPlan.compile(threeWay()))));
+    }
+
+    @Test
+    public void parsedQueries() throws Exception {
+        Database.getCatalog().addTable(a, "ta");
+        Database.getCatalog().addTable(b, "tb");
+        Database.getCatalog().addTable(c, "tc");
+        TableStats.setTableStats("ta", new TableStats(a.getId(), 1));
+        TableStats.setTableStats("tb", new TableStats(b.getId(), 1));
+        TableStats.setTableStats("tc", new TableStats(c.getId(), 1));
+        String[] queries = {
+                "SELECT ta.a0, tb.b1, tc.c1 FROM ta, tb, tc WHERE ta.a1 = tb.b0 AND tb.b1 = tc.c0 AND ta.a2 > 10;",
+                "SELECT tc.c1, SUM(ta.a2) FROM ta, tb, tc WHERE ta.a1 = tb.b0 AND tb.b1 = tc.c0 GROUP BY tc.c1;",
+                "SELECT ta.a0, tb.b1 FROM ta, tb WHERE ta.a1 = tb.b0 ORDER BY ta.a0 LIMIT 20;",
+        };
+        Parser parser = new Parser();
+        for (String sql : queries) {
+            PushPlan.setEnabled(false);
+            LogicalPlan lp = parser.generateLogicalPlan(tid, sql);
+            List<String> pulled = run(lp.physicalPlan(tid, TableStats.getStatsMap(), false));
+            assertFalse(pulled.isEmpty());
+            PushPlan.setEnabled(true);
+            lp = parser.generateLogicalPlan(tid, sql);
+            OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+            assertTrue(hasPushPlan(plan));
+            List<String> pushed = run(plan);
+            // ORDER BY中并列的元组顺序不定
+            assertEquals(TestUtil.sorted(pulled), TestUtil.sorted(pushed));
+        }
+    }
+
+    /**
+     * The pipelines of a parallel plan, whose builds read repartitioned
+     * inputs that cannot be read twice, even when they fall back
+     */
+    @Test
+    public void parallel() throws Exception {
+        Database.getCatalog().addTable(a, "ta");
+        Database.getCatalog().addTable(b, "tb");
+        TableStats.setTableStats("ta", new TableStats(a.getId(), 1));
+        TableStats.setTableStats("tb", new TableStats(b.getId(), 1));
+        String sql = "SELECT tb.b1, COUNT(ta.a0) FROM ta, tb WHERE ta.a1 = tb.b0 GROUP BY tb.b1;";
+        Parser parser = new Parser();
+        PushPlan.setEnabled(false);
+        List<String> pulled = TestUtil.sorted(run(parser.generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false)));
+        PushPlan.setEnabled(true);
+        LogicalPlan.setParallelism(3);
+        for (long bytes : new long[]{budget.get(), 1000}) {
+            Join.setMemoryBudget(bytes);
+            OpIterator plan = parser.generateLogicalPlan(tid, sql)
+                    .physicalPlan(tid, TableStats.getStatsMap(), false);
+            assertTrue(hasPushPlan(plan));
+            plan.open();
+            assertEquals(pulled, TestUtil.sorted(TestUtil.drain(plan)));
+            plan.close();
+        }
+    }
+
+    private static boolean hasPushPlan(OpIterator plan) {
+        if (plan instanceof PushPlan) {
+            return true;
+        }
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (hasPushPlan(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PushPlanTest.class);
+    }
+}
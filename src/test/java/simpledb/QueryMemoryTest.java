@@ -0,0 +1,251 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that operators reserve their memory from the query they run in,
+ * spill or make do with less when the query refuses them more, and that a
+ * query that ends gives everything back.
+ */
+public class QueryMemoryTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> queryLimit =
+            new TestUtil.Setting<>(QueryMemory::getQueryLimit, QueryMemory::setQueryLimit);
+
+    @Rule
+    public final TestUtil.Setting<Long> globalLimit =
+            new TestUtil.Setting<>(QueryMemory::getGlobalLimit, QueryMemory::setGlobalLimit);
+
+    private TransactionId tid;
+
+    private HeapFile fact;
+
+    private List<List<Integer>> factTuples;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        factTuples = new ArrayList<>();
+        fact = SystemTestUtil.createRandomHeapFile(3, 20000, 100000, new HashMap<>(), factTuples, "f");
+    }
+
+    @After
+    public void tearDown() {
+        QueryMemory.bind(null);
+    }
+
+    private static List<String> run(OpIterator plan, TransactionId tid, QueryMemory[] memory) throws Exception {
+        Query query = new Query(plan, tid);
+        List<String> rows = new ArrayList<>();
+        query.start();
+        try {
+            while (query.hasNext()) {
+                rows.add(query.next().toString());
+            }
+        } finally {
+            if (memory != null) {
+                memory[0] = query.getMemory();
+            }
+            query.close();
+        }
+        return rows;
+    }
+
+    @Test
+    public void chunks() throws Exception {
+        QueryMemory memory = new QueryMemory(256 * 1024);
+        QueryMemory.bind(memory);
+        MemoryReservation r = QueryMemory.reserve("test");
+        assertTrue(r.tryReserve(10));
+        // 预留按块从查询取得
+        assertEquals(64 * 1024, memory.getReserved());
+        assertFalse(r.tryReserve(300 * 1024));
+        assertEquals(10, r.getBytes());
+        try {
+            r.reserve(300 * 1024);
+            fail("expected DbException");
+        } catch (DbException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("test needs 307200 bytes"));
+        }
+        assertTrue(r.tryReserve(256 * 1024));
+        assertEquals(256 * 1024, memory.getReserved());
+        r.shrink(0);
+        assertEquals(0, memory.getReserved());
+        assertEquals(256 * 1024, memory.getPeak());
+        assertEquals(256 * 1024, r.getPeak());
+    }
+
+    @Test
+    public void unbound() throws Exception {
+        QueryMemory.bind(null);
+        MemoryReservation r = QueryMemory.reserve("test");
+        assertTrue(r.tryReserve(Long.MAX_VALUE / 2));
+        r.release();
+        assertEquals(0, r.getBytes());
+    }
+
+    @Test
+    public void globalLimit() throws Exception {
+        long before = QueryMemory.getGlobalReserved();
+        QueryMemory.setGlobalLimit(before + 100 * 1024);
+        QueryMemory a = new QueryMemory(1 << 20);
+        QueryMemory b = new QueryMemory(1 << 20);
+        QueryMemory.bind(a);
+        MemoryReservation ra = QueryMemory.reserve("a");
+        assertTrue(ra.tryReserve(80 * 1024));
+        QueryMemory.bind(b);
+        MemoryReservation rb = QueryMemory.reserve("b");
+        assertFalse(rb.tryReserve(80 * 1024));
+        // 关闭查询归还它的算子没有释放的内存
+        a.close();
+        assertEquals(before, QueryMemory.getGlobalReserved());
+        assertFalse(ra.tryReserve(90 * 1024));
+        assertTrue(rb.tryReserve(80 * 1024));
+        b.close();
+        assertEquals(before, QueryMemory.getGlobalReserved());
+    }
+
+    @Test
+    public void hashJoin() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 2000, 100000, new HashMap<>(), null, "g");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<String> expected = run(new HashEquiJoin(p,
+                new SeqScan(tid, fact.getId()), new SeqScan(tid, other.getId())), tid, null);
+        QueryMemory.setQueryLimit(64 * 1024);
+        QueryMemory[] memory = new QueryMemory[1];
+        List<String> actual = run(new HashEquiJoin(p,
+                new SeqScan(tid, fact.getId()), new SeqScan(tid, other.getId())), tid, memory);
+        assertTrue(memory[0].getPeak() <= 64 * 1024);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertEquals(0, memory[0].getReserved());
+    }
+
+    @Test
+    public void sort() throws Exception {
+        List<String> expected = run(new OrderBy(1, true, new SeqScan(tid, fact.getId())), tid, null);
+        QueryMemory.setQueryLimit(256 * 1024);
+        OrderBy orderBy = new OrderBy(1, true, new SeqScan(tid, fact.getId()));
+        Query query = new Query(orderBy, tid);
+        query.start();
+        assertTrue(orderBy.isSpilled());
+        List<String> actual = new ArrayList<>();
+        while (query.hasNext()) {
+            actual.add(query.next().toString());
+        }
+        assertTrue(query.getMemory().getPeak() <= 256 * 1024);
+        query.close();
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        List<String> expected = run(new Aggregate(new SeqScan(tid, fact.getId()),
+                new int[]{1}, new Aggregator.Op[]{Aggregator.Op.SUM}, new int[]{0}), tid, null);
+        QueryMemory.setQueryLimit(128 * 1024);
+        QueryMemory[] memory = new QueryMemory[1];
+        List<String> actual = run(new Aggregate(new SeqScan(tid, fact.getId()),
+                new int[]{1}, new Aggregator.Op[]{Aggregator.Op.SUM}, new int[]{0}), tid, memory);
+        assertTrue(memory[0].getPeak() <= 128 * 1024);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Memory freed halfway through an aggregation must not let keys that
+     * already spilled get a group in memory as well
+     */
+    @Test
+    public void memoryFreedDuringAggregation() throws Exception {
+        QueryMemory memory = new QueryMemory(256 * 1024);
+        QueryMemory.bind(memory);
+        MemoryReservation other = QueryMemory.reserve("other");
+        assertTrue(other.tryReserve(240 * 1024));
+        AggregateHashTable table = new AggregateHashTable(Type.INT_TYPE, 1 << 30);
+        for (int key = 0; key < 5000; key++) {
+            table.aggregate(key, 1);
+        }
+        assertTrue(table.isSpilled());
+        other.release();
+        for (int key = 0; key < 5000; key++) {
+            table.aggregate(key, 1);
+        }
+        OpIterator it = table.iterator(new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE}),
+                Aggregator.Op.COUNT, true);
+        it.open();
+        Set<Integer> keys = new HashSet<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertTrue(keys.add(t.getInt(0)));
+            assertEquals(2, t.getInt(1));
+        }
+        it.close();
+        assertEquals(5000, keys.size());
+        table.clear();
+    }
+
+    /**
+     * A TopN cannot spill, so a heap that does not fit fails the query
+     */
+    @Test
+    public void topN() throws Exception {
+        QueryMemory.setQueryLimit(100 * 1024);
+        for (int i = 0; i < 3; i++) {
+            // 打开失败的查询不会被关闭，start自己归还预留的内存
+            Query query = new Query(new TopN(1, true, 10000, new SeqScan(tid, fact.getId())), tid);
+            try {
+                query.cursor();
+                fail("expected DbException");
+            } catch (DbException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("TopN needs"));
+            }
+            assertNull(query.getMemory());
+            assertEquals(0, QueryMemory.getGlobalReserved());
+        }
+
+        List<String> rows = run(new TopN(1, true, 500, new SeqScan(tid, fact.getId())), tid, null);
+        assertEquals(500, rows.size());
+    }
+
+    @Test
+    public void explainAnalyze() throws Exception {
+        SeqScan scan = new SeqScan(tid, fact.getId());
+        OrderBy orderBy = new OrderBy(1, true, scan);
+        ExplainAnalyze analyze = new ExplainAnalyze(orderBy);
+        assertEquals(factTuples.size(), analyze.run());
+        OperatorProfile profile = analyze.getProfile(orderBy);
+        assertTrue(profile.getPeakReservedBytes() > 0);
+        assertEquals(0, analyze.getProfile(scan).getPeakReservedBytes());
+        assertEquals(analyze.getMemory().getPeak(), profile.getPeakReservedBytes(), 64 * 1024);
+        assertTrue(analyze.getReport().contains("mem KB"));
+        assertEquals(0, analyze.getMemory().getReserved());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryMemoryTest.class);
+    }
+}
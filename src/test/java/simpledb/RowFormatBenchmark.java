@@ -0,0 +1,138 @@
+package simpledb;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the packed row format with Field[] rows on scan, filter and join
+ * queries over tables cached in the buffer pool, reporting throughput and
+ * bytes allocated per input row.
+ * <p>
+ * The Field[] numbers come from the same plans with every scanned tuple
+ * copied into a Tuple of Field objects, which is what HeapPage used to
+ * produce. Not a unit test; run it with
+ * <pre>java -cp ... simpledb.RowFormatBenchmark [rows]</pre>
+ */
+public class RowFormatBenchmark {
+
+    private static final BenchmarkHarness HARNESS = new BenchmarkHarness(1, 5);
+
+    interface Plan {
+        OpIterator build(TransactionId tid, boolean boxed);
+    }
+
+    /**
+     * Turns every tuple of its child into a Tuple of Field objects.
+     */
+    static class Boxed extends Operator {
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+
+        Boxed(OpIterator child) {
+            this.child = child;
+        }
+
+        @Override
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext()) {
+                return null;
+            }
+            Tuple t = child.next();
+            Tuple boxed = new Tuple(t.getTupleDesc());
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                Field f = t.getField(i);
+                boxed.setField(i, f.getType() == Type.INT_TYPE
+                        ? new IntField(((IntField) f).getValue())
+                        : new StringField(((StringField) f).getValue(), Type.STRING_LEN));
+            }
+            boxed.setRecordId(t.getRecordId());
+            return boxed;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+    }
+
+    private static HeapFile createTable(String name, int rows, int columns, int range) throws Exception {
+        Random random = new Random(rows);
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            List<Integer> tuple = new ArrayList<>(columns);
+            for (int j = 0; j < columns; j++) {
+                tuple.add(random.nextInt(range));
+            }
+            tuples.add(tuple);
+        }
+        return BenchmarkHarness.table(name, tuples);
+    }
+
+    private static OpIterator scan(TransactionId tid, HeapFile hf, boolean boxed) {
+        OpIterator scan = new SeqScan(tid, hf.getId());
+        return boxed ? new Boxed(scan) : scan;
+    }
+
+    private static void run(String name, long inputRows, Plan plan) throws Exception {
+        TransactionId tid = new TransactionId();
+        long boxed = 0;
+        for (boolean box : new boolean[]{true, false}) {
+            long best = HARNESS.time(() -> BenchmarkHarness.drain(plan.build(tid, box)));
+            // 两种格式的结果必须一致
+            if (box) {
+                boxed = HARNESS.getChecksum();
+            } else if (HARNESS.getChecksum() != boxed) {
+                throw new IllegalStateException(name + ": results differ");
+            }
+            System.out.printf("%-7s %-8s %10.0f rows/s %8.1f bytes/row%n", name, box ? "Field[]" : "packed",
+                    inputRows * 1e9 / best, (double) HARNESS.getAllocatedBytes() / inputRows);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        HeapFile big = createTable("big", rows, 3, 1 << 20);
+        HeapFile small = createTable("small", rows / 50, 2, 1 << 20);
+
+        run("scan", rows, (tid, boxed) -> scan(tid, big, boxed));
+        run("filter", rows, (tid, boxed) -> new Filter(
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1 << 18)), scan(tid, big, boxed)));
+        run("join", rows + rows / 50, (tid, boxed) -> new HashEquiJoin(
+                new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan(tid, small, boxed), scan(tid, big, boxed)));
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb;
+
+import simpledb.BenchmarkHarness.Plan;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Joins a fact table with a dimension table filtered down to a few of its
+ * rows, with and without runtime filters ({@link RuntimeFilter}), pulling
+ * tuples, pulling batches into an aggregate and in push pipelines, and
+ * prints the time of each and the speedup of the runtime filters. Not a
+ * unit test; run it with
+ * <pre>java -cp ... simpledb.RuntimeFilterBenchmark [rows]</pre>
+ */
+public class RuntimeFilterBenchmark {
+
+    private static final BenchmarkHarness HARNESS = new BenchmarkHarness(3, 5);
+
+    private static void run(String name, Plan plan) throws Exception {
+        TransactionId tid = new TransactionId();
+        boolean enabled = RuntimeFilter.isEnabled();
+        RuntimeFilter.setEnabled(false);
+        long without = HARNESS.time(plan, tid);
+        long expected = HARNESS.getChecksum();
+        RuntimeFilter.setEnabled(true);
+        long with = HARNESS.time(plan, tid);
+        RuntimeFilter.setEnabled(enabled);
+        if (HARNESS.getChecksum() != expected) {
+            throw new IllegalStateException(name + ": runtime filters give different results");
+        }
+        System.out.println(name);
+        System.out.printf("  without runtime filters %8.1f ms%n", without / 1e6);
+        System.out.printf("  with runtime filters    %8.1f ms   x%.2f%n", with / 1e6, (double) without / with);
+    }
+
+    private static HeapFile table(String name, int rows, int columns, int keys) throws Exception {
+        Random random = new Random(rows + columns);
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            List<Integer> t = new ArrayList<>(columns);
+            t.add(keys == 0 ? i : random.nextInt(keys));
+            for (int c = 1; c < columns; c++) {
+                t.add(random.nextInt(1000));
+            }
+            tuples.add(t);
+        }
+        return BenchmarkHarness.table(name, tuples);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int dims = rows / 20;
+        // 事实表的f0引用维表的主键d0；维表的过滤只留下1%的行
+        HeapFile fact = table("f", rows, 4, dims);
+        HeapFile dim = table("d", dims, 2, 0);
+        Plan join = tid -> new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10)),
+                        new SeqScan(tid, dim.getId())),
+                new SeqScan(tid, fact.getId()));
+
+        run("f join d, 1% of d, tuples", join);
+        run("count over f join d, 1% of d, batches", tid -> new Aggregate(join.build(tid),
+                new int[]{0}, new Aggregator.Op[]{Aggregator.Op.COUNT}, new int[0]));
+        run("f join d, 1% of d, push", tid -> PushPlan.compile(join.build(tid)));
+    }
+}
@@ -0,0 +1,259 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that runtime filters never drop a key that was added, drop most of
+ * the others, and that the hash joins, pulling tuples or batches and in push
+ * pipelines, publish them to the scans they probe without changing their
+ * results.
+ */
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Boolean> enabled =
+            new TestUtil.Setting<>(RuntimeFilter::isEnabled, RuntimeFilter::setEnabled);
+
+    @Rule
+    public final TestUtil.Setting<Boolean> batch =
+            new TestUtil.Setting<>(TupleBatch::isEnabled, TupleBatch::setEnabled);
+
+    @Rule
+    public final TestUtil.Setting<Long> budget = new TestUtil.Setting<>(Join::getMemoryBudget, Join::setMemoryBudget);
+
+    private TransactionId tid;
+
+    private HeapFile fact;
+
+    private HeapFile dim;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        fact = SystemTestUtil.createRandomHeapFile(3, 20000, 5000, new HashMap<>(), null, "f");
+        dim = SystemTestUtil.createRandomHeapFile(2, 2000, 5000, new HashMap<>(), null, "d");
+    }
+
+    @Test
+    public void bloomFilter() {
+        RuntimeFilter filter = new RuntimeFilter(0, false);
+        Random random = new Random(1);
+        Set<Integer> keys = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt();
+            keys.add(key);
+            filter.add(key);
+        }
+        filter.seal();
+        for (int key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+        int falsePositives = 0;
+        int tests = 0;
+        while (tests < 100000) {
+            int key = random.nextInt();
+            if (!keys.contains(key)) {
+                tests++;
+                falsePositives += filter.mightContain(key) ? 1 : 0;
+            }
+        }
+        assertTrue("false positive rate " + falsePositives / 1000.0 + "%", falsePositives < 3000);
+    }
+
+    @Test
+    public void bounds() {
+        RuntimeFilter filter = new RuntimeFilter(0, true);
+        for (int key = 100; key <= 200; key += 10) {
+            filter.add(key);
+        }
+        filter.seal();
+        assertTrue(filter.mightContain(100));
+        assertTrue(filter.mightContain(200));
+        assertFalse(filter.mightContain(99));
+        assertFalse(filter.mightContain(201));
+        assertFalse(filter.mightContain(Integer.MIN_VALUE));
+
+        RuntimeFilter empty = new RuntimeFilter(0, true);
+        empty.seal();
+        assertFalse(empty.mightContain(0));
+    }
+
+    /**
+     * A filter that drops almost nothing stops testing rows
+     */
+    @Test
+    public void switchesOff() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(1);
+        RuntimeFilter filter = new RuntimeFilter(0, true);
+        for (int key = 0; key < 1000; key++) {
+            filter.add(key);
+        }
+        filter.seal();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < 100000 && filter.isActive(); i++) {
+            t.setField(0, new IntField(i % 1000));
+            assertTrue(filter.test(t));
+        }
+        assertFalse(filter.isActive());
+        t.setField(0, new IntField(5000));
+        assertTrue(filter.test(t));
+        assertTrue(filter.getTested() < 100000);
+    }
+
+    private OpIterator dimension() {
+        return new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500)),
+                new SeqScan(tid, dim.getId()));
+    }
+
+    private static int batchRows(OpIterator it) throws Exception {
+        it.open();
+        int n = 0;
+        for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch()) {
+            n += b.selectedCount();
+        }
+        it.close();
+        return n;
+    }
+
+    @Test
+    public void hashJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        RuntimeFilter.setEnabled(false);
+        List<String> expected = TestUtil.rows(new HashEquiJoin(p, dimension(), new SeqScan(tid, fact.getId())));
+        assertFalse(expected.isEmpty());
+        int expectedBatchRows = batchRows(new HashEquiJoin(p, dimension(), new SeqScan(tid, fact.getId())));
+        assertEquals(expected.size(), expectedBatchRows);
+
+        RuntimeFilter.setEnabled(true);
+        SeqScan scan = new SeqScan(tid, fact.getId());
+        HashEquiJoin join = new HashEquiJoin(p, dimension(),
+                new Filter(new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(-1)), scan));
+        join.open();
+        assertEquals(1, scan.getRuntimeFilters().size());
+        RuntimeFilter filter = scan.getRuntimeFilters().get(0);
+        List<String> joined = new ArrayList<>();
+        while (join.hasNext()) {
+            joined.add(join.next().toString());
+        }
+        // 维表只剩约1/10的键，事实表的大部分行在扫描中就被丢弃
+        assertTrue(filter.getDropped() > 15000);
+        join.rewind();
+        while (join.hasNext()) {
+            joined.add(join.next().toString());
+        }
+        join.close();
+        assertTrue(scan.getRuntimeFilters().isEmpty());
+        Collections.sort(joined);
+        List<String> twice = new ArrayList<>(expected);
+        twice.addAll(expected);
+        Collections.sort(twice);
+        assertEquals(twice, joined);
+
+        assertEquals(expectedBatchRows, batchRows(new HashEquiJoin(p, dimension(), new SeqScan(tid, fact.getId()))));
+    }
+
+    /**
+     * The keys of the partitions written to disk are in the filter as well
+     */
+    @Test
+    public void partitionedJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        RuntimeFilter.setEnabled(false);
+        List<String> expected = TestUtil.rows(new HashEquiJoin(p, dimension(), new SeqScan(tid, fact.getId())));
+        RuntimeFilter.setEnabled(true);
+        Join.setMemoryBudget(1000);
+        assertEquals(expected, TestUtil.rows(new HashEquiJoin(p, dimension(), new SeqScan(tid, fact.getId()))));
+    }
+
+    @Test
+    public void stringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}, new String[]{"k", "v"});
+        List<Tuple> build = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField("k" + i * 7, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            build.add(t);
+        }
+        File text = File.createTempFile("probe", ".txt");
+        text.deleteOnExit();
+        try (Writer w = new FileWriter(text)) {
+            for (int i = 0; i < 1000; i++) {
+                w.write("k" + i % 200 + "," + i + "\n");
+            }
+        }
+        File file = File.createTempFile("probe", ".dat");
+        file.deleteOnExit();
+        new HeapFileLoader(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}, ',', BufferPool.getPageSize()).load(text, file);
+        HeapFile probe = new HeapFile(file, td);
+        Database.getCatalog().addTable(probe, "probe");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        RuntimeFilter.setEnabled(false);
+        List<String> expected = TestUtil.rows(new HashEquiJoin(p, new TupleIterator(td, build), new SeqScan(tid, probe.getId())));
+        assertEquals(20 * 5, expected.size());
+        RuntimeFilter.setEnabled(true);
+        SeqScan scan = new SeqScan(tid, probe.getId());
+        HashEquiJoin join = new HashEquiJoin(p, new TupleIterator(td, build), scan);
+        join.open();
+        RuntimeFilter filter = scan.getRuntimeFilters().get(0);
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(join)));
+        join.close();
+        // 200个键中只有20个能匹配；Bloom过滤器可能误判少数几个
+        assertTrue(filter.getDropped() > 800);
+    }
+
+    @Test
+    public void pushPipeline() throws Exception {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        Type[] two = {Type.INT_TYPE, Type.INT_TYPE};
+        RuntimeFilter.setEnabled(false);
+        List<String> expected = TestUtil.rows(new Project(Arrays.asList(0, 3), two,
+                new HashEquiJoin(p, dimension(), new SeqScan(tid, fact.getId()))));
+        RuntimeFilter.setEnabled(true);
+        SeqScan scan = new SeqScan(tid, fact.getId());
+        OpIterator pushed = PushPlan.compile(new Project(Arrays.asList(0, 3), two,
+                new HashEquiJoin(p, dimension(), scan)));
+        assertTrue(pushed instanceof PushPlan);
+        pushed.open();
+        assertEquals(1, scan.getRuntimeFilters().size());
+        RuntimeFilter filter = scan.getRuntimeFilters().get(0);
+        assertEquals(expected, TestUtil.sorted(TestUtil.drain(pushed)));
+        pushed.close();
+        assertTrue(scan.getRuntimeFilters().isEmpty());
+        assertTrue(filter.getDropped() > 15000);
+
+        // 回退到拉取方式的连接后只剩连接自己发布的过滤器
+        Join.setMemoryBudget(1000);
+        pushed.open();
+        assertTrue(((PushPlan) pushed).isFallback());
+        assertEquals(1, scan.getRuntimeFilters().size());
+        pushed.close();
+        assertEquals(expected, TestUtil.rows(pushed));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RuntimeFilterTest.class);
+    }
+}
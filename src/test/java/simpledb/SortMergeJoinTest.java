@@ -0,0 +1,163 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that SortMergeJoin gives the same rows as a hash join, in key order,
+ * whether its inputs are sorted beforehand or by the join, and whether its
+ * groups of equal keys fit in memory or not.
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    @Rule
+    public final TestUtil.Setting<Long> budget = new TestUtil.Setting<>(Join::getMemoryBudget, Join::setMemoryBudget);
+
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    private static List<Tuple> tuples(OpIterator it) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        return tuples;
+    }
+
+    private static List<String> sortedRows(List<Tuple> tuples) {
+        List<String> rows = new ArrayList<>();
+        for (Tuple t : tuples) {
+            rows.add(t.toString());
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private void check(OpIterator left, OpIterator right, JoinPredicate pred, List<String> expected) throws Exception {
+        SortMergeJoin join = new SortMergeJoin(pred, left, right);
+        join.open();
+        List<Tuple> result = tuples(join);
+        assertEquals(expected, sortedRows(result));
+        for (int i = 1; i < result.size(); i++) {
+            assertTrue(NormalizedKey.compare(result.get(i - 1).getField(pred.getField1()),
+                    result.get(i).getField(pred.getField1())) <= 0);
+        }
+        join.rewind();
+        assertEquals(expected, sortedRows(tuples(join)));
+        join.close();
+    }
+
+    private List<String> hashJoin(HeapFile left, HeapFile right, JoinPredicate pred) throws Exception {
+        HashEquiJoin join = new HashEquiJoin(pred, new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()));
+        join.open();
+        List<String> rows = sortedRows(tuples(join));
+        join.close();
+        assertFalse(rows.isEmpty());
+        return rows;
+    }
+
+    @Test
+    public void unsortedInputs() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, new HashMap<>(), null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 1000, 500, new HashMap<>(), null);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        check(new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()), pred, hashJoin(left, right, pred));
+    }
+
+    @Test
+    public void sortedInputs() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 2000, 500, new HashMap<>(), null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(3, 1000, 500, new HashMap<>(), null);
+        JoinPredicate pred = new JoinPredicate(1, Predicate.Op.EQUALS, 2);
+        OpIterator sortedLeft = new OrderBy(1, true, new SeqScan(tid, left.getId()));
+        OpIterator sortedRight = new OrderBy(2, true, new SeqScan(tid, right.getId()));
+        assertTrue(SortMergeJoin.isOrdered(sortedLeft, 1));
+        assertFalse(SortMergeJoin.isOrdered(sortedLeft, 0));
+        assertFalse(SortMergeJoin.isOrdered(new OrderBy(1, false, new SeqScan(tid, left.getId())), 1));
+        check(sortedLeft, sortedRight, pred, hashJoin(left, right, pred));
+    }
+
+    /**
+     * Few distinct keys and a budget of a few tuples: the groups of equal
+     * right keys are spilled to disk and read back once per left tuple
+     */
+    @Test
+    public void spilledGroups() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 300, 10, new HashMap<>(), null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 300, 10, new HashMap<>(), null);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<String> expected = hashJoin(left, right, pred);
+        Join.setMemoryBudget(4 * 8);
+        check(new SeqScan(tid, left.getId()), new SeqScan(tid, right.getId()), pred, expected);
+    }
+
+    @Test
+    public void stringKeys() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+        List<Tuple> tuples = new ArrayList<>();
+        String[] keys = {"b", "a", "", "ab", "b", "c", "a"};
+        for (int i = 0; i < keys.length; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(keys[i], Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<String> expected = new ArrayList<>();
+        for (Tuple l : tuples) {
+            for (Tuple r : tuples) {
+                if (l.getString(0).equals(r.getString(0))) {
+                    expected.add(Tuple.concat(TupleDesc.merge(td, td), l, r).toString());
+                }
+            }
+        }
+        Collections.sort(expected);
+        check(new TupleIterator(td, tuples), new TupleIterator(td, tuples), pred, expected);
+    }
+
+    /**
+     * instantiateJoin merges inputs that are both ordered on their join keys
+     */
+    @Test
+    public void chosenForOrderedInputs() throws Exception {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, 10, new HashMap<>(), null, "c");
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 10, new HashMap<>(), null, "c");
+        OpIterator scan1 = new SeqScan(tid, left.getId(), "a");
+        OpIterator scan2 = new SeqScan(tid, right.getId(), "b");
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", scan1.getTupleDesc().getFieldName(0),
+                scan2.getTupleDesc().getFieldName(1), Predicate.Op.EQUALS);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, new OrderBy(0, true, scan1),
+                new OrderBy(1, true, scan2)) instanceof SortMergeJoin);
+        assertFalse(JoinOptimizer.instantiateJoin(lj, new OrderBy(0, true, scan1),
+                scan2) instanceof SortMergeJoin);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import org.junit.rules.ExternalResource;
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
 import simpledb.storage.*;
@@ -11,8 +12,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -157,6 +163,53 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return the tuples left in the open iterator as strings, in the order
+     * the iterator returns them
+     */
+    public static List<String> drain(OpIterator it) throws DbException, TransactionAbortedException {
+        List<String> rows = new ArrayList<>();
+        while (it.hasNext()) {
+            rows.add(it.next().toString());
+        }
+        return rows;
+    }
+
+    /**
+     * Opens the iterator, drains it and closes it.
+     *
+     * @return the tuples of the iterator as strings, sorted, for comparing
+     * plans that return the same rows in different orders
+     */
+    public static List<String> rows(OpIterator it) throws DbException, TransactionAbortedException {
+        it.open();
+        List<String> rows = sorted(drain(it));
+        it.close();
+        return rows;
+    }
+
+    /**
+     * @return the tuples left in the open iterator as strings; asserts that
+     * no tuple is returned twice, as for the groups of an aggregate
+     */
+    public static Set<String> distinct(OpIterator it) throws DbException, TransactionAbortedException {
+        Set<String> rows = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(rows.add(it.next().toString()));
+        }
+        return rows;
+    }
+
+    /**
+     * Sorts the rows in place.
+     *
+     * @return rows
+     */
+    public static List<String> sorted(List<String> rows) {
+        Collections.sort(rows);
+        return rows;
+    }
+
     /**
      * Verifies that the OpIterator has been exhausted of all elements.
      */
@@ -198,6 +251,44 @@ public class TestUtil {
         return buf;
     }
 
+    /**
+     * A rule that saves a static setting, such as a memory budget, a thread
+     * count or a feature switch, before each test and puts it back after it,
+     * so that tests can change it freely:
+     * <pre>
+     * &#64;Rule
+     * public final TestUtil.Setting&lt;Boolean&gt; batch =
+     *         new TestUtil.Setting&lt;&gt;(TupleBatch::isEnabled, TupleBatch::setEnabled);
+     * </pre>
+     */
+    public static class Setting<T> extends ExternalResource {
+        private final Supplier<T> getter;
+        private final Consumer<T> setter;
+        private T saved;
+
+        public Setting(Supplier<T> getter, Consumer<T> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        /**
+         * @return the value the setting had before the test
+         */
+        public T get() {
+            return saved;
+        }
+
+        @Override
+        protected void before() {
+            saved = getter.get();
+        }
+
+        @Override
+        protected void after() {
+            setter.accept(saved);
+        }
+    }
+
     /**
      * Stub DbFile class for unit testing.
      */
@@ -386,6 +477,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FileExtentAllocator.sidecarFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
@@ -2,11 +2,18 @@ package simpledb;
 
 
 import org.junit.jupiter.api.Test;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 
 public class TupleTest extends SimpleDbTestBase {
@@ -62,6 +69,77 @@ public class TupleTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for packed tuples: typed accessors, concat and project
+     */
+    @Test
+    public void packedRows() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        RowLayout layout = td.getRowLayout();
+        Tuple src = new Tuple(td);
+        src.setField(0, new IntField(42));
+        src.setField(1, new StringField("packed", Type.STRING_LEN));
+        byte[] data = new byte[3 + layout.getSize()];
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream dos = new DataOutputStream(baos);
+            src.getField(0).serialize(dos);
+            src.getField(1).serialize(dos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, 3, layout.getSize());
+
+        Tuple tup = new Tuple(layout, data, 3);
+        assertEquals(42, tup.getInt(0));
+        assertEquals("packed", tup.getString(1));
+        assertEquals(new IntField(42), tup.getField(0));
+        assertSame(tup.getField(1), tup.getField(1));
+
+        TupleDesc merged = TupleDesc.merge(td, td);
+        Tuple joined = Tuple.concat(merged, tup, tup);
+        assertEquals(42, joined.getInt(2));
+        assertEquals(new StringField("packed", Type.STRING_LEN), joined.getField(3));
+
+        Tuple projected = Tuple.project(new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE}),
+                joined, new int[]{1, 2});
+        assertEquals("packed", projected.getString(0));
+        assertEquals(42, projected.getInt(1));
+
+        // 修改过的字段优先于packed字节
+        tup.setField(0, new IntField(7));
+        assertEquals(7, tup.getInt(0));
+        assertEquals(7, Tuple.concat(merged, tup, tup).getInt(0));
+    }
+
+    /**
+     * A packed row copied out of the array it was read from keeps its values,
+     * overridden fields and record id
+     */
+    @Test
+    public void compact() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE});
+        RowLayout layout = td.getRowLayout();
+        byte[] page = new byte[4 * layout.getSize()];
+        page[2 * layout.getSize() + 3] = 5;
+        page[2 * layout.getSize() + 7] = 6;
+        Tuple tup = new Tuple(layout, page, 2 * layout.getSize());
+        tup.setRecordId(new RecordId(new HeapPageId(0, 0), 2));
+        tup.setField(1, new IntField(9));
+
+        Tuple copy = tup.compact();
+        assertNotSame(tup, copy);
+        assertSame(copy, copy.compact());
+        assertEquals(5, copy.getInt(0));
+        assertEquals(9, copy.getInt(1));
+        assertEquals(tup.getRecordId(), copy.getRecordId());
+        page[2 * layout.getSize() + 3] = 1;
+        assertEquals(5, copy.getInt(0));
+
+        Tuple plain = new Tuple(td);
+        assertSame(plain, plain.compact());
+    }
+
     /**
      * JUnit suite target
      */